@@ -9,6 +9,10 @@ import com.tanodxyz.gdownload.database.SQLiteManager
 import com.tanodxyz.gdownload.executors.ScheduledBackgroundExecutorImpl
 import com.tanodxyz.gdownload.io.DefaultFileStorageHelper
 import com.tanodxyz.gdownload.worker.DataReadWriteWorkersManagerImpl
+import kotlinx.coroutines.flow.filterNotNull
+import kotlinx.coroutines.flow.first
+import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.withTimeout
 
 import org.junit.After
 import org.junit.Assert
@@ -74,6 +78,19 @@ class DownloaderTests {
         }
     }
 
+    @Test
+    fun downloadInfoFlowHoldsLatestState() {
+        val download = getDownload()
+        downloader.download(download, null)
+        val downloadInfo = runBlocking {
+            withTimeout(10_000) {
+                downloader.getDownloadInfoFlow().filterNotNull().first()
+            }
+        }
+        Assert.assertEquals(download.id, downloadInfo.id)
+        downloader.stopDownload()
+    }
+
     @Test
     fun cancel_started_download() {
         val download = getDownload(largeFile = true)
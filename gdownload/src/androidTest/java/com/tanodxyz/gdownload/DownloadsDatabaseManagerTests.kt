@@ -183,4 +183,66 @@ class DownloadsDatabaseManagerTests {
     }
 
 
+    @Test
+    fun getDownloadsPage() {
+        Assert.assertEquals(0, downloadDatabaseManager.getAll().count())
+        for (i: Int in 0 until 7) {
+            downloadDatabaseManager.insertDownload(getDummyDownload())
+        }
+        val firstPage = downloadDatabaseManager.getDownloadsPage(pageSize = 3)
+        Assert.assertEquals(3, firstPage.downloads.count())
+        Assert.assertTrue(firstPage.hasNextPage())
+        Assert.assertNull(firstPage.downloads[0].getSliceData())
+        val secondPage =
+            downloadDatabaseManager.getDownloadsPage(firstPage.nextPageKey, 3, includeSliceData = true)
+        Assert.assertEquals(3, secondPage.downloads.count())
+        Assert.assertNotNull(secondPage.downloads[0].getSliceData())
+        val lastPage = downloadDatabaseManager.getDownloadsPage(secondPage.nextPageKey, 3)
+        Assert.assertEquals(1, lastPage.downloads.count())
+        Assert.assertFalse(lastPage.hasNextPage())
+    }
+
+    @Test
+    fun forEachDownload() {
+        Assert.assertEquals(0, downloadDatabaseManager.getAll().count())
+        val dummyDownload = getDummyDownload()
+        dummyDownload.set(status = Download.PAUSED)
+        val dummyDownload1 = getDummyDownload()
+        dummyDownload1.set(status = Download.DOWNLOADED)
+        val dummyDownload2 = getDummyDownload()
+        dummyDownload2.set(status = Download.PAUSED)
+        downloadDatabaseManager.insertDownload(dummyDownload)
+        downloadDatabaseManager.insertDownload(dummyDownload1)
+        downloadDatabaseManager.insertDownload(dummyDownload2)
+        var pausedCount = 0
+        downloadDatabaseManager.forEachDownload(arrayOf(Download.PAUSED)) {
+            ++pausedCount
+            true
+        }
+        Assert.assertEquals(2, pausedCount)
+        var streamedCount = 0
+        downloadDatabaseManager.forEachDownload {
+            ++streamedCount
+            false
+        }
+        Assert.assertEquals(1, streamedCount)
+    }
+
+    @Test
+    fun bulkOperations() {
+        Assert.assertEquals(0, downloadDatabaseManager.getAll().count())
+        val downloads = MutableList(5) { getDummyDownload() }
+        downloadDatabaseManager.insertAll(downloads)
+        Assert.assertEquals(5, downloadDatabaseManager.getAll().count())
+        downloads.forEach { it.set(status = Download.PAUSED) }
+        val newDownload = getDummyDownload()
+        downloadDatabaseManager.updateAll(downloads + newDownload)
+        Assert.assertEquals(6, downloadDatabaseManager.getAll().count())
+        Assert.assertEquals(5, downloadDatabaseManager.findAllInCompleteDownloads().count())
+        val deletedRows =
+            downloadDatabaseManager.deleteByIds(listOf(downloads[0].id, downloads[1].id, newDownload.id))
+        Assert.assertEquals(3, deletedRows)
+        Assert.assertEquals(3, downloadDatabaseManager.getAll().count())
+    }
+
 }
\ No newline at end of file
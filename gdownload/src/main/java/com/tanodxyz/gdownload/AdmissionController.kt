@@ -0,0 +1,240 @@
+package com.tanodxyz.gdownload
+
+import java.util.Collections
+import java.util.IdentityHashMap
+
+/**
+ * Process wide admission of downloads.
+ * >
+ * Every [GroupImpl] and stand alone [DownloadManager] takes a [Permit] before a download opens
+ * it's connections and gives it back once the download is no longer busy, so these caps hold for
+ * all of them together -
+ * * [maxRunningDownloads] downloads that run at once.
+ * * [maxConnections] connections opened by them. a download is granted fewer connections then
+ * it asked for if only some are left.
+ * * [maxBandwidthBytesPerSecond] total rate. limiter of every downloader reports it's reads to
+ * [bandwidthLimiter].
+ *
+ * 0 means unlimited and is the default, so nothing waits until caps are set.
+ * ### Arbitration
+ * >Client that is refused waits and is told by [Client.onAdmissionAvailable] once capacity frees
+ * up. Freed capacity is offered to the waiting clients with the highest
+ * [Client.admissionPriority] first and a client is refused while one of higher priority waits,
+ * so a lower priority group can not take back the capacity that was freed for another one.
+ * Clients that no longer have anything to start must [withdraw] so the next priority is served.
+ *
+ * [shared] is used by [GDownload] and by groups and downloaders that are not given one.
+ */
+class AdmissionController(
+    maxRunningDownloads: Int = 0,
+    maxConnections: Int = 0,
+    maxBandwidthBytesPerSecond: Long = 0
+) {
+    private val lock = Any()
+    private var runningDownloads = 0
+    private var usedConnections = 0
+    private val permits = IdentityHashMap<Client, MutableSet<Permit>>()
+    private val waitingClients = Collections.newSetFromMap(IdentityHashMap<Client, Boolean>())
+
+    /**
+     * Parent of the limiter of every admitted downloader.
+     */
+    val bandwidthLimiter = BandwidthLimiter(maxBandwidthBytesPerSecond)
+
+    var maxRunningDownloads: Int = 0
+        set(value) {
+            if (value < 0) {
+                throw IllegalArgumentException("maxRunningDownloads must not be negative")
+            }
+            synchronized(lock) {
+                field = value
+            }
+            offerFreedCapacity()
+        }
+
+    var maxConnections: Int = 0
+        set(value) {
+            if (value < 0) {
+                throw IllegalArgumentException("maxConnections must not be negative")
+            }
+            synchronized(lock) {
+                field = value
+            }
+            offerFreedCapacity()
+        }
+
+    var maxBandwidthBytesPerSecond: Long
+        get() = bandwidthLimiter.bytesPerSecond
+        set(value) {
+            bandwidthLimiter.bytesPerSecond = value
+        }
+
+    init {
+        this.maxRunningDownloads = maxRunningDownloads
+        this.maxConnections = maxConnections
+    }
+
+    /**
+     * Something that starts downloads - a group or a stand alone downloader.
+     */
+    interface Client {
+        /**
+         * Clients with a higher value are admitted first.
+         */
+        val admissionPriority: Int
+
+        /**
+         * Called on the thread that freed capacity while this client was waiting. It must only
+         * hand the event over and try again from it's own thread.
+         */
+        fun onAdmissionAvailable()
+    }
+
+    /**
+     * Running download of [client] holding [connections] connections. releasing it twice is
+     * harmless.
+     */
+    inner class Permit internal constructor(internal val client: Client, val connections: Int) {
+        fun release() = this@AdmissionController.release(this)
+    }
+
+    /**
+     * @param connections connections the download would open.
+     * @param minConnections fewest connections it can run with. download that needs more then
+     * [maxConnections] is admitted only when nothing else runs.
+     * @return null if a cap is reached or a client of higher priority is waiting. [client] waits
+     * then.
+     */
+    fun tryAcquire(client: Client, connections: Int, minConnections: Int = 1): Permit? {
+        if (minConnections < 1 || connections < minConnections) {
+            throw IllegalArgumentException("connections $connections, min $minConnections are not valid")
+        }
+        synchronized(lock) {
+            val granted = grantableConnections(connections, minConnections)
+            val higherPriorityWaits = waitingClients.any { waitingClient ->
+                waitingClient !== client && waitingClient.admissionPriority > client.admissionPriority
+            }
+            if (granted == 0 || higherPriorityWaits) {
+                waitingClients.add(client)
+                return null
+            }
+            waitingClients.remove(client)
+            ++runningDownloads
+            usedConnections += granted
+            val permit = Permit(client, granted)
+            permits.getOrPut(client) { Collections.newSetFromMap(IdentityHashMap()) }.add(permit)
+            return permit
+        }
+    }
+
+    /**
+     * Asks for the connections of [download]. download that resumes needs one connection per
+     * pending slice as slices are not split again.
+     */
+    fun tryAcquire(client: Client, download: Download): Permit? {
+        val pendingSlices = download.getSliceData()?.count { !it.downloadComplete.get() } ?: 0
+        return if (pendingSlices > 0) {
+            tryAcquire(client, pendingSlices, pendingSlices)
+        } else {
+            tryAcquire(client, download.getMaxNumberOfConnections())
+        }
+    }
+
+    fun release(permit: Permit) {
+        synchronized(lock) {
+            val clientPermits = permits[permit.client]
+            if (clientPermits == null || !clientPermits.remove(permit)) {
+                return
+            }
+            if (clientPermits.isEmpty()) {
+                permits.remove(permit.client)
+            }
+            --runningDownloads
+            usedConnections -= permit.connections
+        }
+        offerFreedCapacity()
+    }
+
+    /**
+     * [client] has nothing to start anymore.
+     */
+    fun withdraw(client: Client) {
+        val withdrawn = synchronized(lock) {
+            waitingClients.remove(client)
+        }
+        if (withdrawn) {
+            offerFreedCapacity()
+        }
+    }
+
+    /**
+     * Releases every permit of [client] and withdraws it.
+     */
+    fun unregister(client: Client) {
+        synchronized(lock) {
+            waitingClients.remove(client)
+            permits.remove(client)?.forEach { permit ->
+                --runningDownloads
+                usedConnections -= permit.connections
+            }
+        }
+        offerFreedCapacity()
+    }
+
+    fun runningDownloadsCount(): Int = synchronized(lock) { runningDownloads }
+
+    fun usedConnectionsCount(): Int = synchronized(lock) { usedConnections }
+
+    fun waitingClientsCount(): Int = synchronized(lock) { waitingClients.size }
+
+    /**
+     * @return 0 if download can not run now.
+     */
+    private fun grantableConnections(connections: Int, minConnections: Int): Int {
+        if (maxRunningDownloads in 1..runningDownloads) {
+            return 0
+        }
+        if (maxConnections == 0) {
+            return connections
+        }
+        val freeConnections = maxConnections - usedConnections
+        return when {
+            freeConnections >= connections -> connections
+            freeConnections >= minConnections -> freeConnections
+            usedConnections == 0 -> minConnections
+            else -> 0
+        }
+    }
+
+    /**
+     * Notifies waiting clients of the highest priority, outside of the lock.
+     */
+    private fun offerFreedCapacity() {
+        val clientsToNotify = synchronized(lock) {
+            val hasCapacity = (maxRunningDownloads == 0 || runningDownloads < maxRunningDownloads)
+                    && (maxConnections == 0 || usedConnections < maxConnections)
+            if (!hasCapacity || waitingClients.isEmpty()) {
+                emptyList()
+            } else {
+                val highestPriority = waitingClients.maxOf { it.admissionPriority }
+                waitingClients.filter { it.admissionPriority == highestPriority }
+            }
+        }
+        clientsToNotify.forEach { it.onAdmissionAvailable() }
+    }
+
+    override fun toString(): String {
+        return "AdmissionController(maxRunningDownloads=$maxRunningDownloads, " +
+                "maxConnections=$maxConnections, " +
+                "maxBandwidthBytesPerSecond=$maxBandwidthBytesPerSecond, " +
+                "runningDownloads=${runningDownloadsCount()}, usedConnections=${usedConnectionsCount()})"
+    }
+
+    companion object {
+        /**
+         * Process wide controller, unlimited until it's caps are set.
+         */
+        @JvmStatic
+        val shared: AdmissionController by lazy { AdmissionController() }
+    }
+}
@@ -0,0 +1,153 @@
+package com.tanodxyz.gdownload
+
+/**
+ * Bandwidth a running download of a group gets.
+ * @param weight weight of the download among the running downloads of it's group.
+ * @param allocatedBytesPerSecond rate download is throttled to, 0 means not throttled.
+ * @param usedBytesPerSecond rate measured since the previous allocation.
+ */
+data class BandwidthShare(
+    val downloadId: Long,
+    val weight: Double,
+    val allocatedBytesPerSecond: Long,
+    val usedBytesPerSecond: Long
+)
+
+/**
+ * Splits bandwidth of a group between it's running downloads by weight.
+ * >
+ * ### Weighted max-min sharing
+ * >Download that used clearly less then it's previous allocation can't use more, it gets what it
+ * used plus some headroom. The rest is split between the other downloads by weight, so unused
+ * share is borrowed by downloads that can use it. Whatever is left after every download is
+ * satisfied is split by weight too.
+ * ### Capacity
+ * >[limitBytesPerSecond] if it is set, otherwise capacity of the link is estimated from the
+ * total throughput - it follows the throughput when downloads do not use their shares and grows
+ * slowly while they do, to probe for more.
+ * ### Warm-up
+ * >Without [limitBytesPerSecond] nothing is throttled until the total throughput stops growing -
+ * connections that are still ramping up would otherwise be held to the rate of their first
+ * samples. The highest throughput seen in warm-up is the first estimate. Warm-up starts again
+ * once no download is running.
+ *
+ * Not thread safe - it is owned by the group loop thread.
+ */
+internal class BandwidthAllocator(private val limitBytesPerSecond: Long = 0) {
+    private var estimatedCapacity = 0.0
+    private var warmedUp = false
+    private var warmUpPeak = 0.0
+    private var warmUpStableSamples = 0
+
+    class Demand(val downloadId: Long, val weight: Double, val usedBytesPerSecond: Long, val allocatedBytesPerSecond: Long)
+
+    fun allocate(demands: List<Demand>): List<BandwidthShare> {
+        if (demands.isEmpty()) {
+            restartWarmUp()
+            return emptyList()
+        }
+        val capacity = capacityFor(demands)
+        if (capacity <= 0 || (limitBytesPerSecond <= 0 && demands.size == 1)) {
+            return demands.map { BandwidthShare(it.downloadId, it.weight, 0, it.usedBytesPerSecond) }
+        }
+        val allocations = DoubleArray(demands.size)
+        val unsatisfied = demands.indices.toMutableList()
+        var remaining = capacity
+        // satisfied downloads leave the share they can't use to the others.
+        while (unsatisfied.isNotEmpty()) {
+            val sharePerWeight = remaining / unsatisfied.sumOf { demands[it].weight }
+            val satisfied = unsatisfied.filter { index ->
+                val ceiling = ceilingOf(demands[index])
+                ceiling != null && ceiling <= sharePerWeight * demands[index].weight
+            }
+            if (satisfied.isEmpty()) {
+                unsatisfied.forEach { allocations[it] = sharePerWeight * demands[it].weight }
+                remaining = 0.0
+                break
+            }
+            satisfied.forEach { index ->
+                allocations[index] = ceilingOf(demands[index])!!
+                remaining -= allocations[index]
+            }
+            unsatisfied.removeAll(satisfied)
+        }
+        if (remaining > 0) {
+            val totalWeight = demands.sumOf { it.weight }
+            demands.indices.forEach { allocations[it] += remaining * demands[it].weight / totalWeight }
+        }
+        return demands.mapIndexed { index, demand ->
+            BandwidthShare(
+                demand.downloadId,
+                demand.weight,
+                maxOf(MIN_SHARE_BYTES_PER_SECOND, allocations[index].toLong()),
+                demand.usedBytesPerSecond
+            )
+        }
+    }
+
+    /**
+     * @return most download can use or null if it may use more then it got.
+     */
+    private fun ceilingOf(demand: Demand): Double? {
+        if (demand.allocatedBytesPerSecond <= 0 ||
+            demand.usedBytesPerSecond >= demand.allocatedBytesPerSecond * SATURATION
+        ) {
+            return null
+        }
+        return maxOf(MIN_SHARE_BYTES_PER_SECOND.toDouble(), demand.usedBytesPerSecond * HEADROOM)
+    }
+
+    private fun capacityFor(demands: List<Demand>): Double {
+        if (limitBytesPerSecond > 0) {
+            return limitBytesPerSecond.toDouble()
+        }
+        val totalUsed = demands.sumOf { it.usedBytesPerSecond }.toDouble()
+        if (!warmedUp) {
+            if (totalUsed > warmUpPeak * PROBE_GROWTH) {
+                warmUpStableSamples = 0
+            } else {
+                ++warmUpStableSamples
+            }
+            warmUpPeak = maxOf(warmUpPeak, totalUsed)
+            if (warmUpStableSamples < WARM_UP_STABLE_SAMPLES) {
+                return 0.0
+            }
+            warmedUp = true
+            estimatedCapacity = warmUpPeak
+            return estimatedCapacity
+        }
+        val allSaturated = demands.all {
+            it.allocatedBytesPerSecond > 0 && it.usedBytesPerSecond >= it.allocatedBytesPerSecond * SATURATION
+        }
+        estimatedCapacity = if (allSaturated) {
+            maxOf(totalUsed, estimatedCapacity) * PROBE_GROWTH
+        } else {
+            maxOf(totalUsed, estimatedCapacity * CAPACITY_DECAY)
+        }
+        return estimatedCapacity
+    }
+
+    private fun restartWarmUp() {
+        if (limitBytesPerSecond > 0) {
+            return
+        }
+        warmedUp = false
+        warmUpPeak = 0.0
+        warmUpStableSamples = 0
+        estimatedCapacity = 0.0
+    }
+
+    companion object {
+        const val MIN_SHARE_BYTES_PER_SECOND = 16 * 1024L
+        private const val SATURATION = 0.8
+        private const val HEADROOM = 1.25
+        private const val PROBE_GROWTH = 1.1
+        private const val CAPACITY_DECAY = 0.9
+
+        /**
+         * Samples in a row total throughput must stay within [PROBE_GROWTH] of it's peak to end
+         * warm-up.
+         */
+        private const val WARM_UP_STABLE_SAMPLES = 3
+    }
+}
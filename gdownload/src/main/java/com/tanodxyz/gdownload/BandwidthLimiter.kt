@@ -0,0 +1,92 @@
+package com.tanodxyz.gdownload
+
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.locks.LockSupport
+
+/**
+ * Token bucket shared by the workers of one download.
+ * >
+ * Workers report each read through [onBytesRead] and are parked while the download is ahead of
+ * [bytesPerSecond]. Bucket holds at most a quarter of a second of data so a download that was
+ * idle can not burst far above it's rate. [bytesPerSecond] can be changed at any time, 0 means
+ * unlimited and costs a volatile read per read.
+ *
+ * [consumedBytes] counts every byte read, throttled or not, so rates can be measured from it.
+ * Reads are reported to [parent] too, after this limiter let them through.
+ */
+class BandwidthLimiter(bytesPerSecond: Long = 0) {
+    private val consumedBytes = AtomicLong()
+    private var availableBytes = 0.0
+    private var lastRefillNanos = System.nanoTime()
+
+    @Volatile
+    var bytesPerSecond: Long = bytesPerSecond
+        set(value) {
+            if (value < 0) {
+                throw IllegalArgumentException("bytesPerSecond must not be negative")
+            }
+            field = value
+        }
+
+    /**
+     * Limiter shared with other downloads, [AdmissionController.bandwidthLimiter].
+     */
+    @Volatile
+    internal var parent: BandwidthLimiter? = null
+
+    init {
+        this.bytesPerSecond = bytesPerSecond
+    }
+
+    fun consumedBytes(): Long = consumedBytes.get()
+
+    /**
+     * Parks the calling worker until [bytes] fit in the rate. returns early if thread is
+     * interrupted, interrupt flag is kept for the read that follows.
+     */
+    fun onBytesRead(bytes: Int) {
+        if (bytes <= 0) {
+            return
+        }
+        throttle(bytes)
+        parent?.onBytesRead(bytes)
+    }
+
+    private fun throttle(bytes: Int) {
+        consumedBytes.addAndGet(bytes.toLong())
+        val rate = bytesPerSecond
+        if (rate <= 0) {
+            return
+        }
+        val waitNanos = synchronized(this) {
+            val now = System.nanoTime()
+            val burst = maxOf(rate / 4.0, MIN_BURST_BYTES)
+            availableBytes = minOf(
+                burst,
+                availableBytes + (now - lastRefillNanos) * rate / NANOS_PER_SECOND
+            )
+            lastRefillNanos = now
+            availableBytes -= bytes
+            if (availableBytes >= 0) 0L else (-availableBytes * NANOS_PER_SECOND / rate).toLong()
+        }
+        if (waitNanos <= 0) {
+            return
+        }
+        val deadline = System.nanoTime() + waitNanos
+        var remainingNanos = waitNanos
+        while (remainingNanos > 0 && !Thread.currentThread().isInterrupted) {
+            LockSupport.parkNanos(this, remainingNanos)
+            remainingNanos = deadline - System.nanoTime()
+        }
+    }
+
+    override fun toString(): String {
+        return "BandwidthLimiter(bytesPerSecond=$bytesPerSecond, consumedBytes=${consumedBytes()})"
+    }
+
+    companion object {
+        private val NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1).toDouble()
+        private const val MIN_BURST_BYTES = 16 * 1024.0
+    }
+}
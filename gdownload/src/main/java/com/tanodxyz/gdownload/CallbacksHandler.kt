@@ -7,6 +7,7 @@ import androidx.lifecycle.Lifecycle
 import androidx.lifecycle.LifecycleOwner
 import com.tanodxyz.gdownload.executors.BackgroundExecutor
 import java.util.*
+import java.util.concurrent.RejectedExecutionException
 
 /**
  *The [CallbacksHandler] is used to run the callbacks based on flag [callbackThreadMain].
@@ -19,23 +20,85 @@ import java.util.*
  *  else if callbacks are provided but current state was other then [Lifecycle.State.RESUMED]
  *  then all callbacks will accumulate in the list un till [Lifecycle] = [Lifecycle.State.RESUMED]
  *
+ * ### Conflation
+ * >Callbacks provided via [runConflatedOnSelectedThread] are conflated per key. At most one of them
+ * is pending at any time and newer callbacks replace it in place, so a slow main thread or a
+ * paused [Lifecycle] never accumulates stale progress. As pending callback keeps its place,
+ * it is still delivered before any callback that was provided after it. Pending callback that is
+ * dropped - lifecycle destroyed or thread rejected it - is forgotten so the next one for the
+ * same key is delivered.
  */
 open class CallbacksHandler(
     internal val callbackThreadMain: Boolean = false,
     internal val executor: BackgroundExecutor?,
     lifecycle: Lifecycle? = null
 ) {
-    protected val mainThreadHandler = Handler(Looper.getMainLooper())
+    private val mainThreadHandlerDelegate = lazy { Handler(Looper.getMainLooper()) }
+    protected val mainThreadHandler by mainThreadHandlerDelegate
     private val internalHandler = InternalHandler(lifecycle)
+    private val pendingConflatedCallbacks = HashMap<Any, ConflatedCallback>()
 
     fun Runnable.runOnSelectedThread() {
         internalHandler.handleCallback(this)
     }
 
+    /**
+     * Same as [runOnSelectedThread] but if callback for the same [key] is still pending it is
+     * replaced by this one instead of being queued again.
+     */
+    fun Runnable.runConflatedOnSelectedThread(key: Any) {
+        val conflatedCallback = synchronized(pendingConflatedCallbacks) {
+            val pendingCallback = pendingConflatedCallbacks[key]
+            if (pendingCallback != null) {
+                pendingCallback.callback = this
+                return
+            }
+            ConflatedCallback(key, this).also { pendingConflatedCallbacks[key] = it }
+        }
+        internalHandler.handleCallback(conflatedCallback)
+    }
+
+    /**
+     * @return true if calling thread is the main thread, callbacks made on it are not run in place.
+     */
+    protected open fun isCallingThreadMain(): Boolean = isMainThread()
+
     open fun clean() {
         executor?.shutDown()
-        mainThreadHandler.removeCallbacksAndMessages(null)
+        if (mainThreadHandlerDelegate.isInitialized()) {
+            mainThreadHandler.removeCallbacksAndMessages(null)
+        }
         internalHandler.destroy()
+        synchronized(pendingConflatedCallbacks) {
+            pendingConflatedCallbacks.clear()
+        }
+    }
+
+    private inner class ConflatedCallback(val key: Any, var callback: Runnable) : Runnable {
+        override fun run() {
+            val latestCallback = synchronized(pendingConflatedCallbacks) {
+                if (pendingConflatedCallbacks[key] === this) {
+                    pendingConflatedCallbacks.remove(key)
+                }
+                callback
+            }
+            latestCallback.run()
+        }
+
+        fun discard() {
+            synchronized(pendingConflatedCallbacks) {
+                if (pendingConflatedCallbacks[key] === this) {
+                    pendingConflatedCallbacks.remove(key)
+                }
+            }
+        }
+    }
+
+    /**
+     * Called for a callback that will never run.
+     */
+    private fun Runnable.dropped() {
+        (this as? ConflatedCallback)?.discard()
     }
 
     private inner class InternalHandler(val lifecycle: Lifecycle?) : DefaultLifecycleObserver {
@@ -47,12 +110,19 @@ open class CallbacksHandler(
 
         override fun onResume(owner: LifecycleOwner) {
             super.onResume(owner)
-            Runnable {
-                callbacksList.forEach { callback ->
+            val accumulatedCallbacks = synchronized(callbacksList) {
+                val callbacks = callbacksList.toList()
+                callbacksList.clear()
+                callbacks
+            }
+            val accepted = Runnable {
+                accumulatedCallbacks.forEach { callback ->
                     callback.run()
                 }
-                callbacksList.clear()
             }.runOn()
+            if (!accepted) {
+                accumulatedCallbacks.forEach { it.dropped() }
+            }
         }
 
         override fun onDestroy(owner: LifecycleOwner) {
@@ -61,24 +131,54 @@ open class CallbacksHandler(
         }
 
         fun destroy() {
-            callbacksList.clear()
+            val droppedCallbacks = synchronized(callbacksList) {
+                val callbacks = callbacksList.toList()
+                callbacksList.clear()
+                callbacks
+            }
+            droppedCallbacks.forEach { it.dropped() }
         }
 
         fun handleCallback(runnable: Runnable) {
-            if (lifecycle == null) {
+            val accepted = if (lifecycle == null) {
                 runnable.runOn()
             } else {
                 if (lifecycle.currentState == Lifecycle.State.RESUMED) {
                     runnable.runOn()
                 } else if (lifecycle.currentState != Lifecycle.State.DESTROYED) {
                     callbacksList.add(runnable)
+                } else {
+                    false
                 }
             }
+            if (!accepted) {
+                runnable.dropped()
+            }
         }
 
-        private fun Runnable.runOn() {
-            if (callbackThreadMain) mainThreadHandler.post(this)
-            else if (!isMainThread()) this.run() else executor?.execute(this)
+        /**
+         * @return false if callback was rejected and it will never run.
+         */
+        private fun Runnable.runOn(): Boolean {
+            if (!callbackThreadMain && !isCallingThreadMain()) {
+                this.run()
+                return true
+            }
+            return try {
+                if (callbackThreadMain) {
+                    mainThreadHandler.post(this)
+                } else {
+                    val backgroundExecutor = executor
+                    if (backgroundExecutor == null || backgroundExecutor.isTerminated()) {
+                        false
+                    } else {
+                        backgroundExecutor.execute(this)
+                        true
+                    }
+                }
+            } catch (ex: RejectedExecutionException) {
+                false
+            }
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,76 @@
+package com.tanodxyz.gdownload
+
+import com.tanodxyz.gdownload.database.DownloadDatabaseManager
+
+/**
+ * Decides when the state of a running download is saved via [DownloadDatabaseManager].
+ * >
+ * It is independent of [Download.getProgressUpdateTimeMilliSeconds] which only drives
+ * [DownloadProgressListener] callbacks, so progress can be delivered as often as UI wants without
+ * writing to the database on every tick.
+ * A checkpoint is taken as soon as any of the enabled triggers fires.
+ * Completed and failed downloads are always saved.
+ * ### Granularity
+ * >Byte, time and slice triggers are evaluated on progress ticks so a checkpoint is never taken
+ * more often than progress callbacks are made.
+ */
+class CheckpointPolicy(
+    /**
+     * Save after this many bytes have been downloaded since the last checkpoint. 0 disables it.
+     */
+    val intervalBytes: Long = DEF_CHECKPOINT_INTERVAL_BYTES,
+    /**
+     * Save when this much time has passed since the last checkpoint and there is something new
+     * to save. 0 disables it.
+     */
+    val intervalMilliSecs: Long = DEF_CHECKPOINT_INTERVAL_MILLISECONDS,
+    /**
+     * Save whenever a [Slice] completes.
+     */
+    val onSliceCompletion: Boolean = true,
+    /**
+     * Save when download is paused or stopped.
+     */
+    val onPauseOrStop: Boolean = true
+) {
+    init {
+        if (intervalBytes < 0 || intervalMilliSecs < 0) {
+            throw IllegalArgumentException("checkpoint intervals can't be negative")
+        }
+    }
+
+    /**
+     * @param bytesSinceCheckpoint bytes downloaded since last checkpoint
+     * @param milliSecsSinceCheckpoint time since last checkpoint
+     * @param slicesCompletedSinceCheckpoint number of slices completed since last checkpoint
+     * @return true if checkpoint should be taken
+     */
+    fun shouldCheckpoint(
+        bytesSinceCheckpoint: Long,
+        milliSecsSinceCheckpoint: Long,
+        slicesCompletedSinceCheckpoint: Int
+    ): Boolean {
+        if (onSliceCompletion && slicesCompletedSinceCheckpoint > 0) {
+            return true
+        }
+        if (bytesSinceCheckpoint <= 0) {
+            return false
+        }
+        return (intervalBytes > 0 && bytesSinceCheckpoint >= intervalBytes) ||
+                (intervalMilliSecs > 0 && milliSecsSinceCheckpoint >= intervalMilliSecs)
+    }
+
+    override fun toString(): String {
+        return "CheckpointPolicy(intervalBytes=$intervalBytes, intervalMilliSecs=$intervalMilliSecs, " +
+                "onSliceCompletion=$onSliceCompletion, onPauseOrStop=$onPauseOrStop)"
+    }
+
+    companion object {
+        /**
+         * Saves on every progress tick that downloaded something. This is how downloads were
+         * saved before checkpoint policies existed.
+         */
+        @JvmField
+        val EVERY_PROGRESS_UPDATE = CheckpointPolicy(1, 0, true, true)
+    }
+}
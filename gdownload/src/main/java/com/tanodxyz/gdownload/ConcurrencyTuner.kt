@@ -0,0 +1,67 @@
+package com.tanodxyz.gdownload
+
+/**
+ * Decides how many downloads of a group run at once, between [minLimit] and [maxLimit].
+ * >
+ * Hill climbing on group throughput. While downloads wait for a slot the limit is raised by one
+ * and the next sample tells whether it paid off - if throughput did not grow by [MIN_GAIN] the
+ * slot is taken back and no new slot is tried for [HOLD_SAMPLES] samples. If throughput drops
+ * by [MAX_LOSS] while the group runs at it's limit, link is thrashing and the limit is lowered.
+ * Samples taken while fewer downloads run then the limit say nothing about the link and only
+ * reset the baseline.
+ *
+ * Not thread safe - it is owned by the group loop thread.
+ */
+internal class ConcurrencyTuner(val minLimit: Int, val maxLimit: Int) {
+    var limit: Int = minLimit
+        private set
+    private var baselineThroughput = 0.0
+    private var evaluatingIncrease = false
+    private var holdSamples = 0
+
+    init {
+        if (minLimit < 1 || maxLimit < minLimit) {
+            throw IllegalArgumentException("invalid concurrency bounds $minLimit..$maxLimit")
+        }
+    }
+
+    /**
+     * @param throughput bytes per second of the whole group since the previous sample.
+     * @param runningCount downloads running now.
+     * @param downloadsWaiting true if downloads are waiting for a slot.
+     * @return new limit.
+     */
+    fun onSample(throughput: Double, runningCount: Int, downloadsWaiting: Boolean): Int {
+        if (evaluatingIncrease) {
+            evaluatingIncrease = false
+            if (throughput < baselineThroughput * (1 + MIN_GAIN)) {
+                limit = maxOf(minLimit, limit - 1)
+                holdSamples = HOLD_SAMPLES
+                return limit
+            }
+        } else if (runningCount >= limit && baselineThroughput > 0 &&
+            throughput < baselineThroughput * (1 - MAX_LOSS) && limit > minLimit
+        ) {
+            limit--
+            holdSamples = HOLD_SAMPLES
+            baselineThroughput = throughput
+            return limit
+        }
+        baselineThroughput = throughput
+        if (holdSamples > 0) {
+            holdSamples--
+            return limit
+        }
+        if (downloadsWaiting && runningCount >= limit && limit < maxLimit) {
+            limit++
+            evaluatingIncrease = true
+        }
+        return limit
+    }
+
+    companion object {
+        const val MIN_GAIN = 0.05
+        const val MAX_LOSS = 0.3
+        const val HOLD_SAMPLES = 5
+    }
+}
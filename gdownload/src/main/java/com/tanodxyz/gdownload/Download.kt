@@ -115,6 +115,16 @@ open class Download(
         }.toString(3)
     }
 
+    /**
+     * Same as [set] with [contentLengthDownloaded] and [progress] but does not box them, it is
+     * called on every progress tick.
+     */
+    @Synchronized
+    internal fun setProgress(contentLengthDownloaded: Long, progress: Double) {
+        this.contentLengthDownloaded = contentLengthDownloaded
+        this.progress = progress
+    }
+
     @Synchronized
     fun set(
         url: String? = null,
@@ -235,6 +245,42 @@ open class Download(
         }
     }
 
+    /**
+     * @return deep copy of this download. Slices are copied too so the copy does not observe
+     * the progress of this download.
+     * @param includeSliceData if false the copy has no [sliceData] at all.
+     */
+    @Synchronized
+    fun copy(includeSliceData: Boolean = true): Download {
+        return Download(
+            id,
+            url,
+            filePath,
+            contentLengthBytes,
+            contentLengthDownloaded,
+            status,
+            queueId,
+            networkType,
+            connectionRetryCount,
+            maxNumberOfConnections,
+            progressUpdateTimeMilliSec,
+            sliceData?.takeIf { includeSliceData }?.map { slice ->
+                Slice(
+                    slice.id,
+                    slice.startByte,
+                    slice.endByte,
+                    slice.downloaded.get(),
+                    slice.downloadComplete.get()
+                )
+            },
+            progress
+        ).also { copy ->
+            copy.timeRemainingMilliSeconds = timeRemainingMilliSeconds
+            copy.timeElapsedMilliSeconds = timeElapsedMilliSeconds
+            copy.bytesPerSecond = bytesPerSecond
+        }
+    }
+
     fun isIncompleteDownload(): Boolean {
         return status != DOWNLOADED
     }
@@ -2,10 +2,13 @@ package com.tanodxyz.gdownload
 
 import androidx.lifecycle.Lifecycle
 import com.tanodxyz.gdownload.executors.BackgroundExecutor
+import kotlinx.coroutines.flow.MutableStateFlow
+import kotlinx.coroutines.flow.StateFlow
+import kotlinx.coroutines.flow.asStateFlow
 import java.util.*
 
 
-class DownloadCallbacksHandler(
+open class DownloadCallbacksHandler(
     callbackThreadMain: Boolean = false,
     lifecycle: Lifecycle? = null,
     backgroundExecutor: BackgroundExecutor? = null,
@@ -20,6 +23,22 @@ class DownloadCallbacksHandler(
         )
     val TAG = "DCH-${System.nanoTime()}"
     private val logger = DefaultLogger(TAG)
+
+    /**
+     * If set, progress is delivered in frames by this dispatcher instead of being posted per update.
+     * It is not cleaned by [clean] as it may be shared.
+     */
+    @Volatile
+    var progressBatchDispatcher: ProgressBatchDispatcher? = null
+
+    private val downloadInfoState = MutableStateFlow<DownloadInfo?>(null)
+
+    /**
+     * Latest [DownloadInfo] that was notified to listeners. It is updated on the notifying thread
+     * before listeners are invoked and is conflated by nature.
+     */
+    val downloadInfoFlow: StateFlow<DownloadInfo?> = downloadInfoState.asStateFlow()
+
     fun addListener(listener: DownloadProgressListener?) {
         if (listener != null && (!downloadProgressListeners.contains(listener))) {
             logger.d("Download listener added")
@@ -40,6 +59,15 @@ class DownloadCallbacksHandler(
         return downloadProgressListeners
     }
 
+    /**
+     * @return false if progress would be delivered to nobody, so [DownloadInfo] for it is not needed.
+     */
+    fun hasProgressConsumers(): Boolean {
+        return downloadProgressListeners.isNotEmpty() ||
+                progressBatchDispatcher?.hasListeners() == true ||
+                downloadInfoState.subscriptionCount.value > 0
+    }
+
     fun notifyStateBusy(
         downloadProgressListener: DownloadProgressListener,
         downloadInfo: DownloadInfo
@@ -73,6 +101,7 @@ class DownloadCallbacksHandler(
     }
 
     fun notifyStateDownloadStarting(downloadInfo: DownloadInfo) {
+        downloadInfoState.value = downloadInfo
         logger.d("Notify - state download starting to listeners")
         Runnable {
             forEachProgressListener {
@@ -89,6 +118,8 @@ class DownloadCallbacksHandler(
     }
 
     fun notifyStateDownloadFailed(downloadInfo: DownloadInfo, message: String) {
+        downloadInfoState.value = downloadInfo
+        flushPendingProgress(downloadInfo)
         logger.d("Notify - state download failed -> $message :  to listeners")
         Runnable {
             forEachProgressListener {
@@ -102,6 +133,8 @@ class DownloadCallbacksHandler(
         restarted: Boolean,
         message: String
     ) {
+        downloadInfoState.value = downloadInfo
+        flushPendingProgress(downloadInfo)
         logger.d("Notify - state download restart to listeners")
         Runnable {
             forEachProgressListener {
@@ -111,6 +144,8 @@ class DownloadCallbacksHandler(
     }
 
     fun notifyStateDownloadCompleted(downloadInfo: DownloadInfo) {
+        downloadInfoState.value = downloadInfo
+        flushPendingProgress(downloadInfo)
         logger.d("Notify - state downloadComplete to listeners")
         Runnable {
             forEachProgressListener {
@@ -120,6 +155,8 @@ class DownloadCallbacksHandler(
     }
 
     fun notifyStateDownloadStop(downloadInfo: DownloadInfo, stopped: Boolean, message: String) {
+        downloadInfoState.value = downloadInfo
+        flushPendingProgress(downloadInfo)
         logger.d("Notify - state download stop to listeners")
         Runnable {
             forEachProgressListener {
@@ -129,6 +166,8 @@ class DownloadCallbacksHandler(
     }
 
     fun notifyStateDownloadPause(downloadInfo: DownloadInfo, paused: Boolean, message: String) {
+        downloadInfoState.value = downloadInfo
+        flushPendingProgress(downloadInfo)
         logger.d("Notify - state download pause to listeners")
         Runnable {
             forEachProgressListener {
@@ -138,6 +177,7 @@ class DownloadCallbacksHandler(
     }
 
     fun notifyStateDownloadResume(downloadInfo: DownloadInfo, resumed: Boolean, message: String) {
+        downloadInfoState.value = downloadInfo
         logger.d("Notify - state download resume to listeners")
         Runnable {
             forEachProgressListener {
@@ -150,6 +190,7 @@ class DownloadCallbacksHandler(
         downloadInfo: DownloadInfo,
         downloadIsMultiConnection: Boolean
     ) {
+        downloadInfoState.value = downloadInfo
         logger.d("Notify - state download is multi connection to listeners")
         Runnable {
             forEachProgressListener {
@@ -167,17 +208,36 @@ class DownloadCallbacksHandler(
         }
     }
 
+    /**
+     * Progress is conflated - if previous progress is not delivered yet it is replaced by
+     * [progressInstance]. All other notifications are always delivered in order.
+     */
     fun notifyStateDownloadProgress(progressInstance: DownloadInfo) {
-        Runnable {
+        downloadInfoState.value = progressInstance
+        val deliverProgress = Runnable {
             forEachProgressListener { downloadProgressListener ->
                 downloadProgressListener.onDownloadProgress(progressInstance)
             }
-        }.apply { runOnSelectedThread() }
+        }
+        val dispatcher = progressBatchDispatcher
+        if (dispatcher == null) {
+            deliverProgress.runConflatedOnSelectedThread(progressInstance.id)
+        } else {
+            dispatcher.submit(progressInstance, deliverProgress)
+        }
+    }
 
+    /**
+     * Progress waiting for the next frame of [progressBatchDispatcher] is delivered right away so
+     * that it can't overtake the notification that follows it.
+     */
+    private fun flushPendingProgress(downloadInfo: DownloadInfo) {
+        progressBatchDispatcher?.takePending(downloadInfo.id)?.runOnSelectedThread()
     }
 
 
     fun notifyNewConnectionMadeToServer(slice: Slice?, downloadInfo: DownloadInfo) {
+        downloadInfoState.value = downloadInfo
         logger.d("Notify - state new connection made to server -> to listeners")
         Runnable {
             forEachProgressListener {
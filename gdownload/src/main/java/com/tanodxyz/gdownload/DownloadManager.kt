@@ -10,23 +10,27 @@ import com.tanodxyz.gdownload.connection.ConnectionManager
 import com.tanodxyz.gdownload.connection.ConnectionManagerImpl
 import com.tanodxyz.gdownload.connection.URLConnectionFactory
 import com.tanodxyz.gdownload.connection.URLConnectionHandler
+import com.tanodxyz.gdownload.database.AsyncDownloadDatabaseManager
 import com.tanodxyz.gdownload.database.DownloadDatabaseFetcherImpl
 import com.tanodxyz.gdownload.database.DownloadDatabaseManager
 import com.tanodxyz.gdownload.database.SQLiteManager
 import com.tanodxyz.gdownload.executors.BackgroundExecutor
 import com.tanodxyz.gdownload.executors.BackgroundExecutorImpl
+import com.tanodxyz.gdownload.executors.ExecutorTopology
 import com.tanodxyz.gdownload.executors.ScheduledBackgroundExecutor
-import com.tanodxyz.gdownload.executors.ScheduledBackgroundExecutorImpl
 import com.tanodxyz.gdownload.io.DefaultFileStorageHelper
 import com.tanodxyz.gdownload.io.FileStorageHelper
 import com.tanodxyz.gdownload.io.OutputResourceWrapper
 import com.tanodxyz.gdownload.io.RandomAccessOutputResourceWrapper
 import com.tanodxyz.gdownload.worker.DataReadWriteWorkersManager
 import com.tanodxyz.gdownload.worker.DataReadWriteWorkersManagerImpl
+import kotlinx.coroutines.flow.StateFlow
 import java.io.File
 import java.util.concurrent.RejectedExecutionException
 import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
 import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicReference
 import kotlin.math.abs
 import kotlin.math.ceil
 
@@ -43,6 +47,9 @@ import kotlin.math.ceil
  * ### Threading
  * >All methods that returns something as obvious are executed in the caller thread.
  * All others methods will not block the calling thread.
+ * ### Persistence
+ * >Download state is saved to [DownloadDatabaseManager] according to [CheckpointPolicy] and not on
+ * every progress callback. Saving is done off the progress thread.
  * @see [Downloader]
  */
 open class DownloadManager(
@@ -52,7 +59,33 @@ open class DownloadManager(
     private val connectionManager: ConnectionManager,
     private val databaseManager: DownloadDatabaseManager,
     private val networkInfoProvider: NetworkInfoProvider,
-    private val dataReadWriteWorkersManager: DataReadWriteWorkersManager
+    private val dataReadWriteWorkersManager: DataReadWriteWorkersManager,
+    private val checkpointPolicy: CheckpointPolicy = CheckpointPolicy(),
+    /**
+     * Runs pause, resume, stop ... calls made on this downloader.
+     */
+    private val incomingCallsExecutor: BackgroundExecutor = BackgroundExecutorImpl(),
+    /**
+     * If greater then zero [freezeDownload] keeps connections open for this long so that
+     * [resumeDownload] within it continues without reconnecting.
+     * @see com.tanodxyz.gdownload.worker.DataReadWriteWorker.softPause
+     */
+    val softPauseGraceMilliSecs: Long = 0,
+    /**
+     * If non-null download opens it's connections only once admitted by it and stays
+     * [Downloader.STATE.STARTING] until then. downloaders of a [GroupImpl] are admitted by the
+     * group instead.
+     */
+    private val admissionController: AdmissionController? = null,
+    /**
+     * @see AdmissionController.Client.admissionPriority
+     */
+    val admissionPriority: Int = 0,
+    /**
+     * Runs database reads and writes and network checks, so that [incomingCallsExecutor] never
+     * blocks on them.
+     */
+    private val blockingCallsExecutor: BackgroundExecutor = incomingCallsExecutor
 ) : Downloader {
     val TAG = "DMgr-${System.nanoTime()}"
     private var logger = DefaultLogger(TAG)
@@ -66,9 +99,51 @@ open class DownloadManager(
     private var createdFile: File? = null
     private var outputResourceWrapper: OutputResourceWrapper? = null
     private var downloadError: String? = null
-    private var incomingCallsExecutor =
-        BackgroundExecutorImpl()
     private var totalConnectionsDataWriteCount: AtomicInteger = AtomicInteger(0)
+    private var checkpointBytes = 0L
+    private var checkpointTimeMillis = 0L
+    private var checkpointCompletedSlices = 0
+    private val pendingCheckpoint = AtomicReference<Download?>(null)
+    private val checkpointWriterRunning = AtomicBoolean(false)
+    private val progressChannel = ProgressChannel()
+    private var admissionPermit: AdmissionController.Permit? = null
+    private val admissionClient = object : AdmissionController.Client {
+        override val admissionPriority: Int
+            get() = this@DownloadManager.admissionPriority
+
+        override fun onAdmissionAvailable() {
+            Runnable { createConnectionsIfAdmitted() }.runOnBackgroundThread()
+        }
+    }
+
+    /**
+     * Called after every state change on the thread that made it, while this downloader is
+     * locked - it must only hand the event over.
+     */
+    @Volatile
+    internal var stateChangeListener: ((DownloadManager) -> Unit)? = null
+
+    /**
+     * Throttles all connections of this downloader, unlimited by default. Groups that share
+     * bandwidth set it's rate.
+     */
+    val bandwidthLimiter = BandwidthLimiter()
+
+    init {
+        dataReadWriteWorkersManager.setBandwidthLimiter(bandwidthLimiter)
+        dataReadWriteWorkersManager.setResumeExecutor(scheduledBackgroundExecutorImpl)
+        dataReadWriteWorkersManager.setReconnectListener { slice ->
+            progressChannel.onSliceConnected(slice.id)
+        }
+        dataReadWriteWorkersManager.setPauseQuiescenceListener { nanos ->
+            logger.d("workers stopped writing ${TimeUnit.NANOSECONDS.toMillis(nanos)} ms after pause")
+            // pause checkpoint may miss the writes workers finished after it.
+            if (getState() == Downloader.STATE.PAUSED && checkpointPolicy.onPauseOrStop) {
+                checkpoint()
+            }
+        }
+        bandwidthLimiter.parent = admissionController?.bandwidthLimiter
+    }
     override val executor: ScheduledBackgroundExecutor
         get() = scheduledBackgroundExecutorImpl
     override val activeDownloadPayload: Download?
@@ -106,20 +181,12 @@ open class DownloadManager(
     @Throws(IllegalArgumentException::class)
     override fun download(download: Download, listener: DownloadProgressListener?) {
         logger.d("submitted for download $download")
+        // network check and connecting block, they run with the connections.
         Runnable {
             if (setupAndCanStartDownload(download, listener, true)) {
-                download.apply {
-                    connectionManager.createConnections(
-                        getUrl(),
-                        getMaxNumberOfConnections(),
-                        getConnectionRetryCount(),
-                        getSliceData(),
-                        ConnectionsCallbacksReceiver()
-                    )
-                }
-                logger.d("Last thread returned home safe")
+                createConnectionsIfAdmitted()
             }
-        }.runOnBackgroundThread(true)
+        }.runOnBackgroundThread()
     }
 
     /**
@@ -149,6 +216,9 @@ open class DownloadManager(
                 if (removePreviousListeners) {
                     downloadCallbacksHandler.clean()
                 }
+                if (!this::downloadPayload.isInitialized || downloadPayload !== download) {
+                    progressChannel.resetSlices()
+                }
                 this.downloadPayload = download
                 this.setState(Downloader.STATE.STARTING)
                 downloadCallbacksHandler.addListener(listener)
@@ -176,33 +246,82 @@ open class DownloadManager(
         }
     }
 
+    /**
+     * @param maxConnections connections granted by the group, used if this downloader has no
+     * [admissionController].
+     * @return false if download could not be started.
+     */
     @Throws(IllegalArgumentException::class)
     internal fun download0(
         download: Download,
         listener: DownloadProgressListener?,
         removePreviousListeners: Boolean = false,
-    ) {
+        maxConnections: Int = download.getMaxNumberOfConnections()
+    ): Boolean {
         logger.d("downloading $download")
-        if (setupAndCanStartDownload(download, listener, removePreviousListeners)) {
-            download.apply {
-                Runnable {
-                    connectionManager.createConnections(
-                        getUrl(),
-                        getMaxNumberOfConnections(),
-                        getConnectionRetryCount(),
-                        getSliceData(),
-                        ConnectionsCallbacksReceiver()
-                    )
-                    logger.d("Last thread returned home safe")
-                }.runOnBackgroundThread(true)
+        val canStartDownload = setupAndCanStartDownload(download, listener, removePreviousListeners)
+        if (canStartDownload) {
+            Runnable {
+                createConnectionsIfAdmitted(maxConnections)
+            }.runOnBackgroundThread()
+        }
+        return canStartDownload
+    }
+
+    /**
+     * Opens connections of the starting download, once [admissionController] admits it if there
+     * is one. otherwise it is tried again when [admissionClient] is told capacity got free.
+     */
+    protected fun createConnectionsIfAdmitted(
+        maxConnections: Int = downloadPayload.getMaxNumberOfConnections()
+    ) {
+        val permit = synchronized(this) {
+            val controller = admissionController
+            if (controller == null) {
+                null
+            } else {
+                if (getState() != Downloader.STATE.STARTING || admissionPermit != null) {
+                    return
+                }
+                val permit = controller.tryAcquire(admissionClient, downloadPayload) ?: return
+                admissionPermit = permit
+                permit
             }
         }
+        downloadPayload.apply {
+            connectionManager.createConnections(
+                getUrl(),
+                permit?.connections ?: maxConnections,
+                getConnectionRetryCount(),
+                getSliceData(),
+                ConnectionsCallbacksReceiver()
+            )
+        }
+        logger.d("Last thread returned home safe")
     }
 
+    /**
+     * @return true if download has not been admitted yet.
+     */
+    @Synchronized
+    protected fun isWaitingForAdmission(): Boolean = admissionController != null &&
+            getState() == Downloader.STATE.STARTING && admissionPermit == null
+
     @Synchronized
     internal fun setState(state: Downloader.STATE) {
         this.currentState = state
         this.downloadPayload.set(status = Download.getState(state))
+        if (!isBusy) {
+            releaseAdmission()
+        }
+        stateChangeListener?.invoke(this)
+    }
+
+    @Synchronized
+    private fun releaseAdmission() {
+        admissionController?.withdraw(admissionClient)
+        admissionPermit?.release()
+        admissionPermit = null
     }
 
     /**
@@ -256,6 +375,7 @@ open class DownloadManager(
                     downloadIsMultiConnection
                 )
                 setState(Downloader.STATE.DOWNLOADING)
+                resetCheckpoint()
                 downloadCallbacksHandler.notifyStateDownloadStarting(
                     DownloadInfo.newInstance(
                         downloadPayload
@@ -295,15 +415,20 @@ open class DownloadManager(
             }
         }
 
-        private fun progressSaveAndUpdates() {
+        fun progressSaveAndUpdates() {
             var downloadedBytesTotal = 0L
+            var completedSlices = 0
             val totalBytes = downloadPayload.getContentLengthBytes()
-            downloadPayload.getSliceData()?.forEach { slice ->
-                downloadedBytesTotal += slice.downloaded.get()
-            }
-            var databaseWrite = false
-            if (downloadedBytesTotal > lastTickBytes) {
-                databaseWrite = true
+            // indexed loop - this runs on every tick and must not allocate iterators.
+            val slices = downloadPayload.getSliceData()
+            if (slices != null) {
+                for (index in slices.indices) {
+                    val slice = slices[index]
+                    downloadedBytesTotal += slice.downloaded.get()
+                    if (slice.downloadComplete.get()) {
+                        ++completedSlices
+                    }
+                }
             }
             val currentTickBytes = downloadedBytesTotal - lastTickBytes
             lastTickBytes = downloadedBytesTotal
@@ -330,24 +455,22 @@ open class DownloadManager(
                         abs(ceil(remainingSeconds)).toLong() * 1000
                     progress = (downloadedBytesTotal.toDouble() / totalBytes.toDouble() * 100.0)
                 }
-                downloadPayload.set(
-                    progress = progress,
-                    contentLengthDownloaded = downloadedBytesTotal
-                )
+                downloadPayload.setProgress(downloadedBytesTotal, progress)
                 downloadPayload.apply {
                     timeElapsedMilliSeconds = elapsedMillis
                     timeRemainingMilliSeconds = estimatedTimeRemainingInMilliSecs
                     this.bytesPerSecond = bytesPerSecond.toLong()
                 }
-
-                val progressInstance = DownloadInfo.newInstance(
-                    downloadPayload
-                )
-                downloadCallbacksHandler.notifyStateDownloadProgress(progressInstance)
-            }
-            if (databaseWrite) {
-                databaseManager.insertOrUpdateDownload(downloadPayload)
+                progressChannel.publish(downloadPayload)
+                if (downloadCallbacksHandler.hasProgressConsumers()) {
+                    val progressInstance = DownloadInfo.newInstance(
+                        downloadPayload
+                    )
+                    downloadCallbacksHandler.notifyStateDownloadProgress(progressInstance)
+                }
             }
+            progressChannel.sampleSlices(downloadPayload)
+            checkpointIfPolicyAllows(downloadedBytesTotal, completedSlices)
             stopDatabaseCallbackIfDownloadIsNotRunning()
         }
 
@@ -359,6 +482,7 @@ open class DownloadManager(
             downloadError = message
             setState(Downloader.STATE.FAILED)
             closeResources(deleteFile = false, shutDownProgressCallback = true)
+            checkpoint()
             downloadCallbacksHandler.notifyStateDownloadFailed(
                 downloadPayload.getDownloadInfo(),
                 message
@@ -374,17 +498,20 @@ open class DownloadManager(
             if (isFailed || isStopped) {
                 return
             }
+            connectionData.slice?.let { slice -> progressChannel.onSliceConnected(slice.id) }
             downloadCallbacksHandler.notifyNewConnectionMadeToServer(
                 connectionData.slice?.copy() ?: connectionData.slice,
                 downloadPayload.getDownloadInfo()
             )
-            val errorInWritingDataToDisk = dataReadWriteWorkersManager.addWorker(connectionData)
-            if (errorInWritingDataToDisk != null) {
-                onConnectionFailure(errorInWritingDataToDisk.toString())
-            } else {
-                val connectionDataSavedCount = totalConnectionsDataWriteCount.incrementAndGet()
-                if (connectionDataSavedCount == totalConnections) {
-                    downloadCompleted()
+            // paused worker gives this thread back and finishes on another one after resume.
+            dataReadWriteWorkersManager.addWorker(connectionData) { errorInWritingDataToDisk ->
+                if (errorInWritingDataToDisk != null) {
+                    onConnectionFailure(errorInWritingDataToDisk.toString())
+                } else {
+                    val connectionDataSavedCount = totalConnectionsDataWriteCount.incrementAndGet()
+                    if (connectionDataSavedCount == totalConnections) {
+                        downloadCompleted()
+                    }
                 }
             }
         }
@@ -396,6 +523,7 @@ open class DownloadManager(
         closeResources()
         if (!isStopped) {
             setState(Downloader.STATE.COMPLETED)
+            checkpoint()
             downloadCallbacksHandler.notifyStateDownloadCompleted(
                 DownloadInfo.newInstance(
                     downloadPayload
@@ -405,6 +533,55 @@ open class DownloadManager(
         logger.d("resources closed")
     }
 
+    @Synchronized
+    protected fun resetCheckpoint() {
+        checkpointBytes = downloadPayload.getContentLengthDownloaded()
+        checkpointTimeMillis = System.currentTimeMillis()
+        checkpointCompletedSlices =
+            downloadPayload.getSliceData()?.count { it.downloadComplete.get() } ?: 0
+    }
+
+    @Synchronized
+    protected fun checkpointIfPolicyAllows(downloadedBytes: Long, completedSlices: Int) {
+        val now = System.currentTimeMillis()
+        if (checkpointPolicy.shouldCheckpoint(
+                downloadedBytes - checkpointBytes,
+                now - checkpointTimeMillis,
+                completedSlices - checkpointCompletedSlices
+            )
+        ) {
+            checkpointBytes = downloadedBytes
+            checkpointTimeMillis = now
+            checkpointCompletedSlices = completedSlices
+            checkpoint()
+        }
+    }
+
+    /**
+     * Enqueues a copy of the current download to be saved. Only the latest copy is kept while
+     * the previous one is still being written and copies are saved in order.
+     */
+    protected fun checkpoint() {
+        pendingCheckpoint.set(downloadPayload.copy())
+        if (checkpointWriterRunning.compareAndSet(false, true)) {
+            try {
+                Runnable { writeCheckpoints() }.runOnBlockingThread()
+            } catch (ex: RejectedExecutionException) {
+                writeCheckpoints()
+            }
+        }
+    }
+
+    private fun writeCheckpoints() {
+        do {
+            while (true) {
+                val checkpoint = pendingCheckpoint.getAndSet(null) ?: break
+                databaseManager.insertOrUpdateDownload(checkpoint)
+            }
+            checkpointWriterRunning.set(false)
+        } while (pendingCheckpoint.get() != null && checkpointWriterRunning.compareAndSet(false, true))
+    }
+
     protected fun closeResources(
         deleteFile: Boolean = false,
         shutDownProgressCallback: Boolean = false
@@ -467,27 +644,7 @@ open class DownloadManager(
     protected fun createFile(): String? {
         var exception: Exception? = null
         try {
-            val existingFilePath = downloadPayload.getFilePath()
-            val fileName = try {
-                val idx = existingFilePath.lastIndexOf(File.separatorChar)
-                val fileNameStartIdx = if (idx <= 0) 0 else idx + 1
-                existingFilePath.substring(fileNameStartIdx)
-            } catch (ex: Exception) {
-                "file-${System.currentTimeMillis()}"
-            }
-            val existingFile = File(existingFilePath)
-            createdFile = if (existingFile.exists()) {
-                existingFile
-            } else {
-                if (existingFile.isDirectory) {
-                    fileStorageHelper.filesRoot = existingFile
-                } else {
-                    if (existingFile.parent != null) {
-                        fileStorageHelper.filesRoot = existingFile.parentFile
-                    }
-                }
-                fileStorageHelper.createFile(fileName, false)
-            }
+            createdFile = fileStorageHelper.fileFor(downloadPayload.getFilePath())
             if (createdFile!!.parent!!.bytesAvailable() < contentLength) {
                 throw Exception(ERROR_MSG_INSUFFICIENT_STORAGE)
             }
@@ -520,7 +677,8 @@ open class DownloadManager(
     override fun deleteFile(removeFromDatabase: Boolean) {
         fileStorageHelper.deleteFile(createdFile)
         if (removeFromDatabase) {
-            databaseManager.deleteDownloadByFilePath(downloadPayload.getFilePath())
+            AsyncDownloadDatabaseManager(databaseManager)
+                .deleteDownloadByFilePath(downloadPayload.getFilePath())
         }
     }
 
@@ -548,7 +706,7 @@ open class DownloadManager(
                 id,
                 fetchedDownloadFromLocalDatabase
             )
-        }.runOnBackgroundThread(runOnIncomingCallsBackgroundExecutor = true)
+        }.runOnBlockingThread()
     }
 
     override fun loadDownloadFromDatabase(filePath: String, callback: ((Boolean) -> Unit)?) {
@@ -569,7 +727,7 @@ open class DownloadManager(
                 filePath,
                 fetchedDownloadFromLocalDatabase
             )
-        }.runOnBackgroundThread(runOnIncomingCallsBackgroundExecutor = true)
+        }.runOnBlockingThread()
     }
 
     override fun removeListener(listener: DownloadProgressListener?) {
@@ -581,6 +739,16 @@ open class DownloadManager(
     override fun stopDownload(listener: BiConsumer<Boolean, String>?) {
         Runnable {
             var stopFailedErrorMessage = ""
+            if (isWaitingForAdmission()) {
+                setState(Downloader.STATE.STOPPED)
+                listener?.accept(true, "stopped")
+                downloadCallbacksHandler.notifyStateDownloadStop(
+                    DownloadInfo.newInstance(
+                        downloadPayload
+                    ), true, "stopped"
+                )
+                return@Runnable
+            }
             if (isAlive) {
 
                 dataReadWriteWorkersManager.stopAllWorkers { stopped, msg ->
@@ -589,6 +757,9 @@ open class DownloadManager(
                     ) else msg
                     if (stopped) {
                         setState(Downloader.STATE.STOPPED)
+                        if (checkpointPolicy.onPauseOrStop) {
+                            checkpoint()
+                        }
                     }
                     listener?.accept(
                         stopped, stopMsg
@@ -716,12 +887,15 @@ open class DownloadManager(
             var pausedFailedErrorMessage: String = ""
             if (isBusy) {
                 if (outputIsRandomAccessFile) {
-                    dataReadWriteWorkersManager.pauseAllWorkers { paused, msg ->
+                    dataReadWriteWorkersManager.pauseAllWorkers(softPauseGraceMilliSecs) { paused, msg ->
                         val freezeMsg = if (!paused) generateErrorMessageForPauseResumeStopRestart(
                             FREEZE, getState()
                         ) else msg
                         if (paused) {
                             setState(Downloader.STATE.PAUSED)
+                            if (checkpointPolicy.onPauseOrStop) {
+                                checkpoint()
+                            }
                         }
                         listener?.accept(paused, freezeMsg)
                         downloadCallbacksHandler.notifyStateDownloadPause(
@@ -786,13 +960,26 @@ open class DownloadManager(
     }
 
     override fun shutDown(listener: Runnable?) {
+        shutDown(listener, unregisterAllNetworkChangeListeners = true)
+    }
+
+    /**
+     * @param unregisterAllNetworkChangeListeners false if [networkInfoProvider] is shared with
+     * downloaders that keep running.
+     */
+    internal fun shutDown(listener: Runnable?, unregisterAllNetworkChangeListeners: Boolean) {
         Runnable {
             closeResources(shutDownProgressCallback = true)
+            releaseAdmission()
             unRegisterNetworkChangeListener()
             downloadCallbacksHandler.clean()
+            progressChannel.clearListeners()
             scheduledBackgroundExecutorImpl.shutDown()
+            // blockingCallsExecutor is left running so that pending checkpoint is still written.
             incomingCallsExecutor.shutDown()
-            networkInfoProvider.unregisterAllNetworkChangeListeners()
+            if (unregisterAllNetworkChangeListeners) {
+                networkInfoProvider.unregisterAllNetworkChangeListeners()
+            }
             listener?.run()
         }.runOnBackgroundThread(runOnIncomingCallsBackgroundExecutor = true)
     }
@@ -819,7 +1006,7 @@ open class DownloadManager(
                 )
                 download0(downloadPayload, null)
             }
-        }.runOnBackgroundThread(true)
+        }.runOnBackgroundThread()
     }
 
     protected fun reset() {
@@ -837,11 +1024,20 @@ open class DownloadManager(
         databaseOperationsCallback?.cancel()
     }
 
+    override fun getProgressChannel(): ProgressChannel = progressChannel
+
+    override fun getDownloadInfoFlow(): StateFlow<DownloadInfo?> =
+        downloadCallbacksHandler.downloadInfoFlow
+
     @Synchronized
     override fun getState(): Downloader.STATE {
         return currentState
     }
 
+    protected fun Runnable.runOnBlockingThread() {
+        blockingCallsExecutor.execute(this)
+    }
+
     protected fun Runnable.runOnBackgroundThread(runOnIncomingCallsBackgroundExecutor: Boolean = false): Unit =
         if (runOnIncomingCallsBackgroundExecutor) {
             incomingCallsExecutor.execute(this);Unit
@@ -871,7 +1067,7 @@ open class DownloadManager(
                     }
                 }
 
-            }.runOnBackgroundThread(true)
+            }.runOnBlockingThread()
         } catch (ex: Exception) {
             if (ex is RejectedExecutionException) {
                 unRegisterNetworkChangeListener()
@@ -879,7 +1075,7 @@ open class DownloadManager(
         }
     }
 
-    protected fun checkIfNetworkIsAvailableAndCanStartDownloadOn(download: Download): Pair<Boolean, String> {
+    protected open fun checkIfNetworkIsAvailableAndCanStartDownloadOn(download: Download): Pair<Boolean, String> {
         var allowedDownload = true
         var msg = "Allowed!"
         if (networkInfoProvider.isNetworkAvailable) {
@@ -909,6 +1105,11 @@ open class DownloadManager(
         private var downloadDatabaseManager: DownloadDatabaseManager? = null
         private var lifecycle: Lifecycle? = null
         private var networkInfoProvider: NetworkInfoProvider? = null
+        private var checkpointPolicy: CheckpointPolicy = CheckpointPolicy()
+        private var executorTopology: ExecutorTopology = ExecutorTopology.default
+        private var softPauseGraceMilliSecs = 0L
+        private var admissionController: AdmissionController? = AdmissionController.shared
+        private var admissionPriority = 0
 
         fun setLifeCycle(lifecycle: Lifecycle): Builder {
             this.lifecycle = lifecycle
@@ -942,7 +1143,7 @@ open class DownloadManager(
             this.downloadProgressCallbacksHandler = DownloadCallbacksHandler(
                 runCallbacksOnMainThread,
                 lifecycle,
-                BackgroundExecutorImpl()
+                executorTopology.newCallbackExecutor()
             )
             return this
         }
@@ -999,13 +1200,47 @@ open class DownloadManager(
             return this
         }
 
+        fun setCheckpointPolicy(checkpointPolicy: CheckpointPolicy): Builder {
+            this.checkpointPolicy = checkpointPolicy
+            return this
+        }
+
+        /**
+         * Pools the downloader runs on. it must be set before any setter that creates executors
+         * e.g. [setCallbacksHandler]. Default is [ExecutorTopology.default].
+         */
+        fun setExecutorTopology(executorTopology: ExecutorTopology): Builder {
+            this.executorTopology = executorTopology
+            return this
+        }
+
+        /**
+         * @see DownloadManager.softPauseGraceMilliSecs
+         */
+        fun setSoftPauseGraceMilliSecs(milliSecs: Long): Builder {
+            if (milliSecs < 0) {
+                throw IllegalArgumentException("soft pause grace can't be negative")
+            }
+            this.softPauseGraceMilliSecs = milliSecs
+            return this
+        }
+
+        /**
+         * [AdmissionController.shared] by default, null lets downloads start right away.
+         * @see DownloadManager.admissionController
+         */
+        @JvmOverloads
+        fun setAdmissionController(controller: AdmissionController?, priority: Int = 0): Builder {
+            this.admissionController = controller
+            this.admissionPriority = priority
+            return this
+        }
+
         fun build(): DownloadManager {
             val scheduledBackgroundExecutorNonNull = if (lifecycle != null) {
-                ScheduledBackgroundExecutorImpl(DEF_MAX_THREADS_PER_EXECUTOR, lifecycle)
+                executorTopology.newIoExecutor(lifecycle)
             } else {
-                scheduledBackgroundExecutor ?: ScheduledBackgroundExecutorImpl(
-                    DEF_MAX_THREADS_PER_EXECUTOR
-                )
+                scheduledBackgroundExecutor ?: executorTopology.newIoExecutor()
             }
             val downloadCallbacksHandler = if (lifecycle != null) {
                 DownloadCallbacksHandler(this.progressCallbacksOnMainThread, lifecycle)
@@ -1022,7 +1257,13 @@ open class DownloadManager(
                 ),
                 this.downloadDatabaseManager ?: SQLiteManager.getInstance(context),
                 networkInfoProvider ?: NetworkInfoProvider(context),
-                dataReadWriteWorkerManager ?: DataReadWriteWorkersManagerImpl()
+                dataReadWriteWorkerManager ?: DataReadWriteWorkersManagerImpl(),
+                checkpointPolicy,
+                executorTopology.newControlExecutor(),
+                softPauseGraceMilliSecs,
+                admissionController,
+                admissionPriority,
+                executorTopology.newBlockingExecutor()
             )
         }
     }
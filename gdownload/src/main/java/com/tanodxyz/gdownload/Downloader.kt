@@ -1,6 +1,7 @@
 package com.tanodxyz.gdownload
 
 import com.tanodxyz.gdownload.executors.ScheduledBackgroundExecutor
+import kotlinx.coroutines.flow.StateFlow
 
 /**
  * A Downloader is responsible for downloading single resource from the remote server or machine.
@@ -18,14 +19,17 @@ import com.tanodxyz.gdownload.executors.ScheduledBackgroundExecutor
  * >It will shutdown any live [RemoteConnection] to the remote resource. Release any threads
  * that runs any workers and clean the workers.
  * ### Pause/Freeze Download
- * >It is same as stopping the download but it would park threads but clean the workers.
- * So if [Downloader.resumeDownload] is called these parked threads would be used.
+ * >It is same as stopping the download but workers are kept. Their threads are given back to the
+ * pool and [Downloader.resumeDownload] continues the workers on pool threads again.
  * ### Resume Download
  * >If [Downloader] is in [Downloader.STATE.PAUSED] it will resume the download from the most previous
  * state.
  * ### Restarting Download
  * >if previous download either failed,stopped - restarting will cause it to start from the last
  * known state.
+ * ### Flows
+ * >[getDownloadInfoFlow] holds the same [DownloadInfo] that is delivered to
+ * [DownloadProgressListener]s. Collect it in any scope instead of registering a listener.
  */
 interface Downloader {
     /**
@@ -164,6 +168,18 @@ interface Downloader {
      */
     fun getState(): STATE
 
+    /**
+     * @return allocation free progress channel. it outlives downloads so listeners can be
+     * registered once per [Downloader].
+     */
+    fun getProgressChannel(): ProgressChannel
+
+    /**
+     * @return latest state of the current download, null until anything is notified. It is
+     * conflated and does not use any thread of it's own.
+     */
+    fun getDownloadInfoFlow(): StateFlow<DownloadInfo?>
+
     /**
      * @return the download failed error message.
      */
@@ -209,8 +225,8 @@ interface Downloader {
         COMPLETED,
 
         /**
-         * when download is paused it indicates that all running threads are parked and all
-         * [DataReadWriteWorker] were cleaned.
+         * when download is paused it indicates that all [DataReadWriteWorker]s are paused and
+         * hold no threads.
          */
         PAUSED,
 
@@ -12,12 +12,13 @@ import com.tanodxyz.gdownload.connection.ConnectionManager
 import com.tanodxyz.gdownload.connection.ConnectionManagerImpl
 import com.tanodxyz.gdownload.connection.URLConnectionFactory
 import com.tanodxyz.gdownload.connection.URLConnectionHandler
+import com.tanodxyz.gdownload.database.AsyncDownloadDatabaseManager
 import com.tanodxyz.gdownload.database.DownloadDatabaseManager
+import com.tanodxyz.gdownload.database.DownloadsPage
 import com.tanodxyz.gdownload.database.SQLiteManager
 import com.tanodxyz.gdownload.executors.BackgroundExecutor
-import com.tanodxyz.gdownload.executors.BackgroundExecutorImpl
+import com.tanodxyz.gdownload.executors.ExecutorTopology
 import com.tanodxyz.gdownload.executors.ScheduledBackgroundExecutor
-import com.tanodxyz.gdownload.executors.ScheduledBackgroundExecutorImpl
 import com.tanodxyz.gdownload.io.DefaultFileStorageHelper
 import com.tanodxyz.gdownload.io.FileStorageHelper
 import java.io.File
@@ -32,6 +33,10 @@ import java.io.File
  * [GDownload.getFreeGroupOrCreateNewOne], [GDownload.freeDownloader], [GDownload.freeGroup], [GDownload.singleDownload],
  *will shutdown when lifecycle is destroyed.
  *
+ * ### Global limits
+ * > Every group and downloader is admitted by [AdmissionController.shared] before a download
+ * starts, see [setGlobalLimits].
+ *
  * ### Note
  * * Any method that has [LifeCycleOwner], [Activity], [FragmentActivity], [LifeCycle] as a parameter and
  * creates [Downloader] or [Group] will bound the respective [Downloader] or [Group] progress callbacks to
@@ -51,7 +56,7 @@ object GDownload : DefaultLifecycleObserver {
     fun init(lifecycle: Lifecycle? = null) {
         independentDownloaderPool = mutableListOf()
         groupPool = mutableListOf()
-        backgroundExecutorImpl = BackgroundExecutorImpl()
+        backgroundExecutorImpl = ExecutorTopology.default.newControlExecutor()
         mainThreadHandler = Handler(Looper.getMainLooper())
         addLifeCycle(lifecycle)
         logger.d(initialised())
@@ -64,6 +69,22 @@ object GDownload : DefaultLifecycleObserver {
         }
     }
 
+    /**
+     * Caps that hold for all groups and downloaders together, 0 means unlimited.
+     * @see AdmissionController.shared
+     */
+    fun setGlobalLimits(
+        maxRunningDownloads: Int = 0,
+        maxConnections: Int = 0,
+        maxBandwidthBytesPerSecond: Long = 0
+    ) {
+        AdmissionController.shared.apply {
+            this.maxRunningDownloads = maxRunningDownloads
+            this.maxConnections = maxConnections
+            this.maxBandwidthBytesPerSecond = maxBandwidthBytesPerSecond
+        }
+    }
+
     /**
      * As the name implies create a new [Downloader] or re-use the existing one
      * @param callbackOnMainThread if true - the [callback] will be called on MainThread else background thread
@@ -184,6 +205,10 @@ object GDownload : DefaultLifecycleObserver {
         backgroundExecutorImpl.execute(callback)
     }
 
+    private fun asyncDatabaseManager(context: Context): AsyncDownloadDatabaseManager {
+        return AsyncDownloadDatabaseManager(SQLiteManager.getInstance(context.applicationContext))
+    }
+
     private fun runOnMainThread(callback: Runnable) {
         mainThreadHandler.post(callback)
     }
@@ -199,35 +224,89 @@ object GDownload : DefaultLifecycleObserver {
     /**
      * This method will load all the downloads from database.
      * @param threadMain if true - the [callback] will be called on MainThread else background thread
+     * @param onFailure called on the same thread instead of [callback] if database could not be
+     * read. if null [callback] gets an empty list.
      */
     fun loadAllDownloadsFromDatabase(
         context: Context,
         threadMain: Boolean = true,
+        onFailure: ((Throwable) -> Unit)? = null,
         callback: (MutableList<Download>) -> Unit
     ) {
-        runOnBackground {
-            val dbManager = SQLiteManager.getInstance(context.applicationContext)
-            val allDownloads = dbManager.getAll()
+        asyncDatabaseManager(context).getAll { allDownloads, error ->
+            if (allDownloads == null) {
+                logger.e("Failed to load downloads from database", error!!)
+            }
             runOnSelectedThread(threadMain) {
-                callback(allDownloads)
+                if (allDownloads != null) {
+                    callback(allDownloads)
+                } else {
+                    if (onFailure != null) onFailure(error!!) else callback(mutableListOf())
+                }
+            }
+        }
+    }
+
+    /**
+     * This method will load a single page of downloads from database. Prefer it over
+     * [loadAllDownloadsFromDatabase] for history screens as only [pageSize] downloads are loaded at once.
+     * @param afterKey [DownloadsPage.FIRST_PAGE_KEY] for the first page else [DownloadsPage.nextPageKey]
+     * @param includeSliceData whether slices of each download should be decoded too.
+     * @param threadMain if true - the [callback] will be called on MainThread else background thread
+     * @param onFailure called on the same thread instead of [callback] if database could not be
+     * read. if null [callback] gets an empty last page.
+     * @see DownloadDatabaseManager.getDownloadsPage
+     */
+    fun loadDownloadsPageFromDatabase(
+        context: Context,
+        afterKey: Long = DownloadsPage.FIRST_PAGE_KEY,
+        pageSize: Int = DEF_DATABASE_PAGE_SIZE,
+        includeSliceData: Boolean = false,
+        threadMain: Boolean = true,
+        onFailure: ((Throwable) -> Unit)? = null,
+        callback: (DownloadsPage) -> Unit
+    ) {
+        asyncDatabaseManager(context).getDownloadsPage(
+            afterKey,
+            pageSize,
+            includeSliceData = includeSliceData
+        ) { page, error ->
+            if (page == null) {
+                logger.e("Failed to load downloads page from database", error!!)
+            }
+            runOnSelectedThread(threadMain) {
+                if (page != null) {
+                    callback(page)
+                } else {
+                    if (onFailure != null) onFailure(error!!)
+                    else callback(DownloadsPage(mutableListOf(), DownloadsPage.NO_MORE_PAGES))
+                }
             }
         }
     }
 
     /**
      * This method will try to load all the incomplete or failed downloads from database.
+     * @param onFailure called on the same thread instead of [listener] if database could not be
+     * read. if null [listener] gets an empty list.
      */
     fun loadAllInCompleteDownloadsFromDatabase(
         context: Context,
         resultCallbackOnMainThread: Boolean,
+        onFailure: ((Throwable) -> Unit)? = null,
         listener: (MutableList<Download>) -> Unit
     ) {
-        runOnBackground {
-            logger.d("Loading ALL incomplete Downloads From Database")
-            val dbManager = SQLiteManager.getInstance(context.applicationContext)
-            val incompleteDownloads = dbManager.findAllInCompleteDownloads()
+        logger.d("Loading ALL incomplete Downloads From Database")
+        asyncDatabaseManager(context).findAllInCompleteDownloads { incompleteDownloads, error ->
+            if (incompleteDownloads == null) {
+                logger.e("Failed to load incomplete downloads from database", error!!)
+            }
             runOnSelectedThread(resultCallbackOnMainThread) {
-                listener(incompleteDownloads)
+                if (incompleteDownloads != null) {
+                    listener(incompleteDownloads)
+                } else {
+                    if (onFailure != null) onFailure(error!!) else listener(mutableListOf())
+                }
             }
         }
     }
@@ -365,26 +444,21 @@ object GDownload : DefaultLifecycleObserver {
         callbackOnMainThread: Boolean = true,
         listener: ((Int) -> Unit)? = null
     ) {
-        loadAllDownloadsFromDatabase(context, true) { downloadsFromDatabase ->
-            if (downloadsFromDatabase.isNullOrEmpty()) {
-                listener?.invoke(0)
-            } else {
-                runOnBackground {
-                    var deletedFilesCounter = 0
-                    downloadsFromDatabase.forEach {
-                        File(it.getFilePath()).apply {
-                            if (exists()) {
-                                val fileDeleted = delete()
-                                if (fileDeleted) {
-                                    deletedFilesCounter++
-                                }
-                            }
+        runOnBackground {
+            var deletedFilesCounter = 0
+            SQLiteManager.getInstance(context.applicationContext).forEachDownload { download ->
+                File(download.getFilePath()).apply {
+                    if (exists()) {
+                        val fileDeleted = delete()
+                        if (fileDeleted) {
+                            deletedFilesCounter++
                         }
                     }
-                    deleteAllDownloadsFromDatabase(context, callbackOnMainThread) {
-                        listener?.invoke(deletedFilesCounter)
-                    }
                 }
+                true
+            }
+            deleteAllDownloadsFromDatabase(context, callbackOnMainThread) {
+                listener?.invoke(deletedFilesCounter)
             }
         }
     }
@@ -439,6 +513,25 @@ object GDownload : DefaultLifecycleObserver {
             .setUrlConnectionFactory(settings.urlConnectionFactory)
             .setProgressUpdateTimeMilliSecs(settings.progressUpdateTimeMilliSecs)
             .setNetworkInfoProvider(settings.networkInfoProvider ?: NetworkInfoProvider(context))
+            .setCheckpointPolicy(settings.checkpointPolicy)
+            .setProgressBatchIntervalMilliSecs(settings.progressBatchIntervalMilliSecs)
+            .setProgressBatchDispatcher(settings.progressBatchDispatcher)
+            .setExecutorTopology(settings.executorTopology)
+            .setSoftPauseGraceMilliSecs(settings.softPauseGraceMilliSecs)
+            .setPreemptive(settings.preemptive)
+            .setPriorityAgingMilliSecs(settings.priorityAgingMilliSecs)
+            .setPreemptionMinRunMilliSecs(settings.preemptionMinRunMilliSecs)
+            .setSchedulingPolicy(settings.schedulingPolicy)
+            .setBandwidthSharing(
+                settings.bandwidthSharing,
+                settings.bandwidthLimitBytesPerSecond,
+                settings.bandwidthWeightsFromPriority
+            )
+            .setAutoConcurrency(settings.autoConcurrency, settings.minConcurrentDownloads)
+            .setDownloaderIdleTimeoutMilliSecs(settings.downloaderIdleTimeoutMilliSecs)
+            .setQueueWindowSize(settings.queueWindowSize)
+            .setSmallFileThresholdBytes(settings.smallFileThresholdBytes)
+            .setAdmission(settings.groupPriority, settings.admissionController)
             .build()
         return build
     }
@@ -613,10 +706,8 @@ object GDownload : DefaultLifecycleObserver {
         downloadCallbacksOnMainThread: Boolean = true,
         connectionFactory: Factory<URLConnectionHandler>? = null
     ): DownloaderCreateSettings {
-        val scheduledBackgroundExecutorImpl = ScheduledBackgroundExecutorImpl(
-            DEF_MAX_THREADS_PER_EXECUTOR,
-            lifeCycleOwner?.lifecycle
-        )
+        val scheduledBackgroundExecutorImpl =
+            ExecutorTopology.default.newIoExecutor(lifeCycleOwner?.lifecycle)
         val downloadCallbacksHandler = DownloadCallbacksHandler(
             downloadCallbacksOnMainThread,
             lifeCycleOwner?.lifecycle
@@ -705,5 +796,28 @@ object GDownload : DefaultLifecycleObserver {
         var urlConnectionFactory: Factory<URLConnectionHandler>? = URLConnectionFactory()
         var databaseManager: DownloadDatabaseManager? = null
         var networkInfoProvider: NetworkInfoProvider? = null
+        var checkpointPolicy: CheckpointPolicy = CheckpointPolicy()
+        var progressBatchIntervalMilliSecs: Long = 0
+        var progressBatchDispatcher: ProgressBatchDispatcher? = null
+        var executorTopology: ExecutorTopology = ExecutorTopology.default
+        var softPauseGraceMilliSecs: Long = 0
+        var preemptive: Boolean = false
+        var priorityAgingMilliSecs: Long = 0
+        var preemptionMinRunMilliSecs: Long = DEF_PREEMPTION_MIN_RUN_MILLISECONDS
+
+        /**
+         * New instance for each group.
+         */
+        var schedulingPolicy: SchedulingPolicy? = null
+        var bandwidthSharing: Boolean = false
+        var bandwidthLimitBytesPerSecond: Long = 0
+        var bandwidthWeightsFromPriority: Boolean = false
+        var autoConcurrency: Boolean = false
+        var minConcurrentDownloads: Int = 1
+        var downloaderIdleTimeoutMilliSecs: Long = DEF_DOWNLOADER_IDLE_TIMEOUT_MILLISECONDS
+        var queueWindowSize: Int = 0
+        var smallFileThresholdBytes: Long = 0
+        var groupPriority: Int = 0
+        var admissionController: AdmissionController = AdmissionController.shared
     }
 }
\ No newline at end of file
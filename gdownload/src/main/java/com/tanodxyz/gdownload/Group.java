@@ -8,6 +8,9 @@ import androidx.core.util.Pair;
 
 import java.util.List;
 
+import kotlinx.coroutines.flow.SharedFlow;
+import kotlinx.coroutines.flow.StateFlow;
+
 
 /**
  * Sometimes it is desired to group downloads and treat them like a single entity.
@@ -21,6 +24,12 @@ import java.util.List;
  * {@link Group#start()} is used to start group loop thread.
  */
 public interface Group {
+    /**
+     * Passed to the listener of {@link #loadDownloadsFromDatabase(Consumer)} if downloads could
+     * not be loaded.
+     */
+    int LOAD_FAILED = -1;
+
     /**
      * Start a group loop thread.
      */
@@ -186,6 +195,36 @@ public interface Group {
      */
     void removeGroupProgressListener(@NonNull GroupListener groupListener);
 
+    /**
+     * Latest progress of all running downloads of this group will be delivered to the listener
+     * once per frame as a single list.
+     *
+     * @param listener batch listener
+     * @see ProgressBatchDispatcher
+     */
+    void addProgressBatchListener(@NonNull ProgressBatchListener listener);
+
+    /**
+     * Remove the batch listener.
+     *
+     * @param listener batch listener
+     */
+    void removeProgressBatchListener(@NonNull ProgressBatchListener listener);
+
+    /**
+     * @return latest {@link GroupState} that was notified to {@link GroupListener}s, state of the
+     * empty group until anything is notified.
+     */
+    @NonNull
+    StateFlow<GroupState> getStateFlow();
+
+    /**
+     * @return every {@link GroupListener} callback as {@link GroupEvent}. Collectors that fall
+     * behind lose the oldest events, {@link #getStateFlow()} always holds the latest state.
+     */
+    @NonNull
+    SharedFlow<GroupEvent> getEvents();
+
     /**
      * This method removes the {@link Download} objects from internal Lists.
      * it does not  care if the {@link Download}s are running or idle.
@@ -197,7 +236,8 @@ public interface Group {
     void purge(GroupImpl.GroupDownloadStates state);
 
     /**
-     * @return the list of downloads whose queue id matches this group.
+     * @return the list of downloads whose queue id matches this group, including the ones a disk
+     * backed group spilled out of memory.
      */
     @WorkerThread
     List<Download> getAllGroupDownloadsFromDatabase();
@@ -210,7 +250,8 @@ public interface Group {
 
     /**
      * This method will load all the downloads that belong to this group and add it to this group.
-     * @param listener will be called on main thread and indicates number of downloads added to the group.
+     * @param listener will be called on main thread and indicates number of downloads added to the group
+     * or {@link #LOAD_FAILED}.
      */
     void loadDownloadsFromDatabase(@Nullable Consumer<Integer> listener);
 
@@ -2,14 +2,48 @@ package com.tanodxyz.gdownload
 
 import androidx.lifecycle.Lifecycle
 import com.tanodxyz.gdownload.executors.BackgroundExecutor
+import kotlinx.coroutines.channels.BufferOverflow
+import kotlinx.coroutines.flow.MutableSharedFlow
+import kotlinx.coroutines.flow.MutableStateFlow
+import kotlinx.coroutines.flow.SharedFlow
+import kotlinx.coroutines.flow.StateFlow
+import kotlinx.coroutines.flow.asSharedFlow
+import kotlinx.coroutines.flow.asStateFlow
 
 class GroupCallbackHandler(
     mainThread: Boolean = false,
     lifecycle: Lifecycle? = null,
-    backgroundExecutor: BackgroundExecutor? = null
+    backgroundExecutor: BackgroundExecutor? = null,
+    /**
+     * Held by [stateFlow] until anything is notified.
+     */
+    initialState: GroupState
 ) : CallbacksHandler(mainThread, backgroundExecutor, lifecycle) {
 
     private val groupListeners = mutableListOf<GroupListener>()
+    private val groupState = MutableStateFlow(initialState)
+    private val groupEvents = MutableSharedFlow<GroupEvent>(
+        extraBufferCapacity = DEF_GROUP_EVENTS_BUFFER_CAPACITY,
+        onBufferOverflow = BufferOverflow.DROP_OLDEST
+    )
+
+    /**
+     * Latest [GroupState] that was notified to listeners.
+     */
+    val stateFlow: StateFlow<GroupState> = groupState.asStateFlow()
+
+    /**
+     * Every notification as [GroupEvent]. Events are emitted on the notifying thread before
+     * listeners are invoked. if a collector falls behind by more then
+     * [DEF_GROUP_EVENTS_BUFFER_CAPACITY] events, the oldest ones are dropped - [stateFlow] always
+     * holds the latest state.
+     */
+    val events: SharedFlow<GroupEvent> = groupEvents.asSharedFlow()
+
+    private fun publish(event: GroupEvent) {
+        groupState.value = event.groupState
+        groupEvents.tryEmit(event)
+    }
 
     @Synchronized
     fun addListener(listener: GroupListener?) {
@@ -30,6 +64,13 @@ class GroupCallbackHandler(
         }
     }
 
+    /**
+     * @return true if [GroupListener]s are registered or [stateFlow] or [events] are collected.
+     */
+    @Synchronized
+    fun hasStateConsumers(): Boolean = groupListeners.isNotEmpty() ||
+            groupState.subscriptionCount.value > 0 || groupEvents.subscriptionCount.value > 0
+
     @Synchronized
     fun getListeners(): List<GroupListener> {
         return groupListeners
@@ -47,6 +88,7 @@ class GroupCallbackHandler(
 
 
     fun notifyStateDownloadAdded(groupState: GroupState, downloadInfo: DownloadInfo) {
+        publish(GroupEvent.Added(groupState.id, downloadInfo, groupState))
         Runnable {
             forEachListener {
                 it.onAdded(groupState.id, downloadInfo, groupState)
@@ -55,6 +97,7 @@ class GroupCallbackHandler(
     }
 
     fun notifyStateDownloadEnqueued(groupState: GroupState, downloadInfo: DownloadInfo) {
+        publish(GroupEvent.Enqueued(groupState.id, downloadInfo, groupState))
         Runnable {
             forEachListener {
                 it.onEnqueued(groupState.id, downloadInfo, groupState)
@@ -63,6 +106,7 @@ class GroupCallbackHandler(
     }
 
     fun notifyStateDownloadStopped(groupState: GroupState, downloadInfo: DownloadInfo) {
+        publish(GroupEvent.Stopped(groupState.id, downloadInfo, groupState))
         Runnable {
             forEachListener {
                 it.onStopped(groupState.id, downloadInfo, groupState)
@@ -71,6 +115,7 @@ class GroupCallbackHandler(
     }
 
     fun notifyStateDownloadPaused(groupState: GroupState, downloadInfo: DownloadInfo) {
+        publish(GroupEvent.Paused(groupState.id, downloadInfo, groupState))
         Runnable {
             forEachListener {
                 it.onPaused(groupState.id, downloadInfo, groupState)
@@ -79,6 +124,7 @@ class GroupCallbackHandler(
     }
 
     fun notifyStateDownloadSuccess(groupState: GroupState, downloadInfo: DownloadInfo) {
+        publish(GroupEvent.Success(groupState.id, downloadInfo, groupState))
         Runnable {
             forEachListener {
                 it.onSuccess(groupState.id, downloadInfo, groupState)
@@ -86,12 +132,16 @@ class GroupCallbackHandler(
         }.apply { runOnSelectedThread() }
     }
 
+    /**
+     * It is made on every group loop for each running download so it is conflated per download.
+     */
     fun notifyStateDownloadRunning(groupState: GroupState, downloadInfo: DownloadInfo) {
+        publish(GroupEvent.Downloading(groupState.id, downloadInfo, groupState))
         Runnable {
             forEachListener {
                 it.onDownloading(groupState.id, downloadInfo, groupState)
             }
-        }.apply { runOnSelectedThread() }
+        }.apply { runConflatedOnSelectedThread(downloadInfo.id) }
     }
 
     fun notifyStateDownloadFailed(
@@ -99,6 +149,7 @@ class GroupCallbackHandler(
         downloadInfo: DownloadInfo,
         error: String?
     ) {
+        publish(GroupEvent.Failure(groupState.id, downloadInfo, groupState, error))
         Runnable {
             forEachListener {
                 it.onFailure(groupState.id, error, downloadInfo, groupState)
@@ -107,6 +158,7 @@ class GroupCallbackHandler(
     }
 
     fun notifyStateDownloadStarting(groupState: GroupState, downloadInfo: DownloadInfo) {
+        publish(GroupEvent.Starting(groupState.id, downloadInfo, groupState))
         Runnable {
             forEachListener {
                 it.onStarting(groupState.id, downloadInfo, groupState)
@@ -114,7 +166,26 @@ class GroupCallbackHandler(
         }.apply { runOnSelectedThread() }
     }
 
+    /**
+     * Completion of a download that ran without a downloader, [listener] gets no other callback.
+     */
+    fun notifyDownloadCompleted(
+        listener: DownloadProgressListener?,
+        downloadInfo: DownloadInfo,
+        error: String?
+    ) {
+        listener ?: return
+        Runnable {
+            if (error == null) {
+                listener.onDownloadSuccess(downloadInfo)
+            } else {
+                listener.onDownloadFailed(downloadInfo, error)
+            }
+        }.apply { runOnSelectedThread() }
+    }
+
     fun notifyStateDownloadWaiting(state: GroupState, downloadInfo: DownloadInfo) {
+        publish(GroupEvent.WaitingForTurn(state.id, downloadInfo, state))
         Runnable {
             forEachListener {
                 it.onWaitingForTurn(state.id, downloadInfo, state)
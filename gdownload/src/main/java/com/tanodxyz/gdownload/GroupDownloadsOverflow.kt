@@ -0,0 +1,154 @@
+package com.tanodxyz.gdownload
+
+import androidx.annotation.WorkerThread
+import com.tanodxyz.gdownload.database.DownloadDatabaseManager
+
+/**
+ * Downloads of a disk backed [GroupImpl] that are not materialized yet.
+ * >
+ * Spilled downloads live in [databaseManager], only a small [Entry] per download stays in memory -
+ * it's id, the group side state that is not stored in the database and the
+ * [GroupStateAggregator.Contribution] it makes to the group state, so counts are reported
+ * without loading it. Downloads are paged back in the order they were spilled.
+ *
+ * Rows of spilled downloads are inserted as they are and found by [Download.id] - their file path
+ * is not resolved yet, so it can't identify them. A row lives only while it's download is spilled,
+ * once paged in the downloader that runs it saves it under the resolved path.
+ *
+ * All methods lock the overflow itself.
+ * @see GroupImpl.queueWindowSize
+ */
+internal class GroupDownloadsOverflow(private val databaseManager: DownloadDatabaseManager) {
+    private val entries = LinkedHashMap<Long, Entry>()
+
+    class Entry(
+        val id: Long,
+        val priority: Int,
+        val currentState: GroupImpl.GroupDownloadStates,
+        var desiredState: GroupImpl.GroupDownloadStates,
+        val listener: DownloadProgressListener?,
+        val bandwidthWeight: Double,
+        val smallFile: Boolean,
+        val contribution: GroupStateAggregator.Contribution
+    )
+
+    /**
+     * Saves [downloads] in a single transaction.
+     */
+    fun persist(downloads: List<Download>) {
+        databaseManager.insertAll(downloads)
+    }
+
+    /**
+     * Deletes rows of persisted downloads that were queued in memory instead of being spilled.
+     */
+    fun forget(downloads: List<Download>) {
+        if (downloads.isNotEmpty()) {
+            databaseManager.deleteByIds(downloads.map { it.id })
+        }
+    }
+
+    /**
+     * Drops [groupDownloads] from memory. they must be persisted already.
+     * @return entries of the spilled downloads.
+     */
+    @Synchronized
+    fun spill(groupDownloads: List<GroupImpl.GroupDownload>): List<Entry> {
+        return groupDownloads.map { groupDownload ->
+            Entry(
+                groupDownload.download.id,
+                groupDownload.priority,
+                groupDownload.currentState,
+                groupDownload.desiredState,
+                groupDownload.listener,
+                groupDownload.bandwidthWeight,
+                groupDownload.smallFile,
+                GroupStateAggregator.Contribution().read(groupDownload.download)
+            ).also { entry -> entries[entry.id] = entry }
+        }
+    }
+
+    @Synchronized
+    fun count(): Int = entries.size
+
+    @Synchronized
+    operator fun contains(id: Long): Boolean = entries.containsKey(id)
+
+    @Synchronized
+    fun setDesiredState(state: GroupImpl.GroupDownloadStates) {
+        entries.values.forEach { it.desiredState = state }
+    }
+
+    /**
+     * Loads the first [max] spilled downloads.
+     */
+    @Synchronized
+    fun takeFirst(max: Int): List<Pair<Entry, GroupImpl.GroupDownload?>> {
+        return load(entries.values.take(max))
+    }
+
+    /**
+     * Loads spilled download having [id].
+     */
+    @Synchronized
+    fun take(id: Long): Pair<Entry, GroupImpl.GroupDownload?>? {
+        val entry = entries[id] ?: return null
+        return load(listOf(entry)).first()
+    }
+
+    /**
+     * Removes every spilled download whose current state is [state].
+     * @return removed entries.
+     */
+    @Synchronized
+    fun removeAll(state: GroupImpl.GroupDownloadStates): List<Entry> {
+        val removed = entries.values.filter { it.currentState == state }
+        removed.forEach { entries.remove(it.id) }
+        return removed
+    }
+
+    /**
+     * Streams spilled downloads from the database [pageSize] at a time.
+     */
+    @WorkerThread
+    fun forEachDownload(pageSize: Int = DEF_DATABASE_PAGE_SIZE, callback: (Download) -> Unit) {
+        val ids = synchronized(this) { entries.keys.toList() }
+        ids.chunked(pageSize).forEach { chunk ->
+            databaseManager.findDownloadsByIds(chunk, includeSliceData = false).forEach(callback)
+        }
+    }
+
+    @Synchronized
+    fun clear() {
+        entries.clear()
+    }
+
+    /**
+     * Download of an entry that is no longer in the database is null.
+     */
+    private fun load(toTake: List<Entry>): List<Pair<Entry, GroupImpl.GroupDownload?>> {
+        if (toTake.isEmpty()) {
+            return emptyList()
+        }
+        val ids = toTake.map { it.id }
+        val downloadsById = databaseManager.findDownloadsByIds(ids).associateBy { it.id }
+        databaseManager.deleteByIds(ids)
+        return toTake.map { entry ->
+            entries.remove(entry.id)
+            Pair(
+                entry,
+                downloadsById[entry.id]?.let { download ->
+                    GroupImpl.GroupDownload(
+                        download,
+                        entry.currentState,
+                        entry.desiredState,
+                        entry.priority,
+                        entry.listener,
+                        entry.bandwidthWeight,
+                        entry.smallFile
+                    )
+                }
+            )
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package com.tanodxyz.gdownload
+
+import java.util.Collections
+import java.util.EnumMap
+import java.util.IdentityHashMap
+
+/**
+ * Downloads of a [GroupImpl] indexed by [Download.id] and by [GroupImpl.GroupDownload.currentState].
+ * >
+ * Lookups, adds and removes by id are O(1) and [removeAll] of a state costs only the downloads
+ * in that state, so per download commands stay cheap with hundreds of thousands of downloads
+ * queued. Iteration follows insertion order. Order by priority of the downloads waiting to start
+ * is kept by [GroupScheduler].
+ *
+ * [GroupImpl.GroupDownload.currentState] of a queued download must be changed through
+ * [setCurrentState] or the state index goes stale.
+ *
+ * All methods lock the queue itself.
+ */
+internal class GroupDownloadsQueue {
+    private val downloadsById = LinkedHashMap<Long, GroupImpl.GroupDownload>()
+    private val downloadsByState =
+        EnumMap<GroupImpl.GroupDownloadStates, MutableSet<GroupImpl.GroupDownload>>(
+            GroupImpl.GroupDownloadStates::class.java
+        )
+
+    /**
+     * Download with the same id that is already queued is replaced.
+     */
+    @Synchronized
+    fun add(groupDownload: GroupImpl.GroupDownload) {
+        downloadsById.put(groupDownload.download.id, groupDownload)?.let { unIndex(it) }
+        index(groupDownload)
+    }
+
+    @Synchronized
+    fun addAll(groupDownloads: Collection<GroupImpl.GroupDownload>) {
+        groupDownloads.forEach { add(it) }
+    }
+
+    @Synchronized
+    operator fun get(id: Long): GroupImpl.GroupDownload? = downloadsById[id]
+
+    @Synchronized
+    fun remove(id: Long): GroupImpl.GroupDownload? {
+        val groupDownload = downloadsById.remove(id) ?: return null
+        unIndex(groupDownload)
+        return groupDownload
+    }
+
+    /**
+     * Removes every download whose current state is [state].
+     * @return removed downloads.
+     */
+    @Synchronized
+    fun removeAll(state: GroupImpl.GroupDownloadStates): List<GroupImpl.GroupDownload> {
+        val removed = downloadsByState.remove(state)?.toList() ?: return emptyList()
+        removed.forEach { downloadsById.remove(it.download.id) }
+        return removed
+    }
+
+    @Synchronized
+    fun setCurrentState(
+        groupDownload: GroupImpl.GroupDownload,
+        state: GroupImpl.GroupDownloadStates
+    ) {
+        if (downloadsById[groupDownload.download.id] !== groupDownload) {
+            groupDownload.currentState = state
+            return
+        }
+        unIndex(groupDownload)
+        groupDownload.currentState = state
+        index(groupDownload)
+    }
+
+    @Synchronized
+    fun count(): Int = downloadsById.size
+
+    @Synchronized
+    fun count(state: GroupImpl.GroupDownloadStates): Int = downloadsByState[state]?.size ?: 0
+
+    @Synchronized
+    fun forEach(callback: (GroupImpl.GroupDownload) -> Unit) {
+        downloadsById.values.forEach(callback)
+    }
+
+    @Synchronized
+    fun <T> map(transform: (GroupImpl.GroupDownload) -> T): List<T> =
+        downloadsById.values.map(transform)
+
+    @Synchronized
+    fun clear() {
+        downloadsById.clear()
+        downloadsByState.clear()
+    }
+
+    private fun index(groupDownload: GroupImpl.GroupDownload) {
+        downloadsByState.getOrPut(groupDownload.currentState) {
+            Collections.newSetFromMap(IdentityHashMap())
+        }.add(groupDownload)
+    }
+
+    private fun unIndex(groupDownload: GroupImpl.GroupDownload) {
+        val downloads = downloadsByState[groupDownload.currentState] ?: return
+        downloads.remove(groupDownload)
+        if (downloads.isEmpty()) {
+            downloadsByState.remove(groupDownload.currentState)
+        }
+    }
+}
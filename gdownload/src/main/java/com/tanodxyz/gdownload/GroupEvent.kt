@@ -0,0 +1,93 @@
+package com.tanodxyz.gdownload
+
+/**
+ * Events of a [Group] - one for each [GroupListener] callback.
+ * @see Group.getEvents
+ */
+sealed class GroupEvent {
+    abstract val groupId: Long
+    abstract val download: DownloadInfo
+    abstract val groupState: GroupState
+
+    /**
+     * @see GroupListener.onAdded
+     */
+    data class Added(
+        override val groupId: Long,
+        override val download: DownloadInfo,
+        override val groupState: GroupState
+    ) : GroupEvent()
+
+    /**
+     * @see GroupListener.onEnqueued
+     */
+    data class Enqueued(
+        override val groupId: Long,
+        override val download: DownloadInfo,
+        override val groupState: GroupState
+    ) : GroupEvent()
+
+    /**
+     * @see GroupListener.onStarting
+     */
+    data class Starting(
+        override val groupId: Long,
+        override val download: DownloadInfo,
+        override val groupState: GroupState
+    ) : GroupEvent()
+
+    /**
+     * @see GroupListener.onDownloading
+     */
+    data class Downloading(
+        override val groupId: Long,
+        override val download: DownloadInfo,
+        override val groupState: GroupState
+    ) : GroupEvent()
+
+    /**
+     * @see GroupListener.onSuccess
+     */
+    data class Success(
+        override val groupId: Long,
+        override val download: DownloadInfo,
+        override val groupState: GroupState
+    ) : GroupEvent()
+
+    /**
+     * @see GroupListener.onFailure
+     */
+    data class Failure(
+        override val groupId: Long,
+        override val download: DownloadInfo,
+        override val groupState: GroupState,
+        val errorMessage: String?
+    ) : GroupEvent()
+
+    /**
+     * @see GroupListener.onPaused
+     */
+    data class Paused(
+        override val groupId: Long,
+        override val download: DownloadInfo,
+        override val groupState: GroupState
+    ) : GroupEvent()
+
+    /**
+     * @see GroupListener.onStopped
+     */
+    data class Stopped(
+        override val groupId: Long,
+        override val download: DownloadInfo,
+        override val groupState: GroupState
+    ) : GroupEvent()
+
+    /**
+     * @see GroupListener.onWaitingForTurn
+     */
+    data class WaitingForTurn(
+        override val groupId: Long,
+        override val download: DownloadInfo,
+        override val groupState: GroupState
+    ) : GroupEvent()
+}
@@ -7,29 +7,47 @@ import androidx.lifecycle.Lifecycle
 import com.tanodxyz.gdownload.connection.ConnectionManagerImpl
 import com.tanodxyz.gdownload.connection.URLConnectionFactory
 import com.tanodxyz.gdownload.connection.URLConnectionHandler
+import com.tanodxyz.gdownload.database.AsyncDownloadDatabaseManager
 import com.tanodxyz.gdownload.database.DownloadDatabaseManager
 import com.tanodxyz.gdownload.database.GroupDownloadDatabaseFetcher
 import com.tanodxyz.gdownload.database.SQLiteManager
-import com.tanodxyz.gdownload.executors.BackgroundExecutorImpl
-import com.tanodxyz.gdownload.executors.ScheduledBackgroundExecutorImpl
+import com.tanodxyz.gdownload.executors.ExecutorTopology
+import com.tanodxyz.gdownload.executors.HashedTimerWheel
+import com.tanodxyz.gdownload.executors.ScheduledBackgroundExecutor
+import com.tanodxyz.gdownload.io.DefaultFileStorageHelper
+import kotlinx.coroutines.flow.SharedFlow
+import kotlinx.coroutines.flow.StateFlow
 
 import java.io.File
+import java.util.Collections
+import java.util.IdentityHashMap
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.TimeUnit
 import java.util.concurrent.atomic.AtomicInteger
 import java.util.concurrent.locks.LockSupport
 
 /**
- * Implementation of  [Group] that runs a cycle after [groupLoopTimeMilliSecs] and it has the
- * capacity to run [concurrentDownloadsCapacity] concurrent downloads.
+ * Implementation of  [Group] that has the capacity to run [concurrentDownloadsCapacity]
+ * concurrent downloads.
+ * >
+ * ### Event driven loop
+ * Group loop thread sleeps until a downloader changes it's state or a command (start, pause,
+ * stop ...) is issued, then it handles only the downloads those events are about. A downloader
+ * that gets free is given right away to the highest priority waiting download.
  * >
  * ### Setting Downloads Priority
  * High priority downloads are like to be enqueued and download first.
  * @see GroupImpl.add
  * @see GroupImpl.GroupDownload
+ * @see GroupScheduler
  */
 class GroupImpl(
     val context: Context,
     val name: String,
     val id: Long,
+    /**
+     * Not used since group loop is event driven. kept for compatibility.
+     */
     val groupLoopTimeMilliSecs: Long = DEF_GROUP_LOOP_INTERVAL_MILLISECONDS,
     val concurrentDownloadsCapacity: Int = GROUP_DEFAULT_DOWNLOAD_CAPACITY,
     /**
@@ -73,41 +91,271 @@ class GroupImpl(
     val databaseManager: DownloadDatabaseManager? = null,
 
     val networkInfoProvider: NetworkInfoProvider,
-
+    /**
+     * Decides when progress of each download is saved via [databaseManager].
+     */
+    val checkpointPolicy: CheckpointPolicy = CheckpointPolicy(),
+    /**
+     * Progress of all downloads in this group is delivered once per display frame or once per
+     * this interval if it is greater then zero.
+     */
+    val progressBatchIntervalMilliSecs: Long = 0,
+    /**
+     * Dispatcher shared with other groups. if null group creates its own one.
+     */
+    sharedProgressBatchDispatcher: ProgressBatchDispatcher? = null,
+    /**
+     * Pools shared by downloaders of this group and by other groups.
+     */
+    val executorTopology: ExecutorTopology = ExecutorTopology.default,
+    /**
+     * Paused downloads keep their connections open for this long.
+     * @see DownloadManager.softPauseGraceMilliSecs
+     */
+    val softPauseGraceMilliSecs: Long = 0,
+    /**
+     * If true a download that is waiting for a downloader stops the running download with the
+     * lowest priority when it's own priority is higher. stopped download keeps it's slices and
+     * continues from them once a downloader gets free.
+     */
+    val preemptive: Boolean = false,
+    /**
+     * If greater then zero a waiting download gains one priority (one rank of
+     * [schedulingPolicy]) for each this long it waits, so low priority downloads are not starved.
+     * @see GroupScheduler
+     */
+    val priorityAgingMilliSecs: Long = 0,
+    /**
+     * Running download is not preempted before it ran for this long, so downloads whose ranks
+     * keep overtaking each other with aging don't stop and start in every tick.
+     * @see GroupScheduler
+     */
+    val preemptionMinRunMilliSecs: Long = DEF_PREEMPTION_MIN_RUN_MILLISECONDS,
+    /**
+     * Order in which waiting downloads start. [SchedulingPolicy.Priority] if null.
+     */
+    schedulingPolicy: SchedulingPolicy? = null,
+    /**
+     * If true bandwidth is split between running downloads by weight - explicit
+     * [GroupDownload.bandwidthWeight] or the one derived from priority if
+     * [bandwidthWeightsFromPriority], equal shares otherwise. download that does not use it's
+     * share leaves it to the others. shares are reported by [GroupState.bandwidthShares].
+     * @see BandwidthAllocator
+     */
+    val bandwidthSharing: Boolean = false,
+    /**
+     * Total rate of the group. 0 means capacity of the link is estimated.
+     */
+    val bandwidthLimitBytesPerSecond: Long = 0,
+    /**
+     * Running download with the highest priority gets weight n, the next n - 1 and so on.
+     */
+    val bandwidthWeightsFromPriority: Boolean = false,
+    /**
+     * If true number of downloads that run at once is tuned between [minConcurrentDownloads] and
+     * [concurrentDownloadsCapacity] by group throughput.
+     * @see ConcurrencyTuner
+     */
+    val autoConcurrency: Boolean = false,
+    val minConcurrentDownloads: Int = 1,
+    /**
+     * Downloaders are created when downloads start, up to [concurrentDownloadsCapacity], and are
+     * shut down after being free for this long. 0 keeps them until the group shuts down.
+     */
+    val downloaderIdleTimeoutMilliSecs: Long = DEF_DOWNLOADER_IDLE_TIMEOUT_MILLISECONDS,
+    /**
+     * If greater then zero queue is disk backed - added downloads that do not fit are saved via
+     * [databaseManager] in one transaction on the blocking pool of [executorTopology] and at most
+     * this many enqueued downloads are kept in memory, the rest are paged in as the window drains.
+     * 0 keeps every download in memory. Spilled downloads are only counted by [getState],
+     * [getAllGroupDownloadsFromDatabase] reads them.
+     * @see GroupDownloadsOverflow
+     */
+    val queueWindowSize: Int = 0,
+    /**
+     * If greater then zero downloads whose known content length is at most this many bytes skip
+     * the downloaders and are fetched one after another by a single worker over kept alive
+     * connections. they report no progress until they complete. Length is known only if the
+     * [Download] is added with [Download.getContentLengthBytes] set - downloads added by url and
+     * name are not eligible unless they are added as [GroupDownload] with
+     * [GroupDownload.smallFile] set, then their body must not exceed this many bytes.
+     * @see SmallFileFetcher
+     */
+    val smallFileThresholdBytes: Long = 0,
+    /**
+     * Priority of this group in [admissionController], groups with a higher one start their
+     * downloads first when global caps are reached.
+     */
+    val groupPriority: Int = 0,
+    /**
+     * Every download of this group is admitted by it before it starts.
+     * @see AdmissionController
+     */
+    val admissionController: AdmissionController = AdmissionController.shared
     ) : Runnable, Group {
 
     private var groupCallbaHandler = GroupCallbackHandler(
         progressCallbacksOnMainThread,
         progressCallbackLifeCycle,
-        BackgroundExecutorImpl()
+        executorTopology.newCallbackExecutor(),
+        GroupState(
+            id, name, emptyList(), emptyList(), emptyList(), emptyList(), emptyList(),
+            emptyList(), emptyList(), 0.0
+        )
     )
     private var running: Boolean = false
     private lateinit var thread: Thread
     private var downloaders: MutableList<DownloadManager> = mutableListOf()
-    private var downloadsQueue = mutableListOf<GroupDownload>()
+    private val downloadsQueue = GroupDownloadsQueue()
+    private val downloadsOverflow = if (queueWindowSize > 0) {
+        GroupDownloadsOverflow(databaseManager ?: SQLiteManager.getInstance(context.applicationContext))
+    } else {
+        null
+    }
     private var priorityCounter = AtomicInteger(0)
     private val blocker = Any()
-    private val executor =
-        BackgroundExecutorImpl()
+    private val schedulerEvents = ConcurrentLinkedQueue<SchedulerEvent>()
+
+    /**
+     * Owned by group loop thread.
+     */
+    private val scheduler: GroupScheduler<DownloadManager>
+    private val smallFileFetcher = if (smallFileThresholdBytes > 0) {
+        val storageHelper = DefaultFileStorageHelper(context.applicationContext).apply {
+            if (filesSaveRootPath != null) {
+                setFilesRoot(filesSaveRootPath)
+            } else {
+                setFilesRootToDownloadsOrFallbackToInternalDirectory()
+            }
+        }
+        SmallFileFetcher(
+            urlConnectionFactory ?: URLConnectionFactory(),
+            databaseManager ?: SQLiteManager.getInstance(context.applicationContext),
+            executorTopology.newIoExecutor(progressCallbackLifeCycle),
+            admissionController,
+            groupPriority,
+            smallFileThresholdBytes,
+            { download -> storageHelper.fileFor(download.getFilePath()) },
+            { download, error -> postSchedulerEvent(SchedulerEvent.SmallFileFinished(download, error)) }
+        )
+    } else {
+        null
+    }
+    private val newlyWaitingDownloads = mutableListOf<GroupDownload>()
+    private val preemptedDownloads =
+        Collections.newSetFromMap(IdentityHashMap<GroupDownload, Boolean>())
+    private var pendingPreemption: DownloadManager? = null
+
+    /**
+     * Permits of running downloads, owned by group loop thread.
+     */
+    private val admissionPermits = IdentityHashMap<DownloadManager, AdmissionController.Permit>()
+    private val admissionClient = object : AdmissionController.Client {
+        override val admissionPriority: Int
+            get() = groupPriority
+
+        override fun onAdmissionAvailable() {
+            postSchedulerEvent(SchedulerEvent.AdmissionAvailable)
+        }
+    }
+
+    /**
+     * Re-evaluates preemption as waiting downloads age and running ones reach
+     * [preemptionMinRunMilliSecs].
+     */
+    @Volatile
+    private var preemptionTick: ScheduledBackgroundExecutor.CallbackState? = null
+
+    @Volatile
+    private var bandwidthTick: ScheduledBackgroundExecutor.CallbackState? = null
+
+    @Volatile
+    private var bandwidthShares: List<BandwidthShare> = emptyList()
+    private val bandwidthAllocator = BandwidthAllocator(bandwidthLimitBytesPerSecond)
+    private val lastConsumedBytes = IdentityHashMap<DownloadManager, Long>()
+    private var lastBandwidthShareNanos = System.nanoTime()
+
+    @Volatile
+    private var concurrencyTick: ScheduledBackgroundExecutor.CallbackState? = null
+    private val concurrencyTuner = if (autoConcurrency) {
+        ConcurrencyTuner(minConcurrentDownloads, concurrentDownloadsCapacity)
+    } else {
+        null
+    }
+    private var lastTunedConsumedBytes = 0L
+
+    /**
+     * Bytes read by downloaders that were shut down for being idle.
+     */
+    private var evictedConsumedBytes = 0L
+
+    @Volatile
+    private var idleDownloadersTick: ScheduledBackgroundExecutor.CallbackState? = null
+    private var lastTuneNanos = System.nanoTime()
+
+    @Volatile
+    private var concurrencyLimit = concurrencyTuner?.limit ?: concurrentDownloadsCapacity
+    private val executor = executorTopology.newControlExecutor()
+
+    /**
+     * Adds to a disk backed group run here - spilling writes the database.
+     */
+    private val queueingExecutor =
+        if (downloadsOverflow != null) executorTopology.newBlockingExecutor() else executor
+    private val stateAggregator = GroupStateAggregator()
+    private val ownsProgressBatchDispatcher = sharedProgressBatchDispatcher == null
+    private val progressBatchDispatcher = sharedProgressBatchDispatcher ?: ProgressBatchDispatcher(
+        progressCallbacksOnMainThread,
+        progressBatchIntervalMilliSecs,
+        progressCallbackLifeCycle,
+        executorTopology
+    )
 
     init {
-        createAllDownloaderWithoutWorkers()
+        scheduler = GroupScheduler(
+            concurrentDownloadsCapacity,
+            ::createDownloader,
+            schedulingPolicy ?: SchedulingPolicy.Priority(),
+            TimeUnit.MILLISECONDS.toNanos(priorityAgingMilliSecs),
+            TimeUnit.MILLISECONDS.toNanos(preemptionMinRunMilliSecs)
+        )
+        scheduler.maxAssigned = concurrencyLimit
     }
 
-    private fun createAllDownloaderWithoutWorkers() {
-        for (i: Int in 0 until concurrentDownloadsCapacity) {
-            val createdDownloader = createDownloaderFromCurrentSetting()
+    private fun createDownloader(): DownloadManager {
+        val createdDownloader = createDownloaderFromCurrentSetting()
+        createdDownloader.stateChangeListener = { downloader ->
+            postSchedulerEvent(SchedulerEvent.DownloaderStateChanged(downloader))
+        }
+        withLocks(downloaderLock = true) {
             downloaders.add(createdDownloader)
         }
+        return createdDownloader
+    }
+
+    private fun evictIdleDownloaders() {
+        scheduler.evictIdle(TimeUnit.MILLISECONDS.toNanos(downloaderIdleTimeoutMilliSecs)) { downloader ->
+            withLocks(downloaderLock = true) {
+                downloaders.remove(downloader)
+            }
+            evictedConsumedBytes += downloader.bandwidthLimiter.consumedBytes()
+            lastConsumedBytes.remove(downloader)
+            downloader.stateChangeListener = null
+            downloader.shutDown(null, unregisterAllNetworkChangeListeners = false)
+        }
     }
 
     private fun createDownloaderFromCurrentSetting(): DownloadManager {
         val scheduledBackgroundExecutorImpl =
-            ScheduledBackgroundExecutorImpl(
-                lifecycle = progressCallbackLifeCycle
-            )
+            executorTopology.newIoExecutor(progressCallbackLifeCycle)
         val downloadManagerBuilder = DownloadManager.Builder(context)
-            .setCallbacksHandler(progressCallbacksOnMainThread)
+            .setExecutorTopology(executorTopology)
+            .setSoftPauseGraceMilliSecs(softPauseGraceMilliSecs)
+            .setAdmissionController(null)
+            .setCallbacksHandler(
+                DownloadCallbacksHandler(progressCallbacksOnMainThread).apply {
+                    progressBatchDispatcher = this@GroupImpl.progressBatchDispatcher
+                })
             .setScheduledBackgroundExecutor(scheduledBackgroundExecutorImpl)
             .setConnectionManager(
                 ConnectionManagerImpl(
@@ -116,6 +364,7 @@ class GroupImpl(
                 )
             )
             .setNetworkInfoProvider(networkInfoProvider)
+            .setCheckpointPolicy(checkpointPolicy)
             .setDownloadDatabaseManager(
                 databaseManager ?: SQLiteManager.getInstance(context.applicationContext)
             )
@@ -126,6 +375,7 @@ class GroupImpl(
             context.applicationContext
         )
         val downloader = downloadManagerBuilder.build()
+        downloader.bandwidthLimiter.parent = admissionController.bandwidthLimiter
         downloader.registerNetworkChangeListener()
         return downloader
     }
@@ -133,74 +383,214 @@ class GroupImpl(
     override fun run() {
         if (Thread.currentThread().equals(thread)) {
             while (isRunning()) {
-                groupLoopCallback()
-                LockSupport.parkNanos(blocker, (groupLoopTimeMilliSecs * 1000000))
+                handleSchedulerEvents()
+                if (schedulerEvents.isEmpty()) {
+                    LockSupport.park(blocker)
+                }
             }
         }
     }
 
-    private val groupLoopCallback = {
-        withLocks(
-            downloadQueueLock = true,
-            downloaderLock = true,
-            callback = {
-                syncGroupDownloadStates()
-                rearrangeQueueBasedOnHighestPriority()
-                downloadsQueue.forEach { groupDownload ->
-                    handleDownload(groupDownload)
-                }
-            }
-        )
-        parkGroupLoopThreadIfThereIsNothingToDo()
+    /**
+     * Downloaders post their state changes and user commands post the downloads whose desired
+     * state changed. group loop thread sleeps until one of them arrives.
+     */
+    private fun postSchedulerEvent(event: SchedulerEvent) {
+        schedulerEvents.offer(event)
+        if (this::thread.isInitialized) {
+            LockSupport.unpark(thread)
+        }
     }
 
-    private fun unParkGroupLoopThread() {
-        synchronized(blocker) {}
-        LockSupport.unpark(thread)
+    private fun handleSchedulerEvents() {
+        var event = schedulerEvents.poll()
+        while (event != null) {
+            when (event) {
+                is SchedulerEvent.DownloaderStateChanged -> onDownloaderStateChanged(event.downloader)
+                is SchedulerEvent.DesiredStateChanged -> onDesiredStateChanged(event.groupDownload)
+                is SchedulerEvent.Removed -> scheduler.remove(event.groupDownload)
+                is SchedulerEvent.PreemptionFailed -> onPreemptionFailed(event.downloader)
+                is SchedulerEvent.PreemptionCheck -> {}
+                is SchedulerEvent.ShareBandwidth -> shareBandwidth()
+                is SchedulerEvent.TuneConcurrency -> tuneConcurrency()
+                is SchedulerEvent.EvictIdleDownloaders -> evictIdleDownloaders()
+                is SchedulerEvent.SmallFileFinished -> onSmallFileFinished(event.download, event.error)
+                is SchedulerEvent.AdmissionAvailable -> {}
+            }
+            event = schedulerEvents.poll()
+        }
+        pageInSpilledDownloads()
+        startWaitingDownloads()
     }
 
-    private fun parkGroupLoopThreadIfThereIsNothingToDo() {
-        if (shouldParkLooper()) {
-            synchronized(blocker) {}
-            LockSupport.park()
+    /**
+     * Pages spilled downloads in once less then half of the window is enqueued.
+     */
+    private fun pageInSpilledDownloads() {
+        val overflow = downloadsOverflow ?: return
+        val enqueuedCount = downloadsQueue.count(GroupDownloadStates.ENQUEUED)
+        if (enqueuedCount > queueWindowSize / 2 || overflow.count() == 0) {
+            return
         }
+        materialize(overflow.takeFirst(queueWindowSize - enqueuedCount)).forEach(::onDesiredStateChanged)
     }
 
-    private fun shouldParkLooper(): Boolean {
-        var shouldParkThread = true
+    /**
+     * @return downloads that were still in the database.
+     */
+    private fun materialize(
+        paged: List<Pair<GroupDownloadsOverflow.Entry, GroupDownload?>>
+    ): List<GroupDownload> {
+        val materialized = mutableListOf<GroupDownload>()
         withLocks(downloadQueueLock = true) {
-            downloadsQueue.forEach { groupDownload ->
-                when (groupDownload.desiredState) {
-                    GroupDownloadStates.START,
-                    GroupDownloadStates.STARTED,
-                    GroupDownloadStates.PAUSE, GroupDownloadStates.STOP,
-                    GroupDownloadStates.RUNNING, GroupDownloadStates.RESTART -> {
-                        shouldParkThread = false
-                        return@forEach
-                    }
-                    else -> {
-                        if (groupDownload.currentState == GroupDownloadStates.RUNNING
-                            || groupDownload.currentState == GroupDownloadStates.ENQUEUED ||
-                            groupDownload.currentState == GroupDownloadStates.STARTED
-                        ) {
-                            shouldParkThread = false
-                            return@forEach
-                        }
-                    }
+            paged.forEach { (entry, groupDownload) ->
+                stateAggregator.removeDetached(entry.contribution)
+                if (groupDownload != null) {
+                    downloadsQueue.add(groupDownload)
+                    stateAggregator.add(groupDownload.download)
+                    materialized.add(groupDownload)
                 }
             }
         }
-        return shouldParkThread
+        return materialized
+    }
+
+    private fun onDownloaderStateChanged(downloadManager: DownloadManager) {
+        val groupDownload = scheduler.downloadOf(downloadManager) ?: return
+        val activeDownloadPayload = downloadManager.activeDownloadPayload
+        if (activeDownloadPayload === groupDownload.download) {
+            stateAggregator.refresh(activeDownloadPayload)
+            syncGroupDownloadState(groupDownload, downloadManager.downloadFailure)
+        }
+        if (!downloadManager.isBusy) {
+            val assignment = scheduler.release(downloadManager) ?: return
+            admissionPermits.remove(downloadManager)?.release()
+            downloadManager.bandwidthLimiter.bytesPerSecond = 0
+            lastConsumedBytes.remove(downloadManager)
+            if (pendingPreemption === downloadManager) {
+                pendingPreemption = null
+            }
+            if (preemptedDownloads.remove(groupDownload) &&
+                groupDownload.currentState == GroupDownloadStates.STOPPED &&
+                groupDownload.desiredState == GroupDownloadStates.STARTED
+            ) {
+                groupDownload.desiredState = GroupDownloadStates.START
+                scheduler.requeue(assignment)
+            }
+        }
+    }
+
+    private fun shareBandwidth() {
+        val now = System.nanoTime()
+        val elapsedNanos = now - lastBandwidthShareNanos
+        lastBandwidthShareNanos = now
+        if (elapsedNanos <= 0) {
+            return
+        }
+        val running = mutableListOf<Pair<DownloadManager, GroupDownload>>()
+        scheduler.forEachAssigned { downloader, groupDownload ->
+            if (groupDownload.currentState == GroupDownloadStates.RUNNING) {
+                running.add(Pair(downloader, groupDownload))
+            }
+        }
+        if (bandwidthWeightsFromPriority) {
+            running.sortBy { it.second.priority }
+        }
+        val demands = running.mapIndexed { index, (downloader, groupDownload) ->
+            val consumedBytes = downloader.bandwidthLimiter.consumedBytes()
+            val previouslyConsumedBytes = lastConsumedBytes.put(downloader, consumedBytes) ?: consumedBytes
+            val weight = when {
+                groupDownload.bandwidthWeight > 0 -> groupDownload.bandwidthWeight
+                bandwidthWeightsFromPriority -> (index + 1).toDouble()
+                else -> 1.0
+            }
+            BandwidthAllocator.Demand(
+                groupDownload.download.id,
+                weight,
+                (consumedBytes - previouslyConsumedBytes) * TimeUnit.SECONDS.toNanos(1) / elapsedNanos,
+                downloader.bandwidthLimiter.bytesPerSecond
+            )
+        }
+        val shares = bandwidthAllocator.allocate(demands)
+        shares.forEachIndexed { index, share ->
+            running[index].first.bandwidthLimiter.bytesPerSecond = share.allocatedBytesPerSecond
+        }
+        bandwidthShares = shares
+    }
+
+    private fun tuneConcurrency() {
+        val tuner = concurrencyTuner ?: return
+        val now = System.nanoTime()
+        val elapsedNanos = now - lastTuneNanos
+        if (elapsedNanos <= 0) {
+            return
+        }
+        lastTuneNanos = now
+        var consumedBytes = evictedConsumedBytes
+        withLocks(downloaderLock = true) {
+            consumedBytes += downloaders.sumOf { it.bandwidthLimiter.consumedBytes() }
+        }
+        val throughput =
+            (consumedBytes - lastTunedConsumedBytes) * TimeUnit.SECONDS.toNanos(1).toDouble() / elapsedNanos
+        lastTunedConsumedBytes = consumedBytes
+        var runningCount = 0
+        scheduler.forEachAssigned { _, groupDownload ->
+            if (groupDownload.currentState == GroupDownloadStates.RUNNING) {
+                ++runningCount
+            }
+        }
+        val limit = tuner.onSample(throughput, runningCount, scheduler.waitingCount() > 0)
+        scheduler.maxAssigned = limit
+        concurrencyLimit = limit
+    }
+
+    /**
+     * @return number of downloads that may run at once now.
+     * @see autoConcurrency
+     */
+    fun getConcurrencyLimit(): Int = concurrencyLimit
+
+    private fun onPreemptionFailed(downloadManager: DownloadManager) {
+        if (pendingPreemption === downloadManager) {
+            pendingPreemption = null
+            scheduler.downloadOf(downloadManager)?.let { preemptedDownloads.remove(it) }
+        }
+    }
+
+    /**
+     * Stops the running download with the highest rank (lowest priority) if the next waiting
+     * download has a lower one. only one preemption is in flight at a time and downloads that
+     * run for less then [preemptionMinRunMilliSecs] are left alone.
+     */
+    private fun preemptLowerPriorityDownloadIfNecessary() {
+        if (!preemptive || pendingPreemption != null || scheduler.hasFreeSlot()) {
+            return
+        }
+        val waitingRank = scheduler.peekRank(::canStart) ?: return
+        val (downloader, assignment) = scheduler.highestRankAssigned { _, groupDownload ->
+            groupDownload.currentState == GroupDownloadStates.RUNNING &&
+                    groupDownload.desiredState == GroupDownloadStates.STARTED
+        } ?: return
+        if (assignment.rank <= waitingRank) {
+            return
+        }
+        pendingPreemption = downloader
+        preemptedDownloads.add(assignment.groupDownload)
+        downloader.stopDownload { stopped, _ ->
+            if (!stopped) {
+                postSchedulerEvent(SchedulerEvent.PreemptionFailed(downloader))
+            }
+        }
     }
 
-    private fun handleDownload(groupDownload: GroupDownload) {
+    private fun onDesiredStateChanged(groupDownload: GroupDownload) {
         when (groupDownload.currentState) {
             GroupDownloadStates.ENQUEUED -> {
                 groupDownload.desiredState.apply {
                     if (this == GroupDownloadStates.START
                         || this == GroupDownloadStates.RUNNING || this == GroupDownloadStates.RESTART
                     ) {
-                        startDownload(groupDownload, true)
+                        enqueueDownload(groupDownload)
                     }
                 }
             }
@@ -225,10 +615,8 @@ class GroupImpl(
             }
             GroupDownloadStates.STOPPED, GroupDownloadStates.FAILURE, GroupDownloadStates.SUCCESS -> {
                 groupDownload.desiredState.apply {
-                    if (this == GroupDownloadStates.RESTART) {
-                        startDownload(groupDownload, true)
-                    } else if (this == GroupDownloadStates.START) {
-                        startDownload(groupDownload, true)
+                    if (this == GroupDownloadStates.RESTART || this == GroupDownloadStates.START) {
+                        enqueueDownload(groupDownload)
                     }
                 }
             }
@@ -238,85 +626,121 @@ class GroupImpl(
         }
     }
 
-    private fun restartDownload(groupDownload: GroupDownload) {
-        groupDownload.download.getDownloader()?.apply {
-            restart()
-            groupDownload.desiredState = GroupDownloadStates.STARTED
+    private fun enqueueDownload(groupDownload: GroupDownload) {
+        if (startSmallDownloadIfEligible(groupDownload)) {
+            return
+        }
+        if (scheduler.enqueue(groupDownload)) {
+            newlyWaitingDownloads.add(groupDownload)
         }
     }
 
-    private fun resumeDownload(groupDownload: GroupDownload) {
-        groupDownload.download.getDownloader()?.apply {
-            resumeDownload()
+    /**
+     * @return true if [groupDownload] was handed to [smallFileFetcher].
+     */
+    private fun startSmallDownloadIfEligible(groupDownload: GroupDownload): Boolean {
+        val fetcher = smallFileFetcher ?: return false
+        val contentLength = groupDownload.download.getContentLengthBytes()
+        val small = groupDownload.smallFile || (contentLength in 1..smallFileThresholdBytes)
+        if (!small || !canStart(groupDownload)) {
+            return false
         }
+        scheduler.remove(groupDownload)
+        groupDownload.desiredState = GroupDownloadStates.STARTED
+        groupDownload.download.set(
+            contentLengthDownloaded = 0,
+            progress = 0.0,
+            status = Download.DOWNLOADING
+        )
+        stateAggregator.refresh(groupDownload.download)
+        syncGroupDownloadState(groupDownload, null)
+        fetcher.enqueue(groupDownload.download)
+        return true
     }
 
-    private fun startDownload(
-        groupDownload: GroupDownload,
-        removePreviousListeners: Boolean = false
-    ) {
-        fun DownloadManager.startDownload(groupDownload: GroupDownload) {
-            groupDownload.desiredState = GroupDownloadStates.STARTED
-            download0(groupDownload.download, groupDownload.listener, removePreviousListeners)
+    private fun onSmallFileFinished(download: Download, error: String?) {
+        val groupDownload = downloadsQueue[download.id]?.takeIf { it.download === download } ?: return
+        stateAggregator.refresh(download)
+        syncGroupDownloadState(groupDownload, error)
+        if (download.getStatus() == Download.STOPPED) {
+            return
         }
+        groupCallbaHandler.notifyDownloadCompleted(
+            groupDownload.listener,
+            download.getDownloadInfo(),
+            error
+        )
+    }
 
-        var allDownloadersBusy = false
-        val runningDownloadsCount = getRunningDownloadsCount()
-        if (runningDownloadsCount < concurrentDownloadsCapacity) {
-            val aFreeDownloader = getAFreeDownloader()
-            if (aFreeDownloader == null) {
-                allDownloadersBusy = true
-            } else {
-                aFreeDownloader.startDownload(groupDownload)
-            }
-        } else {
-            val aFreeDownloader = findIdleLowerPriorityDownloader(groupDownload.priority)
-            if (aFreeDownloader != null) {
-                aFreeDownloader.startDownload(groupDownload)
-            } else {
-                allDownloadersBusy = true
+    private fun canStart(groupDownload: GroupDownload): Boolean {
+        val wantsToStart = groupDownload.desiredState == GroupDownloadStates.START
+                || groupDownload.desiredState == GroupDownloadStates.RUNNING
+                || groupDownload.desiredState == GroupDownloadStates.RESTART
+        val isStartable = groupDownload.currentState == GroupDownloadStates.ENQUEUED
+                || groupDownload.currentState == GroupDownloadStates.STOPPED
+                || groupDownload.currentState == GroupDownloadStates.FAILURE
+                || groupDownload.currentState == GroupDownloadStates.SUCCESS
+        return wantsToStart && isStartable
+    }
+
+    /**
+     * Fills free downloaders with the highest priority waiting downloads as long as
+     * [admissionController] admits them. downloads that are still waiting after that are
+     * notified once.
+     */
+    private fun startWaitingDownloads() {
+        while (isRunning() && scheduler.hasFreeSlot()) {
+            val nextDownload = scheduler.peekNext(::canStart) ?: break
+            val permit = admissionController.tryAcquire(admissionClient, nextDownload.download) ?: break
+            val assigned = scheduler.assignNext(::canStart)
+            if (assigned == null) {
+                permit.release()
+                break
             }
+            val (downloader, groupDownload) = assigned
+            admissionPermits[downloader] = permit
+            startDownload(downloader, groupDownload, permit.connections)
         }
-        if (allDownloadersBusy) {
-            groupCallbaHandler.notifyStateDownloadWaiting(
-                state,
-                groupDownload.download.getDownloadInfo(),
-            )
+        if (!scheduler.hasFreeSlot() || scheduler.peekNext(::canStart) == null) {
+            admissionController.withdraw(admissionClient)
+        }
+        newlyWaitingDownloads.forEach { groupDownload ->
+            if (scheduler.isWaiting(groupDownload)) {
+                groupCallbaHandler.notifyStateDownloadWaiting(
+                    notifiedState,
+                    groupDownload.download.getDownloadInfo(),
+                )
+            }
         }
+        newlyWaitingDownloads.clear()
+        preemptLowerPriorityDownloadIfNecessary()
     }
 
-    private fun findIdleLowerPriorityDownloader(priority: Int): DownloadManager? {
-        var lowerPriorityDownloader: DownloadManager? = null
-        val lowerPriorityDownloaders: MutableList<DownloadManager> = mutableListOf()
-
-        val lowerPriorityDownloads = downloadsQueue.filter { it.priority < priority }
-        lowerPriorityDownloads.forEach { lowerPriorityDownload ->
-            val dwdrs =
-                downloaders.filter { lowerPriorityDownload.download == it.activeDownloadPayload }
-            lowerPriorityDownloaders.addAll(dwdrs)
+    private fun startDownload(
+        downloader: DownloadManager,
+        groupDownload: GroupDownload,
+        maxConnections: Int
+    ) {
+        if (!downloader.executor.isExecutorAssigned()) {
+            downloader.executor.setExecutor(DEF_MAX_THREADS_PER_EXECUTOR)
         }
-
-        val idleDownloaders = lowerPriorityDownloaders.filter { it.isBusy.not() }
-        if (idleDownloaders.isNotEmpty()) {
-            lowerPriorityDownloader = idleDownloaders[0]
+        groupDownload.desiredState = GroupDownloadStates.STARTED
+        val started = try {
+            downloader.download0(groupDownload.download, groupDownload.listener, true, maxConnections)
+        } catch (ex: IllegalArgumentException) {
+            ex.printStackTrace()
+            false
+        }
+        if (!started) {
+            scheduler.release(downloader)
+            admissionPermits.remove(downloader)?.release()
         }
-        return lowerPriorityDownloader
     }
 
-    private fun getAFreeDownloader(): DownloadManager? {
-        var freeDownloader: DownloadManager? = null
-        downloaders.forEach { downloadManager ->
-            if (!downloadManager.isBusy) {
-                freeDownloader = downloadManager
-                return@forEach
-            }
-        }
-        freeDownloader?.apply {
-            if (!this.executor.isExecutorAssigned()) {
-                executor.setExecutor(DEF_MAX_THREADS_PER_EXECUTOR)
-            }
+    private fun resumeDownload(groupDownload: GroupDownload) {
+        groupDownload.download.getDownloader()?.apply {
+            resumeDownload()
         }
-        return freeDownloader
     }
 
     private fun pauseDownload(groupDownload: GroupDownload) {
@@ -325,21 +749,19 @@ class GroupImpl(
         }
     }
 
-    private fun getRunningDownloadsCount(): Int {
-        return downloaders.count { it.isBusy }
-
-    }
-
     private fun stopDownload(groupDownload: GroupDownload) {
+        if (smallFileFetcher?.cancel(groupDownload.download) == true) {
+            groupDownload.download.set(status = Download.STOPPED)
+            stateAggregator.refresh(groupDownload.download)
+            syncGroupDownloadState(groupDownload, null)
+            return
+        }
+        // small download that is being fetched is reported stopped by onSmallFileFinished.
         groupDownload.download.getDownloader()?.apply {
             this.stopDownload()
         }
     }
 
-    private fun rearrangeQueueBasedOnHighestPriority() {
-        downloadsQueue.sortWith { o1, o2 -> o2.priority.compareTo(o1.priority) }
-    }
-
     private fun withLocks(
         downloadQueueLock: Boolean = false,
         downloaderLock: Boolean = false,
@@ -362,77 +784,68 @@ class GroupImpl(
         }
     }
 
-    private fun syncGroupDownloadStates() {
-
-        downloaders.forEach { downloadManager ->
-            val activeDownloadPayload = downloadManager.activeDownloadPayload
-            activeDownloadPayload?.apply {
-                downloadsQueue.find { it.download == this && (!it.cannotUpdateListeners()) }?.let {
-                    when (this.getStatus()) {
-                        Download.ENQUEUED -> {
-                            it.currentState = (GroupDownloadStates.ENQUEUED)
-                            groupCallbaHandler.notifyStateDownloadEnqueued(
-                                state,
-                                this.getDownloadInfo()
-                            )
-                        }
-                        Download.STOPPED -> {
-                            it.currentState = (GroupDownloadStates.STOPPED)
-                            groupCallbaHandler.notifyStateDownloadStopped(
-                                state,
-                                this.getDownloadInfo()
-                            )
-                        }
-                        Download.PAUSED -> {
-                            it.currentState = (GroupDownloadStates.PAUSED)
-                            groupCallbaHandler.notifyStateDownloadPaused(
-                                state,
-                                this.getDownloadInfo()
-                            )
-                        }
-                        Download.DOWNLOADED -> {
-                            it.currentState = (GroupDownloadStates.SUCCESS)
-                            it.desiredState = it.currentState
-                            groupCallbaHandler.notifyStateDownloadSuccess(
-                                state,
-                                this.getDownloadInfo()
-                            )
-                        }
-                        Download.DOWNLOADING -> {
-                            it.currentState = (GroupDownloadStates.RUNNING)
-                            groupCallbaHandler.notifyStateDownloadRunning(
-                                state,
-                                this.getDownloadInfo()
-                            )
-                        }
-                        Download.FAILED -> {
-                            it.currentState = (GroupDownloadStates.FAILURE)
-                            groupCallbaHandler.notifyStateDownloadFailed(
-                                state,
-                                this.getDownloadInfo(),
-                                downloadManager.downloadFailure
-                            )
-                        }
-                        Download.STARTING -> {
-                            it.currentState = GroupDownloadStates.STARTED
-                            groupCallbaHandler.notifyStateDownloadStarting(
-                                state,
-                                this.getDownloadInfo()
-                            )
-                        }
-                    }
-                }
+    /**
+     * Listeners are notified only when state of [groupDownload] actually changes.
+     */
+    private fun syncGroupDownloadState(groupDownload: GroupDownload, downloadFailure: String?) {
+        val download = groupDownload.download
+        val newState = when (download.getStatus()) {
+            Download.ENQUEUED -> GroupDownloadStates.ENQUEUED
+            Download.STOPPED -> GroupDownloadStates.STOPPED
+            Download.PAUSED -> GroupDownloadStates.PAUSED
+            Download.DOWNLOADED -> GroupDownloadStates.SUCCESS
+            Download.DOWNLOADING -> GroupDownloadStates.RUNNING
+            Download.FAILED -> GroupDownloadStates.FAILURE
+            Download.STARTING -> GroupDownloadStates.STARTED
+            else -> return
+        }
+        if (newState == groupDownload.currentState) {
+            return
+        }
+        downloadsQueue.setCurrentState(groupDownload, newState)
+        when (newState) {
+            GroupDownloadStates.ENQUEUED -> groupCallbaHandler.notifyStateDownloadEnqueued(
+                notifiedState,
+                download.getDownloadInfo()
+            )
+            GroupDownloadStates.STOPPED -> if (preemptedDownloads.contains(groupDownload)) {
+                groupCallbaHandler.notifyStateDownloadWaiting(notifiedState, download.getDownloadInfo())
+            } else {
+                groupCallbaHandler.notifyStateDownloadStopped(notifiedState, download.getDownloadInfo())
             }
+            GroupDownloadStates.PAUSED -> groupCallbaHandler.notifyStateDownloadPaused(
+                notifiedState,
+                download.getDownloadInfo()
+            )
+            GroupDownloadStates.SUCCESS -> {
+                groupDownload.desiredState = newState
+                groupCallbaHandler.notifyStateDownloadSuccess(
+                    notifiedState,
+                    download.getDownloadInfo()
+                )
+            }
+            GroupDownloadStates.RUNNING -> groupCallbaHandler.notifyStateDownloadRunning(
+                notifiedState,
+                download.getDownloadInfo()
+            )
+            GroupDownloadStates.FAILURE -> groupCallbaHandler.notifyStateDownloadFailed(
+                notifiedState,
+                download.getDownloadInfo(),
+                downloadFailure
+            )
+            else -> groupCallbaHandler.notifyStateDownloadStarting(
+                notifiedState,
+                download.getDownloadInfo()
+            )
         }
     }
 
     private fun Download.getDownloader(): Downloader? {
-        val dc = downloaders.filter { it.activeDownloadPayload == this }
-        return if (dc.isEmpty()) {
-            null
-        } else {
-            dc[0]
+        var downloader: Downloader? = null
+        withLocks(downloaderLock = true) {
+            downloader = downloaders.firstOrNull { it.activeDownloadPayload == this }
         }
+        return downloader
     }
 
     override fun start() {
@@ -440,8 +853,43 @@ class GroupImpl(
             return
         }
         thread = Thread(this, "Group-$name-$id-Thread")
-        thread.start()
         setRunningState(true)
+        thread.start()
+        if (bandwidthSharing || bandwidthLimitBytesPerSecond > 0) {
+            bandwidthTick = HashedTimerWheel.shared.schedule(
+                { postSchedulerEvent(SchedulerEvent.ShareBandwidth) },
+                DEF_BANDWIDTH_SHARE_INTERVAL_MILLISECONDS,
+                TimeUnit.MILLISECONDS,
+                DEF_BANDWIDTH_SHARE_INTERVAL_MILLISECONDS
+            )
+        }
+        if (autoConcurrency) {
+            concurrencyTick = HashedTimerWheel.shared.schedule(
+                { postSchedulerEvent(SchedulerEvent.TuneConcurrency) },
+                DEF_CONCURRENCY_TUNE_INTERVAL_MILLISECONDS,
+                TimeUnit.MILLISECONDS,
+                DEF_CONCURRENCY_TUNE_INTERVAL_MILLISECONDS
+            )
+        }
+        if (downloaderIdleTimeoutMilliSecs > 0) {
+            idleDownloadersTick = HashedTimerWheel.shared.schedule(
+                { postSchedulerEvent(SchedulerEvent.EvictIdleDownloaders) },
+                downloaderIdleTimeoutMilliSecs,
+                TimeUnit.MILLISECONDS,
+                downloaderIdleTimeoutMilliSecs
+            )
+        }
+        val preemptionCheckMilliSecs = listOf(priorityAgingMilliSecs, preemptionMinRunMilliSecs)
+            .filter { it > 0 }
+            .minOrNull()
+        if (preemptive && preemptionCheckMilliSecs != null) {
+            preemptionTick = HashedTimerWheel.shared.schedule(
+                { postSchedulerEvent(SchedulerEvent.PreemptionCheck) },
+                preemptionCheckMilliSecs,
+                TimeUnit.MILLISECONDS,
+                preemptionCheckMilliSecs
+            )
+        }
     }
 
     @Synchronized
@@ -463,35 +911,74 @@ class GroupImpl(
      * the download priority.
      */
     fun add(groupDownload: GroupDownload): Long {
-        runOnBackground {
-            withLocks(downloadQueueLock = true) {
-                downloadsQueue.add(
-                    groupDownload
-                )
-                groupCallbaHandler.notifyStateDownloadAdded(
-                    state,
-                    groupDownload.download.getDownloadInfo()
-                )
-            }
-            unParkGroupLoopThread()
+        runOnQueueingThread {
+            val materialized = queueDownloads(listOf(groupDownload))
+            groupCallbaHandler.notifyStateDownloadAdded(
+                notifiedState,
+                groupDownload.download.getDownloadInfo()
+            )
+            materialized.forEach { postSchedulerEvent(SchedulerEvent.DesiredStateChanged(it)) }
         }
         return groupDownload.download.id
     }
 
+    /**
+     * Downloads that do not fit in [queueWindowSize] are spilled, the rest are queued in memory.
+     * @return downloads queued in memory.
+     */
+    private fun queueDownloads(groupDownloads: List<GroupDownload>): List<GroupDownload> {
+        val overflow = downloadsOverflow
+        var queued = false
+        withLocks(downloadQueueLock = true) {
+            if (overflow == null || roomInQueueWindow(overflow, groupDownloads.count()) == groupDownloads.count()) {
+                downloadsQueue.addAll(groupDownloads)
+                groupDownloads.forEach { stateAggregator.add(it.download) }
+                queued = true
+            }
+        }
+        if (queued || overflow == null) {
+            return groupDownloads
+        }
+        // written outside of the queue lock, large batches are one long transaction.
+        overflow.persist(groupDownloads.map { it.download })
+        var materialized = groupDownloads
+        withLocks(downloadQueueLock = true) {
+            val room = roomInQueueWindow(overflow, groupDownloads.count())
+            materialized = groupDownloads.subList(0, room)
+            downloadsQueue.addAll(materialized)
+            materialized.forEach { stateAggregator.add(it.download) }
+            overflow.spill(groupDownloads.subList(room, groupDownloads.count())).forEach { entry ->
+                stateAggregator.addDetached(entry.contribution)
+            }
+        }
+        overflow.forget(materialized.map { it.download })
+        return materialized
+    }
+
+    /**
+     * @return how many of [count] new downloads fit in [queueWindowSize]. Caller holds the queue lock.
+     */
+    private fun roomInQueueWindow(overflow: GroupDownloadsOverflow, count: Int): Int {
+        // spilled downloads are ahead of the new ones.
+        if (overflow.count() > 0) {
+            return 0
+        }
+        return (queueWindowSize - downloadsQueue.count(GroupDownloadStates.ENQUEUED)).coerceIn(0, count)
+    }
+
     /**
      *@see GroupImpl.add
      */
     fun addAll(downloads: ArrayList<GroupDownload>, idsCallback: Consumer<MutableList<Long>>?) {
-        runOnBackground {
+        runOnQueueingThread {
             val idsList =
                 MutableList(downloads.count()) { index -> downloads[index].download.id }
             groupCallbaHandler.runOnMain {
                 idsCallback?.accept(idsList)
             }
-            withLocks(downloadQueueLock = true) {
-                downloadsQueue.addAll(downloads)
+            queueDownloads(downloads).forEach {
+                postSchedulerEvent(SchedulerEvent.DesiredStateChanged(it))
             }
-            unParkGroupLoopThread()
         }
     }
 
@@ -524,7 +1011,7 @@ class GroupImpl(
         downloadsListenerPairs: MutableList<Pair<Download, DownloadProgressListener?>>,
         idsCallback: Consumer<MutableList<Long>>?
     ) {
-        runOnBackground {
+        runOnQueueingThread {
             val idsList =
                 MutableList(downloadsListenerPairs.count()) { index -> downloadsListenerPairs[index].first.id }
             groupCallbaHandler.runOnMain {
@@ -537,10 +1024,9 @@ class GroupImpl(
                     listener = downloadsListenerPairs[index].second
                 )
             }
-            withLocks(downloadQueueLock = true) {
-                downloadsQueue.addAll(downloads)
+            queueDownloads(downloads).forEach {
+                postSchedulerEvent(SchedulerEvent.DesiredStateChanged(it))
             }
-            unParkGroupLoopThread()
         }
     }
 
@@ -567,8 +1053,8 @@ class GroupImpl(
         runOnBackground {
             id.findGroupDownload()?.let {
                 it.desiredState = GroupDownloadStates.RESTART
+                postSchedulerEvent(SchedulerEvent.DesiredStateChanged(it))
             }
-            unParkGroupLoopThread()
         }
     }
 
@@ -581,9 +1067,9 @@ class GroupImpl(
             ids.forEach { downloadId ->
                 downloadId.findGroupDownload()?.let {
                     it.desiredState = GroupDownloadStates.START
+                    postSchedulerEvent(SchedulerEvent.DesiredStateChanged(it))
                 }
             }
-            unParkGroupLoopThread()
         }
     }
 
@@ -591,18 +1077,16 @@ class GroupImpl(
         runOnBackground {
             id.findGroupDownload()?.let {
                 it.desiredState = GroupDownloadStates.STOP
+                postSchedulerEvent(SchedulerEvent.DesiredStateChanged(it))
             }
-            unParkGroupLoopThread()
         }
     }
 
-    private fun Long.findGroupDownload(): GroupDownload? {
-        var groupDownload: GroupDownload? = null
-        withLocks(downloadQueueLock = true) {
-            groupDownload = downloadsQueue.find { it.download.id == this }
-        }
-        return groupDownload
-    }
+    /**
+     * Spilled download is paged in.
+     */
+    private fun Long.findGroupDownload(): GroupDownload? = downloadsQueue[this]
+        ?: downloadsOverflow?.take(this)?.let { materialize(listOf(it)).firstOrNull() }
 
     private fun forAllDownloaders(callback: (Downloader) -> Unit) {
         withLocks(downloaderLock = true) {
@@ -612,10 +1096,11 @@ class GroupImpl(
 
     override fun stopAll() {
         runOnBackground {
+            downloadsOverflow?.setDesiredState(GroupDownloadStates.STOP)
             forAllDownloads {
                 it.desiredState = GroupDownloadStates.STOP
+                postSchedulerEvent(SchedulerEvent.DesiredStateChanged(it))
             }
-            unParkGroupLoopThread()
         }
     }
 
@@ -623,17 +1108,18 @@ class GroupImpl(
         runOnBackground {
             id.findGroupDownload()?.let {
                 it.desiredState = GroupDownloadStates.PAUSE
+                postSchedulerEvent(SchedulerEvent.DesiredStateChanged(it))
             }
-            unParkGroupLoopThread()
         }
     }
 
     override fun freezeAll() {
         runOnBackground {
+            downloadsOverflow?.setDesiredState(GroupDownloadStates.PAUSE)
             forAllDownloads {
                 it.desiredState = GroupDownloadStates.PAUSE
+                postSchedulerEvent(SchedulerEvent.DesiredStateChanged(it))
             }
-            unParkGroupLoopThread()
         }
     }
 
@@ -649,17 +1135,18 @@ class GroupImpl(
         runOnBackground {
             id.findGroupDownload()?.let {
                 it.desiredState = GroupDownloadStates.RUNNING
+                postSchedulerEvent(SchedulerEvent.DesiredStateChanged(it))
             }
-            unParkGroupLoopThread()
         }
     }
 
     override fun resumeAll() {
         runOnBackground {
+            downloadsOverflow?.setDesiredState(GroupDownloadStates.RUNNING)
             forAllDownloads {
                 it.desiredState = GroupDownloadStates.RUNNING
+                postSchedulerEvent(SchedulerEvent.DesiredStateChanged(it))
             }
-            unParkGroupLoopThread()
         }
     }
 
@@ -667,16 +1154,27 @@ class GroupImpl(
         runOnBackground {
             withLocks(downloadQueueLock = true) {
                 downloadsQueue.clear()
+                downloadsOverflow?.clear()
+                stateAggregator.clear()
             }
-            unParkGroupLoopThread()
             setRunningState(false)
-            downloadsQueue.clear()
+            admissionController.unregister(admissionClient)
+            preemptionTick?.cancel()
+            bandwidthTick?.cancel()
+            concurrencyTick?.cancel()
+            idleDownloadersTick?.cancel()
+            LockSupport.unpark(thread)
             forAllDownloaders {
                 it.stopDownload()
                 it.shutDown {}
             }
+            smallFileFetcher?.shutDown()
             executor.shutDown()
+            queueingExecutor.shutDown()
             groupCallbaHandler.clean()
+            if (ownsProgressBatchDispatcher) {
+                progressBatchDispatcher.clean()
+            }
         }
     }
 
@@ -715,21 +1213,26 @@ class GroupImpl(
         }
     }
 
+    override fun addProgressBatchListener(listener: ProgressBatchListener) {
+        progressBatchDispatcher.addListener(listener)
+    }
+
+    override fun removeProgressBatchListener(listener: ProgressBatchListener) {
+        progressBatchDispatcher.removeListener(listener)
+    }
+
+    override fun getStateFlow(): StateFlow<GroupState> = groupCallbaHandler.stateFlow
+
+    override fun getEvents(): SharedFlow<GroupEvent> = groupCallbaHandler.events
+
     override fun purge(downloadStates: GroupDownloadStates) {
         runOnBackground {
-            withLocks(downloadQueueLock = true) {
-                var idx = 0
-                while (idx > -1) {
-                    val groupDownload = downloadsQueue[idx]
-                    if (groupDownload.currentState == downloadStates) {
-                        downloadsQueue.removeAt(idx)
-                    } else {
-                        ++idx
-                    }
-                    if (idx >= downloadsQueue.count()) {
-                        idx = -1
-                    }
-                }
+            downloadsQueue.removeAll(downloadStates).forEach { groupDownload ->
+                stateAggregator.remove(groupDownload.download)
+                postSchedulerEvent(SchedulerEvent.Removed(groupDownload))
+            }
+            downloadsOverflow?.removeAll(downloadStates)?.forEach { entry ->
+                stateAggregator.removeDetached(entry.contribution)
             }
         }
     }
@@ -738,19 +1241,35 @@ class GroupImpl(
         executor.execute(callback)
     }
 
+    private fun runOnQueueingThread(callback: Runnable) {
+        queueingExecutor.execute(callback)
+    }
+
     @WorkerThread
     override fun getAllGroupDownloadsFromDatabase(): List<Download> {
-        return GroupDownloadDatabaseFetcher(databaseManager!!).fetchAllGroupDownloads(id)
+        return GroupDownloadDatabaseFetcher(
+            databaseManager ?: SQLiteManager.getInstance(context.applicationContext)
+        ).fetchAllGroupDownloads(id)
     }
 
     @WorkerThread
     override fun getAllInCompleteDownloadsFromDatabase(): List<Download> {
-        return GroupDownloadDatabaseFetcher(databaseManager!!).fetchAllGroupInCompleteDownloads(id)
+        return GroupDownloadDatabaseFetcher(
+            databaseManager ?: SQLiteManager.getInstance(context.applicationContext)
+        ).fetchAllGroupInCompleteDownloads(id)
     }
 
     override fun loadDownloadsFromDatabase(listener: Consumer<Int>?) {
-        runOnBackground {
-            val allInCompleteDownloadsFromDatabase = allInCompleteDownloadsFromDatabase
+        AsyncDownloadDatabaseManager(
+            databaseManager ?: SQLiteManager.getInstance(context.applicationContext)
+        ).findAllGroupInCompleteDownloads(id) { allInCompleteDownloadsFromDatabase, error ->
+            if (allInCompleteDownloadsFromDatabase == null) {
+                error?.printStackTrace()
+                groupCallbaHandler.runOnMain {
+                    listener?.accept(Group.LOAD_FAILED)
+                }
+                return@findAllGroupInCompleteDownloads
+            }
             val loadedDownloadsFromDatabase =
                 MutableList(
                     allInCompleteDownloadsFromDatabase.count()
@@ -777,60 +1296,31 @@ class GroupImpl(
         return isRunning().not()
     }
 
+    /**
+     * Counts and progress are taken from aggregates maintained as downloads change, lists of
+     * [DownloadInfo] are a snapshot of the downloads held in memory.
+     */
     @WorkerThread
-    override fun getState(): GroupState {
-        fun Number.isIntermediate() = this.toDouble() <= INTERMEDIATE_PROGRESS
-        val groupId = id
-        val groupName = name
-        var groupProgress = 0.0
-        val downloads = ArrayList<DownloadInfo>(downloadsQueue.count())
-        val queuedDownloads = mutableListOf<DownloadInfo>()
-        val pausedDownloads = mutableListOf<DownloadInfo>()
-        val runningDownloads = mutableListOf<DownloadInfo>()
-        val completedDownloads = mutableListOf<DownloadInfo>()
-        val cancelledDownloads = mutableListOf<DownloadInfo>()
-        val failedDownloads = mutableListOf<DownloadInfo>()
-        var intermediateProgress = false
-        var allGroupDownloadsProgress = 0.0
-        withLocks(downloadQueueLock = true) {
-            downloadsQueue.forEach { groupDownload ->
-                val downloadInfo = DownloadInfo.newInstance(groupDownload.download)
-                downloads.add(downloadInfo)
-                when (downloadInfo.status) {
-                    Download.ENQUEUED -> queuedDownloads.add(downloadInfo)
-                    Download.PAUSED -> pausedDownloads.add(downloadInfo)
-                    Download.DOWNLOADING -> runningDownloads.add(downloadInfo)
-                    Download.DOWNLOADED -> completedDownloads.add(downloadInfo)
-                    Download.STOPPED -> cancelledDownloads.add(downloadInfo)
-                    Download.FAILED -> failedDownloads.add(downloadInfo)
-                }
+    override fun getState(): GroupState = newState(listDownloads = true)
 
-                // calculate group download progress
-                val downloadProgress = groupDownload.download.getProgress()
-                if (!intermediateProgress) {
-                    intermediateProgress =
-                        groupDownload.download.getContentLengthBytes().isIntermediate()
-                    allGroupDownloadsProgress += downloadProgress
-                } else if (!groupProgress.isIntermediate()) {
-                    groupProgress = INTERMEDIATE_PROGRESS
-                }
+    /**
+     * State passed to listeners and flows, it lists downloads only if anyone consumes it.
+     */
+    private val notifiedState: GroupState
+        get() = newState(groupCallbaHandler.hasStateConsumers())
+
+    private fun newState(listDownloads: Boolean): GroupState {
+        withLocks(downloaderLock = true) {
+            downloaders.forEach { downloadManager ->
+                downloadManager.activeDownloadPayload?.let { stateAggregator.refresh(it) }
             }
-            if (!groupProgress.isIntermediate()) {
-                groupProgress = (allGroupDownloadsProgress / downloadsQueue.count().toDouble())
-            }
-        }
-        return GroupState(
-            groupId,
-            groupName,
-            downloads,
-            queuedDownloads,
-            pausedDownloads,
-            runningDownloads,
-            completedDownloads,
-            cancelledDownloads,
-            failedDownloads,
-            groupProgress
-        )
+        }
+        if (!listDownloads) {
+            return stateAggregator.newState(id, name, bandwidthShares)
+        }
+        return synchronized(downloadsQueue) {
+            stateAggregator.newState(id, name, bandwidthShares, downloadsQueue.map { it.download })
+        }
     }
 
     override fun getId(): androidx.core.util.Pair<Long, String> {
@@ -852,7 +1342,29 @@ class GroupImpl(
         private var databaseManager: DownloadDatabaseManager? = null
         private var groupLoopTimeMilliSecs = DEF_GROUP_LOOP_INTERVAL_MILLISECONDS
         private lateinit var networkInfoProvider: NetworkInfoProvider
+        private var checkpointPolicy = CheckpointPolicy()
+        private var progressBatchIntervalMilliSecs = 0L
+        private var progressBatchDispatcher: ProgressBatchDispatcher? = null
+        private var executorTopology = ExecutorTopology.default
+        private var softPauseGraceMilliSecs = 0L
+        private var preemptive = false
+        private var priorityAgingMilliSecs = 0L
+        private var preemptionMinRunMilliSecs = DEF_PREEMPTION_MIN_RUN_MILLISECONDS
+        private var schedulingPolicy: SchedulingPolicy? = null
+        private var bandwidthSharing = false
+        private var bandwidthLimitBytesPerSecond = 0L
+        private var bandwidthWeightsFromPriority = false
+        private var autoConcurrency = false
+        private var minConcurrentDownloads = 1
+        private var downloaderIdleTimeoutMilliSecs = DEF_DOWNLOADER_IDLE_TIMEOUT_MILLISECONDS
+        private var queueWindowSize = 0
+        private var smallFileThresholdBytes = 0L
+        private var groupPriority = 0
+        private var admissionController = AdmissionController.shared
 
+        /**
+         * Has no effect, group loop is event driven.
+         */
         fun setGroupLoopTimeMilliSecs(milliSecs: Long): Builder {
             if (milliSecs < 1) {
                 throw IllegalArgumentException("loop intervalid is not valid")
@@ -937,7 +1449,174 @@ class GroupImpl(
             return this
         }
 
+        fun setCheckpointPolicy(checkpointPolicy: CheckpointPolicy): Builder {
+            this.checkpointPolicy = checkpointPolicy
+            return this
+        }
+
+        /**
+         * @param milliSecs 0 means once per display frame.
+         */
+        fun setProgressBatchIntervalMilliSecs(milliSecs: Long): Builder {
+            if (milliSecs < 0) {
+                throw IllegalArgumentException("milliSecs must not be negative")
+            }
+            this.progressBatchIntervalMilliSecs = milliSecs
+            return this
+        }
+
+        /**
+         * Share one dispatcher between groups so that progress of all of them is delivered in a
+         * single batch. it is not cleaned when the group is shut down.
+         */
+        fun setProgressBatchDispatcher(dispatcher: ProgressBatchDispatcher?): Builder {
+            this.progressBatchDispatcher = dispatcher
+            return this
+        }
+
+        fun setExecutorTopology(executorTopology: ExecutorTopology): Builder {
+            this.executorTopology = executorTopology
+            return this
+        }
+
+        /**
+         * @see DownloadManager.softPauseGraceMilliSecs
+         */
+        fun setSoftPauseGraceMilliSecs(milliSecs: Long): Builder {
+            if (milliSecs < 0) {
+                throw IllegalArgumentException("soft pause grace can't be negative")
+            }
+            this.softPauseGraceMilliSecs = milliSecs
+            return this
+        }
+
+        /**
+         * @see GroupImpl.preemptive
+         */
+        fun setPreemptive(preemptive: Boolean): Builder {
+            this.preemptive = preemptive
+            return this
+        }
+
+        /**
+         * @param milliSecs 0 disables aging.
+         * @see GroupImpl.priorityAgingMilliSecs
+         */
+        fun setPriorityAgingMilliSecs(milliSecs: Long): Builder {
+            if (milliSecs < 0) {
+                throw IllegalArgumentException("milliSecs must not be negative")
+            }
+            this.priorityAgingMilliSecs = milliSecs
+            return this
+        }
+
+        /**
+         * @param milliSecs 0 lets a running download be preempted right after it started.
+         * @see GroupImpl.preemptionMinRunMilliSecs
+         */
+        fun setPreemptionMinRunMilliSecs(milliSecs: Long): Builder {
+            if (milliSecs < 0) {
+                throw IllegalArgumentException("milliSecs must not be negative")
+            }
+            this.preemptionMinRunMilliSecs = milliSecs
+            return this
+        }
+
+        /**
+         * @param policy new instance for each group, null means [SchedulingPolicy.Priority].
+         */
+        fun setSchedulingPolicy(policy: SchedulingPolicy?): Builder {
+            this.schedulingPolicy = policy
+            return this
+        }
+
+        /**
+         * @param limitBytesPerSecond total rate of the group, 0 means capacity of the link is
+         * estimated.
+         * @param weightsFromPriority derive weights of downloads from their priority.
+         * @see GroupImpl.bandwidthSharing
+         */
+        @JvmOverloads
+        fun setBandwidthSharing(
+            enabled: Boolean,
+            limitBytesPerSecond: Long = 0,
+            weightsFromPriority: Boolean = false
+        ): Builder {
+            if (limitBytesPerSecond < 0) {
+                throw IllegalArgumentException("limitBytesPerSecond must not be negative")
+            }
+            this.bandwidthSharing = enabled
+            this.bandwidthLimitBytesPerSecond = limitBytesPerSecond
+            this.bandwidthWeightsFromPriority = weightsFromPriority
+            return this
+        }
+
+        /**
+         * Running downloads are tuned between [minConcurrentDownloads] and the capacity set by
+         * [setConcurrentDownloadsCapacity].
+         * @see GroupImpl.autoConcurrency
+         */
+        @JvmOverloads
+        fun setAutoConcurrency(enabled: Boolean, minConcurrentDownloads: Int = 1): Builder {
+            if (minConcurrentDownloads < 1) {
+                throw IllegalArgumentException("at least one download must run")
+            }
+            this.autoConcurrency = enabled
+            this.minConcurrentDownloads = minConcurrentDownloads
+            return this
+        }
+
+        /**
+         * @see GroupImpl.downloaderIdleTimeoutMilliSecs
+         */
+        fun setDownloaderIdleTimeoutMilliSecs(milliSecs: Long): Builder {
+            if (milliSecs < 0) {
+                throw IllegalArgumentException("idle timeout must not be negative")
+            }
+            this.downloaderIdleTimeoutMilliSecs = milliSecs
+            return this
+        }
+
+        /**
+         * @see GroupImpl.queueWindowSize
+         */
+        fun setQueueWindowSize(windowSize: Int): Builder {
+            if (windowSize < 0) {
+                throw IllegalArgumentException("window size must not be negative")
+            }
+            this.queueWindowSize = windowSize
+            return this
+        }
+
+        /**
+         * @see GroupImpl.smallFileThresholdBytes
+         */
+        fun setSmallFileThresholdBytes(bytes: Long): Builder {
+            if (bytes < 0) {
+                throw IllegalArgumentException("threshold must not be negative")
+            }
+            this.smallFileThresholdBytes = bytes
+            return this
+        }
+
+        /**
+         * @see GroupImpl.groupPriority
+         * @see GroupImpl.admissionController
+         */
+        @JvmOverloads
+        fun setAdmission(
+            groupPriority: Int,
+            controller: AdmissionController = AdmissionController.shared
+        ): Builder {
+            this.groupPriority = groupPriority
+            this.admissionController = controller
+            return this
+        }
+
         fun build(): Group {
+            if (autoConcurrency && minConcurrentDownloads > concurrentDownloadsCapacity) {
+                throw IllegalStateException("min concurrent downloads is above the capacity")
+            }
             if (id == 0L) {
                 throw IllegalStateException("provide valid and unique id as this is ID")
             }
@@ -957,7 +1636,26 @@ class GroupImpl(
                 filesSaveRootPath,
                 urlConnectionFactory,
                 databaseManager,
-                networkInfoProvider
+                networkInfoProvider,
+                checkpointPolicy,
+                progressBatchIntervalMilliSecs,
+                progressBatchDispatcher,
+                executorTopology,
+                softPauseGraceMilliSecs,
+                preemptive,
+                priorityAgingMilliSecs,
+                preemptionMinRunMilliSecs,
+                schedulingPolicy,
+                bandwidthSharing,
+                bandwidthLimitBytesPerSecond,
+                bandwidthWeightsFromPriority,
+                autoConcurrency,
+                minConcurrentDownloads,
+                downloaderIdleTimeoutMilliSecs,
+                queueWindowSize,
+                smallFileThresholdBytes,
+                groupPriority,
+                admissionController
             )
         }
     }
@@ -1032,7 +1730,17 @@ class GroupImpl(
         var currentState: GroupDownloadStates = GroupDownloadStates.ENQUEUED,
         var desiredState: GroupDownloadStates = GroupDownloadStates.ENQUEUED,
         val priority: Int = 0,
-        var listener: DownloadProgressListener? = null
+        var listener: DownloadProgressListener? = null,
+        /**
+         * Weight of this download when group shares bandwidth, 0 means default weight.
+         * @see GroupImpl.bandwidthSharing
+         */
+        val bandwidthWeight: Double = 0.0,
+        /**
+         * Download is fetched by the small file worker even if it's content length is unknown.
+         * @see GroupImpl.smallFileThresholdBytes
+         */
+        val smallFile: Boolean = false
     ) {
 
         fun cannotUpdateListeners(): Boolean {
@@ -1050,6 +1758,19 @@ class GroupImpl(
         }
     }
 
+    private sealed class SchedulerEvent {
+        class DownloaderStateChanged(val downloader: DownloadManager) : SchedulerEvent()
+        class DesiredStateChanged(val groupDownload: GroupDownload) : SchedulerEvent()
+        class Removed(val groupDownload: GroupDownload) : SchedulerEvent()
+        class PreemptionFailed(val downloader: DownloadManager) : SchedulerEvent()
+        object PreemptionCheck : SchedulerEvent()
+        object ShareBandwidth : SchedulerEvent()
+        object TuneConcurrency : SchedulerEvent()
+        object EvictIdleDownloaders : SchedulerEvent()
+        class SmallFileFinished(val download: Download, val error: String?) : SchedulerEvent()
+        object AdmissionAvailable : SchedulerEvent()
+    }
+
     companion object {
         const val INTERMEDIATE_PROGRESS = -1.0
         const val TAG = "group"
@@ -0,0 +1,242 @@
+package com.tanodxyz.gdownload
+
+import java.util.ArrayDeque
+import java.util.Collections
+import java.util.IdentityHashMap
+import java.util.PriorityQueue
+
+/**
+ * Bookkeeping of the [GroupImpl] loop.
+ * >
+ * Downloads waiting for a downloader are kept in a heap ordered by rank of the [policy] (lowest
+ * first, equal ranks in arrival order) and free downloaders in a stack, so a downloader that
+ * gets free is given to the next download in O(log n) without scanning or sorting the whole
+ * queue.
+ * ### Downloaders pool
+ * >Downloaders are created by [newDownloader] only when a download starts and no free one is
+ * left, at most [capacity] of them. Released downloaders are reused most recently released
+ * first, so the ones that stay free longest can be dropped by [evictIdle].
+ * ### Aging
+ * >If [agingNanos] is greater then zero, effective rank of a download drops by one for each
+ * [agingNanos] it has been waiting, so downloads ranked last are not starved. All waiting
+ * downloads age at the same rate so their order in the heap never changes. Time a preempted
+ * download was running does not count, otherwise it would outrank the download that took it's
+ * place as soon as it is enqueued again.
+ * ### Preemption
+ * >Download that runs for less then [minRunNanos] is not offered by [highestRankAssigned], so
+ * two downloads can't take the downloader from each other more then once per [minRunNanos].
+ *
+ * Downloads that were removed or no longer want to start are dropped lazily when they reach the
+ * top of the heap.
+ *
+ * Not thread safe - it is owned by the group loop thread.
+ */
+internal class GroupScheduler<D>(
+    private val capacity: Int,
+    private val newDownloader: () -> D,
+    private val policy: SchedulingPolicy = SchedulingPolicy.Priority(),
+    private val agingNanos: Long = 0,
+    private val minRunNanos: Long = 0,
+    private val nanoTime: () -> Long = System::nanoTime
+) {
+    private var sequence = 0L
+    private val waiting = PriorityQueue<Waiting>(
+        compareBy<Waiting> { it.key }.thenBy { it.sequence }
+    )
+    private val waitingDownloads =
+        Collections.newSetFromMap(IdentityHashMap<GroupImpl.GroupDownload, Boolean>())
+    private val freeDownloaders = ArrayDeque<Idle<D>>()
+    private var createdCount = 0
+    private val assignments = IdentityHashMap<D, Assignment>()
+
+    /**
+     * Most downloads that run at once, downloads already running are never taken back.
+     */
+    var maxAssigned: Int = Int.MAX_VALUE
+
+    /**
+     * @param waitingSinceNanos time download started waiting, see [requeue] for preempted
+     * downloads.
+     * @return false if [groupDownload] is already waiting.
+     */
+    fun enqueue(
+        groupDownload: GroupImpl.GroupDownload,
+        waitingSinceNanos: Long = nanoTime()
+    ): Boolean {
+        if (!waitingDownloads.add(groupDownload)) {
+            return false
+        }
+        waiting.add(
+            Waiting(groupDownload, policy.rank(groupDownload), waitingSinceNanos, sequence++)
+        )
+        return true
+    }
+
+    fun remove(groupDownload: GroupImpl.GroupDownload) {
+        waitingDownloads.remove(groupDownload)
+    }
+
+    fun isWaiting(groupDownload: GroupImpl.GroupDownload): Boolean =
+        waitingDownloads.contains(groupDownload)
+
+    /**
+     * Takes a free downloader and the waiting download with the lowest rank for it.
+     * @param canStart downloads for which it returns false are dropped.
+     * @return null if there is no free downloader or no download to start.
+     */
+    fun assignNext(canStart: (GroupImpl.GroupDownload) -> Boolean): Pair<D, GroupImpl.GroupDownload>? {
+        if (!hasFreeSlot()) {
+            return null
+        }
+        val next = pollNext(canStart) ?: return null
+        val downloader = freeDownloaders.pollFirst()?.downloader ?: newDownloader().also {
+            ++createdCount
+        }
+        val now = nanoTime()
+        assignments[downloader] = Assignment(
+            next.groupDownload,
+            next.waitingSinceNanos,
+            effectiveRank(next, now),
+            now
+        )
+        policy.onStarted(next.groupDownload, next.rank)
+        return Pair(downloader, next.groupDownload)
+    }
+
+    /**
+     * @return effective rank of the download that would be assigned next or null if none is
+     * waiting.
+     */
+    fun peekRank(canStart: (GroupImpl.GroupDownload) -> Boolean): Double? =
+        peekWaiting(canStart)?.let { effectiveRank(it, nanoTime()) }
+
+    /**
+     * @return download that would be assigned next or null if none is waiting.
+     */
+    fun peekNext(canStart: (GroupImpl.GroupDownload) -> Boolean): GroupImpl.GroupDownload? =
+        peekWaiting(canStart)?.groupDownload
+
+    private fun peekWaiting(canStart: (GroupImpl.GroupDownload) -> Boolean): Waiting? {
+        while (waiting.isNotEmpty()) {
+            val next = waiting.peek()!!
+            if (waitingDownloads.contains(next.groupDownload) && canStart(next.groupDownload)) {
+                return next
+            }
+            waiting.poll()
+            waitingDownloads.remove(next.groupDownload)
+        }
+        return null
+    }
+
+    /**
+     * @param canPreempt only downloaders for which it returns true are considered.
+     * @return downloader whose download had the highest effective rank at the time it started,
+     * downloads running for less then [minRunNanos] are skipped.
+     */
+    fun highestRankAssigned(canPreempt: (D, GroupImpl.GroupDownload) -> Boolean): Pair<D, Assignment>? {
+        val now = nanoTime()
+        var highest: Pair<D, Assignment>? = null
+        assignments.forEach { (downloader, assignment) ->
+            if (now - assignment.startedNanos >= minRunNanos &&
+                canPreempt(downloader, assignment.groupDownload) &&
+                (highest == null || assignment.rank > highest!!.second.rank)
+            ) {
+                highest = Pair(downloader, assignment)
+            }
+        }
+        return highest
+    }
+
+    fun forEachAssigned(callback: (D, GroupImpl.GroupDownload) -> Unit) {
+        assignments.forEach { (downloader, assignment) -> callback(downloader, assignment.groupDownload) }
+    }
+
+    fun downloadOf(downloader: D): GroupImpl.GroupDownload? = assignments[downloader]?.groupDownload
+
+    /**
+     * Gives [downloader] back to the free ones.
+     * @return assignment it had or null if it was not assigned.
+     */
+    fun release(downloader: D): Assignment? {
+        val assignment = assignments.remove(downloader) ?: return null
+        freeDownloaders.addFirst(Idle(downloader, nanoTime()))
+        return assignment
+    }
+
+    /**
+     * Enqueues a preempted download again, it keeps the time it waited before it was started.
+     * @return false if it is already waiting.
+     */
+    fun requeue(assignment: Assignment): Boolean = enqueue(
+        assignment.groupDownload,
+        assignment.waitingSinceNanos + (nanoTime() - assignment.startedNanos)
+    )
+
+    fun freeDownloadersCount(): Int = freeDownloaders.size
+
+    fun hasFreeSlot(): Boolean =
+        (freeDownloaders.isNotEmpty() || createdCount < capacity) && assignments.size < maxAssigned
+
+    fun createdDownloadersCount(): Int = createdCount
+
+    /**
+     * Drops downloaders that have been free for at least [idleNanos].
+     */
+    fun evictIdle(idleNanos: Long, onEvicted: (D) -> Unit) {
+        val now = nanoTime()
+        while (freeDownloaders.isNotEmpty() && now - freeDownloaders.peekLast()!!.sinceNanos >= idleNanos) {
+            --createdCount
+            onEvicted(freeDownloaders.pollLast()!!.downloader)
+        }
+    }
+
+    fun assignedCount(): Int = assignments.size
+
+    fun waitingCount(): Int = waitingDownloads.size
+
+    private fun pollNext(canStart: (GroupImpl.GroupDownload) -> Boolean): Waiting? {
+        while (waiting.isNotEmpty()) {
+            val next = waiting.poll()!!
+            if (waitingDownloads.remove(next.groupDownload) && canStart(next.groupDownload)) {
+                return next
+            }
+        }
+        return null
+    }
+
+    private fun effectiveRank(waiting: Waiting, now: Long): Double {
+        return if (agingNanos > 0) {
+            waiting.rank - maxOf(0L, now - waiting.waitingSinceNanos) / agingNanos
+        } else {
+            waiting.rank
+        }
+    }
+
+    /**
+     * @param rank effective rank download had when it was assigned.
+     */
+    class Assignment(
+        val groupDownload: GroupImpl.GroupDownload,
+        val waitingSinceNanos: Long,
+        val rank: Double,
+        val startedNanos: Long
+    )
+
+    private class Idle<D>(val downloader: D, val sinceNanos: Long)
+
+    private inner class Waiting(
+        val groupDownload: GroupImpl.GroupDownload,
+        val rank: Double,
+        val waitingSinceNanos: Long,
+        val sequence: Long
+    ) {
+        /**
+         * Effective rank plus the part that drops with time for every waiting download.
+         */
+        val key: Double = if (agingNanos > 0) {
+            rank + waitingSinceNanos.toDouble() / agingNanos
+        } else {
+            rank
+        }
+    }
+}
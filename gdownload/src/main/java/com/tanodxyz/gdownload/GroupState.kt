@@ -1,5 +1,14 @@
 package com.tanodxyz.gdownload
 
+/**
+ * State of a [Group].
+ * >
+ * Counts, bytes and progress are aggregates that the group maintains as downloads change, so
+ * they are always filled. Lists of [DownloadInfo] are an immutable snapshot taken together with
+ * the counts - [Group.getState] always takes it, states the group notifies take it only while it
+ * has [GroupListener]s or collectors of [Group.getStateFlow] or [Group.getEvents], otherwise the
+ * lists are empty.
+ */
 data class GroupState(
 
     /**
@@ -10,7 +19,10 @@ data class GroupState(
     val name: String,
 
     /**
-     * All downloads belonging to this group.
+     * All downloads belonging to this group that are held in memory. Downloads a disk backed
+     * group spilled to the database are part of the counts only, as reading them here would hit
+     * the database on whatever thread reads the state.
+     * @see Group.getAllGroupDownloadsFromDatabase
      * */
     val downloads: List<DownloadInfo>,
 
@@ -47,5 +59,36 @@ data class GroupState(
     /**
      * The groups downloading progress. -1 if the group progress is indeterminate.
      * */
-    val groupDownloadProgress: Double
+    val groupDownloadProgress: Double,
+
+    /**
+     * Number of downloads belonging to this group.
+     */
+    val downloadsCount: Int = downloads.count(),
+
+    /**
+     * Number of downloads per [Download] status.
+     */
+    val queuedCount: Int = queuedDownloads.count(),
+    val pausedCount: Int = pausedDownloads.count(),
+    val runningCount: Int = runningDownloads.count(),
+    val completedCount: Int = completedDownloads.count(),
+    val cancelledCount: Int = cancelledDownloads.count(),
+    val failedCount: Int = failedDownloads.count(),
+
+    /**
+     * Sum of content length of all downloads whose content length is known.
+     */
+    val totalBytes: Long = downloads.sumOf { if (it.contentLengthBytes > 0) it.contentLengthBytes else 0L },
+
+    /**
+     * Sum of downloaded bytes of all downloads.
+     */
+    val downloadedBytes: Long = downloads.sumOf { it.downloadedContentLengthBytes },
+
+    /**
+     * Bandwidth each running download gets if group shares bandwidth, empty otherwise.
+     * @see GroupImpl.bandwidthSharing
+     */
+    val bandwidthShares: List<BandwidthShare> = emptyList()
 )
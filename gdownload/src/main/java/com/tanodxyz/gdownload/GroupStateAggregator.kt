@@ -0,0 +1,188 @@
+package com.tanodxyz.gdownload
+
+import java.util.IdentityHashMap
+
+/**
+ * Keeps [GroupState] aggregates up to date in O(1) per change instead of walking every download
+ * of the group for each state.
+ * >
+ * Each tracked [Download] remembers what it contributed last time, so [refresh] only applies the
+ * difference. Downloads are tracked by identity as their file path may change while downloading.
+ * Downloads that are not kept in memory are counted through [addDetached] by their last
+ * [Contribution] only.
+ */
+internal class GroupStateAggregator {
+    private val contributions = IdentityHashMap<Download, Contribution>()
+    private var queuedCount = 0
+    private var pausedCount = 0
+    private var runningCount = 0
+    private var completedCount = 0
+    private var cancelledCount = 0
+    private var failedCount = 0
+    private var totalBytes = 0L
+    private var downloadedBytes = 0L
+    private var progressSum = 0.0
+    private var unknownLengthCount = 0
+    private var detachedCount = 0
+
+    /**
+     * Starts tracking [download] or refreshes it if it is already tracked.
+     */
+    @Synchronized
+    fun add(download: Download) {
+        val contribution = contributions[download]
+        if (contribution == null) {
+            contributions[download] = Contribution().also { apply(it.read(download), 1) }
+        } else {
+            refresh(download)
+        }
+    }
+
+    /**
+     * Applies the changes of already tracked [download]. it is ignored if not tracked.
+     */
+    @Synchronized
+    fun refresh(download: Download) {
+        val contribution = contributions[download] ?: return
+        apply(contribution, -1)
+        apply(contribution.read(download), 1)
+    }
+
+    @Synchronized
+    fun remove(download: Download) {
+        contributions.remove(download)?.apply { apply(this, -1) }
+    }
+
+    @Synchronized
+    fun addDetached(contribution: Contribution) {
+        ++detachedCount
+        apply(contribution, 1)
+    }
+
+    @Synchronized
+    fun removeDetached(contribution: Contribution) {
+        --detachedCount
+        apply(contribution, -1)
+    }
+
+    @Synchronized
+    fun clear() {
+        contributions.clear()
+        detachedCount = 0
+        queuedCount = 0
+        pausedCount = 0
+        runningCount = 0
+        completedCount = 0
+        cancelledCount = 0
+        failedCount = 0
+        totalBytes = 0L
+        downloadedBytes = 0L
+        progressSum = 0.0
+        unknownLengthCount = 0
+    }
+
+    /**
+     * @param downloads listed by the state. Each of them is refreshed from it's listed
+     * [DownloadInfo] so that counts agree with the lists, those that are not tracked are not
+     * listed.
+     */
+    @Synchronized
+    fun newState(
+        id: Long,
+        name: String,
+        bandwidthShares: List<BandwidthShare> = emptyList(),
+        downloads: List<Download> = emptyList()
+    ): GroupState {
+        val downloadInfos = ArrayList<DownloadInfo>(downloads.count())
+        val queuedDownloads = mutableListOf<DownloadInfo>()
+        val pausedDownloads = mutableListOf<DownloadInfo>()
+        val runningDownloads = mutableListOf<DownloadInfo>()
+        val completedDownloads = mutableListOf<DownloadInfo>()
+        val cancelledDownloads = mutableListOf<DownloadInfo>()
+        val failedDownloads = mutableListOf<DownloadInfo>()
+        downloads.forEach { download ->
+            val contribution = contributions[download] ?: return@forEach
+            val downloadInfo = DownloadInfo.newInstance(download)
+            apply(contribution, -1)
+            apply(contribution.read(downloadInfo), 1)
+            downloadInfos.add(downloadInfo)
+            when (downloadInfo.status) {
+                Download.ENQUEUED -> queuedDownloads.add(downloadInfo)
+                Download.PAUSED -> pausedDownloads.add(downloadInfo)
+                Download.DOWNLOADING -> runningDownloads.add(downloadInfo)
+                Download.DOWNLOADED -> completedDownloads.add(downloadInfo)
+                Download.STOPPED -> cancelledDownloads.add(downloadInfo)
+                Download.FAILED -> failedDownloads.add(downloadInfo)
+            }
+        }
+        val downloadsCount = contributions.count() + detachedCount
+        val groupProgress = when {
+            downloadsCount == 0 -> 0.0
+            unknownLengthCount > 0 -> GroupImpl.INTERMEDIATE_PROGRESS
+            else -> progressSum / downloadsCount.toDouble()
+        }
+        return GroupState(
+            id,
+            name,
+            downloadInfos,
+            queuedDownloads,
+            pausedDownloads,
+            runningDownloads,
+            completedDownloads,
+            cancelledDownloads,
+            failedDownloads,
+            groupProgress,
+            downloadsCount,
+            queuedCount,
+            pausedCount,
+            runningCount,
+            completedCount,
+            cancelledCount,
+            failedCount,
+            totalBytes,
+            downloadedBytes,
+            bandwidthShares
+        )
+    }
+
+    private fun apply(contribution: Contribution, sign: Int) {
+        when (contribution.status) {
+            Download.ENQUEUED -> queuedCount += sign
+            Download.PAUSED -> pausedCount += sign
+            Download.DOWNLOADING -> runningCount += sign
+            Download.DOWNLOADED -> completedCount += sign
+            Download.STOPPED -> cancelledCount += sign
+            Download.FAILED -> failedCount += sign
+        }
+        if (contribution.contentLengthBytes <= GroupImpl.INTERMEDIATE_PROGRESS) {
+            unknownLengthCount += sign
+        } else {
+            totalBytes += sign * contribution.contentLengthBytes
+        }
+        downloadedBytes += sign * contribution.downloadedBytes
+        progressSum += sign * contribution.progress
+    }
+
+    class Contribution {
+        var status: String? = null
+        var contentLengthBytes = 0L
+        var downloadedBytes = 0L
+        var progress = 0.0
+
+        fun read(download: Download): Contribution {
+            status = download.getStatus()
+            contentLengthBytes = download.getContentLengthBytes()
+            downloadedBytes = download.getContentLengthDownloaded()
+            progress = download.getProgress()
+            return this
+        }
+
+        fun read(downloadInfo: DownloadInfo): Contribution {
+            status = downloadInfo.status
+            contentLengthBytes = downloadInfo.contentLengthBytes
+            downloadedBytes = downloadInfo.downloadedContentLengthBytes
+            progress = downloadInfo.progress
+            return this
+        }
+    }
+}
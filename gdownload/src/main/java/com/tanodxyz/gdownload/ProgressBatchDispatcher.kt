@@ -0,0 +1,221 @@
+package com.tanodxyz.gdownload
+
+import android.os.Handler
+import android.os.Looper
+import android.view.Choreographer
+import androidx.lifecycle.DefaultLifecycleObserver
+import androidx.lifecycle.Lifecycle
+import androidx.lifecycle.LifecycleOwner
+import com.tanodxyz.gdownload.executors.ExecutorTopology
+import com.tanodxyz.gdownload.executors.HashedTimerWheel
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.TimeUnit
+
+/**
+ * Gathers the latest progress of many downloads and delivers it once per frame instead of
+ * posting a message per progress update.
+ * >
+ * ### Frames
+ * >If [mainThread] is true and [intervalMilliSecs] is 0, a frame is the next display frame
+ * ([Choreographer]). Otherwise a frame is scheduled [intervalMilliSecs] after the first progress
+ * that is submitted to an empty batch - on main thread or, timed by [HashedTimerWheel.shared], on
+ * the callback pool of [executorTopology]. Nothing is scheduled while there is no progress to
+ * deliver and a frame is not scheduled before the previous one is delivered.
+ * ### Delivery
+ * >In each frame, per download progress callbacks provided via [submit] run first, after that
+ * every [ProgressBatchListener] receives the whole batch as a single list. Only the latest
+ * progress of each download is part of the batch.
+ *
+ * if [Lifecycle] object is provided - progress is held until [Lifecycle.State.RESUMED] and dropped
+ * if [Lifecycle] is destroyed.
+ *
+ * Same dispatcher can be shared by many groups so that whole process renders progress in one pass.
+ * @see GroupImpl.Builder.setProgressBatchDispatcher
+ * @see DownloadCallbacksHandler.progressBatchDispatcher
+ */
+class ProgressBatchDispatcher(
+    val mainThread: Boolean = true,
+    val intervalMilliSecs: Long = 0,
+    private val lifecycle: Lifecycle? = null,
+    executorTopology: ExecutorTopology = ExecutorTopology.default
+) {
+    private val pendingProgress = LinkedHashMap<Long, PendingProgress>()
+    private val batchListeners = CopyOnWriteArrayList<ProgressBatchListener>()
+    private var frameScheduled = false
+    private var cleaned = false
+    private var choreographer: Choreographer? = null
+    private val mainThreadHandler by lazy { Handler(Looper.getMainLooper()) }
+    private val callbackExecutor = if (mainThread) null else executorTopology.newCallbackExecutor()
+    private var frameTimer: HashedTimerWheel.TimerTask? = null
+    private val frameCallback = Choreographer.FrameCallback { dispatchFrame() }
+    private val frameRunnable = Runnable { dispatchFrame() }
+
+    init {
+        if (intervalMilliSecs < 0) {
+            throw IllegalArgumentException("interval must not be negative")
+        }
+        lifecycle?.addObserver(object : DefaultLifecycleObserver {
+            override fun onResume(owner: LifecycleOwner) {
+                synchronized(pendingProgress) {
+                    if (pendingProgress.isNotEmpty()) {
+                        scheduleFrame()
+                    }
+                }
+            }
+
+            override fun onDestroy(owner: LifecycleOwner) {
+                synchronized(pendingProgress) {
+                    pendingProgress.clear()
+                }
+            }
+        })
+    }
+
+    fun addListener(listener: ProgressBatchListener) {
+        batchListeners.addIfAbsent(listener)
+    }
+
+    fun removeListener(listener: ProgressBatchListener) {
+        batchListeners.remove(listener)
+    }
+
+    fun hasListeners(): Boolean = batchListeners.isNotEmpty()
+
+    /**
+     * Replaces pending progress of the download - if any - with [downloadInfo].
+     * @param deliver optional per download callback that will run in the next frame. it is
+     * replaced as well so only the latest one runs.
+     */
+    fun submit(downloadInfo: DownloadInfo, deliver: Runnable? = null) {
+        synchronized(pendingProgress) {
+            if (cleaned) {
+                return
+            }
+            val pending = pendingProgress[downloadInfo.id]
+            if (pending == null) {
+                pendingProgress[downloadInfo.id] = PendingProgress(downloadInfo, deliver)
+            } else {
+                pending.downloadInfo = downloadInfo
+                pending.deliver = deliver
+            }
+            if (!frameScheduled) {
+                scheduleFrame()
+            }
+        }
+    }
+
+    /**
+     * Removes pending progress of the download from the next frame.
+     * @return per download callback of the removed progress so that caller can deliver it
+     * before any notification that must not be overtaken by it.
+     */
+    fun takePending(id: Long): Runnable? {
+        synchronized(pendingProgress) {
+            return pendingProgress.remove(id)?.deliver
+        }
+    }
+
+    /**
+     * @return number of downloads whose progress will be delivered in the next frame.
+     */
+    fun pendingCount(): Int {
+        synchronized(pendingProgress) {
+            return pendingProgress.count()
+        }
+    }
+
+    /**
+     * Drops pending progress and listeners. Dispatcher does not accept progress after it.
+     */
+    fun clean() {
+        synchronized(pendingProgress) {
+            cleaned = true
+            pendingProgress.clear()
+            choreographer?.removeFrameCallback(frameCallback)
+            frameTimer?.cancel()
+            frameTimer = null
+        }
+        batchListeners.clear()
+        if (mainThread) {
+            mainThreadHandler.removeCallbacksAndMessages(null)
+        }
+        callbackExecutor?.shutDown()
+    }
+
+    private fun scheduleFrame() {
+        frameScheduled = true
+        if (callbackExecutor != null) {
+            val delay =
+                if (intervalMilliSecs > 0) intervalMilliSecs else DEF_PROGRESS_BATCH_INTERVAL_MILLISECONDS
+            // bounded by it's own delay the task runs once.
+            frameTimer = HashedTimerWheel.shared.schedule(
+                { callbackExecutor.execute(frameRunnable) },
+                delay,
+                TimeUnit.MILLISECONDS,
+                delay,
+                delay
+            )
+        } else if (intervalMilliSecs > 0) {
+            mainThreadHandler.postDelayed(frameRunnable, intervalMilliSecs)
+        } else {
+            // choreographer is bound to the thread that obtains it but accepts callbacks from any thread.
+            val mainChoreographer = choreographer
+            if (mainChoreographer != null) {
+                mainChoreographer.postFrameCallback(frameCallback)
+            } else {
+                mainThreadHandler.post {
+                    Choreographer.getInstance().apply {
+                        synchronized(pendingProgress) { choreographer = this }
+                        postFrameCallback(frameCallback)
+                    }
+                }
+            }
+        }
+    }
+
+    private fun dispatchFrame() {
+        val batch = synchronized(pendingProgress) {
+            frameTimer = null
+            if (cleaned || pendingProgress.isEmpty() || !canDeliver()) {
+                frameScheduled = false
+                return
+            }
+            val batch = pendingProgress.values.toList()
+            pendingProgress.clear()
+            batch
+        }
+        batch.forEach { pending ->
+            pending.deliver?.run()
+        }
+        if (batchListeners.isNotEmpty()) {
+            val downloadInfos = batch.map { pending -> pending.downloadInfo }
+            batchListeners.forEach { listener ->
+                listener.onProgressBatch(downloadInfos)
+            }
+        }
+        // callback pool has many threads - next frame starts only after this one is delivered.
+        synchronized(pendingProgress) {
+            frameScheduled = false
+            if (!cleaned && pendingProgress.isNotEmpty()) {
+                scheduleFrame()
+            }
+        }
+    }
+
+    private fun canDeliver(): Boolean {
+        return lifecycle == null || lifecycle.currentState == Lifecycle.State.RESUMED
+    }
+
+    private class PendingProgress(var downloadInfo: DownloadInfo, var deliver: Runnable?)
+}
+
+/**
+ * Receives progress of many downloads at once.
+ * @see ProgressBatchDispatcher
+ */
+fun interface ProgressBatchListener {
+    /**
+     * @param batch latest progress of each download that made progress since the last frame.
+     */
+    fun onProgressBatch(batch: List<DownloadInfo>)
+}
@@ -0,0 +1,185 @@
+package com.tanodxyz.gdownload
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Allocation free progress path of a [Downloader].
+ * >
+ * On each progress tick [snapshot] is updated in place and every [ProgressCounterListener] is
+ * invoked with primitive counters only. Nothing is posted to other threads - listeners run on the
+ * thread that reports the progress, so they must be quick and must not block.
+ *
+ * Listeners are kept in an array that is replaced on add/remove, so publishing never allocates.
+ * ### Slices
+ * >[SliceProgressListener]s are opt-in. Only if any is added, each tick samples [Slice.downloaded]
+ * of every slice and reports offset, throughput, reconnects and state per slice. Workers that
+ * write the slices are not synchronized with in any way.
+ * @see Downloader.getProgressChannel
+ */
+class ProgressChannel {
+    /**
+     * Latest progress of the download. it is updated in place on each tick.
+     */
+    val snapshot = ProgressSnapshot()
+
+    @Volatile
+    private var listeners = emptyArray<ProgressCounterListener>()
+
+    @Volatile
+    private var sliceListeners = emptyArray<SliceProgressListener>()
+    private val sliceConnections = ConcurrentHashMap<Int, AtomicInteger>()
+    private val slicesProgress = ArrayList<SliceProgress>()
+    private var lastSlicesDownloadedBytes = LongArray(0)
+    private var lastSlicesSampleNanos = 0L
+
+    @Synchronized
+    fun addListener(listener: ProgressCounterListener) {
+        if (!listeners.contains(listener)) {
+            listeners = listeners + listener
+        }
+    }
+
+    @Synchronized
+    fun removeListener(listener: ProgressCounterListener) {
+        if (listeners.contains(listener)) {
+            listeners = listeners.filter { it != listener }.toTypedArray()
+        }
+    }
+
+    @Synchronized
+    fun addSliceListener(listener: SliceProgressListener) {
+        if (!sliceListeners.contains(listener)) {
+            sliceListeners = sliceListeners + listener
+        }
+    }
+
+    @Synchronized
+    fun removeSliceListener(listener: SliceProgressListener) {
+        if (sliceListeners.contains(listener)) {
+            sliceListeners = sliceListeners.filter { it != listener }.toTypedArray()
+        }
+    }
+
+    @Synchronized
+    fun clearListeners() {
+        listeners = emptyArray()
+        sliceListeners = emptyArray()
+    }
+
+    fun hasListeners(): Boolean = listeners.isNotEmpty()
+
+    fun hasSliceListeners(): Boolean = sliceListeners.isNotEmpty()
+
+    /**
+     * Updates [snapshot] from [download] and notifies listeners.
+     */
+    fun publish(download: Download) {
+        snapshot.update(download)
+        val currentListeners = listeners
+        for (listener in currentListeners) {
+            listener.onProgress(
+                download.id,
+                download.getContentLengthDownloaded(),
+                download.getContentLengthBytes(),
+                download.bytesPerSecond
+            )
+        }
+    }
+
+    /**
+     * Samples every slice of [download] and notifies [SliceProgressListener]s. it does nothing if
+     * there are none.
+     */
+    @Synchronized
+    fun sampleSlices(download: Download, nowNanos: Long = System.nanoTime()) {
+        val currentListeners = sliceListeners
+        if (currentListeners.isEmpty()) {
+            return
+        }
+        val slices = download.getSliceData() ?: return
+        val firstSample = lastSlicesSampleNanos == 0L || !slicesMatch(slices)
+        if (firstSample) {
+            slicesProgress.clear()
+            lastSlicesDownloadedBytes = LongArray(slices.count())
+        }
+        val elapsedNanos = nowNanos - lastSlicesSampleNanos
+        val paused = download.getStatus() == Download.PAUSED
+        for (index in slices.indices) {
+            val slice = slices[index]
+            val sliceProgress = if (firstSample) {
+                SliceProgress().also { slicesProgress.add(it) }
+            } else {
+                slicesProgress[index]
+            }
+            val downloadedBytes = slice.downloaded.get()
+            val newBytes = if (firstSample) 0L else downloadedBytes - lastSlicesDownloadedBytes[index]
+            lastSlicesDownloadedBytes[index] = downloadedBytes
+            val connections = sliceConnections[slice.id]?.get() ?: 0
+            sliceProgress.sliceId = slice.id
+            sliceProgress.startByte = slice.startByte
+            sliceProgress.endByte = slice.endByte
+            sliceProgress.downloadedBytes = downloadedBytes
+            sliceProgress.bytesPerSecond =
+                if (newBytes > 0 && elapsedNanos > 0) newBytes * 1_000_000_000L / elapsedNanos else 0L
+            sliceProgress.reconnects = if (connections > 1) connections - 1 else 0
+            sliceProgress.state = when {
+                slice.downloadComplete.get() -> SliceProgress.State.COMPLETED
+                paused -> SliceProgress.State.PAUSED
+                connections == 0 -> SliceProgress.State.WAITING
+                newBytes > 0 || firstSample -> SliceProgress.State.DOWNLOADING
+                else -> SliceProgress.State.STALLED
+            }
+        }
+        lastSlicesSampleNanos = nowNanos
+        for (listener in currentListeners) {
+            listener.onSliceProgress(download.id, slicesProgress)
+        }
+    }
+
+    /**
+     * Counts connection made to the server for the slice, including reconnects made by it's
+     * worker.
+     */
+    internal fun onSliceConnected(sliceId: Int) {
+        var connections = sliceConnections[sliceId]
+        if (connections == null) {
+            val newConnections = AtomicInteger()
+            connections = sliceConnections.putIfAbsent(sliceId, newConnections) ?: newConnections
+        }
+        connections.incrementAndGet()
+    }
+
+    /**
+     * Forgets slice samples and connection counts - called when a different download starts.
+     */
+    @Synchronized
+    internal fun resetSlices() {
+        sliceConnections.clear()
+        slicesProgress.clear()
+        lastSlicesSampleNanos = 0L
+    }
+
+    private fun slicesMatch(slices: List<Slice>): Boolean {
+        if (slices.size != slicesProgress.size) {
+            return false
+        }
+        for (index in slices.indices) {
+            if (slices[index].id != slicesProgress[index].sliceId) {
+                return false
+            }
+        }
+        return true
+    }
+}
+
+/**
+ * Primitive progress callback.
+ * @see ProgressChannel
+ */
+fun interface ProgressCounterListener {
+    /**
+     * @param totalBytes content length of the download or -1/0 if unknown.
+     */
+    fun onProgress(id: Long, downloadedBytes: Long, totalBytes: Long, bytesPerSecond: Long)
+}
@@ -0,0 +1,120 @@
+package com.tanodxyz.gdownload
+
+/**
+ * Reusable and mutable view of download progress made of primitive counters only.
+ * >
+ * Unlike [DownloadInfo], same instance is updated on each progress tick so reading it does not
+ * allocate. [version] is incremented on each update and can be used to skip unchanged snapshots.
+ * Reader that needs consistent values across many counters should [copyTo] its own instance.
+ * @see ProgressChannel
+ */
+class ProgressSnapshot {
+    var version: Long = 0L
+        @Synchronized get
+        private set
+    var id: Long = 0L
+        @Synchronized get
+        private set
+    var downloadedBytes: Long = 0L
+        @Synchronized get
+        private set
+    var totalBytes: Long = 0L
+        @Synchronized get
+        private set
+    var bytesPerSecond: Long = 0L
+        @Synchronized get
+        private set
+    var timeRemainingMilliSeconds: Long = 0L
+        @Synchronized get
+        private set
+    var timeElapsedMilliSeconds: Long = 0L
+        @Synchronized get
+        private set
+
+    /**
+     * Download total progress. -1 if content length is unknown.
+     */
+    var progress: Double = 0.0
+        @Synchronized get
+        private set
+    var slicesCount: Int = 0
+        @Synchronized get
+        private set
+    private var slicesDownloadedBytes = LongArray(0)
+
+    /**
+     * @return bytes downloaded by the slice at [index].
+     */
+    @Synchronized
+    fun getSliceDownloadedBytes(index: Int): Long {
+        if (index < 0 || index >= slicesCount) {
+            throw IndexOutOfBoundsException("slice index $index is out of range $slicesCount")
+        }
+        return slicesDownloadedBytes[index]
+    }
+
+    /**
+     * Copies all counters to [target]. it only allocates when [target] holds less slices than this.
+     * @return version that was copied.
+     */
+    fun copyTo(target: ProgressSnapshot): Long {
+        if (target === this) {
+            return version
+        }
+        synchronized(this) {
+            synchronized(target) {
+                if (target.slicesDownloadedBytes.size < slicesCount) {
+                    target.slicesDownloadedBytes = LongArray(slicesCount)
+                }
+                System.arraycopy(slicesDownloadedBytes, 0, target.slicesDownloadedBytes, 0, slicesCount)
+                target.slicesCount = slicesCount
+                target.id = id
+                target.downloadedBytes = downloadedBytes
+                target.totalBytes = totalBytes
+                target.bytesPerSecond = bytesPerSecond
+                target.timeRemainingMilliSeconds = timeRemainingMilliSeconds
+                target.timeElapsedMilliSeconds = timeElapsedMilliSeconds
+                target.progress = progress
+                target.version = version
+                return version
+            }
+        }
+    }
+
+    /**
+     * Reads progress counters of [download]. Slice array is only allocated when slice count grows.
+     */
+    @Synchronized
+    internal fun update(download: Download) {
+        id = download.id
+        downloadedBytes = download.getContentLengthDownloaded()
+        totalBytes = download.getContentLengthBytes()
+        bytesPerSecond = download.bytesPerSecond
+        timeRemainingMilliSeconds = download.timeRemainingMilliSeconds
+        timeElapsedMilliSeconds = download.timeElapsedMilliSeconds
+        progress = download.getProgress()
+        val slices = download.getSliceData()
+        val count = slices?.size ?: 0
+        if (slicesDownloadedBytes.size < count) {
+            slicesDownloadedBytes = LongArray(count)
+        }
+        for (index in 0 until count) {
+            slicesDownloadedBytes[index] = slices!![index].downloaded.get()
+        }
+        slicesCount = count
+        ++version
+    }
+
+    @Synchronized
+    internal fun reset() {
+        id = 0L
+        downloadedBytes = 0L
+        totalBytes = 0L
+        bytesPerSecond = 0L
+        timeRemainingMilliSeconds = 0L
+        timeElapsedMilliSeconds = 0L
+        progress = 0.0
+        slicesCount = 0
+        ++version
+    }
+}
@@ -0,0 +1,109 @@
+package com.tanodxyz.gdownload
+
+import java.net.URI
+
+/**
+ * Decides the order in which waiting downloads of a [GroupImpl] get a downloader.
+ * >
+ * [rank] is asked once when a download starts waiting and downloads with lower rank start
+ * first, equal ranks in arrival order. Rank must not change while a download waits - waiting
+ * downloads are kept in a heap ordered by it.
+ *
+ * Preemption compares ranks too, a waiting download preempts a running one whose rank was
+ * higher when it started.
+ *
+ * Policies may keep state so an instance must not be shared between groups.
+ * @see GroupImpl.Builder.setSchedulingPolicy
+ */
+interface SchedulingPolicy {
+
+    fun rank(groupDownload: GroupImpl.GroupDownload): Double
+
+    /**
+     * Called when [groupDownload] is given a downloader.
+     */
+    fun onStarted(groupDownload: GroupImpl.GroupDownload, rank: Double) {}
+
+    /**
+     * Downloads start in the order they were added.
+     */
+    class Fifo : SchedulingPolicy {
+        private var arrivals = 0L
+
+        override fun rank(groupDownload: GroupImpl.GroupDownload): Double = (arrivals++).toDouble()
+    }
+
+    /**
+     * Higher [GroupImpl.GroupDownload.priority] first. This is the default.
+     */
+    class Priority : SchedulingPolicy {
+        override fun rank(groupDownload: GroupImpl.GroupDownload): Double =
+            -groupDownload.priority.toDouble()
+    }
+
+    /**
+     * Download with the fewest remaining bytes first which keeps mean completion time low for
+     * batches of mixed sizes. Downloads whose content length is not known yet go last.
+     */
+    class ShortestRemainingFirst : SchedulingPolicy {
+        override fun rank(groupDownload: GroupImpl.GroupDownload): Double =
+            remainingBytes(groupDownload)?.toDouble() ?: Double.MAX_VALUE
+    }
+
+    /**
+     * Weighted fair queueing between flows of downloads - each flow gets downloaders in
+     * proportion to it's weight and remaining bytes (self clocked fair queueing).
+     * @param flowOf flow download belongs to, host of the url by default.
+     * @param weightOf weight of the flow of download, must be greater then zero.
+     */
+    class WeightedFair @JvmOverloads constructor(
+        private val flowOf: (GroupImpl.GroupDownload) -> Any = { hostOf(it.download.getUrl()) },
+        private val weightOf: (GroupImpl.GroupDownload) -> Double = { 1.0 }
+    ) : SchedulingPolicy {
+        private val lastFinishTags = HashMap<Any, Double>()
+        private var virtualTime = 0.0
+
+        override fun rank(groupDownload: GroupImpl.GroupDownload): Double {
+            val weight = weightOf(groupDownload)
+            if (weight <= 0) {
+                throw IllegalArgumentException("weight must be greater then zero")
+            }
+            val flow = flowOf(groupDownload)
+            val cost = (remainingBytes(groupDownload) ?: DEF_UNKNOWN_SIZE_BYTES).coerceAtLeast(1L)
+            val start = maxOf(virtualTime, lastFinishTags[flow] ?: 0.0)
+            val finishTag = start + cost / weight
+            lastFinishTags[flow] = finishTag
+            return finishTag
+        }
+
+        override fun onStarted(groupDownload: GroupImpl.GroupDownload, rank: Double) {
+            virtualTime = maxOf(virtualTime, rank)
+        }
+
+        companion object {
+            private const val DEF_UNKNOWN_SIZE_BYTES = 1024 * 1024L
+
+            private fun hostOf(url: String): String =
+                try {
+                    URI(url).host ?: url
+                } catch (ex: Exception) {
+                    url
+                }
+        }
+    }
+
+    companion object {
+        /**
+         * @return null if content length is not known.
+         */
+        @JvmStatic
+        fun remainingBytes(groupDownload: GroupImpl.GroupDownload): Long? {
+            val download = groupDownload.download
+            val contentLength = download.getContentLengthBytes()
+            if (contentLength <= 0) {
+                return null
+            }
+            return maxOf(0L, contentLength - download.getContentLengthDownloaded())
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package com.tanodxyz.gdownload
+
+/**
+ * Progress of a single [Slice] - i.e. of a single connection - at the last progress tick.
+ * >
+ * Instances are owned by [ProgressChannel] and updated in place on each tick. Listener that keeps
+ * them beyond [SliceProgressListener.onSliceProgress] must [copy] them.
+ * @see ProgressChannel.addSliceListener
+ */
+class SliceProgress internal constructor() {
+    var sliceId: Int = 0
+        internal set
+    var startByte: Long = 0L
+        internal set
+    var endByte: Long = 0L
+        internal set
+
+    /**
+     * Bytes downloaded by this slice. next byte is written at [startByte] + [downloadedBytes].
+     */
+    var downloadedBytes: Long = 0L
+        internal set
+
+    /**
+     * Throughput of this slice since the previous tick.
+     */
+    var bytesPerSecond: Long = 0L
+        internal set
+
+    /**
+     * Number of connections made for this slice after the first one - e.g. due to restarts or
+     * network recovery.
+     */
+    var reconnects: Int = 0
+        internal set
+    var state: State = State.WAITING
+        internal set
+
+    fun copy(): SliceProgress {
+        val copy = SliceProgress()
+        copy.sliceId = sliceId
+        copy.startByte = startByte
+        copy.endByte = endByte
+        copy.downloadedBytes = downloadedBytes
+        copy.bytesPerSecond = bytesPerSecond
+        copy.reconnects = reconnects
+        copy.state = state
+        return copy
+    }
+
+    override fun toString(): String {
+        return "SliceProgress(sliceId=$sliceId, startByte=$startByte, endByte=$endByte, " +
+                "downloadedBytes=$downloadedBytes, bytesPerSecond=$bytesPerSecond, " +
+                "reconnects=$reconnects, state=$state)"
+    }
+
+    enum class State {
+        /**
+         * No connection is made for this slice yet.
+         */
+        WAITING,
+
+        /**
+         * Bytes arrived since the previous tick.
+         */
+        DOWNLOADING,
+
+        /**
+         * Connected but no bytes arrived since the previous tick.
+         */
+        STALLED,
+
+        /**
+         * Download is paused.
+         */
+        PAUSED,
+        COMPLETED
+    }
+}
+
+/**
+ * Per slice progress callback. it is opt-in as it costs a little on every progress tick.
+ * @see ProgressChannel.addSliceListener
+ */
+fun interface SliceProgressListener {
+    /**
+     * Invoked at each progress interval on the thread that reports the progress.
+     * @param slices progress of each slice of the download. list and it's items are reused.
+     */
+    fun onSliceProgress(downloadId: Long, slices: List<SliceProgress>)
+}
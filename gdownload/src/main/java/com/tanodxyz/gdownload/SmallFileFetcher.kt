@@ -0,0 +1,227 @@
+package com.tanodxyz.gdownload
+
+import com.tanodxyz.gdownload.connection.URLConnectionHandler
+import com.tanodxyz.gdownload.database.DownloadDatabaseManager
+import com.tanodxyz.gdownload.executors.BackgroundExecutor
+import java.io.ByteArrayOutputStream
+import java.io.File
+import java.io.FileOutputStream
+import java.io.IOException
+import java.net.URL
+import java.util.concurrent.CancellationException
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.atomic.AtomicBoolean
+
+/**
+ * Downloads small files without a [DownloadManager] - no probe request, slices, preallocation,
+ * progress task or per download executors.
+ * >
+ * A single worker fetches queued downloads one after another, grouped by host. Each host gets
+ * one [URLConnectionHandler] for the batch and bodies are read to the end and closed instead of
+ * disconnected, so HttpURLConnection hands the kept alive socket to the next request of the same
+ * host. Body is written with one `write` call and downloads are saved with one
+ * [DownloadDatabaseManager.updateAll] per chunk of at most [CHUNK_SIZE] downloads of a host,
+ * after which [onFinished] is invoked for them - it is the only progress report.
+ * >
+ * Worker holds one permit of [admissionController] - one download with one connection - while it
+ * drains the queue. if it is refused it waits until capacity is offered to it.
+ * >
+ * Each queued download has a cancel flag that the fetch checks before connecting, on each read
+ * and before writing the file, so [cancel] stops a download that is already being fetched.
+ * @param maxBodyBytes download whose body turns out to be larger fails, only this many bytes
+ * are ever buffered.
+ * @param resolveFile file a download is written to.
+ * @param onFinished invoked on the worker thread after the download is saved, error is null if
+ * it succeeded.
+ */
+internal class SmallFileFetcher(
+    private val connectionFactory: Factory<URLConnectionHandler>,
+    private val databaseManager: DownloadDatabaseManager,
+    private val executor: BackgroundExecutor,
+    private val admissionController: AdmissionController,
+    admissionPriority: Int,
+    private val maxBodyBytes: Long,
+    private val resolveFile: (Download) -> File,
+    private val onFinished: (Download, String?) -> Unit
+) {
+    private val pendingDownloads = ConcurrentLinkedQueue<Download>()
+    private val cancelFlags = ConcurrentHashMap<Long, AtomicBoolean>()
+    private val draining = AtomicBoolean(false)
+    private val admissionOffered = AtomicBoolean(false)
+    private val admissionClient = object : AdmissionController.Client {
+        override val admissionPriority: Int = admissionPriority
+
+        override fun onAdmissionAvailable() {
+            admissionOffered.set(true)
+            drainIfIdle()
+        }
+    }
+
+    fun enqueue(download: Download) {
+        cancelFlags[download.id] = AtomicBoolean(false)
+        pendingDownloads.offer(download)
+        drainIfIdle()
+    }
+
+    /**
+     * @return true if [download] was not fetched yet and it will not be. Download that is being
+     * fetched is stopped instead - it is saved as [Download.STOPPED] and given to [onFinished].
+     */
+    fun cancel(download: Download): Boolean {
+        val cancelled = pendingDownloads.removeIf { it === download }
+        if (cancelled) {
+            cancelFlags.remove(download.id)
+            if (pendingDownloads.isEmpty()) {
+                admissionController.withdraw(admissionClient)
+            }
+        } else {
+            cancelFlags[download.id]?.set(true)
+        }
+        return cancelled
+    }
+
+    fun shutDown() {
+        pendingDownloads.clear()
+        cancelFlags.values.forEach { it.set(true) }
+        admissionController.unregister(admissionClient)
+        executor.shutDown()
+    }
+
+    private fun drainIfIdle() {
+        if (pendingDownloads.isNotEmpty() && draining.compareAndSet(false, true)) {
+            executor.execute(Runnable { drain() })
+        }
+    }
+
+    private fun drain() {
+        admissionOffered.set(false)
+        val permit = admissionController.tryAcquire(admissionClient, 1)
+        if (permit == null) {
+            draining.set(false)
+            // capacity offered after it was refused but before the flag was cleared.
+            if (admissionOffered.get()) {
+                drainIfIdle()
+            }
+            return
+        }
+        try {
+            while (true) {
+                val batch = mutableListOf<Download>()
+                while (true) {
+                    batch.add(pendingDownloads.poll() ?: break)
+                }
+                if (batch.isEmpty()) {
+                    break
+                }
+                fetchBatch(batch)
+            }
+        } finally {
+            permit.release()
+            draining.set(false)
+        }
+        // enqueued after the last poll but before the flag was cleared.
+        if (pendingDownloads.isNotEmpty()) {
+            drainIfIdle()
+        }
+    }
+
+    private fun fetchBatch(batch: List<Download>) {
+        batch.groupBy { hostOf(it) }.values.forEach { hostDownloads ->
+            val connectionHandler = connectionFactory.getInstance()
+            hostDownloads.chunked(CHUNK_SIZE).forEach { chunk ->
+                fetchChunk(connectionHandler, chunk)
+            }
+        }
+    }
+
+    private fun fetchChunk(connectionHandler: URLConnectionHandler, chunk: List<Download>) {
+        val errors = HashMap<Download, String>()
+        chunk.forEach { download ->
+            val cancelFlag = cancelFlags[download.id] ?: AtomicBoolean(false)
+            try {
+                fetch(connectionHandler, download, cancelFlag)
+            } catch (ex: CancellationException) {
+                download.set(status = Download.STOPPED)
+            } catch (ex: Exception) {
+                download.set(status = Download.FAILED)
+                errors[download] = ex.toString()
+            }
+        }
+        try {
+            databaseManager.updateAll(chunk)
+        } catch (ex: Exception) {
+            ex.printStackTrace()
+        }
+        chunk.forEach { download ->
+            cancelFlags.remove(download.id)
+            onFinished(download, errors[download])
+        }
+    }
+
+    @Throws(Exception::class)
+    private fun fetch(connectionHandler: URLConnectionHandler, download: Download, cancelFlag: AtomicBoolean) {
+        cancelFlag.throwIfSet()
+        val (exception, remoteConnection) = connectionHandler.makeConnection(
+            download.getUrl(),
+            download.getConnectionRetryCount(),
+            0,
+            0,
+            0
+        )
+        if (remoteConnection == null) {
+            throw exception ?: IOException("failed to connect to ${download.getUrl()}")
+        }
+        val body = remoteConnection.inputResourceWrapper.use { input ->
+            val contentLength = remoteConnection.contentLength
+            if (contentLength > maxBodyBytes) {
+                throw IOException("${download.getUrl()} has $contentLength bytes, more then $maxBodyBytes")
+            }
+            val output = ByteArrayOutputStream(if (contentLength > 0) contentLength.toInt() else BUFFER_SIZE)
+            val buffer = ByteArray(BUFFER_SIZE)
+            while (true) {
+                cancelFlag.throwIfSet()
+                val read = input.read(buffer, 0, buffer.size)
+                if (read < 0) {
+                    break
+                }
+                if (output.size() + read > maxBodyBytes) {
+                    throw IOException("${download.getUrl()} has more then $maxBodyBytes bytes")
+                }
+                output.write(buffer, 0, read)
+            }
+            output.toByteArray()
+        }
+        cancelFlag.throwIfSet()
+        val file = resolveFile(download)
+        FileOutputStream(file).use { it.write(body) }
+        download.set(
+            filePath = file.toString(),
+            contentLengthBytes = body.size.toLong(),
+            contentLengthDownloaded = body.size.toLong(),
+            progress = 100.0,
+            status = Download.DOWNLOADED
+        )
+    }
+
+    private fun AtomicBoolean.throwIfSet() {
+        if (get()) {
+            throw CancellationException()
+        }
+    }
+
+    private fun hostOf(download: Download): String = try {
+        URL(download.getUrl()).host
+    } catch (ex: Exception) {
+        download.getUrl()
+    }
+
+    companion object {
+        private const val BUFFER_SIZE = 8 * 1024
+
+        /**
+         * Downloads saved and reported together.
+         */
+        const val CHUNK_SIZE = 64
+    }
+}
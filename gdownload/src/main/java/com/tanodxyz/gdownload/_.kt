@@ -8,9 +8,9 @@ import android.net.NetworkInfo
 import android.net.Uri
 import android.os.Build
 import android.os.Looper
-import android.os.StatFs
 import android.provider.MediaStore
 import androidx.annotation.ChecksSdkIntAtLeast
+import com.tanodxyz.gdownload.io.FileStorageHelper
 import java.io.*
 import java.net.CookieManager
 import java.net.CookiePolicy
@@ -42,6 +42,25 @@ const val DEF_PROGRESS_UPDATE_MILLISECONDS = 500L
 const val DEF_CONNECTION_READ_TIMEOUT = 15_000
 const val DEF_GROUP_LOOP_INTERVAL_MILLISECONDS = 1_000L
 const val DEF_CONNECTION_TIMEOUT = 15_000
+const val DEF_DATABASE_PAGE_SIZE = 50
+const val DEF_DATABASE_CACHE_MAX_DOWNLOADS = 256
+const val DEF_DATABASE_CACHE_MAX_GROUPS = 16
+const val DEF_JOURNAL_COMPACTION_RECORDS = 1_000
+const val DEF_CHECKPOINT_INTERVAL_BYTES = 4 * 1024 * 1024L
+const val DEF_CHECKPOINT_INTERVAL_MILLISECONDS = 2_000L
+const val DEF_PROGRESS_BATCH_INTERVAL_MILLISECONDS = 16L
+const val DEF_GROUP_EVENTS_BUFFER_CAPACITY = 256
+const val DEF_TIMER_WHEEL_TICK_MILLISECONDS = 10L
+const val DEF_TIMER_WHEEL_SIZE = 512
+const val DEF_IO_POOL_THREADS = 64
+const val DEF_CONTROL_POOL_THREADS = 4
+const val DEF_CALLBACK_POOL_THREADS = 2
+const val DEF_BLOCKING_POOL_THREADS = 2
+const val DEF_POOL_THREAD_KEEP_ALIVE_SECONDS = 30L
+const val DEF_BANDWIDTH_SHARE_INTERVAL_MILLISECONDS = 500L
+const val DEF_CONCURRENCY_TUNE_INTERVAL_MILLISECONDS = 2_000L
+const val DEF_DOWNLOADER_IDLE_TIMEOUT_MILLISECONDS = 30_000L
+const val DEF_PREEMPTION_MIN_RUN_MILLISECONDS = 2_000L
 const val KILO: Long = 1024
 const val MEGA = KILO * KILO
 const val GIGA = MEGA * KILO
@@ -123,20 +142,39 @@ const val ERROR_DOWNLOAD_NOT_ALLOWED_ON_SELECTED_NETWORK =
     "Error! Download not allowed on selected network."
 const val ERROR_NETWORK_NOT_AVAILABLE = "Error! Network not available."
 fun String.bytesAvailable(): Long {
-    val stat = StatFs(this)
-    val bytesAvailable: Long = if (Build.VERSION.SDK_INT >=
-        Build.VERSION_CODES.JELLY_BEAN_MR2
-    ) {
-        stat.blockSizeLong * stat.availableBlocksLong
-    } else {
-        stat.blockSize.toLong() * stat.availableBlocks.toLong()
-    }
-    return bytesAvailable
+    return File(this).usableSpace
 }
 
 @ChecksSdkIntAtLeast(parameter = 0)
 fun isApiVersionEqualOrHigher(version: Int) = Build.VERSION.SDK_INT >= version
 fun isAndroid10Plus() = isApiVersionEqualOrHigher(29)
+/**
+ * Existing file at [filePath] or a new one created with it's name, under it's parent directory if
+ * it has one.
+ */
+@Throws(Exception::class)
+fun FileStorageHelper.fileFor(filePath: String): File {
+    val fileName = try {
+        val idx = filePath.lastIndexOf(File.separatorChar)
+        val fileNameStartIdx = if (idx <= 0) 0 else idx + 1
+        filePath.substring(fileNameStartIdx)
+    } catch (ex: Exception) {
+        "file-${System.currentTimeMillis()}"
+    }
+    val existingFile = File(filePath)
+    if (existingFile.exists()) {
+        return existingFile
+    }
+    if (existingFile.isDirectory) {
+        filesRoot = existingFile
+    } else {
+        if (existingFile.parent != null) {
+            filesRoot = existingFile.parentFile
+        }
+    }
+    return createFile(fileName, false)
+}
+
 fun <T : Closeable> closeResource(resource: T?) {
     try {
         resource?.close()
@@ -0,0 +1,150 @@
+package com.tanodxyz.gdownload.database
+
+import com.tanodxyz.gdownload.BiConsumer
+import com.tanodxyz.gdownload.Download
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
+
+/**
+ * Non blocking front of [DownloadDatabaseManager].
+ * >
+ * ### Threading
+ * >Every operation is run on [executorService] which by default is a single database thread shared
+ * by all instances, so operations are executed in the order they were submitted and the caller
+ * thread never blocks on the database.
+ * ### Results
+ * >Each method returns a [Future] and also takes an optional callback which is invoked on the
+ * database thread with either the result or the error.
+ *
+ * [java.util.concurrent.CompletableFuture] isn't used as it is not available on all supported
+ * api levels.
+ */
+class AsyncDownloadDatabaseManager(
+    val databaseManager: DownloadDatabaseManager,
+    private val executorService: ExecutorService = databaseExecutor
+) {
+
+    fun insertDownload(
+        download: Download,
+        callback: BiConsumer<Unit?, Throwable?>? = null
+    ): Future<Unit> = submit(callback) { insertDownload(download) }
+
+    fun insertOrUpdateDownload(
+        download: Download,
+        callback: BiConsumer<Unit?, Throwable?>? = null
+    ): Future<Unit> = submit(callback) { insertOrUpdateDownload(download) }
+
+    /**
+     * @see DownloadDatabaseManager.insertAll
+     */
+    fun insertAll(
+        downloads: List<Download>,
+        callback: BiConsumer<Unit?, Throwable?>? = null
+    ): Future<Unit> = submit(callback) { insertAll(downloads) }
+
+    /**
+     * @see DownloadDatabaseManager.updateAll
+     */
+    fun updateAll(
+        downloads: List<Download>,
+        callback: BiConsumer<Unit?, Throwable?>? = null
+    ): Future<Unit> = submit(callback) { updateAll(downloads) }
+
+    /**
+     * @see DownloadDatabaseManager.deleteByIds
+     */
+    fun deleteByIds(
+        ids: Collection<Long>,
+        callback: BiConsumer<Int?, Throwable?>? = null
+    ): Future<Int> = submit(callback) { deleteByIds(ids) }
+
+    fun deleteDownloadByFilePath(
+        filePath: String,
+        callback: BiConsumer<Int?, Throwable?>? = null
+    ): Future<Int> = submit(callback) { deleteDownloadByFilePath(filePath) }
+
+    fun deleteAllDownloads(callback: BiConsumer<Int?, Throwable?>? = null): Future<Int> =
+        submit(callback) { deleteAllDownloads() }
+
+    fun deleteDownloads(
+        status: String,
+        callback: BiConsumer<Int?, Throwable?>? = null
+    ): Future<Int> = submit(callback) { deleteDownloads(status) }
+
+    fun findAllGroupDownloads(
+        groupId: Long,
+        callback: BiConsumer<MutableList<Download>?, Throwable?>? = null
+    ): Future<MutableList<Download>> = submit(callback) { findAllGroupDownloads(groupId) }
+
+    fun findAllGroupInCompleteDownloads(
+        groupId: Long,
+        callback: BiConsumer<MutableList<Download>?, Throwable?>? = null
+    ): Future<MutableList<Download>> = submit(callback) { findAllGroupInCompleteDownloads(groupId) }
+
+    fun findAllInCompleteDownloads(
+        callback: BiConsumer<MutableList<Download>?, Throwable?>? = null
+    ): Future<MutableList<Download>> = submit(callback) { findAllInCompleteDownloads() }
+
+    fun findDownloadByFilePath(
+        filePath: String,
+        callback: BiConsumer<Download?, Throwable?>? = null
+    ): Future<Download?> = submit(callback) { findDownloadByFilePath(filePath) }
+
+    fun findDownloadByDownloadId(
+        id: Int,
+        callback: BiConsumer<Download?, Throwable?>? = null
+    ): Future<Download?> = submit(callback) { findDownloadByDownloadId(id) }
+
+    fun getAll(callback: BiConsumer<MutableList<Download>?, Throwable?>? = null): Future<MutableList<Download>> =
+        submit(callback) { getAll() }
+
+    /**
+     * @see DownloadDatabaseManager.getDownloadsPage
+     */
+    fun getDownloadsPage(
+        afterKey: Long,
+        pageSize: Int,
+        statuses: Array<String>? = null,
+        includeSliceData: Boolean = false,
+        callback: BiConsumer<DownloadsPage?, Throwable?>? = null
+    ): Future<DownloadsPage> =
+        submit(callback) { getDownloadsPage(afterKey, pageSize, statuses, includeSliceData) }
+
+    /**
+     * Releases [databaseManager] once all the previously submitted operations are done.
+     */
+    fun release(callback: BiConsumer<Unit?, Throwable?>? = null): Future<Unit> =
+        submit(callback) { release() }
+
+    private fun <T> submit(
+        callback: BiConsumer<T?, Throwable?>?,
+        operation: DownloadDatabaseManager.() -> T
+    ): Future<T> {
+        return executorService.submit(Callable {
+            val result = try {
+                databaseManager.operation()
+            } catch (ex: Exception) {
+                callback?.accept(null, ex)
+                throw ex
+            }
+            callback?.accept(result, null)
+            result
+        })
+    }
+
+    companion object {
+        const val DATABASE_THREAD_NAME = "GDownload-Database"
+
+        /**
+         * Single thread executor shared by all the [AsyncDownloadDatabaseManager]s that are not
+         * given an executor of their own.
+         */
+        val databaseExecutor: ExecutorService by lazy {
+            Executors.newSingleThreadExecutor { runnable ->
+                Thread(runnable, DATABASE_THREAD_NAME).apply { isDaemon = true }
+            }
+        }
+    }
+}
@@ -0,0 +1,303 @@
+package com.tanodxyz.gdownload.database
+
+import com.tanodxyz.gdownload.DEF_DATABASE_CACHE_MAX_DOWNLOADS
+import com.tanodxyz.gdownload.DEF_DATABASE_CACHE_MAX_GROUPS
+import com.tanodxyz.gdownload.Download
+
+/**
+ * Write through in-memory cache in front of any [DownloadDatabaseManager].
+ * >
+ * ### Reads
+ * >[findDownloadByFilePath], [findDownloadByDownloadId] and [findAllGroupDownloads] are served
+ * from memory whenever possible. Everything else is delegated to [databaseManager].
+ * ### Writes
+ * >All writes go to [databaseManager] first and only then the cache is updated, so the cache never
+ * holds anything the underlying store does not.
+ * ### Eviction
+ * >Running downloads ([Download.STARTING], [Download.DOWNLOADING]) are always kept. All other
+ * downloads, paused ones too as they may never be resumed, live in a LRU bounded by
+ * [maxCachedDownloads].
+ *
+ * Cached objects are copies, callers are free to modify whatever they get.
+ * It can be injected anywhere [DownloadDatabaseManager] is accepted e.g.
+ * [com.tanodxyz.gdownload.DownloadManager.Builder.setDownloadDatabaseManager]
+ */
+class CachingDownloadDatabaseManager(
+    val databaseManager: DownloadDatabaseManager,
+    val maxCachedDownloads: Int = DEF_DATABASE_CACHE_MAX_DOWNLOADS,
+    val maxCachedGroups: Int = DEF_DATABASE_CACHE_MAX_GROUPS
+) : DownloadDatabaseManager {
+    private val liveDownloads = HashMap<String, Download>()
+    private val recentDownloads =
+        object : LinkedHashMap<String, Download>(16, 0.75f, true) {
+            override fun removeEldestEntry(eldest: MutableMap.MutableEntry<String, Download>?): Boolean {
+                val evict = count() > maxCachedDownloads
+                if (evict && eldest != null) {
+                    removeFromIdIndex(eldest.value)
+                    ++evictions
+                }
+                return evict
+            }
+        }
+    private val filePathsById = HashMap<Long, String>()
+    private val groupFilePaths =
+        object : LinkedHashMap<Long, LinkedHashSet<String>>(16, 0.75f, true) {
+            override fun removeEldestEntry(eldest: MutableMap.MutableEntry<Long, LinkedHashSet<String>>?): Boolean {
+                return count() > maxCachedGroups
+            }
+        }
+    private var hits = 0L
+    private var misses = 0L
+    private var evictions = 0L
+
+    init {
+        if (maxCachedDownloads < 1 || maxCachedGroups < 0) {
+            throw IllegalArgumentException("cache bounds are not valid")
+        }
+    }
+
+    @Synchronized
+    override fun insertDownload(download: Download) {
+        databaseManager.insertDownload(download)
+        // inserting never replaces a row - so it is not known which row will be found first.
+        invalidate(download.getFilePath())
+        groupFilePaths.remove(download.getQueueId())
+    }
+
+    @Synchronized
+    override fun insertOrUpdateDownload(Download: Download) {
+        databaseManager.insertOrUpdateDownload(Download)
+        cacheUpdatedDownload(Download)
+    }
+
+    @Synchronized
+    override fun insertAll(downloads: List<Download>) {
+        databaseManager.insertAll(downloads)
+        downloads.forEach { download ->
+            invalidate(download.getFilePath())
+            groupFilePaths.remove(download.getQueueId())
+        }
+    }
+
+    @Synchronized
+    override fun updateAll(downloads: List<Download>) {
+        databaseManager.updateAll(downloads)
+        downloads.forEach { download -> cacheUpdatedDownload(download) }
+    }
+
+    @Synchronized
+    override fun deleteByIds(ids: Collection<Long>): Int {
+        val deletedRows = databaseManager.deleteByIds(ids)
+        // downloads that are not cached can't be part of a cached group as well.
+        ids.forEach { id ->
+            filePathsById[id]?.let { filePath ->
+                invalidate(filePath)
+                groupFilePaths.values.forEach { filePaths -> filePaths.remove(filePath) }
+            }
+        }
+        return deletedRows
+    }
+
+    @Synchronized
+    override fun deleteDownloadByFilePath(filePath: String): Int {
+        val deletedRows = databaseManager.deleteDownloadByFilePath(filePath)
+        invalidate(filePath)
+        groupFilePaths.values.forEach { filePaths -> filePaths.remove(filePath) }
+        return deletedRows
+    }
+
+    @Synchronized
+    override fun deleteAllDownloads(): Int {
+        val deletedRows = databaseManager.deleteAllDownloads()
+        clear()
+        return deletedRows
+    }
+
+    @Synchronized
+    override fun deleteDownloads(status: String): Int {
+        val deletedRows = databaseManager.deleteDownloads(status)
+        clear()
+        return deletedRows
+    }
+
+    @Synchronized
+    override fun findAllGroupDownloads(groupId: Long): MutableList<Download> {
+        val cachedGroupDownloads = groupFilePaths[groupId]?.let { filePaths ->
+            val downloads = ArrayList<Download>(filePaths.count())
+            for (filePath in filePaths) {
+                val cachedDownload = get(filePath) ?: return@let null
+                downloads.add(cachedDownload.copy())
+            }
+            downloads
+        }
+        if (cachedGroupDownloads != null) {
+            ++hits
+            return cachedGroupDownloads
+        }
+        ++misses
+        val groupDownloads = databaseManager.findAllGroupDownloads(groupId)
+        val filePaths = LinkedHashSet<String>()
+        groupDownloads.forEach { download ->
+            filePaths.add(download.getFilePath())
+        }
+        // duplicate file paths can't be represented by the cache.
+        if (filePaths.count() == groupDownloads.count() && groupDownloads.count() <= maxCachedDownloads) {
+            groupDownloads.forEach { download -> put(download.copy()) }
+            if (maxCachedGroups > 0) {
+                groupFilePaths[groupId] = filePaths
+            }
+        }
+        return groupDownloads
+    }
+
+    override fun findAllInCompleteDownloads(): MutableList<Download> {
+        return databaseManager.findAllInCompleteDownloads()
+    }
+
+    @Synchronized
+    override fun findDownloadByFilePath(filePath: String): Download? {
+        val cachedDownload = get(filePath)
+        if (cachedDownload != null) {
+            ++hits
+            return cachedDownload.copy()
+        }
+        ++misses
+        val download = databaseManager.findDownloadByFilePath(filePath)
+        download?.apply { put(copy()) }
+        return download
+    }
+
+    @Synchronized
+    override fun findDownloadByDownloadId(id: Int): Download? {
+        val cachedDownload = filePathsById[id.toLong()]?.let { filePath -> get(filePath) }
+        if (cachedDownload != null) {
+            ++hits
+            return cachedDownload.copy()
+        }
+        ++misses
+        val download = databaseManager.findDownloadByDownloadId(id)
+        download?.apply { put(copy()) }
+        return download
+    }
+
+    override fun findDownloadsByIds(
+        ids: Collection<Long>,
+        includeSliceData: Boolean
+    ): MutableList<Download> {
+        return databaseManager.findDownloadsByIds(ids, includeSliceData)
+    }
+
+    override fun getAll(): MutableList<Download> {
+        return databaseManager.getAll()
+    }
+
+    override fun getDownloadsPage(
+        afterKey: Long,
+        pageSize: Int,
+        statuses: Array<String>?,
+        includeSliceData: Boolean
+    ): DownloadsPage {
+        return databaseManager.getDownloadsPage(afterKey, pageSize, statuses, includeSliceData)
+    }
+
+    override fun forEachDownload(
+        statuses: Array<String>?,
+        includeSliceData: Boolean,
+        callback: (Download) -> Boolean
+    ) {
+        databaseManager.forEachDownload(statuses, includeSliceData, callback)
+    }
+
+    override fun isOpen(): Boolean = databaseManager.isOpen()
+
+    @Synchronized
+    override fun release() {
+        clear()
+        databaseManager.release()
+    }
+
+    /**
+     * @return hit/miss statistics of the cache since it was created.
+     */
+    val stats: Stats
+        @Synchronized get() = Stats(
+            hits,
+            misses,
+            evictions,
+            liveDownloads.count(),
+            recentDownloads.count(),
+            groupFilePaths.count()
+        )
+
+    /**
+     * Drops everything cached without touching [databaseManager]. Statistics are preserved.
+     */
+    @Synchronized
+    fun clear() {
+        liveDownloads.clear()
+        recentDownloads.clear()
+        filePathsById.clear()
+        groupFilePaths.clear()
+    }
+
+    private fun cacheUpdatedDownload(download: Download) {
+        val filePath = download.getFilePath()
+        val queueId = download.getQueueId()
+        groupFilePaths.forEach { (groupId, filePaths) ->
+            if (groupId != queueId) {
+                filePaths.remove(filePath)
+            }
+        }
+        groupFilePaths[queueId]?.add(filePath)
+        put(download.copy())
+    }
+
+    private fun get(filePath: String): Download? {
+        return liveDownloads[filePath] ?: recentDownloads[filePath]
+    }
+
+    private fun put(download: Download) {
+        val filePath = download.getFilePath()
+        invalidate(filePath)
+        filePathsById[download.id] = filePath
+        if (download.isLive()) {
+            liveDownloads[filePath] = download
+        } else {
+            recentDownloads[filePath] = download
+        }
+    }
+
+    private fun invalidate(filePath: String) {
+        (liveDownloads.remove(filePath) ?: recentDownloads.remove(filePath))?.apply {
+            removeFromIdIndex(this)
+        }
+    }
+
+    private fun removeFromIdIndex(download: Download) {
+        if (filePathsById[download.id] == download.getFilePath()) {
+            filePathsById.remove(download.id)
+        }
+    }
+
+    private fun Download.isLive(): Boolean {
+        val status = getStatus()
+        return status == Download.STARTING || status == Download.DOWNLOADING
+    }
+
+    data class Stats(
+        val hits: Long,
+        val misses: Long,
+        val evictions: Long,
+        val liveDownloads: Int,
+        val recentDownloads: Int,
+        val cachedGroups: Int
+    ) {
+        /**
+         * @return ratio of reads served from memory. 0 if nothing has been read yet.
+         */
+        fun hitRate(): Double {
+            val total = hits + misses
+            return if (total == 0L) 0.0 else hits.toDouble() / total.toDouble()
+        }
+    }
+}
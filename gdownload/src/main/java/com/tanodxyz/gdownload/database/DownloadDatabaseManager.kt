@@ -1,5 +1,6 @@
 package com.tanodxyz.gdownload.database
 
+import com.tanodxyz.gdownload.DEF_DATABASE_PAGE_SIZE
 import com.tanodxyz.gdownload.Download
 
 /**
@@ -17,6 +18,35 @@ interface DownloadDatabaseManager {
      */
     fun insertOrUpdateDownload(Download: Download)
 
+    /**
+     * Insert all the [downloads] at once. Implementations should do it in a single transaction.
+     */
+    fun insertAll(downloads: List<Download>) {
+        downloads.forEach { download -> insertDownload(download) }
+    }
+
+    /**
+     * [insertOrUpdateDownload] all the [downloads] at once. Implementations should do it in a
+     * single transaction.
+     */
+    fun updateAll(downloads: List<Download>) {
+        downloads.forEach { download -> insertOrUpdateDownload(download) }
+    }
+
+    /**
+     * Delete all the downloads whose [Download.id] is one of [ids]. Implementations should do it in
+     * a single transaction.
+     * @return rows affected
+     */
+    fun deleteByIds(ids: Collection<Long>): Int {
+        val idsSet = ids.toHashSet()
+        var deletedRows = 0
+        getAll().filter { idsSet.contains(it.id) }.forEach { download ->
+            deletedRows += deleteDownloadByFilePath(download.getFilePath())
+        }
+        return deletedRows
+    }
+
     /**
      * Delete download by file path and returns affected rows
      * @return affected rows
@@ -50,6 +80,13 @@ interface DownloadDatabaseManager {
      */
     fun findAllGroupDownloads(groupId: Long): MutableList<Download>
 
+    /**
+     * @return downloads of the group having [groupId] that are not [Download.DOWNLOADED] yet.
+     * default implementation filters [findAllGroupDownloads].
+     */
+    fun findAllGroupInCompleteDownloads(groupId: Long): MutableList<Download> =
+        findAllGroupDownloads(groupId).filterTo(mutableListOf()) { it.isIncompleteDownload() }
+
     /**
      * @return all the previously saved incomplete downloads.
      */
@@ -65,11 +102,81 @@ interface DownloadDatabaseManager {
      */
     fun findDownloadByDownloadId(id: Int): Download?
 
+    /**
+     * Finds the downloads whose [Download.id] is one of [ids]. Implementations should query only
+     * those rows.
+     * @param includeSliceData [Download.getSliceData] is decoded only if this flag is true
+     * otherwise it is null.
+     * @return found downloads in no particular order.
+     */
+    fun findDownloadsByIds(
+        ids: Collection<Long>,
+        includeSliceData: Boolean = true
+    ): MutableList<Download> {
+        val idsSet = ids.toHashSet()
+        return getAll().filterTo(mutableListOf()) { idsSet.contains(it.id) }
+    }
+
     /**
      * @return all the downloads from database.
      */
     fun getAll(): MutableList<Download>
 
+    /**
+     * Keyset paged variant of [getAll]. Downloads are returned in the order they were inserted
+     * and only [pageSize] rows are loaded in memory at once.
+     * @param afterKey [DownloadsPage.FIRST_PAGE_KEY] for the first page else [DownloadsPage.nextPageKey]
+     * of the previous page.
+     * @param statuses if not null only downloads having one of these statuses are returned.
+     * @param includeSliceData [Download.getSliceData] is decoded only if this flag is true
+     * otherwise it is null.
+     * @return page of downloads.
+     */
+    fun getDownloadsPage(
+        afterKey: Long = DownloadsPage.FIRST_PAGE_KEY,
+        pageSize: Int = DEF_DATABASE_PAGE_SIZE,
+        statuses: Array<String>? = null,
+        includeSliceData: Boolean = false
+    ): DownloadsPage {
+        if (pageSize < 1) {
+            throw IllegalArgumentException("page size must be greater then zero.")
+        }
+        val matchingDownloads =
+            getAll().filter { statuses == null || statuses.contains(it.getStatus()) }
+        val fromIndex = afterKey.toInt().coerceIn(0, matchingDownloads.count())
+        val toIndex = (fromIndex + pageSize).coerceAtMost(matchingDownloads.count())
+        val nextPageKey =
+            if (toIndex < matchingDownloads.count()) toIndex.toLong() else DownloadsPage.NO_MORE_PAGES
+        return DownloadsPage(
+            matchingDownloads.subList(fromIndex, toIndex).toMutableList(),
+            nextPageKey
+        )
+    }
+
+    /**
+     * Streams the downloads one at a time to the [callback] instead of collecting all of them in
+     * a list.
+     * @param statuses if not null only downloads having one of these statuses are streamed.
+     * @param includeSliceData [Download.getSliceData] is decoded only if this flag is true
+     * otherwise it is null.
+     * @param callback invoked for each download on the caller thread. return false to stop.
+     * It may call other methods of this manager.
+     */
+    fun forEachDownload(
+        statuses: Array<String>? = null,
+        includeSliceData: Boolean = false,
+        callback: (Download) -> Boolean
+    ) {
+        for (download in getAll()) {
+            if (statuses != null && !statuses.contains(download.getStatus())) {
+                continue
+            }
+            if (!callback(download)) {
+                break
+            }
+        }
+    }
+
     /**
      * @return checks whether database is currently open or not.
      */
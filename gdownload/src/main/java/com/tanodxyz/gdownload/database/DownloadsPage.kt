@@ -0,0 +1,34 @@
+package com.tanodxyz.gdownload.database
+
+import com.tanodxyz.gdownload.Download
+
+/**
+ * Single page of [Download]s returned by [DownloadDatabaseManager.getDownloadsPage].
+ * >
+ * Pages are keyset based - [nextPageKey] is opaque and it should only be passed back to
+ * [DownloadDatabaseManager.getDownloadsPage] in order to fetch the next page.
+ */
+class DownloadsPage(
+    /**
+     * Downloads belonging to this page.
+     */
+    val downloads: MutableList<Download>,
+    /**
+     * Key of the next page or [NO_MORE_PAGES] if this is the last page.
+     */
+    val nextPageKey: Long
+) {
+    fun hasNextPage(): Boolean = nextPageKey != NO_MORE_PAGES
+
+    companion object {
+        /**
+         * Key that should be used for the very first page.
+         */
+        const val FIRST_PAGE_KEY = 0L
+
+        /**
+         * Indicates that there are no more pages after the current one.
+         */
+        const val NO_MORE_PAGES = -1L
+    }
+}
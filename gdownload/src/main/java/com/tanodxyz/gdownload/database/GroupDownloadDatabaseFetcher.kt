@@ -8,6 +8,6 @@ open class GroupDownloadDatabaseFetcher(dbManager: DownloadDatabaseManager) :
         return dbManager.findAllGroupDownloads(groupId)
     }
     fun fetchAllGroupInCompleteDownloads(groupId: Long):List<Download> {
-        return fetchAllGroupDownloads(groupId).filter { it.isIncompleteDownload() }
+        return dbManager.findAllGroupInCompleteDownloads(groupId)
     }
 }
\ No newline at end of file
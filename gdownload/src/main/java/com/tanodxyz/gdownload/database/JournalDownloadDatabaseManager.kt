@@ -0,0 +1,574 @@
+package com.tanodxyz.gdownload.database
+
+import com.tanodxyz.gdownload.DEF_JOURNAL_COMPACTION_RECORDS
+import com.tanodxyz.gdownload.Download
+import com.tanodxyz.gdownload.Slice
+import java.io.BufferedInputStream
+import java.io.BufferedOutputStream
+import java.io.ByteArrayOutputStream
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.EOFException
+import java.io.File
+import java.io.FileInputStream
+import java.io.FileOutputStream
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.util.zip.CRC32
+
+/**
+ * [DownloadDatabaseManager] backed by an append-only journal instead of SQLite.
+ * >
+ * ### Layout
+ * >Two files are kept inside [directory].
+ * [SNAPSHOT_FILE_NAME] contains every download as it was at the time of the last compaction and
+ * [JOURNAL_FILE_NAME] contains every change made after it. Each record is length prefixed and
+ * protected by a CRC32 checksum.
+ * ### Writes
+ * >Every write including progress checkpoints is a sequential append to the journal. Bulk
+ * operations are appended as batch records, each of them is replayed completely or not at all.
+ * Large ones are split so that no record exceeds the size replay accepts. Once the
+ * journal holds [compactionThreshold] records it is folded into a new snapshot which replaces the
+ * old one atomically.
+ * ### Recovery
+ * >On creation the snapshot is loaded and the journal is replayed on top of it. A torn or corrupt
+ * record at the end of the journal (e.g. process died in the middle of an append) ends the
+ * replay and it is cut off from the journal.
+ *
+ * Everything is held in memory so reads never touch the disk. It has no android dependencies.
+ * @param syncWrites if true every append is synced to the storage device before returning.
+ */
+class JournalDownloadDatabaseManager(
+    val directory: File,
+    val compactionThreshold: Int = DEF_JOURNAL_COMPACTION_RECORDS,
+    val syncWrites: Boolean = false
+) : DownloadDatabaseManager {
+    private val snapshotFile = File(directory, SNAPSHOT_FILE_NAME)
+    private val journalFile = File(directory, JOURNAL_FILE_NAME)
+    private val rows = LinkedHashMap<Long, Download>()
+    private val rowIdsByFilePath = HashMap<String, LinkedHashSet<Long>>()
+    private var lastRowId = 0L
+    private var journalRecords = 0
+    private var journalOutputStream: FileOutputStream? = null
+    private var journalWriter: DataOutputStream? = null
+    private var open = true
+    private val recordBuffer = ByteArrayOutputStream()
+    private val recordWriter = DataOutputStream(recordBuffer)
+
+    /**
+     * Bulk operations are split in batch records once one of them has this many bytes.
+     */
+    internal var maxBatchRecordBytes = MAX_RECORD_SIZE / 2
+
+    init {
+        if (compactionThreshold < 1) {
+            throw IllegalArgumentException("compaction threshold must be greater then zero.")
+        }
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw IOException("Unable to create journal directory $directory")
+        }
+        recover()
+    }
+
+    @Synchronized
+    override fun insertDownload(download: Download) {
+        val rowId = ++lastRowId
+        val row = download.copy()
+        putRow(rowId, row)
+        append(OP_PUT, rowId, row)
+    }
+
+    @Synchronized
+    override fun insertOrUpdateDownload(Download: Download) {
+        val rowIds = rowIdsByFilePath[Download.getFilePath()]
+        if (rowIds.isNullOrEmpty()) {
+            insertDownload(Download)
+            return
+        }
+        for (rowId in rowIds.toList()) {
+            val row = Download.copy()
+            putRow(rowId, row)
+            append(OP_PUT, rowId, row)
+        }
+    }
+
+    @Synchronized
+    override fun insertAll(downloads: List<Download>) {
+        val entries = ArrayList<Pair<Long, Download?>>(downloads.count())
+        downloads.forEach { download ->
+            val rowId = ++lastRowId
+            val row = download.copy()
+            putRow(rowId, row)
+            entries.add(Pair(rowId, row))
+        }
+        appendBatch(entries)
+    }
+
+    @Synchronized
+    override fun updateAll(downloads: List<Download>) {
+        val entries = ArrayList<Pair<Long, Download?>>(downloads.count())
+        downloads.forEach { download ->
+            val rowIds = rowIdsByFilePath[download.getFilePath()]?.toList()
+                ?: listOf(++lastRowId)
+            rowIds.forEach { rowId ->
+                val row = download.copy()
+                putRow(rowId, row)
+                entries.add(Pair(rowId, row))
+            }
+        }
+        appendBatch(entries)
+    }
+
+    @Synchronized
+    override fun deleteByIds(ids: Collection<Long>): Int {
+        val idsSet = ids.toHashSet()
+        val rowIds = rows.filterValues { idsSet.contains(it.id) }.keys.toList()
+        rowIds.forEach { rowId -> removeRow(rowId) }
+        appendBatch(rowIds.map { rowId -> Pair(rowId, null) })
+        return rowIds.count()
+    }
+
+    @Synchronized
+    override fun deleteDownloadByFilePath(filePath: String): Int {
+        return deleteRows(rowIdsByFilePath[filePath]?.toList() ?: emptyList())
+    }
+
+    @Synchronized
+    override fun deleteAllDownloads(): Int {
+        val deletedRows = rows.count()
+        if (deletedRows > 0) {
+            rows.clear()
+            rowIdsByFilePath.clear()
+            append(OP_CLEAR, 0, null)
+        }
+        return deletedRows
+    }
+
+    @Synchronized
+    override fun deleteDownloads(status: String): Int {
+        return deleteRows(rows.filterValues { it.getStatus() == status }.keys.toList())
+    }
+
+    @Synchronized
+    override fun findAllGroupDownloads(groupId: Long): MutableList<Download> {
+        return rows.values.filter { it.getQueueId() == groupId }.mapTo(mutableListOf()) { it.copy() }
+    }
+
+    @Synchronized
+    override fun findAllInCompleteDownloads(): MutableList<Download> {
+        return rows.values.filter { SQLiteManager.INCOMPLETE_DOWNLOAD_STATUSES.contains(it.getStatus()) }
+            .mapTo(mutableListOf()) { it.copy() }
+    }
+
+    @Synchronized
+    override fun findDownloadByFilePath(filePath: String): Download? {
+        return rowIdsByFilePath[filePath]?.firstOrNull()?.let { rowId -> rows[rowId]?.copy() }
+    }
+
+    @Synchronized
+    override fun findDownloadByDownloadId(id: Int): Download? {
+        return rows.values.firstOrNull { it.id == id.toLong() }?.copy()
+    }
+
+    @Synchronized
+    override fun findDownloadsByIds(
+        ids: Collection<Long>,
+        includeSliceData: Boolean
+    ): MutableList<Download> {
+        val idsSet = ids.toHashSet()
+        return rows.values.filter { idsSet.contains(it.id) }
+            .mapTo(mutableListOf()) { it.copy(includeSliceData) }
+    }
+
+    @Synchronized
+    override fun getAll(): MutableList<Download> {
+        return rows.values.mapTo(mutableListOf()) { it.copy() }
+    }
+
+    @Synchronized
+    override fun getDownloadsPage(
+        afterKey: Long,
+        pageSize: Int,
+        statuses: Array<String>?,
+        includeSliceData: Boolean
+    ): DownloadsPage {
+        if (pageSize < 1) {
+            throw IllegalArgumentException("page size must be greater then zero.")
+        }
+        val downloads = mutableListOf<Download>()
+        var lastKey = afterKey
+        var hasMore = false
+        // row ids are handed out in increasing order and rows keep insertion order.
+        for ((rowId, row) in rows) {
+            if (rowId <= afterKey || (statuses != null && !statuses.contains(row.getStatus()))) {
+                continue
+            }
+            if (downloads.count() == pageSize) {
+                hasMore = true
+                break
+            }
+            downloads.add(row.copy(includeSliceData))
+            lastKey = rowId
+        }
+        return DownloadsPage(downloads, if (hasMore) lastKey else DownloadsPage.NO_MORE_PAGES)
+    }
+
+    @Synchronized
+    override fun forEachDownload(
+        statuses: Array<String>?,
+        includeSliceData: Boolean,
+        callback: (Download) -> Boolean
+    ) {
+        for (row in rows.values.toList()) {
+            if (statuses != null && !statuses.contains(row.getStatus())) {
+                continue
+            }
+            if (!callback(row.copy(includeSliceData))) {
+                break
+            }
+        }
+    }
+
+    @Synchronized
+    override fun isOpen(): Boolean = open
+
+    /**
+     * Closes the journal file. Data stays in memory and the journal is reopened on next write.
+     */
+    @Synchronized
+    override fun release() {
+        closeJournal()
+        open = false
+    }
+
+    /**
+     * Writes a fresh snapshot of all the downloads and empties the journal.
+     * It is invoked automatically every [compactionThreshold] journal records.
+     */
+    @Synchronized
+    fun compact() {
+        closeJournal()
+        val temporarySnapshotFile = File(directory, "$SNAPSHOT_FILE_NAME.tmp")
+        FileOutputStream(temporarySnapshotFile).use { fileOutputStream ->
+            val writer = DataOutputStream(BufferedOutputStream(fileOutputStream))
+            writer.writeInt(SNAPSHOT_MAGIC)
+            writer.writeLong(lastRowId)
+            for ((rowId, row) in rows) {
+                writeRecord(writer, OP_PUT, rowId, row)
+            }
+            writer.flush()
+            fileOutputStream.fd.sync()
+        }
+        if (!temporarySnapshotFile.renameTo(snapshotFile)) {
+            snapshotFile.delete()
+            if (!temporarySnapshotFile.renameTo(snapshotFile)) {
+                throw IOException("Unable to replace snapshot $snapshotFile")
+            }
+        }
+        journalFile.delete()
+        journalRecords = 0
+    }
+
+    /**
+     * @return number of records currently in the journal i.e. written after the last compaction.
+     */
+    @Synchronized
+    fun getJournalRecordsCount(): Int = journalRecords
+
+    private fun deleteRows(rowIds: List<Long>): Int {
+        rowIds.forEach { rowId ->
+            removeRow(rowId)
+            append(OP_DELETE, rowId, null)
+        }
+        return rowIds.count()
+    }
+
+    private fun putRow(rowId: Long, row: Download) {
+        rows.put(rowId, row)?.apply {
+            if (getFilePath() != row.getFilePath()) {
+                removeFromFilePathIndex(rowId, getFilePath())
+            }
+        }
+        rowIdsByFilePath.getOrPut(row.getFilePath()) { LinkedHashSet() }.add(rowId)
+        if (rowId > lastRowId) {
+            lastRowId = rowId
+        }
+    }
+
+    private fun removeRow(rowId: Long) {
+        rows.remove(rowId)?.apply { removeFromFilePathIndex(rowId, getFilePath()) }
+    }
+
+    private fun removeFromFilePathIndex(rowId: Long, filePath: String) {
+        rowIdsByFilePath[filePath]?.apply {
+            remove(rowId)
+            if (isEmpty()) {
+                rowIdsByFilePath.remove(filePath)
+            }
+        }
+    }
+
+    /**
+     * memory must already reflect the record as it may be folded into a snapshot right away.
+     */
+    private fun append(op: Byte, rowId: Long, row: Download?) {
+        open = true
+        val writer = journalWriter ?: openJournal()
+        writeRecord(writer, op, rowId, row)
+        onRecordsAppended(writer, 1)
+    }
+
+    /**
+     * Appends [entries] as batch records of at most [maxBatchRecordBytes] plus one entry, so each
+     * of them stays below [MAX_RECORD_SIZE]. Entries without [Download] are deletions.
+     */
+    private fun appendBatch(entries: List<Pair<Long, Download?>>) {
+        if (entries.isEmpty()) {
+            return
+        }
+        open = true
+        val writer = journalWriter ?: openJournal()
+        var batchCount = 0
+        entries.forEach { (rowId, row) ->
+            if (batchCount == 0) {
+                recordBuffer.reset()
+                recordWriter.writeByte(OP_BATCH.toInt())
+                // count is patched in when the record is written.
+                recordWriter.writeLong(0)
+            }
+            writeEntry(if (row == null) OP_DELETE else OP_PUT, rowId, row)
+            ++batchCount
+            recordWriter.flush()
+            if (recordBuffer.size() >= maxBatchRecordBytes) {
+                writeBatchRecord(writer, batchCount)
+                batchCount = 0
+            }
+        }
+        if (batchCount > 0) {
+            writeBatchRecord(writer, batchCount)
+        }
+        onRecordsAppended(writer, entries.count())
+    }
+
+    private fun writeBatchRecord(writer: DataOutputStream, count: Int) {
+        recordWriter.flush()
+        val payload = recordBuffer.toByteArray()
+        for (index in 0 until Long.SIZE_BYTES) {
+            payload[1 + index] = (count.toLong() ushr (8 * (Long.SIZE_BYTES - 1 - index))).toByte()
+        }
+        writePayload(writer, payload)
+    }
+
+    private fun onRecordsAppended(writer: DataOutputStream, count: Int) {
+        writer.flush()
+        if (syncWrites) {
+            journalOutputStream?.fd?.sync()
+        }
+        journalRecords += count
+        if (journalRecords >= compactionThreshold) {
+            compact()
+        }
+    }
+
+    private fun openJournal(): DataOutputStream {
+        val fileOutputStream = FileOutputStream(journalFile, true)
+        journalOutputStream = fileOutputStream
+        return DataOutputStream(BufferedOutputStream(fileOutputStream)).also { journalWriter = it }
+    }
+
+    private fun closeJournal() {
+        try {
+            journalWriter?.close()
+        } catch (ex: IOException) {
+            ex.printStackTrace()
+        }
+        journalWriter = null
+        journalOutputStream = null
+    }
+
+    private fun writeRecord(writer: DataOutputStream, op: Byte, rowId: Long, row: Download?) {
+        recordBuffer.reset()
+        writeEntry(op, rowId, row)
+        writeBufferedRecord(writer)
+    }
+
+    private fun writeEntry(op: Byte, rowId: Long, row: Download?) {
+        recordWriter.writeByte(op.toInt())
+        recordWriter.writeLong(rowId)
+        row?.writeTo(recordWriter)
+    }
+
+    private fun writeBufferedRecord(writer: DataOutputStream) {
+        recordWriter.flush()
+        writePayload(writer, recordBuffer.toByteArray())
+    }
+
+    /**
+     * @throws IOException if [payload] could not be replayed, nothing is written then.
+     */
+    private fun writePayload(writer: DataOutputStream, payload: ByteArray) {
+        if (payload.size > MAX_RECORD_SIZE) {
+            throw IOException("journal record of ${payload.size} bytes is larger then $MAX_RECORD_SIZE")
+        }
+        writer.writeInt(payload.size)
+        writer.writeLong(checksum(payload, payload.size))
+        writer.write(payload)
+    }
+
+    private fun recover() {
+        if (snapshotFile.exists()) {
+            DataInputStream(BufferedInputStream(FileInputStream(snapshotFile))).use { reader ->
+                if (reader.readInt() != SNAPSHOT_MAGIC) {
+                    throw IllegalStateException("$snapshotFile is not a journal snapshot")
+                }
+                lastRowId = reader.readLong()
+                while (true) {
+                    val payload = readRecord(reader) ?: break
+                    replay(payload)
+                }
+            }
+        }
+        if (journalFile.exists()) {
+            var validLength = 0L
+            DataInputStream(BufferedInputStream(FileInputStream(journalFile))).use { reader ->
+                while (true) {
+                    val payload = readRecord(reader) ?: break
+                    journalRecords += replay(payload)
+                    validLength += RECORD_HEADER_SIZE + payload.size
+                }
+            }
+            if (validLength < journalFile.length()) {
+                RandomAccessFile(journalFile, "rw").use { it.setLength(validLength) }
+            }
+        }
+    }
+
+    /**
+     * @return payload of the next record or null if there are no more valid records.
+     */
+    private fun readRecord(reader: DataInputStream): ByteArray? {
+        return try {
+            val size = reader.readInt()
+            val checksum = reader.readLong()
+            if (size < 1 || size > MAX_RECORD_SIZE) {
+                return null
+            }
+            val payload = ByteArray(size)
+            reader.readFully(payload)
+            if (checksum(payload, size) == checksum) payload else null
+        } catch (ex: EOFException) {
+            null
+        }
+    }
+
+    /**
+     * @return number of entries replayed.
+     */
+    private fun replay(payload: ByteArray): Int {
+        val reader = DataInputStream(payload.inputStream())
+        val op = reader.readByte()
+        if (op != OP_BATCH) {
+            replayEntry(op, reader)
+            return 1
+        }
+        val count = reader.readLong().toInt()
+        repeat(count) { replayEntry(reader.readByte(), reader) }
+        return count
+    }
+
+    private fun replayEntry(op: Byte, reader: DataInputStream) {
+        val rowId = reader.readLong()
+        when (op) {
+            OP_PUT -> putRow(rowId, readDownload(reader))
+            OP_DELETE -> removeRow(rowId)
+            OP_CLEAR -> {
+                rows.clear()
+                rowIdsByFilePath.clear()
+            }
+            else -> throw IllegalStateException("Unknown journal record type $op")
+        }
+    }
+
+    private fun checksum(payload: ByteArray, size: Int): Long {
+        return CRC32().run {
+            update(payload, 0, size)
+            value
+        }
+    }
+
+    private fun Download.writeTo(writer: DataOutputStream) {
+        writer.writeLong(id)
+        writer.writeUTF(getUrl())
+        writer.writeUTF(getFilePath())
+        writer.writeLong(getContentLengthBytes())
+        writer.writeLong(getContentLengthDownloaded())
+        writer.writeUTF(getStatus())
+        writer.writeLong(getQueueId())
+        writer.writeInt(getNetworkType())
+        writer.writeInt(getConnectionRetryCount())
+        writer.writeInt(getMaxNumberOfConnections())
+        writer.writeLong(getProgressUpdateTimeMilliSeconds())
+        writer.writeDouble(getProgress())
+        val sliceData = getSliceData()
+        writer.writeInt(sliceData?.count() ?: -1)
+        sliceData?.forEach { slice ->
+            writer.writeInt(slice.id)
+            writer.writeLong(slice.startByte)
+            writer.writeLong(slice.endByte)
+            writer.writeLong(slice.downloaded.get())
+            writer.writeBoolean(slice.downloadComplete.get())
+        }
+    }
+
+    private fun readDownload(reader: DataInputStream): Download {
+        val id = reader.readLong()
+        val url = reader.readUTF()
+        val filePath = reader.readUTF()
+        val contentLengthBytes = reader.readLong()
+        val contentLengthDownloaded = reader.readLong()
+        val status = reader.readUTF()
+        val queueId = reader.readLong()
+        val networkType = reader.readInt()
+        val connectionRetryCount = reader.readInt()
+        val maxNumberOfConnections = reader.readInt()
+        val progressUpdateTimeMilliSec = reader.readLong()
+        val progress = reader.readDouble()
+        val slicesCount = reader.readInt()
+        val sliceData = if (slicesCount < 0) null else List(slicesCount) {
+            Slice(
+                reader.readInt(),
+                reader.readLong(),
+                reader.readLong(),
+                reader.readLong(),
+                reader.readBoolean()
+            )
+        }
+        return Download(
+            id,
+            url,
+            filePath,
+            contentLengthBytes,
+            contentLengthDownloaded,
+            status,
+            queueId,
+            networkType,
+            connectionRetryCount,
+            maxNumberOfConnections,
+            progressUpdateTimeMilliSec,
+            sliceData,
+            progress
+        )
+    }
+
+    companion object {
+        const val SNAPSHOT_FILE_NAME = "downloads.snapshot"
+        const val JOURNAL_FILE_NAME = "downloads.journal"
+        private const val SNAPSHOT_MAGIC = 0x47444a31
+        private const val OP_PUT: Byte = 1
+        private const val OP_DELETE: Byte = 2
+        private const val OP_CLEAR: Byte = 3
+        private const val OP_BATCH: Byte = 4
+        private const val RECORD_HEADER_SIZE = 12
+        private const val MAX_RECORD_SIZE = 64 * 1024 * 1024
+    }
+}
@@ -1,6 +1,7 @@
 package com.tanodxyz.gdownload.database
 
 import android.content.Context
+import android.database.Cursor
 import android.database.sqlite.SQLiteDatabase
 import android.database.sqlite.SQLiteOpenHelper
 import com.tanodxyz.gdownload.*
@@ -19,14 +20,23 @@ class SQLiteManager private constructor(context: Context) : SQLiteOpenHelper(
     private var open = true
     override fun onCreate(db: SQLiteDatabase?) {
         db?.execSQL(CREATE_TABLE)
+        createIndexes(db)
     }
 
+    private fun createIndexes(db: SQLiteDatabase?) {
+        CREATE_INDEXES.forEach { createIndex ->
+            db?.execSQL(createIndex)
+        }
+    }
+
+    /**
+     * Migrates step by step so saved downloads are kept.
+     */
     override fun onUpgrade(db: SQLiteDatabase?, oldVersion: Int, newVersion: Int) {
-        db?.execSQL(
-            "DROP TABLE IF EXISTS "
-                    + DOWNLOADS_TABLE_NAME
-        )
-        onCreate(db)
+        if (oldVersion < 2) {
+            // version 1 had no indexes.
+            createIndexes(db)
+        }
     }
 
 
@@ -57,6 +67,65 @@ class SQLiteManager private constructor(context: Context) : SQLiteOpenHelper(
         }
     }
 
+    @Synchronized
+    override fun insertAll(downloads: List<Download>) {
+        writableDatabase.use {
+            it.inTransaction {
+                downloads.forEach { download ->
+                    insert(DOWNLOADS_TABLE_NAME, null, download.prepareForDatabaseWrite())
+                }
+            }
+        }
+    }
+
+    @Synchronized
+    override fun updateAll(downloads: List<Download>) {
+        writableDatabase.use {
+            it.inTransaction {
+                downloads.forEach { download ->
+                    val contentValues = download.prepareForDatabaseWrite()
+                    val rowsAffected = update(
+                        DOWNLOADS_TABLE_NAME,
+                        contentValues,
+                        "$FILE_PATH = ?",
+                        arrayOf(download.getFilePath())
+                    )
+                    if (rowsAffected == 0) {
+                        insert(DOWNLOADS_TABLE_NAME, null, contentValues)
+                    }
+                }
+            }
+        }
+    }
+
+    @Synchronized
+    override fun deleteByIds(ids: Collection<Long>): Int {
+        var deletedRows = 0
+        writableDatabase.use {
+            it.inTransaction {
+                // download ids are bound in chunks to stay below sqlite host parameters limit.
+                ids.chunked(MAX_BOUND_ARGUMENTS).forEach { chunk ->
+                    deletedRows += delete(
+                        DOWNLOADS_TABLE_NAME,
+                        "$DOWNLOAD_ID IN (${chunk.joinToString(",") { "?" }})",
+                        Array(chunk.count()) { index -> "${chunk[index]}" }
+                    )
+                }
+            }
+        }
+        return deletedRows
+    }
+
+    private inline fun SQLiteDatabase.inTransaction(block: SQLiteDatabase.() -> Unit) {
+        beginTransaction()
+        try {
+            block()
+            setTransactionSuccessful()
+        } finally {
+            endTransaction()
+        }
+    }
+
     @Synchronized
     override fun deleteDownloadByFilePath(filePath: String): Int {
         var deletedRows: Int
@@ -157,6 +226,29 @@ class SQLiteManager private constructor(context: Context) : SQLiteOpenHelper(
         return mutableList
     }
 
+    @Synchronized
+    override fun findAllGroupInCompleteDownloads(groupId: Long): MutableList<Download> {
+        val downloads = mutableListOf<Download>()
+        readableDatabase.use {
+            val cursor = it.query(
+                DOWNLOADS_TABLE_NAME,
+                pagedColumns(true),
+                "$QUEUE_ID = ? AND $STATUS != ?",
+                arrayOf("$groupId", Download.DOWNLOADED),
+                null,
+                null,
+                null
+            )
+            cursor?.apply {
+                while (this.moveToNext()) {
+                    downloads.add(readPagedDownload(true))
+                }
+                closeResource(this)
+            }
+        }
+        return downloads
+    }
+
     @Synchronized
     override fun findAllInCompleteDownloads(): MutableList<Download> {
         val mutableList: MutableList<Download> = mutableListOf()
@@ -439,6 +531,156 @@ class SQLiteManager private constructor(context: Context) : SQLiteOpenHelper(
         return mutableList
     }
 
+    @Synchronized
+    override fun getDownloadsPage(
+        afterKey: Long,
+        pageSize: Int,
+        statuses: Array<String>?,
+        includeSliceData: Boolean
+    ): DownloadsPage {
+        if (pageSize < 1) {
+            throw IllegalArgumentException("page size must be greater then zero.")
+        }
+        val downloads = ArrayList<Download>(pageSize)
+        var lastKey = afterKey
+        readableDatabase.use {
+            var selection = "$ID > ?"
+            val selectionArgs = mutableListOf("$afterKey")
+            if (statuses != null) {
+                selection += " AND ${statusSelection(statuses)}"
+                selectionArgs.addAll(statuses)
+            }
+            val cursor = it.query(
+                DOWNLOADS_TABLE_NAME,
+                pagedColumns(includeSliceData),
+                selection,
+                selectionArgs.toTypedArray(),
+                null,
+                null,
+                "$ID ASC",
+                "$pageSize"
+            )
+            cursor?.apply {
+                while (this.moveToNext()) {
+                    lastKey = getLong(0)
+                    downloads.add(readPagedDownload(includeSliceData))
+                }
+                closeResource(this)
+            }
+        }
+        val nextPageKey =
+            if (downloads.count() < pageSize) DownloadsPage.NO_MORE_PAGES else lastKey
+        return DownloadsPage(downloads, nextPageKey)
+    }
+
+    @Synchronized
+    override fun findDownloadsByIds(
+        ids: Collection<Long>,
+        includeSliceData: Boolean
+    ): MutableList<Download> {
+        val downloads = ArrayList<Download>(ids.count())
+        readableDatabase.use {
+            // download ids are bound in chunks to stay below sqlite host parameters limit.
+            ids.chunked(MAX_BOUND_ARGUMENTS).forEach { chunk ->
+                val cursor = it.query(
+                    DOWNLOADS_TABLE_NAME,
+                    pagedColumns(includeSliceData),
+                    "$DOWNLOAD_ID IN (${chunk.joinToString(",") { "?" }})",
+                    Array(chunk.count()) { index -> "${chunk[index]}" },
+                    null,
+                    null,
+                    null
+                )
+                cursor?.apply {
+                    while (this.moveToNext()) {
+                        downloads.add(readPagedDownload(includeSliceData))
+                    }
+                    closeResource(this)
+                }
+            }
+        }
+        return downloads
+    }
+
+    /**
+     * Reads a page at a time and invokes [callback] after the page's cursor is closed and the
+     * lock is released, so callback may use this manager.
+     */
+    override fun forEachDownload(
+        statuses: Array<String>?,
+        includeSliceData: Boolean,
+        callback: (Download) -> Boolean
+    ) {
+        var pageKey = DownloadsPage.FIRST_PAGE_KEY
+        while (pageKey != DownloadsPage.NO_MORE_PAGES) {
+            val page = getDownloadsPage(pageKey, DEF_DATABASE_PAGE_SIZE, statuses, includeSliceData)
+            for (download in page.downloads) {
+                if (!callback(download)) {
+                    return
+                }
+            }
+            pageKey = page.nextPageKey
+        }
+    }
+
+    private fun statusSelection(statuses: Array<String>): String {
+        if (statuses.isEmpty()) {
+            throw IllegalArgumentException("at least one status is required.")
+        }
+        return statuses.joinToString(" OR ", "(", ")") { "$STATUS = ?" }
+    }
+
+    /**
+     * slice blob is the last column and it is only queried when it is going to be decoded.
+     */
+    private fun pagedColumns(includeSliceData: Boolean): Array<String> {
+        val columns = mutableListOf(
+            ID,
+            URL,
+            FILE_PATH,
+            STATUS,
+            NETWORK_TYPE,
+            CONTENT_LENGTH,
+            QUEUE_ID,
+            CONNECTION_RETRY_COUNT,
+            MAX_NUMBER_CONNECTIONS,
+            DOWNLOAD_PROGRESS_UPDATE_TIME_MILLISECOND,
+            DOWNLOAD_ID,
+            CONTENT_LENGTH_DOWNLOADED
+        )
+        if (includeSliceData) {
+            columns.add(SLICE_DATA)
+        }
+        return columns.toTypedArray()
+    }
+
+    @Suppress("UNCHECKED_CAST")
+    private fun Cursor.readPagedDownload(includeSliceData: Boolean): Download {
+        var sliceData: List<Slice>? = null
+        if (includeSliceData) {
+            val sliceBlob = getBlob(12)
+            if (sliceBlob != null) {
+                val objectInputStream = ObjectInputStream(ByteArrayInputStream(sliceBlob))
+                sliceData = objectInputStream.readObject() as List<Slice>?
+                closeResource(objectInputStream)
+            }
+        }
+        return Download(
+            getString(10).toLong(),
+            getString(1),
+            getString(2),
+            getLong(5),
+            getLong(11),
+            getString(3),
+            getLong(6),
+            getInt(4),
+            getInt(7),
+            getInt(8),
+            getLong(9),
+            sliceData
+        )
+    }
+
     override fun release() {
         close()
     }
@@ -462,8 +704,22 @@ class SQLiteManager private constructor(context: Context) : SQLiteOpenHelper(
                 + DOWNLOAD_PROGRESS_UPDATE_TIME_MILLISECOND + " INTEGER, " + DOWNLOAD_ID + " TEXT, "
                 + CONTENT_LENGTH + " INTEGER , " + CONTENT_LENGTH_DOWNLOADED + " INTEGER );")
 
+        private val CREATE_INDEXES = arrayOf(
+            "CREATE INDEX IF NOT EXISTS ${DOWNLOADS_TABLE_NAME}_$STATUS ON $DOWNLOADS_TABLE_NAME($STATUS);",
+            "CREATE INDEX IF NOT EXISTS ${DOWNLOADS_TABLE_NAME}_$QUEUE_ID ON $DOWNLOADS_TABLE_NAME($QUEUE_ID);",
+            "CREATE INDEX IF NOT EXISTS ${DOWNLOADS_TABLE_NAME}_$FILE_PATH ON $DOWNLOADS_TABLE_NAME($FILE_PATH);",
+            "CREATE INDEX IF NOT EXISTS ${DOWNLOADS_TABLE_NAME}_$DOWNLOAD_ID ON $DOWNLOADS_TABLE_NAME($DOWNLOAD_ID);"
+        )
+
+        /**
+         * Statuses of the downloads that are considered incomplete.
+         * @see findAllInCompleteDownloads
+         */
+        val INCOMPLETE_DOWNLOAD_STATUSES = arrayOf(FAILED, DOWNLOADING, PAUSED, STOPPED)
+
         const val DATABASE_NAME = "gdb"
-        const val DATABASE_VERSION = 1
+        private const val MAX_BOUND_ARGUMENTS = 500
+        const val DATABASE_VERSION = 2
 
         private var databaseInstance: SQLiteManager? = null
 
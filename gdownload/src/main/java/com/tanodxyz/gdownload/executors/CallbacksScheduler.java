@@ -21,7 +21,10 @@ import java.util.concurrent.atomic.AtomicInteger;
  * after regular interval, and these callbacks are cancelable, have start and end bounds.
  * End Bounds are Not Honoured by LifeCycle
  * //!! see {@linkplain TimeBounds}
+ * @deprecated each instance schedules on it's own executor and bounds are shared by all callbacks.
+ * use {@link HashedTimerWheel} which drives every periodic callback of the library from a single thread.
  */
+@Deprecated
 public class CallbacksScheduler implements DefaultLifecycleObserver {
 
     public static String TAG = "callbackScheduler";
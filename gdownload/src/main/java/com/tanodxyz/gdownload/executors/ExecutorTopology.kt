@@ -0,0 +1,278 @@
+package com.tanodxyz.gdownload.executors
+
+import androidx.lifecycle.Lifecycle
+import com.tanodxyz.gdownload.DEF_BLOCKING_POOL_THREADS
+import com.tanodxyz.gdownload.DEF_CALLBACK_POOL_THREADS
+import com.tanodxyz.gdownload.DEF_CONTROL_POOL_THREADS
+import com.tanodxyz.gdownload.DEF_IO_POOL_THREADS
+import com.tanodxyz.gdownload.DEF_POOL_THREAD_KEEP_ALIVE_SECONDS
+import java.util.Collections
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.FutureTask
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.ThreadFactory
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Thread pools shared by every [com.tanodxyz.gdownload.DownloadManager] and
+ * [com.tanodxyz.gdownload.GroupImpl] created with it.
+ * >
+ * ### I/O pool
+ * >Connections and data read/write workers. each connection of a running download holds one
+ * thread for as long as it downloads, so this pool bounds the connections of the whole process -
+ * connections above [ioThreads] wait in the queue until a thread gets free. Paused downloads give
+ * their threads back and queue again on resume.
+ * Connection setup of a starting download runs here too.
+ * ### Control pool
+ * >Incoming calls (start, pause, resume, stop ...), group loops work and progress ticks. work here
+ * is short and must never block.
+ * ### Callback pool
+ * >Listener callbacks that are not delivered on the main thread.
+ * ### Blocking pool
+ * >Database reads and writes (checkpoints, disk backed group queues) and network checks. they
+ * block but must not wait behind running connections for an I/O thread.
+ *
+ * Each downloader/group gets its own view of a pool - [newIoExecutor], [newControlExecutor],
+ * [newCallbackExecutor] and [newBlockingExecutor]. Shutting down a view cancels only the work
+ * submitted through it, pools live until [shutDown]. Idle threads die after
+ * [DEF_POOL_THREAD_KEEP_ALIVE_SECONDS].
+ *
+ * Use [stats] to observe thread counts and queue depths. [default] is used unless another
+ * topology is set through the builders.
+ */
+class ExecutorTopology @JvmOverloads constructor(
+    val ioThreads: Int = DEF_IO_POOL_THREADS,
+    val controlThreads: Int = DEF_CONTROL_POOL_THREADS,
+    val callbackThreads: Int = DEF_CALLBACK_POOL_THREADS,
+    private val name: String = "GDownload",
+    val blockingThreads: Int = DEF_BLOCKING_POOL_THREADS
+) {
+    internal val ioPool: ThreadPoolExecutor
+    internal val controlPool: ThreadPoolExecutor
+    internal val callbackPool: ThreadPoolExecutor
+    internal val blockingPool: ThreadPoolExecutor
+
+    init {
+        if (ioThreads < 1 || controlThreads < 1 || callbackThreads < 1 || blockingThreads < 1) {
+            throw IllegalArgumentException("each pool needs at least one thread")
+        }
+        ioPool = newPool(ioThreads, "$name-IO")
+        controlPool = newPool(controlThreads, "$name-Control")
+        callbackPool = newPool(callbackThreads, "$name-Callback")
+        blockingPool = newPool(blockingThreads, "$name-Blocking")
+    }
+
+    /**
+     * Executor for a single downloader. it's periodic callbacks are driven by [HashedTimerWheel]
+     * and run on the control pool.
+     */
+    @JvmOverloads
+    fun newIoExecutor(lifecycle: Lifecycle? = null): ScheduledBackgroundExecutor =
+        SharedScheduledBackgroundExecutor(ioPool, controlPool, lifecycle)
+
+    fun newControlExecutor(): BackgroundExecutor = SharedBackgroundExecutor(controlPool)
+
+    fun newCallbackExecutor(): BackgroundExecutor = SharedBackgroundExecutor(callbackPool)
+
+    fun newBlockingExecutor(): BackgroundExecutor = SharedBackgroundExecutor(blockingPool)
+
+    fun getIoPoolStats(): PoolStats = ioPool.stats("$name-IO")
+
+    fun getControlPoolStats(): PoolStats = controlPool.stats("$name-Control")
+
+    fun getCallbackPoolStats(): PoolStats = callbackPool.stats("$name-Callback")
+
+    fun getBlockingPoolStats(): PoolStats = blockingPool.stats("$name-Blocking")
+
+    fun stats(): List<PoolStats> = listOf(
+        getIoPoolStats(),
+        getControlPoolStats(),
+        getCallbackPoolStats(),
+        getBlockingPoolStats()
+    )
+
+    /**
+     * Stops all pools. Never call it on [default].
+     */
+    fun shutDown() {
+        ioPool.shutdownNow()
+        controlPool.shutdownNow()
+        callbackPool.shutdownNow()
+        blockingPool.shutdownNow()
+    }
+
+    override fun toString(): String {
+        return "ExecutorTopology(${stats().joinToString()})"
+    }
+
+    private fun newPool(threads: Int, poolName: String): ThreadPoolExecutor {
+        val threadsCount = AtomicInteger()
+        val threadFactory = ThreadFactory { runnable ->
+            Thread(runnable, "$poolName-${threadsCount.incrementAndGet()}").apply {
+                isDaemon = true
+            }
+        }
+        return ThreadPoolExecutor(
+            threads,
+            threads,
+            DEF_POOL_THREAD_KEEP_ALIVE_SECONDS,
+            TimeUnit.SECONDS,
+            LinkedBlockingQueue(),
+            threadFactory
+        ).apply { allowCoreThreadTimeOut(true) }
+    }
+
+    private fun ThreadPoolExecutor.stats(poolName: String) = PoolStats(
+        poolName,
+        poolSize,
+        activeCount,
+        maximumPoolSize,
+        queue.size,
+        completedTaskCount
+    )
+
+    /**
+     * Point in time counters of a pool.
+     * @param queueDepth tasks waiting for a free thread.
+     */
+    data class PoolStats(
+        val name: String,
+        val threadsCount: Int,
+        val activeThreadsCount: Int,
+        val maxThreadsCount: Int,
+        val queueDepth: Int,
+        val completedTasksCount: Long
+    )
+
+    companion object {
+        /**
+         * Process wide topology.
+         */
+        @JvmStatic
+        val default: ExecutorTopology by lazy { ExecutorTopology() }
+    }
+}
+
+/**
+ * View of a shared pool. [shutDown] cancels work submitted through this view only.
+ */
+internal open class SharedBackgroundExecutor(private val pool: ThreadPoolExecutor) :
+    BackgroundExecutor {
+    private val tasks = Collections.newSetFromMap(ConcurrentHashMap<FutureTask<*>, Boolean>())
+    protected val runningTasksCount = AtomicInteger()
+
+    @Volatile
+    private var terminated = false
+
+    override fun execute(runnable: Runnable): BackgroundExecutor.Cancelable {
+        if (terminated) {
+            return NOT_EXECUTED
+        }
+        val task = object : FutureTask<Unit>({
+            runningTasksCount.incrementAndGet()
+            try {
+                runnable.run()
+            } finally {
+                runningTasksCount.decrementAndGet()
+            }
+        }) {
+            override fun done() {
+                tasks.remove(this)
+            }
+        }
+        tasks.add(task)
+        pool.execute(task)
+        if (terminated) {
+            task.cancel(true)
+        }
+        return object : BackgroundExecutor.Cancelable {
+            override fun cancel() {
+                task.cancel(true)
+            }
+        }
+    }
+
+    override fun shutDown() {
+        terminated = true
+        tasks.forEach { it.cancel(true) }
+        tasks.clear()
+    }
+
+    override fun cleanUp() {
+        pool.purge()
+    }
+
+    override fun isTerminated(): Boolean {
+        return terminated || pool.isShutdown
+    }
+
+    companion object {
+        private val NOT_EXECUTED = object : BackgroundExecutor.Cancelable {
+            override fun cancel() {}
+        }
+    }
+}
+
+/**
+ * [ScheduledBackgroundExecutor] of a single downloader on top of [ExecutorTopology] pools.
+ * Pool sizes are owned by the topology, [setExecutor] is ignored.
+ */
+internal class SharedScheduledBackgroundExecutor(
+    ioPool: ThreadPoolExecutor,
+    controlPool: ThreadPoolExecutor,
+    lifecycle: Lifecycle?
+) : SharedBackgroundExecutor(ioPool), ScheduledBackgroundExecutor {
+    private val ticksExecutor = SharedBackgroundExecutor(controlPool)
+    private var callbacksLifecycleObserver: TimerTasksLifecycleObserver? = null
+
+    init {
+        setCallbackScheduler(lifecycle)
+    }
+
+    override fun activeWorkersCount(): Int = runningTasksCount.get()
+
+    override fun isExecutorAssigned(): Boolean = true
+
+    override fun setExecutor(corePoolSize: Int) {}
+
+    override fun setCallbackScheduler(lifecycle: Lifecycle?) {
+        callbacksLifecycleObserver?.stopObserving()
+        callbacksLifecycleObserver = lifecycle?.let { TimerTasksLifecycleObserver(it) }
+    }
+
+    override fun executeAtFixRateAfter(
+        runnable: Runnable,
+        interval: Long,
+        timeUnit: TimeUnit
+    ): ScheduledBackgroundExecutor.CallbackState {
+        return scheduleConflatedTicks(runnable, interval, timeUnit, callbacksLifecycleObserver) { tick ->
+            if (isTerminated()) {
+                false
+            } else {
+                ticksExecutor.execute(tick)
+                true
+            }
+        }
+    }
+
+    override fun execute(
+        runnable: Runnable,
+        timeOutMilliSecs: Long
+    ): BackgroundExecutor.Cancelable {
+        val cancelable = execute(runnable)
+        lateinit var timeOut: HashedTimerWheel.TimerTask
+        timeOut = HashedTimerWheel.shared.schedule({
+            timeOut.stop()
+            cancelable.cancel()
+        }, maxOf(1L, timeOutMilliSecs), TimeUnit.MILLISECONDS, maxOf(1L, timeOutMilliSecs))
+        return cancelable
+    }
+
+    override fun shutDown() {
+        callbacksLifecycleObserver?.cancelAll()
+        ticksExecutor.shutDown()
+        super.shutDown()
+    }
+}
@@ -0,0 +1,352 @@
+package com.tanodxyz.gdownload.executors
+
+import com.tanodxyz.gdownload.DEF_TIMER_WHEEL_SIZE
+import com.tanodxyz.gdownload.DEF_TIMER_WHEEL_TICK_MILLISECONDS
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Hashed timing wheel that drives periodic work of any number of tasks with a single thread.
+ * >
+ * ### Wheel
+ * >Time is divided in ticks of [tickMilliSecs]. Each task lives in the bucket of the tick it is
+ * due at, so scheduling, pausing and cancelling are O(1) and a wakeup only visits the buckets of
+ * the ticks that passed.
+ * ### Coalesced wakeups
+ * >Tasks that are due in the same tick run in the same wakeup. The thread sleeps until the next
+ * tick that has any task in it's bucket and does not wake at all while nothing is scheduled.
+ * ### Tasks
+ * >Tasks run on the wheel thread and must be quick - they are expected to post heavy work
+ * elsewhere. Fixed rate is kept by advancing deadlines by the interval, if a task falls behind
+ * the missed runs are skipped. Exception thrown by a task is printed and the task keeps running.
+ *
+ * [shared] is used by the whole library, so hundreds of downloads mean one timer thread.
+ */
+class HashedTimerWheel(
+    val tickMilliSecs: Long = DEF_TIMER_WHEEL_TICK_MILLISECONDS,
+    wheelSize: Int = DEF_TIMER_WHEEL_SIZE,
+    private val threadName: String = "GDownload-TimerWheel"
+) {
+    private val mask: Int
+    private val buckets: Array<TimerTask?>
+    private val bucketsCount: IntArray
+    private val tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMilliSecs)
+    private val startNanos = System.nanoTime()
+    private val lock = Object()
+    private var lastProcessedTick = 0L
+    private var scheduledTasksCount = 0
+    private var plannedWakeUpTick = Long.MAX_VALUE
+    private var thread: Thread? = null
+    private var terminated = false
+    private var wakeUps = 0L
+    private var runs = 0L
+
+    init {
+        if (tickMilliSecs < 1) {
+            throw IllegalArgumentException("tick must be at least 1 millisecond")
+        }
+        if (wheelSize < 1 || wheelSize > (1 shl 16)) {
+            throw IllegalArgumentException("wheel size $wheelSize is not valid")
+        }
+        var normalizedSize = 1
+        while (normalizedSize < wheelSize) {
+            normalizedSize = normalizedSize shl 1
+        }
+        mask = normalizedSize - 1
+        buckets = arrayOfNulls(normalizedSize)
+        bucketsCount = IntArray(normalizedSize)
+    }
+
+    /**
+     * Runs [task] every [interval] starting after [initialDelay].
+     * @param bound if greater then zero, task stops itself once it has been running for that long.
+     * @return handle to pause, resume, restart or cancel the task.
+     */
+    fun schedule(
+        task: Runnable,
+        interval: Long,
+        timeUnit: TimeUnit,
+        initialDelay: Long = 0,
+        bound: Long = 0
+    ): TimerTask {
+        if (interval <= 0 || initialDelay < 0 || bound < 0) {
+            throw IllegalArgumentException("interval must be positive, delay and bound must not be negative")
+        }
+        val timerTask = TimerTask(
+            TASK_IDS.incrementAndGet(),
+            task,
+            timeUnit.toNanos(interval),
+            timeUnit.toNanos(initialDelay),
+            timeUnit.toNanos(bound)
+        )
+        timerTask.start()
+        return timerTask
+    }
+
+    /**
+     * @return number of tasks that are currently in the wheel. Paused and stopped tasks are not counted.
+     */
+    fun scheduledTasksCount(): Int {
+        synchronized(lock) {
+            return scheduledTasksCount
+        }
+    }
+
+    /**
+     * @return how many times wheel thread woke up and how many task runs it made.
+     */
+    fun stats(): Pair<Long, Long> {
+        synchronized(lock) {
+            return Pair(wakeUps, runs)
+        }
+    }
+
+    /**
+     * Stops the wheel thread and drops every task. Never call it on [shared].
+     */
+    fun shutDown() {
+        synchronized(lock) {
+            terminated = true
+            buckets.fill(null)
+            bucketsCount.fill(0)
+            scheduledTasksCount = 0
+            lock.notifyAll()
+        }
+    }
+
+    private fun currentTick(): Long = (System.nanoTime() - startNanos) / tickNanos
+
+    private fun tickOf(deadlineNanos: Long): Long {
+        val sinceStart = deadlineNanos - startNanos
+        // ceil - task never runs before it's deadline.
+        return (sinceStart + tickNanos - 1) / tickNanos
+    }
+
+    /**
+     * Must hold [lock].
+     */
+    private fun insert(timerTask: TimerTask) {
+        val tick = maxOf(tickOf(timerTask.deadlineNanos), lastProcessedTick + 1)
+        timerTask.deadlineTick = tick
+        val bucket = (tick and mask.toLong()).toInt()
+        timerTask.bucket = bucket
+        timerTask.previous = null
+        timerTask.next = buckets[bucket]
+        buckets[bucket]?.previous = timerTask
+        buckets[bucket] = timerTask
+        ++bucketsCount[bucket]
+        ++scheduledTasksCount
+        if (thread == null) {
+            thread = Thread({ loop() }, threadName).apply {
+                isDaemon = true
+                start()
+            }
+        }
+        if (tick < plannedWakeUpTick) {
+            lock.notifyAll()
+        }
+    }
+
+    /**
+     * Must hold [lock].
+     */
+    private fun remove(timerTask: TimerTask) {
+        val bucket = timerTask.bucket
+        if (bucket < 0) {
+            return
+        }
+        timerTask.previous?.next = timerTask.next
+        timerTask.next?.previous = timerTask.previous
+        if (buckets[bucket] === timerTask) {
+            buckets[bucket] = timerTask.next
+        }
+        timerTask.previous = null
+        timerTask.next = null
+        timerTask.bucket = -1
+        --bucketsCount[bucket]
+        --scheduledTasksCount
+    }
+
+    private fun loop() {
+        val dueTasks = ArrayList<TimerTask>()
+        while (true) {
+            synchronized(lock) {
+                while (!terminated) {
+                    val wakeUpTick = nextWakeUpTick()
+                    plannedWakeUpTick = wakeUpTick
+                    if (wakeUpTick == Long.MAX_VALUE) {
+                        lock.wait()
+                        continue
+                    }
+                    val waitNanos = startNanos + wakeUpTick * tickNanos - System.nanoTime()
+                    if (waitNanos <= 0) {
+                        break
+                    }
+                    TimeUnit.NANOSECONDS.timedWait(lock, waitNanos)
+                }
+                if (terminated) {
+                    return
+                }
+                plannedWakeUpTick = Long.MAX_VALUE
+                ++wakeUps
+                collectDueTasks(currentTick(), dueTasks)
+                runs += dueTasks.count()
+            }
+            dueTasks.forEach { timerTask -> timerTask.run() }
+            dueTasks.clear()
+        }
+    }
+
+    /**
+     * Must hold [lock]. Only buckets of ticks that passed since the previous wakeup are visited.
+     */
+    private fun collectDueTasks(now: Long, dueTasks: MutableList<TimerTask>) {
+        val ticksPassed = minOf(now - lastProcessedTick, (mask + 1).toLong())
+        var tick = now - ticksPassed + 1
+        while (tick <= now) {
+            val bucket = (tick and mask.toLong()).toInt()
+            if (bucketsCount[bucket] > 0) {
+                var timerTask = buckets[bucket]
+                while (timerTask != null) {
+                    val next = timerTask.next
+                    if (timerTask.deadlineTick <= now) {
+                        remove(timerTask)
+                        dueTasks.add(timerTask)
+                    }
+                    timerTask = next
+                }
+            }
+            ++tick
+        }
+        lastProcessedTick = now
+    }
+
+    /**
+     * Must hold [lock].
+     * @return first tick after the last processed one whose bucket is not empty.
+     */
+    private fun nextWakeUpTick(): Long {
+        if (scheduledTasksCount == 0) {
+            return Long.MAX_VALUE
+        }
+        for (offset in 1..(mask + 1)) {
+            val tick = lastProcessedTick + offset
+            if (bucketsCount[(tick and mask.toLong()).toInt()] > 0) {
+                return tick
+            }
+        }
+        return lastProcessedTick + mask + 1
+    }
+
+    inner class TimerTask internal constructor(
+        private val id: Int,
+        private val task: Runnable,
+        private val intervalNanos: Long,
+        private val initialDelayNanos: Long,
+        private val boundNanos: Long
+    ) : ScheduledBackgroundExecutor.CallbackState {
+        internal var deadlineNanos = 0L
+        internal var deadlineTick = 0L
+        internal var bucket = -1
+        internal var previous: TimerTask? = null
+        internal var next: TimerTask? = null
+        private var startedNanos = 0L
+        private var state = ScheduledBackgroundExecutor.CallbackState.State.IDLE
+
+        override fun getId(): Int = id
+
+        override fun getState(): ScheduledBackgroundExecutor.CallbackState.State {
+            synchronized(lock) {
+                return state
+            }
+        }
+
+        internal fun start() {
+            synchronized(lock) {
+                startedNanos = System.nanoTime()
+                deadlineNanos = startedNanos + initialDelayNanos
+                state = ScheduledBackgroundExecutor.CallbackState.State.STARTED
+                if (!terminated) {
+                    insert(this)
+                }
+            }
+        }
+
+        override fun cancel() {
+            stop()
+        }
+
+        override fun stop() {
+            synchronized(lock) {
+                remove(this)
+                state = ScheduledBackgroundExecutor.CallbackState.State.STOPPED
+            }
+        }
+
+        /**
+         * Starts again from the beginning - [bound] is counted from now. Done under one lock so
+         * the wheel never sees the task removed but not yet inserted.
+         */
+        override fun restart() {
+            synchronized(lock) {
+                remove(this)
+                start()
+            }
+        }
+
+        override fun pause() {
+            synchronized(lock) {
+                if (state == ScheduledBackgroundExecutor.CallbackState.State.STARTED) {
+                    remove(this)
+                    state = ScheduledBackgroundExecutor.CallbackState.State.PAUSED
+                }
+            }
+        }
+
+        /**
+         * Paused task runs in the next tick and continues at it's interval after that.
+         */
+        override fun resume() {
+            synchronized(lock) {
+                if (state == ScheduledBackgroundExecutor.CallbackState.State.PAUSED && !terminated) {
+                    state = ScheduledBackgroundExecutor.CallbackState.State.STARTED
+                    deadlineNanos = System.nanoTime()
+                    insert(this)
+                }
+            }
+        }
+
+        internal fun run() {
+            try {
+                task.run()
+            } catch (ex: Exception) {
+                ex.printStackTrace()
+            }
+            synchronized(lock) {
+                if (state != ScheduledBackgroundExecutor.CallbackState.State.STARTED || bucket >= 0 || terminated) {
+                    return
+                }
+                val now = System.nanoTime()
+                if (boundNanos > 0 && now - startedNanos >= boundNanos) {
+                    state = ScheduledBackgroundExecutor.CallbackState.State.STOPPED
+                    return
+                }
+                deadlineNanos += intervalNanos
+                if (deadlineNanos < now) {
+                    deadlineNanos = now + intervalNanos - ((now - deadlineNanos) % intervalNanos)
+                }
+                insert(this)
+            }
+        }
+    }
+
+    companion object {
+        private val TASK_IDS = AtomicInteger()
+
+        /**
+         * Process wide wheel.
+         */
+        @JvmStatic
+        val shared: HashedTimerWheel by lazy { HashedTimerWheel() }
+    }
+}
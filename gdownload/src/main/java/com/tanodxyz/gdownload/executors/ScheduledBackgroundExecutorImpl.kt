@@ -1,15 +1,19 @@
 package com.tanodxyz.gdownload.executors
 
+import androidx.lifecycle.DefaultLifecycleObserver
 import androidx.lifecycle.Lifecycle
+import androidx.lifecycle.LifecycleOwner
 import java.util.concurrent.Executors
 import java.util.concurrent.ScheduledExecutorService
 import java.util.concurrent.ScheduledThreadPoolExecutor
+import java.util.concurrent.RejectedExecutionException
 import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
 
 class ScheduledBackgroundExecutorImpl(corePoolSize: Int = -1, lifecycle: Lifecycle? = null) :
     ScheduledBackgroundExecutor {
     private var executorService: ScheduledExecutorService? = null
-    private var callbackExecutor: CallbacksScheduler? = null
+    private var callbacksLifecycleObserver: TimerTasksLifecycleObserver? = null
 
     init {
         setExecutor(corePoolSize)
@@ -37,57 +41,31 @@ class ScheduledBackgroundExecutorImpl(corePoolSize: Int = -1, lifecycle: Lifecyc
             shutdownNow()
         }
         executorService = Executors.newScheduledThreadPool(corePoolSize)
-        callbackExecutor?.setExecutor(executorService as ScheduledThreadPoolExecutor)
     }
 
     override fun setCallbackScheduler(lifecycle: Lifecycle?) {
-        callbackExecutor = CallbacksScheduler(lifecycle).apply {
-            executorService?.let {
-                this.setExecutor(it as ScheduledThreadPoolExecutor)
-            }
-        }
+        callbacksLifecycleObserver?.stopObserving()
+        callbacksLifecycleObserver = lifecycle?.let { TimerTasksLifecycleObserver(it) }
     }
 
+    /**
+     * Ticks come from [HashedTimerWheel.shared] - no matter how many executors exist there is a
+     * single timer thread. On each tick [runnable] is handed to this executor's pool, a tick is
+     * skipped if the previous run of the same callback is still running.
+     * Callbacks are paused/resumed with [Lifecycle] if one is provided.
+     */
     override fun executeAtFixRateAfter(
         runnable: Runnable,
         interval: Long,
         timeUnit: TimeUnit
     ): ScheduledBackgroundExecutor.CallbackState {
-        val schedule = callbackExecutor?.schedule({
-            runnable.run()
-        }, interval, timeUnit)
-        return object : ScheduledBackgroundExecutor.CallbackState {
-            override fun getId(): Int {
-                return schedule!!.uniqueId
-            }
-
-            override fun cancel() {
-                callbackExecutor?.stopAndRemove(getId())
-            }
-
-            override fun restart() {
-                callbackExecutor?.restart(getId())
-            }
-
-            override fun pause() {
-                callbackExecutor?.pause(getId())
-            }
-
-            override fun resume() {
-                callbackExecutor?.resume(getId())
-            }
-
-            override fun stop() {
-                callbackExecutor?.stop(getId())
-            }
-
-            override fun getState(): ScheduledBackgroundExecutor.CallbackState.State {
-                return when (schedule!!.currentState) {
-                    CallbacksScheduler.CallbackState.STARTED -> ScheduledBackgroundExecutor.CallbackState.State.STARTED
-                    CallbacksScheduler.CallbackState.STOPPED -> ScheduledBackgroundExecutor.CallbackState.State.STOPPED
-                    CallbacksScheduler.CallbackState.PAUSED -> ScheduledBackgroundExecutor.CallbackState.State.PAUSED
-                    else -> ScheduledBackgroundExecutor.CallbackState.State.IDLE
-                }
+        return scheduleConflatedTicks(runnable, interval, timeUnit, callbacksLifecycleObserver) { tick ->
+            val service = executorService
+            if (service == null || service.isShutdown) {
+                false
+            } else {
+                service.execute(tick)
+                true
             }
         }
     }
@@ -113,6 +91,7 @@ class ScheduledBackgroundExecutorImpl(corePoolSize: Int = -1, lifecycle: Lifecyc
     }
 
     override fun shutDown() {
+        callbacksLifecycleObserver?.cancelAll()
         executorService?.shutdownNow()
     }
 
@@ -124,4 +103,95 @@ class ScheduledBackgroundExecutorImpl(corePoolSize: Int = -1, lifecycle: Lifecyc
     override fun toString(): String {
         return executorService.toString()
     }
-}
\ No newline at end of file
+}
+
+/**
+ * Schedules [runnable] on [HashedTimerWheel.shared]. Wheel thread only hands each tick to [submit],
+ * a tick is skipped if the previous one is still running. Task stops once [submit] returns false
+ * or throws [RejectedExecutionException].
+ */
+internal fun scheduleConflatedTicks(
+    runnable: Runnable,
+    interval: Long,
+    timeUnit: TimeUnit,
+    lifecycleObserver: TimerTasksLifecycleObserver?,
+    submit: (Runnable) -> Boolean
+): ScheduledBackgroundExecutor.CallbackState {
+    val running = AtomicBoolean(false)
+    val runOnce = Runnable {
+        try {
+            runnable.run()
+        } finally {
+            running.set(false)
+        }
+    }
+    lateinit var timerTask: HashedTimerWheel.TimerTask
+    timerTask = HashedTimerWheel.shared.schedule({
+        if (running.compareAndSet(false, true)) {
+            val submitted = try {
+                submit(runOnce)
+            } catch (ex: RejectedExecutionException) {
+                false
+            }
+            if (!submitted) {
+                running.set(false)
+                timerTask.stop()
+            }
+        }
+    }, interval, timeUnit)
+    lifecycleObserver?.track(timerTask)
+    return object : ScheduledBackgroundExecutor.CallbackState by timerTask {
+        override fun cancel() {
+            timerTask.cancel()
+            lifecycleObserver?.untrack(timerTask)
+        }
+    }
+}
+
+/**
+ * Pauses timer tasks when [lifecycle] stops, resumes them when it resumes and cancels them on destroy.
+ */
+internal class TimerTasksLifecycleObserver(private val lifecycle: Lifecycle) :
+    DefaultLifecycleObserver {
+    private val timerTasks = LinkedHashSet<HashedTimerWheel.TimerTask>()
+
+    init {
+        lifecycle.addObserver(this)
+    }
+
+    @Synchronized
+    fun track(timerTask: HashedTimerWheel.TimerTask) {
+        timerTasks.removeAll { it.getState() == ScheduledBackgroundExecutor.CallbackState.State.STOPPED }
+        timerTasks.add(timerTask)
+    }
+
+    @Synchronized
+    fun untrack(timerTask: HashedTimerWheel.TimerTask) {
+        timerTasks.remove(timerTask)
+    }
+
+    @Synchronized
+    fun cancelAll() {
+        timerTasks.forEach { it.cancel() }
+        timerTasks.clear()
+    }
+
+    fun stopObserving() {
+        lifecycle.removeObserver(this)
+    }
+
+    @Synchronized
+    override fun onStop(owner: LifecycleOwner) {
+        timerTasks.forEach { it.pause() }
+    }
+
+    @Synchronized
+    override fun onResume(owner: LifecycleOwner) {
+        timerTasks.forEach { it.resume() }
+    }
+
+    override fun onDestroy(owner: LifecycleOwner) {
+        cancelAll()
+        stopObserving()
+    }
+}
@@ -40,6 +40,16 @@ interface DataReadWriteWorker {
      */
     fun pause()
 
+    /**
+     * Pauses the worker without closing the connection. Worker stops reading - TCP flow control
+     * holds the remote data - and keeps the connection open for [graceMilliSecs]. Resuming within
+     * that window continues on the same connection, after it the connection is closed and resume
+     * reconnects as it does after [pause].
+     */
+    fun softPause(graceMilliSecs: Long) {
+        pause()
+    }
+
     /**
      * resume the previously paused worker.
      * worker that is either [stopped,success,error] is not affected
@@ -120,6 +130,13 @@ interface DataReadWriteWorker {
     enum class WorkerState {
         IDLE, PAUSING, PAUSE, STOPPING, STOP, RUNNING, SUCCESS, ERROR;
 
+        /**
+         * @see DataReadWriteWorker.isAlive
+         */
+        fun isAlive(): Boolean {
+            return this == RUNNING || this == PAUSE || this == PAUSING
+        }
+
         fun isCompleted(): Boolean {
             return this == STOP || this == SUCCESS || this == ERROR
         }
@@ -1,26 +1,71 @@
 package com.tanodxyz.gdownload.worker
 
+import com.tanodxyz.gdownload.BandwidthLimiter
 import com.tanodxyz.gdownload.BiConsumer
 import com.tanodxyz.gdownload.DefaultLogger
+import com.tanodxyz.gdownload.Slice
 import com.tanodxyz.gdownload.closeResource
 import com.tanodxyz.gdownload.connection.ConnectionManager
+import com.tanodxyz.gdownload.executors.HashedTimerWheel
 import com.tanodxyz.gdownload.io.InputResourceWrapper
 import com.tanodxyz.gdownload.io.OutputResourceWrapper
 import com.tanodxyz.gdownload.io.RandomAccessOutputResourceWrapper
 import com.tanodxyz.gdownload.io.StreamOutputResourceWrapper
 import java.io.InterruptedIOException
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicReference
 import java.util.concurrent.locks.LockSupport
 
+/**
+ * Worker state lives in a single atomic field and every transition is a compare and set, so
+ * reading the state on each read iteration costs a volatile read and pause/resume/stop never
+ * wait for a lock held by the worker thread.
+ * >
+ * Paused worker parks it's thread, unless it was started with [doJobReleasingThreadWhenPaused] -
+ * then the job returns on pause and is continued with [continueJob] after resume, so paused
+ * downloads hold no threads of the shared I/O pool.
+ */
 class DataReadWriteWorkerImpl(
     private val inputConnectionData: ConnectionManager.ConnectionData,
     private val output: OutputResourceWrapper,
     private val randomAccess: Boolean,
-    private val readBufferSize: Int = DEFAULT_BUFFER_SIZE
+    private val readBufferSize: Int = DEFAULT_BUFFER_SIZE,
+    /**
+     * Throttles reads of this worker together with the other workers of the download.
+     */
+    private val bandwidthLimiter: BandwidthLimiter? = null,
+    /**
+     * Called with the slice each time this worker reconnects it.
+     */
+    private val onReconnect: ((Slice) -> Unit)? = null
 ) : DataReadWriteWorker {
+    @Volatile
     private var stateObserver: BiConsumer<Int, DataReadWriteWorker.WorkerState>? = null
-    private lateinit var thread: Thread
-    private var dataReadWriteWorkerState: DataReadWriteWorker.WorkerState =
-        DataReadWriteWorker.WorkerState.IDLE
+
+    @Volatile
+    private var thread: Thread? = null
+
+    /**
+     * Deadline of the soft pause grace window or 0 if pause is not soft.
+     */
+    @Volatile
+    private var softPauseDeadlineNanos = 0L
+
+    // job state kept between a suspension and continueJob.
+    private var readBuffer: ByteArray? = null
+    private var pendingBytes = 0
+    private var needsReconnection = false
+    private var nextWriteOffset = 0L
+    private var releaseThreadWhenPaused = false
+
+    @Volatile
+    private var suspended = false
+    private val suspendLock = Any()
+    private var connectionClosedWhileSuspended = false
+    private var graceTimer: HashedTimerWheel.TimerTask? = null
+    private val resumeAction = AtomicReference<Runnable?>(null)
+    private val dataReadWriteWorkerState =
+        AtomicReference(DataReadWriteWorker.WorkerState.IDLE)
     val TAG = "DRWW${System.nanoTime()}"
     private val logger = DefaultLogger(TAG)
 
@@ -32,59 +77,115 @@ class DataReadWriteWorkerImpl(
     }
 
     override fun pause() {
-        if (isRunning()) {
-            setWorkerState(DataReadWriteWorker.WorkerState.PAUSING)
-            interruptThread()
-        }
+        requestPause()
+        wakeUpPaused()
     }
 
-    override fun stop() {
-        if (isAlive()) {
-            setWorkerState(DataReadWriteWorker.WorkerState.STOPPING)
+    /**
+     * First half of [pause] - only the state change. Batches change the state of every worker
+     * before waking any of them with [wakeUpPaused].
+     */
+    internal fun requestPause() {
+        softPauseDeadlineNanos = 0L
+        transition(DataReadWriteWorker.WorkerState.RUNNING, DataReadWriteWorker.WorkerState.PAUSING)
+    }
+
+    internal fun wakeUpPaused() {
+        val workerState = getWorkerState()
+        if (workerState == DataReadWriteWorker.WorkerState.PAUSING) {
             interruptThread()
+        } else if (workerState.isPaused()) {
+            // soft paused worker closes it's connection now.
+            unParkThread()
+            closeConnectionWhileSuspended()
         }
     }
 
-    private fun isPausing(): Boolean {
-        val workerState = getWorkerState()
-        return (workerState == DataReadWriteWorker.WorkerState.PAUSING)
+    override fun softPause(graceMilliSecs: Long) {
+        if (graceMilliSecs <= 0) {
+            pause()
+            return
+        }
+        // no interrupt - worker pauses after the read in progress, connection stays open.
+        softPauseDeadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(graceMilliSecs)
+        if (!transition(DataReadWriteWorker.WorkerState.RUNNING, DataReadWriteWorker.WorkerState.PAUSING)) {
+            softPauseDeadlineNanos = 0L
+        }
     }
 
-    override fun resume() {
-        when {
-            isPaused() || isPausing() -> {
-                setWorkerState(DataReadWriteWorker.WorkerState.RUNNING)
+    override fun stop() {
+        while (true) {
+            val workerState = getWorkerState()
+            if (!workerState.isAlive()) {
+                return
+            }
+            if (transition(workerState, DataReadWriteWorker.WorkerState.STOPPING)) {
+                interruptThread()
                 unParkThread()
+                resumeAction.getAndSet(null)?.run()
+                return
             }
         }
     }
 
-    @Synchronized
+    override fun resume() {
+        if (requestResume()) {
+            wakeUpResumed()
+        }
+    }
+
+    /**
+     * First half of [resume] - only the state change, [wakeUpResumed] lets the worker continue.
+     * @return true if worker was paused.
+     */
+    internal fun requestResume(): Boolean {
+        return transition(DataReadWriteWorker.WorkerState.PAUSE, DataReadWriteWorker.WorkerState.RUNNING) ||
+                transition(DataReadWriteWorker.WorkerState.PAUSING, DataReadWriteWorker.WorkerState.RUNNING)
+    }
+
+    internal fun wakeUpResumed() {
+        if (isRunning()) {
+            unParkThread()
+            resumeAction.getAndSet(null)?.run()
+        }
+    }
+
     fun getWorkerState(): DataReadWriteWorker.WorkerState {
-        return dataReadWriteWorkerState
+        return dataReadWriteWorkerState.get()
     }
 
-    @Synchronized
     fun setWorkerState(state: DataReadWriteWorker.WorkerState) {
-        this.dataReadWriteWorkerState = state
-        stateObserver?.accept(getId(), this.dataReadWriteWorkerState)
+        dataReadWriteWorkerState.set(state)
+        stateObserver?.accept(getId(), state)
+    }
+
+    /**
+     * Moves to [next] only if current state is [expected].
+     * @return true if state was changed.
+     */
+    private fun transition(
+        expected: DataReadWriteWorker.WorkerState,
+        next: DataReadWriteWorker.WorkerState
+    ): Boolean {
+        if (!dataReadWriteWorkerState.compareAndSet(expected, next)) {
+            return false
+        }
+        stateObserver?.accept(getId(), next)
+        return true
     }
 
-    @Synchronized
     override fun registerObserverForStateChanges(
         observer: BiConsumer<Int, DataReadWriteWorker.WorkerState>?
     ) {
         this.stateObserver = observer
     }
 
-    @Synchronized
     override fun unRegisterObserverForStateChanges() {
         stateObserver = null
     }
 
     override fun isAlive(): Boolean {
-        val workerState = getWorkerState()
-        return workerState == DataReadWriteWorker.WorkerState.RUNNING || workerState == DataReadWriteWorker.WorkerState.PAUSE || workerState == DataReadWriteWorker.WorkerState.PAUSING
+        return getWorkerState().isAlive()
     }
 
     override fun isRunning(): Boolean {
@@ -132,66 +233,88 @@ class DataReadWriteWorkerImpl(
             ?: throw IllegalStateException("don't know where to start writing bytes --> slice not provided")
         val remoteConnection = inputConnectionData.remoteConnection
             ?: throw IllegalStateException("input stream from remote resource seems null")
-        var exception: Exception? = null
-        exception = try {
+        return runJob {
             val readBuffer = ByteArray(readBufferSize)
-            var bytesRead: Int
             if (randomAccess) {
                 logger.d("worker job is RandomAccess write")
-                val randomAccessOutputWrapper =
-                    output as RandomAccessOutputResourceWrapper
-                var readResult =
-                    inputConnectionData.remoteConnection!!.inputResourceWrapper.readAndCatchException(
-                        readBuffer
-                    )
-                bytesRead = readResult.first
-                var nextWriteOffset = slice.startByte + slice.downloaded.get()
-                while (bytesRead > -1) {
-
-                    parkThreadIfNecessary()
-                    if (isStopping()) {
-                        setWorkerState(DataReadWriteWorker.WorkerState.STOP)
-                        break
-                    }
-                    if (readResult.second) {
-                        reconnect(
-                            slice.startByte,
-                            slice.endByte,
-                            slice.downloaded.get() + bytesRead
-                        )
-                    }
-                    val input = inputConnectionData.remoteConnection!!.inputResourceWrapper
-                    slice.downloaded.addAndGet(bytesRead.toLong())
-                    synchronized(lock) {
-                        randomAccessPointer = nextWriteOffset
-                        randomAccessOutputWrapper.setWriteOffset(randomAccessPointer)
-                        randomAccessOutputWrapper.write(readBuffer, 0, bytesRead)
-                        randomAccessOutputWrapper.flush()
-                        nextWriteOffset += bytesRead
-                    }
-                    readResult = input.readAndCatchException(readBuffer)
-                    bytesRead = readResult.first
-                }
-                if (!isStopped()) {
-                    slice.downloadComplete.set(true)
-                    setWorkerState(DataReadWriteWorker.WorkerState.SUCCESS)
-                }
-                logger.d("JOB Finished result ---")
+                this.readBuffer = readBuffer
+                nextWriteOffset = slice.startByte + slice.downloaded.get()
+                val readResult =
+                    remoteConnection.inputResourceWrapper.readAndCatchException(readBuffer)
+                pendingBytes = readResult.first
+                needsReconnection = readResult.second
+                writeUntilPausedOrDone(slice)
             } else {
                 logger.d("worker job is serial write")
                 val streamOutputResourceWrapper = output as StreamOutputResourceWrapper
                 remoteConnection.inputResourceWrapper.apply {
-                    bytesRead = read(readBuffer)
+                    var bytesRead = read(readBuffer)
                     while (bytesRead > -1) {
                         slice.downloaded.addAndGet(bytesRead.toLong())
                         streamOutputResourceWrapper.write(readBuffer, 0, bytesRead)
                         streamOutputResourceWrapper.flush()
+                        bandwidthLimiter?.onBytesRead(bytesRead)
                         bytesRead = read(readBuffer)
                     }
                     slice.downloadComplete.set(true)
                     setWorkerState(DataReadWriteWorker.WorkerState.SUCCESS)
                 }
+                false
+            }
+        }
+    }
+
+    /**
+     * Same as [doJob] but pause ends the job instead of parking the thread. [isSuspended] tells
+     * if it returned because of a pause - then [continueJob] must be called, on any thread, once
+     * the action given to [whenResumed] runs.
+     */
+    fun doJobReleasingThreadWhenPaused(): Exception? {
+        releaseThreadWhenPaused = true
+        return doJob()
+    }
+
+    /**
+     * Continues the job of a suspended worker where it stopped.
+     * @see doJobReleasingThreadWhenPaused
+     */
+    fun continueJob(): Exception? {
+        thread = Thread.currentThread()
+        synchronized(suspendLock) {
+            suspended = false
+            graceTimer?.stop()
+            graceTimer = null
+            if (connectionClosedWhileSuspended) {
+                connectionClosedWhileSuspended = false
+                needsReconnection = true
             }
+        }
+        return runJob { writeUntilPausedOrDone(inputConnectionData.slice!!) }
+    }
+
+    /**
+     * @return true if job returned because worker paused and has no thread now.
+     */
+    fun isSuspended(): Boolean = suspended
+
+    /**
+     * [action] runs once when suspended worker is resumed or stopped - right away if it
+     * already was.
+     */
+    fun whenResumed(action: Runnable) {
+        resumeAction.set(action)
+        if (getWorkerState() != DataReadWriteWorker.WorkerState.PAUSE) {
+            resumeAction.getAndSet(null)?.run()
+        }
+    }
+
+    /**
+     * @param job returns true if worker suspended, connection is kept for it's continuation.
+     */
+    private inline fun runJob(job: () -> Boolean): Exception? {
+        var jobSuspended = false
+        return try {
+            jobSuspended = job()
             null
         } catch (ex: Exception) {
             logger.e("Error occured in worker -> $ex")
@@ -199,31 +322,150 @@ class DataReadWriteWorkerImpl(
             setWorkerState(DataReadWriteWorker.WorkerState.ERROR)
             ex
         } finally {
-            closeResource(inputConnectionData.remoteConnection?.inputResourceWrapper)
+            if (!jobSuspended) {
+                closeResource(inputConnectionData.remoteConnection?.inputResourceWrapper)
+            }
+        }
+    }
+
+    /**
+     * Writes the pending bytes and reads on until input ends or worker stops or suspends.
+     * @return true if worker suspended.
+     */
+    private fun writeUntilPausedOrDone(slice: Slice): Boolean {
+        val randomAccessOutputWrapper = output as RandomAccessOutputResourceWrapper
+        val readBuffer = this.readBuffer!!
+        while (pendingBytes > -1) {
+            if (releaseThreadWhenPaused) {
+                if (suspendIfPausing()) {
+                    return true
+                }
+            } else if (parkThreadIfNecessary()) {
+                // soft pause expired and closed the connection.
+                needsReconnection = true
+            }
+            if (isStopping()) {
+                setWorkerState(DataReadWriteWorker.WorkerState.STOP)
+                break
+            }
+            if (needsReconnection) {
+                reconnect(
+                    slice.startByte,
+                    slice.endByte,
+                    slice.downloaded.get() + pendingBytes
+                )
+            }
+            val input = inputConnectionData.remoteConnection!!.inputResourceWrapper
+            slice.downloaded.addAndGet(pendingBytes.toLong())
+            synchronized(lock) {
+                randomAccessPointer = nextWriteOffset
+                randomAccessOutputWrapper.setWriteOffset(randomAccessPointer)
+                randomAccessOutputWrapper.write(readBuffer, 0, pendingBytes)
+                randomAccessOutputWrapper.flush()
+                nextWriteOffset += pendingBytes
+            }
+            bandwidthLimiter?.onBytesRead(pendingBytes)
+            val readResult = input.readAndCatchException(readBuffer)
+            pendingBytes = readResult.first
+            needsReconnection = readResult.second
+        }
+        if (!isStopped()) {
+            slice.downloadComplete.set(true)
+            setWorkerState(DataReadWriteWorker.WorkerState.SUCCESS)
+        }
+        logger.d("JOB Finished result ---")
+        return false
+    }
+
+    /**
+     * Pausing worker that releases it's thread suspends here instead of parking. Hard pause
+     * closes the connection now, soft pause when it's grace window is over.
+     * @return true if worker suspended.
+     */
+    private fun suspendIfPausing(): Boolean {
+        val workerState = getWorkerState()
+        // paused again before a late wake up continued it - it suspends again.
+        if (workerState != DataReadWriteWorker.WorkerState.PAUSE &&
+            (workerState != DataReadWriteWorker.WorkerState.PAUSING ||
+                    !transition(DataReadWriteWorker.WorkerState.PAUSING, DataReadWriteWorker.WorkerState.PAUSE))
+        ) {
+            return false
+        }
+        thread = null
+        // interrupt made by pause() must not reach the next task of this thread.
+        Thread.interrupted()
+        synchronized(suspendLock) {
+            suspended = true
+            val graceRemainingNanos = softPauseDeadlineNanos - System.nanoTime()
+            if (softPauseDeadlineNanos == 0L || graceRemainingNanos <= 0) {
+                closeConnectionWhileSuspended()
+            } else {
+                lateinit var timer: HashedTimerWheel.TimerTask
+                timer = HashedTimerWheel.shared.schedule({
+                    timer.stop()
+                    closeConnectionWhileSuspended()
+                }, graceRemainingNanos, TimeUnit.NANOSECONDS, graceRemainingNanos)
+                graceTimer = timer
+            }
+        }
+        softPauseDeadlineNanos = 0L
+        return true
+    }
+
+    private fun closeConnectionWhileSuspended() {
+        synchronized(suspendLock) {
+            if (!suspended || connectionClosedWhileSuspended ||
+                getWorkerState() != DataReadWriteWorker.WorkerState.PAUSE
+            ) {
+                return
+            }
+            graceTimer?.stop()
+            graceTimer = null
+            inputConnectionData.remoteConnection?.apply { closeResource(this.inputResourceWrapper) }
+            connectionClosedWhileSuspended = true
         }
-        return exception
     }
 
-    private fun parkThreadIfNecessary() {
-        if (getWorkerState() == DataReadWriteWorker.WorkerState.PAUSING) {
-            setWorkerState(DataReadWriteWorker.WorkerState.PAUSE)
-            while (getWorkerState() == DataReadWriteWorker.WorkerState.PAUSE) {
-                LockSupport.park()
+    /**
+     * @return true if connection was closed while paused and must be made again.
+     */
+    private fun parkThreadIfNecessary(): Boolean {
+        if (getWorkerState() != DataReadWriteWorker.WorkerState.PAUSING ||
+            !transition(DataReadWriteWorker.WorkerState.PAUSING, DataReadWriteWorker.WorkerState.PAUSE)
+        ) {
+            return false
+        }
+        var connectionClosed = false
+        while (getWorkerState() == DataReadWriteWorker.WorkerState.PAUSE) {
+            val deadline = softPauseDeadlineNanos
+            val graceRemainingNanos = if (deadline == 0L) 0L else deadline - System.nanoTime()
+            // hard pause closes the connection even if the read finished before the interrupt.
+            if (!connectionClosed && graceRemainingNanos <= 0) {
+                inputConnectionData.remoteConnection?.apply { closeResource(this.inputResourceWrapper) }
+                connectionClosed = true
             }
+            if (connectionClosed) {
+                LockSupport.park(this)
+            } else {
+                LockSupport.parkNanos(this, graceRemainingNanos)
+            }
+            // interrupt made by pause() must not turn parking into spinning.
+            Thread.interrupted()
         }
+        softPauseDeadlineNanos = 0L
+        return connectionClosed
     }
 
-    @Synchronized
     private fun unParkThread() {
-        LockSupport.unpark(thread)
+        thread?.let { LockSupport.unpark(it) }
     }
 
-    @Synchronized
     private fun interruptThread() {
-        thread.interrupt()
+        thread?.interrupt()
     }
 
     private fun reconnect(startByte: Long, endByte: Long, downloaded: Long): InputResourceWrapper? {
+        inputConnectionData.slice?.let { slice -> onReconnect?.invoke(slice) }
         inputConnectionData.connectionFactory.addByteRangeHeader(
             startByte,
             endByte,
@@ -241,13 +483,14 @@ class DataReadWriteWorkerImpl(
         try {
             bytesRead = this.read(buffer)
         } catch (ex: Exception) {
-            ex.printStackTrace()
             if (ex is InterruptedIOException) {
+                // expected - pause() and stop() interrupt the read.
                 inputConnectionData.remoteConnection?.apply { closeResource(this.inputResourceWrapper) }
                 bytesRead = ex.bytesTransferred
                 Thread.interrupted()
                 needsReconnection = true
             } else {
+                ex.printStackTrace()
                 reconnect(slice.startByte, slice.endByte, slice.downloaded.get())
             }
         }
@@ -1,7 +1,10 @@
 package com.tanodxyz.gdownload.worker
 
+import com.tanodxyz.gdownload.BandwidthLimiter
 import com.tanodxyz.gdownload.BiConsumer
+import com.tanodxyz.gdownload.Slice
 import com.tanodxyz.gdownload.connection.ConnectionManager
+import com.tanodxyz.gdownload.executors.BackgroundExecutor
 import com.tanodxyz.gdownload.io.OutputResourceWrapper
 
 /**
@@ -18,6 +21,17 @@ interface DataReadWriteWorkersManager {
         connectionData: ConnectionManager.ConnectionData
     ): Exception?
 
+    /**
+     * Same as [addWorker] but the result is given to [onFinished] and this call may return before
+     * it - worker that pauses gives the calling thread back if [setResumeExecutor] was set.
+     */
+    fun addWorker(
+        connectionData: ConnectionManager.ConnectionData,
+        onFinished: (Exception?) -> Unit
+    ) {
+        onFinished(addWorker(connectionData))
+    }
+
     /**
      * It will cause all the [DataReadWriteWorker]s to stop irrespective of the state of the
      * [DataReadWriteWorker]
@@ -38,16 +52,51 @@ interface DataReadWriteWorkersManager {
      * It will pause/freeze all the [DataReadWriteWorker]s and the result will be given in the form of
      * [callback].
      * Note:- Best possible attempt is made to freeze/pause all the workers immediately and notify the user
-     * with [callback].
+     * with [callback]. [callback] means pause was accepted by every worker - workers may still finish
+     * the write in progress after it, [setPauseQuiescenceListener] tells when they did.
      */
     fun pauseAllWorkers(callback: BiConsumer<Boolean, String>)
 
+    /**
+     * Same as [pauseAllWorkers] but connections are kept open for [softPauseGraceMilliSecs].
+     * @see DataReadWriteWorker.softPause
+     */
+    fun pauseAllWorkers(softPauseGraceMilliSecs: Long, callback: BiConsumer<Boolean, String>) {
+        pauseAllWorkers(callback)
+    }
+
     /**
      * It will resume all the [DataReadWriteWorker]s and the result will be given in the form of
      * [callback].
      * Note:- Best possible attempt is made to resume all the workers immediately and notify the user
-     * with [callback].
+     * with [callback]. [callback] means resume was accepted by every worker, their threads continue
+     * after it.
      */
     fun resumeAllWorkers(callback: BiConsumer<Boolean, String>)
+
+    /**
+     * Workers added after this call share [bandwidthLimiter]. null means no throttling.
+     */
+    fun setBandwidthLimiter(bandwidthLimiter: BandwidthLimiter?) {}
+
+    /**
+     * Workers added with the callback [addWorker] after this call end their job when paused and
+     * continue on [executor] after resume, so paused downloads hold no threads. null keeps
+     * paused workers parked on their threads.
+     */
+    fun setResumeExecutor(executor: BackgroundExecutor?) {}
+
+    /**
+     * [listener] is called with the slice of a worker added after this call each time the worker
+     * reconnects on it's own - after a failed read or a pause that closed it's connection.
+     */
+    fun setReconnectListener(listener: ((Slice) -> Unit)?) {}
+
+    /**
+     * [listener] is called with nanoseconds from a successful [pauseAllWorkers] call until every
+     * worker it paused has stopped writing. Not called if the batch is resumed or stopped before
+     * that.
+     */
+    fun setPauseQuiescenceListener(listener: ((Long) -> Unit)?) {}
 }
 
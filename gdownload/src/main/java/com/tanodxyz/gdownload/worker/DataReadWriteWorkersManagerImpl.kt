@@ -1,17 +1,32 @@
 package com.tanodxyz.gdownload.worker
 
+ import com.tanodxyz.gdownload.BandwidthLimiter
  import com.tanodxyz.gdownload.BiConsumer
+ import com.tanodxyz.gdownload.Slice
  import com.tanodxyz.gdownload.connection.ConnectionManager
+ import com.tanodxyz.gdownload.executors.BackgroundExecutor
  import com.tanodxyz.gdownload.io.OutputResourceWrapper
  import java.util.concurrent.atomic.AtomicBoolean
- import java.util.concurrent.atomic.AtomicReference
+ import java.util.concurrent.atomic.AtomicInteger
 
 class DataReadWriteWorkersManagerImpl : DataReadWriteWorkersManager {
     private var outputIsRandomAccess: Boolean = false
     private var outputResourceWrapper: OutputResourceWrapper? = null
-    private val dataDownloadWorkers = mutableListOf<DataReadWriteWorker>()
+    private val dataDownloadWorkers = mutableListOf<DataReadWriteWorkerImpl>()
     private var released = AtomicBoolean(false)
 
+    @Volatile
+    private var bandwidthLimiter: BandwidthLimiter? = null
+
+    @Volatile
+    private var resumeExecutor: BackgroundExecutor? = null
+
+    @Volatile
+    private var reconnectListener: ((Slice) -> Unit)? = null
+
+    @Volatile
+    private var pauseQuiescenceListener: ((Long) -> Unit)? = null
+
     override fun init(
         outputIsRandomAccess: Boolean,
         outputResourceWrapper: OutputResourceWrapper
@@ -39,106 +54,142 @@ class DataReadWriteWorkersManagerImpl : DataReadWriteWorkersManager {
         if(released.get()) {
             return Exception("Worker manager shutdown!")
         }
+        val worker = newWorker(connectionData)
+        worker.init()
+        return worker.doJob()
+    }
+
+    override fun addWorker(
+        connectionData: ConnectionManager.ConnectionData,
+        onFinished: (Exception?) -> Unit
+    ) {
+        val executor = resumeExecutor
+        if (executor == null) {
+            onFinished(addWorker(connectionData))
+            return
+        }
+        if(released.get()) {
+            onFinished(Exception("Worker manager shutdown!"))
+            return
+        }
+        val worker = newWorker(connectionData)
+        worker.init()
+        finishOrWaitForResume(worker, worker.doJobReleasingThreadWhenPaused(), executor, onFinished)
+    }
+
+    private fun newWorker(connectionData: ConnectionManager.ConnectionData): DataReadWriteWorkerImpl {
         val worker =
             DataReadWriteWorkerImpl(
                 connectionData,
                 outputResourceWrapper!!,
-                outputIsRandomAccess
+                outputIsRandomAccess,
+                bandwidthLimiter = bandwidthLimiter,
+                onReconnect = reconnectListener
             )
         synchronized(dataDownloadWorkers) {
             dataDownloadWorkers.add(worker)
         }
+        return worker
+    }
 
-        worker.init()
-        return worker.doJob()
+    /**
+     * Suspended worker is continued on [executor] once resumed or stopped.
+     */
+    private fun finishOrWaitForResume(
+        worker: DataReadWriteWorkerImpl,
+        result: Exception?,
+        executor: BackgroundExecutor,
+        onFinished: (Exception?) -> Unit
+    ) {
+        if (!worker.isSuspended()) {
+            onFinished(result)
+            return
+        }
+        worker.whenResumed {
+            val continuation = Runnable {
+                finishOrWaitForResume(worker, worker.continueJob(), executor, onFinished)
+            }
+            if (executor.isTerminated()) {
+                // nothing will run it, worker stops on the calling thread.
+                worker.stop()
+                continuation.run()
+            } else {
+                executor.execute(continuation)
+            }
+        }
     }
 
     override fun stopAllWorkers(callback: BiConsumer<Boolean, String>) {
         if(released.get()) {
             return
         }
-        synchronized(dataDownloadWorkers) {
-            val aliveWorkers = dataDownloadWorkers.filter { it.isAlive() }
-            if (aliveWorkers.isEmpty()) {
-                callback.accept(false, "No worker to stop")
-                return@synchronized
+        val aliveWorkers = workersSnapshot { it.isAlive() }
+        if (aliveWorkers.isEmpty()) {
+            callback.accept(false, "No worker to stop")
+            return
+        }
+        val batch = BatchAcknowledgement(aliveWorkers.size, callback, "stopped")
+        aliveWorkers.forEach { worker ->
+            val acknowledged = AtomicBoolean(false)
+            val acknowledge = {
+                if (acknowledged.compareAndSet(false, true)) {
+                    worker.registerObserverForStateChanges(null)
+                    batch.acknowledge()
+                }
             }
-            val stopCount = AtomicReference(mutableListOf<Int>())
-            aliveWorkers.forEach { worker ->
-                worker.registerObserverForStateChanges { workerId, workerState ->
-                    if (workerState.isCompleted()) {
-                        val alreadyAdded = stopCount.get().contains(workerId)
-                        if (!alreadyAdded) {
-                            stopCount.get().add(workerId)
-                        }
-                        worker.registerObserverForStateChanges(null)
-                    }
-                    if (aliveWorkers.count() == stopCount.get().count()) {
-                        callback.accept(true, "stopped")
-                    }
+            worker.registerObserverForStateChanges { _, workerState ->
+                if (workerState.isCompleted()) {
+                    acknowledge()
                 }
-                worker.stop()
+            }
+            worker.stop()
+            if (worker.isDead()) {
+                acknowledge()
             }
         }
     }
 
     override fun pauseAllWorkers(callback: BiConsumer<Boolean, String>) {
+        pauseAllWorkers(0, callback)
+    }
+
+    override fun pauseAllWorkers(
+        softPauseGraceMilliSecs: Long,
+        callback: BiConsumer<Boolean, String>
+    ) {
         if(released.get()) {
             return
         }
-        synchronized(dataDownloadWorkers) {
-            val runningWorkers = dataDownloadWorkers.filter { it.isRunning() }
-            val runningCount = runningWorkers.count()
-            val pausedStoppedCount = AtomicReference(mutableListOf<Int>())
-            if (runningCount == 0) {
-                callback.accept(false, "no running workers to pause")
-                return@synchronized
+        val runningWorkers = workersSnapshot { it.isRunning() }
+        if (runningWorkers.isEmpty()) {
+            callback.accept(false, "no running workers to pause")
+            return
+        }
+        // pausing is a state change on the caller thread - a worker finishes the write it is doing
+        // and writes nothing more until resumed, so the batch is acknowledged without waiting for
+        // worker threads to reach their next read. threads are interrupted after it and the
+        // quiescence listener learns when the last of them stopped writing.
+        val batch = BatchAcknowledgement(runningWorkers.size, callback, "paused")
+        val quiescence = pauseQuiescenceListener?.let { listener ->
+            PauseQuiescence(runningWorkers.size, System.nanoTime(), listener)
+        }
+        runningWorkers.forEach { worker ->
+            quiescence?.watch(worker)
+            if (softPauseGraceMilliSecs > 0) {
+                worker.softPause(softPauseGraceMilliSecs)
+            } else {
+                worker.requestPause()
             }
-            var iShouldCheckAllWorkers = true
-            var index = 0
-            while (iShouldCheckAllWorkers) {
-                val worker = runningWorkers[index]
-                worker.registerObserverForStateChanges { workerId, workerState ->
-                    val (stoppedWorker, stopMsg) = Pair(
-                        workerState.isStopped(),
-                        "can't pause workers. workers stopped initiated already"
-                    )
-                    val (errorInWorker, errorMsg) = Pair(
-                        workerState.isError(),
-                        "can't pause workers. some workers failed. download failed"
-                    )
-                    var noPauseMsg = ""
-                    if (stoppedWorker) {
-                        noPauseMsg = stopMsg
-                    }
-                    if (errorInWorker) {
-                        noPauseMsg = errorMsg
-                    }
-                    if (noPauseMsg.isNotBlank()) {
-                        callback.accept(false, noPauseMsg)
-                        iShouldCheckAllWorkers = false
-                        worker.registerObserverForStateChanges(null)
-                        return@registerObserverForStateChanges
-                    }
-                    if (workerState.isPaused()) {
-                        val alreadyAdded = pausedStoppedCount.get().contains(workerId)
-                        if (!alreadyAdded) {
-                            pausedStoppedCount.get().add(workerId)
-                        }
-                        worker.registerObserverForStateChanges(null)
-                    }
-                    if (runningCount == pausedStoppedCount.get().count()) {
-                        callback.accept(true, "paused")
-                    }
-
-                }
-                worker.pause()
-                ++index
-                if (index >= runningCount) {
-                    iShouldCheckAllWorkers = false
-                }
+            val workerState = worker.getWorkerState()
+            when {
+                workerState == DataReadWriteWorker.WorkerState.STOPPING || workerState.isStopped() ->
+                    batch.fail("can't pause workers. workers stopped initiated already")
+                workerState.isError() -> batch.fail("can't pause workers. some workers failed. download failed")
+                else -> batch.acknowledge()
             }
-
+        }
+        if (softPauseGraceMilliSecs <= 0) {
+            runningWorkers.forEach { worker -> worker.wakeUpPaused() }
         }
     }
 
@@ -146,30 +197,95 @@ class DataReadWriteWorkersManagerImpl : DataReadWriteWorkersManager {
         if(released.get()) {
             return
         }
+        val pausedWorkers = workersSnapshot {
+            it.isPaused() || it.getWorkerState() == DataReadWriteWorker.WorkerState.PAUSING
+        }
+        if (pausedWorkers.isEmpty()) {
+            callback.accept(false, "no paused workers to resume.")
+            return
+        }
+        // resuming is a state change on the caller thread too, worker threads are unparked or
+        // suspended workers submitted after the batch is acknowledged.
+        val batch = BatchAcknowledgement(pausedWorkers.size, callback, "resumed")
+        pausedWorkers.forEach { worker ->
+            worker.registerObserverForStateChanges(null)
+            worker.requestResume()
+            if (worker.isDead()) {
+                batch.fail("can't resume workers. some workers are not alive")
+            } else {
+                batch.acknowledge()
+            }
+        }
+        pausedWorkers.forEach { worker -> worker.wakeUpResumed() }
+    }
+
+    override fun setBandwidthLimiter(bandwidthLimiter: BandwidthLimiter?) {
+        this.bandwidthLimiter = bandwidthLimiter
+    }
+
+    override fun setResumeExecutor(executor: BackgroundExecutor?) {
+        this.resumeExecutor = executor
+    }
+
+    override fun setReconnectListener(listener: ((Slice) -> Unit)?) {
+        this.reconnectListener = listener
+    }
+
+    override fun setPauseQuiescenceListener(listener: ((Long) -> Unit)?) {
+        this.pauseQuiescenceListener = listener
+    }
+
+    private inline fun workersSnapshot(filter: (DataReadWriteWorkerImpl) -> Boolean): List<DataReadWriteWorkerImpl> {
         synchronized(dataDownloadWorkers) {
-            val pausedWorkers = dataDownloadWorkers.filter { it.isPaused() }
-            val pausedCount = pausedWorkers.count()
-            if (pausedCount == 0) {
-                callback.accept(false, "no paused workers to resume.")
-                return@synchronized
+            return dataDownloadWorkers.filter(filter)
+        }
+    }
+
+    /**
+     * Counts down acknowledgements of a batch operation and notifies the callback exactly once.
+     */
+    private class BatchAcknowledgement(
+        workersCount: Int,
+        private val callback: BiConsumer<Boolean, String>,
+        private val successMessage: String
+    ) {
+        private val remaining = AtomicInteger(workersCount)
+        private val notified = AtomicBoolean(false)
+
+        fun acknowledge() {
+            if (remaining.decrementAndGet() == 0 && notified.compareAndSet(false, true)) {
+                callback.accept(true, successMessage)
             }
-            val resumeCount = AtomicReference(mutableListOf<Int>())
-            pausedWorkers.forEach { worker ->
-                worker.registerObserverForStateChanges { workerId, workerState ->
-                    if (workerState.isRunning()) {
-                        val alreadyAdded = resumeCount.get().contains(workerId)
-                        if (!alreadyAdded) {
-                            resumeCount.get().add(workerId)
-                        }
-                        worker.registerObserverForStateChanges(null)
-                    }
-                    if (pausedCount == resumeCount.get().count()) {
-                        callback.accept(true, "resumed")
+        }
+
+        fun fail(message: String) {
+            if (notified.compareAndSet(false, true)) {
+                callback.accept(false, message)
+            }
+        }
+    }
+
+    /**
+     * Counts workers of a pause batch that reached [DataReadWriteWorker.WorkerState.PAUSE] or died
+     * and reports the elapsed time once all did.
+     */
+    private class PauseQuiescence(
+        workersCount: Int,
+        private val startNanos: Long,
+        private val listener: (Long) -> Unit
+    ) {
+        private val remaining = AtomicInteger(workersCount)
+
+        fun watch(worker: DataReadWriteWorkerImpl) {
+            val arrived = AtomicBoolean(false)
+            worker.registerObserverForStateChanges { _, workerState ->
+                if ((workerState.isPaused() || !workerState.isAlive()) && arrived.compareAndSet(false, true)) {
+                    worker.registerObserverForStateChanges(null)
+                    if (remaining.decrementAndGet() == 0) {
+                        listener(System.nanoTime() - startNanos)
                     }
                 }
-                worker.resume()
             }
-
         }
     }
-}
\ No newline at end of file
+}
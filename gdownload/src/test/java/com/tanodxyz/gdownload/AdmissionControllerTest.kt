@@ -0,0 +1,107 @@
+package com.tanodxyz.gdownload
+
+import org.junit.Assert.*
+import org.junit.Test
+
+class AdmissionControllerTest {
+
+    @Test
+    fun capsRunningDownloadsAndConnections() {
+        val controller = AdmissionController(maxRunningDownloads = 2, maxConnections = 10)
+        val first = FakeClient(0)
+        val second = FakeClient(0)
+        assertEquals(8, controller.tryAcquire(first, 8)!!.connections)
+        val partial = controller.tryAcquire(second, 8)!!
+        assertEquals(2, partial.connections)
+        assertNull(controller.tryAcquire(first, 1))
+        assertEquals(1, controller.waitingClientsCount())
+
+        partial.release()
+        partial.release()
+        assertEquals(1, first.notifications)
+        assertEquals(1, controller.runningDownloadsCount())
+        assertEquals(8, controller.usedConnectionsCount())
+    }
+
+    @Test
+    fun higherPriorityGroupIsServedFirst() {
+        val controller = AdmissionController(maxRunningDownloads = 1)
+        val low = FakeClient(1)
+        val otherLow = FakeClient(1)
+        val high = FakeClient(5)
+        val running = controller.tryAcquire(low, 4)!!
+        assertNull(controller.tryAcquire(high, 4))
+        assertNull(controller.tryAcquire(otherLow, 4))
+
+        running.release()
+        assertEquals(1, high.notifications)
+        assertEquals(0, otherLow.notifications)
+        assertNull(controller.tryAcquire(otherLow, 4))
+        val highPermit = controller.tryAcquire(high, 4)!!
+
+        highPermit.release()
+        assertEquals(1, otherLow.notifications)
+        assertNotNull(controller.tryAcquire(otherLow, 4))
+    }
+
+    @Test
+    fun withdrawnClientLetsLowerPriorityIn() {
+        val controller = AdmissionController(maxRunningDownloads = 1)
+        val low = FakeClient(0)
+        val high = FakeClient(1)
+        val running = controller.tryAcquire(low, 1)!!
+        assertNull(controller.tryAcquire(high, 1))
+        controller.withdraw(high)
+        running.release()
+        assertEquals(0, high.notifications)
+        assertNotNull(controller.tryAcquire(low, 1))
+    }
+
+    @Test
+    fun resumedDownloadNeedsEveryPendingSlice() {
+        val controller = AdmissionController(maxConnections = 2)
+        val client = FakeClient(0)
+        val resumed = Download(1, "http://localhost/1", "file-1", maxNumberOfConnections = 2).apply {
+            set(sliceData = (0 until 6).map { Slice(it, downloadComplete = it < 3) })
+        }
+        val other = controller.tryAcquire(client, 2)!!
+        assertNull(controller.tryAcquire(client, resumed))
+        other.release()
+        // needs more then the cap so it runs alone.
+        assertEquals(3, controller.tryAcquire(client, resumed)!!.connections)
+        assertNull(controller.tryAcquire(client, 1))
+    }
+
+    @Test
+    fun unregisterReleasesPermits() {
+        val controller = AdmissionController(maxRunningDownloads = 2)
+        val group = FakeClient(0)
+        val waiting = FakeClient(0)
+        val permit = controller.tryAcquire(group, 3)!!
+        controller.tryAcquire(group, 3)
+        assertNull(controller.tryAcquire(waiting, 1))
+        controller.unregister(group)
+        assertEquals(0, controller.runningDownloadsCount())
+        assertEquals(1, waiting.notifications)
+        permit.release()
+        assertEquals(0, controller.usedConnectionsCount())
+    }
+
+    @Test
+    fun downloaderReadsAreReportedToParentLimiter() {
+        val controller = AdmissionController()
+        val limiter = BandwidthLimiter().apply { parent = controller.bandwidthLimiter }
+        limiter.onBytesRead(100)
+        BandwidthLimiter().apply { parent = controller.bandwidthLimiter }.onBytesRead(50)
+        assertEquals(100, limiter.consumedBytes())
+        assertEquals(150, controller.bandwidthLimiter.consumedBytes())
+    }
+
+    private class FakeClient(override val admissionPriority: Int) : AdmissionController.Client {
+        var notifications = 0
+
+        override fun onAdmissionAvailable() {
+            ++notifications
+        }
+    }
+}
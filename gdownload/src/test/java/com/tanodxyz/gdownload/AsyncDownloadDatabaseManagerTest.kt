@@ -0,0 +1,110 @@
+package com.tanodxyz.gdownload
+
+import com.tanodxyz.gdownload.database.AsyncDownloadDatabaseManager
+import com.tanodxyz.gdownload.database.JournalDownloadDatabaseManager
+import org.junit.After
+import org.junit.Assert.*
+import org.junit.Before
+import org.junit.Test
+import java.io.File
+import java.nio.file.Files
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.TimeUnit
+
+class AsyncDownloadDatabaseManagerTest {
+    private lateinit var directory: File
+    private lateinit var journal: JournalDownloadDatabaseManager
+    private lateinit var asyncDatabaseManager: AsyncDownloadDatabaseManager
+
+    @Before
+    fun setUp() {
+        directory = Files.createTempDirectory("async-db").toFile()
+        journal = JournalDownloadDatabaseManager(directory)
+        asyncDatabaseManager = AsyncDownloadDatabaseManager(journal)
+    }
+
+    @After
+    fun tearDown() {
+        journal.release()
+        directory.deleteRecursively()
+    }
+
+    @Test
+    fun operationsRunInSubmissionOrder() {
+        val downloads = MutableList(10) { index -> newDownload("file$index") }
+        asyncDatabaseManager.insertAll(downloads)
+        downloads.forEach { it.set(status = Download.PAUSED) }
+        asyncDatabaseManager.updateAll(downloads)
+        val deletedRows = asyncDatabaseManager.deleteByIds(downloads.take(4).map { it.id })
+        val incompleteDownloads = asyncDatabaseManager.findAllInCompleteDownloads()
+        assertEquals(4, deletedRows.get(5, TimeUnit.SECONDS))
+        assertEquals(6, incompleteDownloads.get(5, TimeUnit.SECONDS).count())
+    }
+
+    @Test
+    fun onlyIncompleteDownloadsOfGroupAreFound() {
+        val downloads = listOf(
+            newDownload("a").apply { set(queueId = 7) },
+            newDownload("b").apply { set(queueId = 7, status = Download.DOWNLOADED) },
+            newDownload("c").apply { set(queueId = 8) }
+        )
+        asyncDatabaseManager.insertAll(downloads)
+        val groupDownloads = asyncDatabaseManager.findAllGroupInCompleteDownloads(7)
+        assertEquals(listOf("a"), groupDownloads.get(5, TimeUnit.SECONDS).map { it.getFilePath() })
+    }
+
+    @Test
+    fun callbackReceivesResultOnDatabaseThread() {
+        val latch = CountDownLatch(1)
+        var callbackThreadName: String? = null
+        var callbackResult: Download? = null
+        asyncDatabaseManager.insertOrUpdateDownload(newDownload("a"))
+        asyncDatabaseManager.findDownloadByFilePath("a") { download, _ ->
+            callbackThreadName = Thread.currentThread().name
+            callbackResult = download
+            latch.countDown()
+        }
+        assertTrue(latch.await(5, TimeUnit.SECONDS))
+        assertEquals(AsyncDownloadDatabaseManager.DATABASE_THREAD_NAME, callbackThreadName)
+        assertEquals("a", callbackResult?.getFilePath())
+    }
+
+    @Test
+    fun errorsAreDeliveredToFutureAndCallback() {
+        val latch = CountDownLatch(1)
+        var callbackError: Throwable? = null
+        val future = asyncDatabaseManager.getDownloadsPage(0, 0) { _, error ->
+            callbackError = error
+            latch.countDown()
+        }
+        assertTrue(latch.await(5, TimeUnit.SECONDS))
+        assertTrue(callbackError is IllegalArgumentException)
+        try {
+            future.get()
+            fail()
+        } catch (ex: ExecutionException) {
+            assertTrue(ex.cause is IllegalArgumentException)
+        }
+    }
+
+    @Test
+    fun bulkOperationsAreReplayedFromJournal() {
+        val downloads = MutableList(3) { index -> newDownload("file$index") }
+        asyncDatabaseManager.insertAll(downloads)
+        asyncDatabaseManager.deleteByIds(listOf(downloads[1].id)).get(5, TimeUnit.SECONDS)
+        journal.release()
+        assertEquals(
+            listOf("file0", "file2"),
+            JournalDownloadDatabaseManager(directory).getAll().map { it.getFilePath() })
+    }
+
+    private var nextId = 1L
+
+    private fun newDownload(filePath: String) = Download(
+        id = nextId++,
+        url = "http://localhost/$filePath",
+        filePath = filePath,
+        status = Download.DOWNLOADING
+    )
+}
@@ -0,0 +1,85 @@
+package com.tanodxyz.gdownload
+
+import org.junit.Assert.*
+import org.junit.Test
+import java.util.concurrent.TimeUnit
+
+class BandwidthSharingTest {
+
+    @Test
+    fun sharesFollowWeightsWithinLimit() {
+        val allocator = BandwidthAllocator(limitBytesPerSecond = 1_000_000)
+        val shares = allocator.allocate(
+            listOf(
+                BandwidthAllocator.Demand(1, 3.0, 0, 0),
+                BandwidthAllocator.Demand(2, 1.0, 0, 0)
+            )
+        )
+        assertEquals(750_000L, shares[0].allocatedBytesPerSecond)
+        assertEquals(250_000L, shares[1].allocatedBytesPerSecond)
+    }
+
+    @Test
+    fun unusedShareIsBorrowed() {
+        val allocator = BandwidthAllocator(limitBytesPerSecond = 1_000_000)
+        // download 2 used only 100k of it's 500k, download 1 used all of it's share.
+        val shares = allocator.allocate(
+            listOf(
+                BandwidthAllocator.Demand(1, 1.0, 500_000, 500_000),
+                BandwidthAllocator.Demand(2, 1.0, 100_000, 500_000)
+            )
+        )
+        assertEquals(125_000L, shares[1].allocatedBytesPerSecond)
+        assertEquals(875_000L, shares[0].allocatedBytesPerSecond)
+        assertEquals(1_000_000L, shares.sumOf { it.allocatedBytesPerSecond })
+    }
+
+    @Test
+    fun nothingIsThrottledWhileThroughputRampsUp() {
+        val allocator = BandwidthAllocator()
+        // slow start - each sample doubles.
+        listOf(50_000L, 100_000L, 200_000L, 400_000L).forEach { used ->
+            val shares = allocator.allocate(
+                listOf(
+                    BandwidthAllocator.Demand(1, 1.0, used, 0),
+                    BandwidthAllocator.Demand(2, 1.0, used, 0)
+                )
+            )
+            assertEquals(0L, shares.sumOf { it.allocatedBytesPerSecond })
+        }
+    }
+
+    @Test
+    fun estimatedCapacityProbesWhileSaturated() {
+        val allocator = BandwidthAllocator()
+        val demands = listOf(
+            BandwidthAllocator.Demand(1, 1.0, 600_000, 0),
+            BandwidthAllocator.Demand(2, 1.0, 400_000, 0)
+        )
+        // warm-up ends once throughput stopped growing.
+        repeat(3) { assertEquals(0L, allocator.allocate(demands).sumOf { it.allocatedBytesPerSecond }) }
+        val first = allocator.allocate(demands)
+        assertEquals(1_000_000L, first.sumOf { it.allocatedBytesPerSecond })
+        val second = allocator.allocate(first.map {
+            BandwidthAllocator.Demand(it.downloadId, it.weight, it.allocatedBytesPerSecond, it.allocatedBytesPerSecond)
+        })
+        assertTrue(second.sumOf { it.allocatedBytesPerSecond } > 1_000_000L)
+        // single download on an unknown link is not throttled.
+        assertEquals(0L, allocator.allocate(listOf(BandwidthAllocator.Demand(1, 1.0, 1, 0)))[0].allocatedBytesPerSecond)
+    }
+
+    @Test
+    fun limiterKeepsRate() {
+        val limiter = BandwidthLimiter(200_000)
+        val start = System.nanoTime()
+        repeat(100) { limiter.onBytesRead(1000) }
+        val elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)
+        // 100k at 200k/s is half a second, minus the initial burst.
+        assertTrue("took $elapsedMillis ms", elapsedMillis in 350..1500)
+        assertEquals(100_000L, limiter.consumedBytes())
+        limiter.bytesPerSecond = 0
+        val unlimitedStart = System.nanoTime()
+        repeat(100_000) { limiter.onBytesRead(1000) }
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - unlimitedStart) < 500)
+    }
+}
@@ -0,0 +1,167 @@
+package com.tanodxyz.gdownload
+
+import com.tanodxyz.gdownload.database.CachingDownloadDatabaseManager
+import com.tanodxyz.gdownload.database.DownloadDatabaseManager
+import org.junit.Assert.*
+import org.junit.Test
+
+class CachingDownloadDatabaseManagerTest {
+
+    @Test
+    fun readsAreServedFromMemory() {
+        val store = InMemoryDatabaseManager()
+        val cache = CachingDownloadDatabaseManager(store)
+        cache.insertOrUpdateDownload(newDownload("a", Download.DOWNLOADING))
+        repeat(3) {
+            assertNotNull(cache.findDownloadByFilePath("a"))
+        }
+        assertEquals(0, store.reads)
+        assertEquals(3, cache.stats.hits)
+        assertEquals(1.0, cache.stats.hitRate(), 0.0)
+        assertNull(cache.findDownloadByFilePath("missing"))
+        assertEquals(1, store.reads)
+        assertEquals(1, cache.stats.misses)
+    }
+
+    @Test
+    fun cachedDownloadsAreCopies() {
+        val cache = CachingDownloadDatabaseManager(InMemoryDatabaseManager())
+        val download = newDownload("a", Download.DOWNLOADING)
+        cache.insertOrUpdateDownload(download)
+        download.set(status = Download.FAILED)
+        cache.findDownloadByFilePath("a")!!.set(status = Download.STOPPED)
+        assertEquals(Download.DOWNLOADING, cache.findDownloadByFilePath("a")!!.getStatus())
+    }
+
+    @Test
+    fun onlyInactiveDownloadsAreEvicted() {
+        val store = InMemoryDatabaseManager()
+        val cache = CachingDownloadDatabaseManager(store, maxCachedDownloads = 2)
+        cache.insertOrUpdateDownload(newDownload("live", Download.DOWNLOADING))
+        cache.insertOrUpdateDownload(newDownload("a", Download.DOWNLOADED))
+        cache.insertOrUpdateDownload(newDownload("b", Download.DOWNLOADED))
+        cache.findDownloadByFilePath("a")
+        cache.insertOrUpdateDownload(newDownload("c", Download.DOWNLOADED))
+        assertEquals(1, cache.stats.evictions)
+        assertEquals(1, cache.stats.liveDownloads)
+        assertEquals(2, cache.stats.recentDownloads)
+        cache.findDownloadByFilePath("live")
+        cache.findDownloadByFilePath("a")
+        assertEquals(0, store.reads)
+        assertNotNull(cache.findDownloadByFilePath("b"))
+        assertEquals(1, store.reads)
+    }
+
+    @Test
+    fun pausedDownloadsAreEvicted() {
+        val store = InMemoryDatabaseManager()
+        val cache = CachingDownloadDatabaseManager(store, maxCachedDownloads = 1)
+        cache.insertOrUpdateDownload(newDownload("paused", Download.PAUSED))
+        cache.insertOrUpdateDownload(newDownload("a", Download.DOWNLOADED))
+        assertEquals(1, cache.stats.evictions)
+        assertEquals(0, cache.stats.liveDownloads)
+        assertNotNull(cache.findDownloadByFilePath("paused"))
+        assertEquals(1, store.reads)
+    }
+
+    @Test
+    fun groupDownloadsAreCachedAndKeptInSync() {
+        val store = InMemoryDatabaseManager()
+        val cache = CachingDownloadDatabaseManager(store)
+        store.insertOrUpdateDownload(newDownload("a", Download.ENQUEUED, 7))
+        store.insertOrUpdateDownload(newDownload("b", Download.ENQUEUED, 7))
+        assertEquals(2, cache.findAllGroupDownloads(7).count())
+        cache.insertOrUpdateDownload(newDownload("c", Download.ENQUEUED, 7))
+        cache.insertOrUpdateDownload(newDownload("a", Download.ENQUEUED, 8))
+        cache.deleteDownloadByFilePath("b")
+        val readsBefore = store.reads
+        val group = cache.findAllGroupDownloads(7)
+        assertEquals(readsBefore, store.reads)
+        assertEquals(listOf("c"), group.map { it.getFilePath() })
+        assertEquals(store.findAllGroupDownloads(7).count(), group.count())
+    }
+
+    @Test
+    fun findByIdUsesFilePathCache() {
+        val store = InMemoryDatabaseManager()
+        val cache = CachingDownloadDatabaseManager(store)
+        val download = newDownload("a", Download.PAUSED)
+        cache.insertOrUpdateDownload(download)
+        assertEquals("a", cache.findDownloadByDownloadId(download.id.toInt())!!.getFilePath())
+        assertEquals(0, store.reads)
+        cache.deleteDownloadByFilePath("a")
+        assertNull(cache.findDownloadByDownloadId(download.id.toInt()))
+        assertEquals(1, store.reads)
+    }
+
+    private fun newDownload(filePath: String, status: String, queueId: Long = 1) =
+        Download(
+            id = nextId++,
+            url = "http://localhost/$filePath",
+            filePath = filePath,
+            status = status,
+            queueId = queueId
+        )
+
+    private var nextId = 1L
+
+    private class InMemoryDatabaseManager : DownloadDatabaseManager {
+        private val downloads = LinkedHashMap<String, Download>()
+        var reads = 0
+
+        override fun insertDownload(download: Download) {
+            downloads[download.getFilePath()] = download.copy()
+        }
+
+        override fun insertOrUpdateDownload(Download: Download) {
+            downloads[Download.getFilePath()] = Download.copy()
+        }
+
+        override fun deleteDownloadByFilePath(filePath: String): Int {
+            return if (downloads.remove(filePath) != null) 1 else 0
+        }
+
+        override fun deleteAllDownloads(): Int {
+            val count = downloads.count()
+            downloads.clear()
+            return count
+        }
+
+        override fun deleteDownloads(status: String): Int {
+            val before = downloads.count()
+            downloads.values.removeAll { it.getStatus() == status }
+            return before - downloads.count()
+        }
+
+        override fun findAllGroupDownloads(groupId: Long): MutableList<Download> {
+            ++reads
+            return downloads.values.filter { it.getQueueId() == groupId }.map { it.copy() }
+                .toMutableList()
+        }
+
+        override fun findAllInCompleteDownloads(): MutableList<Download> {
+            ++reads
+            return downloads.values.filter { it.isIncompleteDownload() }.map { it.copy() }
+                .toMutableList()
+        }
+
+        override fun findDownloadByFilePath(filePath: String): Download? {
+            ++reads
+            return downloads[filePath]?.copy()
+        }
+
+        override fun findDownloadByDownloadId(id: Int): Download? {
+            ++reads
+            return downloads.values.firstOrNull { it.id == id.toLong() }?.copy()
+        }
+
+        override fun getAll(): MutableList<Download> {
+            ++reads
+            return downloads.values.map { it.copy() }.toMutableList()
+        }
+
+        override fun isOpen(): Boolean = true
+
+        override fun release() {}
+    }
+}
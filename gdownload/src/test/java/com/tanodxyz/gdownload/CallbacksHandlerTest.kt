@@ -0,0 +1,79 @@
+package com.tanodxyz.gdownload
+
+import com.tanodxyz.gdownload.executors.BackgroundExecutor
+import org.junit.Assert.*
+import org.junit.Test
+import java.util.concurrent.RejectedExecutionException
+
+class CallbacksHandlerTest {
+
+    @Test
+    fun rejectedConflatedCallbackDoesNotSwallowLaterOnes() {
+        val executor = RejectingOnceExecutor()
+        val handler = MainThreadCallbacksHandler(executor)
+        val delivered = mutableListOf<Int>()
+        with(handler) {
+            Runnable { delivered.add(1) }.runConflatedOnSelectedThread(KEY)
+            Runnable { delivered.add(2) }.runConflatedOnSelectedThread(KEY)
+        }
+        executor.runAll()
+        assertEquals(listOf(2), delivered)
+    }
+
+    @Test
+    fun pendingCallbackIsConflated() {
+        val executor = RejectingOnceExecutor(rejectFirst = false)
+        val handler = MainThreadCallbacksHandler(executor)
+        val delivered = mutableListOf<Int>()
+        with(handler) {
+            Runnable { delivered.add(1) }.runConflatedOnSelectedThread(KEY)
+            Runnable { delivered.add(2) }.runConflatedOnSelectedThread(KEY)
+        }
+        executor.runAll()
+        assertEquals(listOf(2), delivered)
+    }
+
+    /**
+     * Test thread counts as main thread so callbacks go to the background executor.
+     */
+    private class MainThreadCallbacksHandler(executor: BackgroundExecutor) :
+        CallbacksHandler(false, executor) {
+        override fun isCallingThreadMain(): Boolean = true
+    }
+
+    /**
+     * Runs tasks when asked to.
+     */
+    private class RejectingOnceExecutor(private var rejectFirst: Boolean = true) : BackgroundExecutor {
+        private val tasks = mutableListOf<Runnable>()
+
+        fun runAll() {
+            while (tasks.isNotEmpty()) {
+                tasks.removeAt(0).run()
+            }
+        }
+
+        override fun execute(runnable: Runnable): BackgroundExecutor.Cancelable {
+            if (rejectFirst) {
+                rejectFirst = false
+                throw RejectedExecutionException()
+            }
+            tasks.add(runnable)
+            return object : BackgroundExecutor.Cancelable {
+                override fun cancel() {
+                    tasks.remove(runnable)
+                }
+            }
+        }
+
+        override fun shutDown() = tasks.clear()
+
+        override fun cleanUp() = tasks.clear()
+
+        override fun isTerminated(): Boolean = false
+    }
+
+    companion object {
+        private const val KEY = 1L
+    }
+}
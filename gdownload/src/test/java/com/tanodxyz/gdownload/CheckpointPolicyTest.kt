@@ -0,0 +1,34 @@
+package com.tanodxyz.gdownload
+
+import org.junit.Assert.*
+import org.junit.Test
+
+class CheckpointPolicyTest {
+
+    @Test
+    fun firesOnBytesOrTime() {
+        val policy = CheckpointPolicy(intervalBytes = 1000, intervalMilliSecs = 2000)
+        assertFalse(policy.shouldCheckpoint(999, 1999, 0))
+        assertTrue(policy.shouldCheckpoint(1000, 0, 0))
+        assertTrue(policy.shouldCheckpoint(1, 2000, 0))
+        assertFalse(policy.shouldCheckpoint(0, 5000, 0))
+    }
+
+    @Test
+    fun disabledTriggersNeverFire() {
+        val policy = CheckpointPolicy(0, 0, onSliceCompletion = false)
+        assertFalse(policy.shouldCheckpoint(Long.MAX_VALUE, Long.MAX_VALUE, 4))
+        assertTrue(CheckpointPolicy(0, 0).shouldCheckpoint(0, 0, 1))
+    }
+
+    @Test
+    fun everyProgressUpdateFiresWhenBytesArrive() {
+        assertTrue(CheckpointPolicy.EVERY_PROGRESS_UPDATE.shouldCheckpoint(1, 0, 0))
+        assertFalse(CheckpointPolicy.EVERY_PROGRESS_UPDATE.shouldCheckpoint(0, 10_000, 0))
+    }
+
+    @Test(expected = IllegalArgumentException::class)
+    fun negativeIntervalsAreRejected() {
+        CheckpointPolicy(intervalBytes = -1)
+    }
+}
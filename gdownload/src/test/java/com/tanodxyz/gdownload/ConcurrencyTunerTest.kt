@@ -0,0 +1,42 @@
+package com.tanodxyz.gdownload
+
+import org.junit.Assert.*
+import org.junit.Test
+
+class ConcurrencyTunerTest {
+
+    @Test
+    fun climbsUntilLinkIsSaturated() {
+        // each download gets 1 MB/s from the server, link carries 6 MB/s.
+        val tuner = ConcurrencyTuner(1, 16)
+        val limits = run(tuner, 60) { running -> minOf(running * 1_000_000.0, 6_000_000.0) }
+        assertTrue(limits.last() in 6..7)
+        assertTrue(limits.takeLast(20).all { it <= 7 })
+    }
+
+    @Test
+    fun backsOffWhenLinkThrashes() {
+        // more then two downloads make everything slower.
+        val tuner = ConcurrencyTuner(1, 8)
+        val limits = run(tuner, 60) { running ->
+            if (running <= 2) running * 500_000.0 else 1_000_000.0 / (running - 1)
+        }
+        assertTrue(limits.takeLast(20).all { it <= 3 })
+    }
+
+    @Test
+    fun staysWithinBounds() {
+        val tuner = ConcurrencyTuner(2, 3)
+        val limits = run(tuner, 40) { running -> running * 1_000_000.0 }
+        assertTrue(limits.all { it in 2..3 })
+        assertEquals(3, limits.last())
+    }
+
+    private fun run(tuner: ConcurrencyTuner, samples: Int, throughputOf: (Int) -> Double): List<Int> {
+        var limit = tuner.limit
+        return (0 until samples).map {
+            limit = tuner.onSample(throughputOf(limit), limit, true)
+            limit
+        }
+    }
+}
@@ -0,0 +1,257 @@
+package com.tanodxyz.gdownload
+
+import com.tanodxyz.gdownload.connection.Connection
+import com.tanodxyz.gdownload.connection.ConnectionManager
+import com.tanodxyz.gdownload.connection.RemoteConnection
+import com.tanodxyz.gdownload.connection.URLConnectionHandler
+import com.tanodxyz.gdownload.executors.ExecutorTopology
+import com.tanodxyz.gdownload.io.InputResourceWrapper
+import com.tanodxyz.gdownload.io.RandomAccessOutputResourceWrapper
+import com.tanodxyz.gdownload.worker.DataReadWriteWorkersManagerImpl
+import org.junit.After
+import org.junit.Assert.*
+import org.junit.Before
+import org.junit.Test
+import java.io.File
+import java.io.InterruptedIOException
+import java.io.RandomAccessFile
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.locks.LockSupport
+
+class DataReadWriteWorkersManagerTest {
+    private val endOfInput = AtomicBoolean(false)
+    private lateinit var file: File
+    private lateinit var randomAccessFile: RandomAccessFile
+    private val manager = DataReadWriteWorkersManagerImpl()
+    private val workerThreads = mutableListOf<Thread>()
+    private val connectionsMade = AtomicInteger()
+    private val reconnectsReported = AtomicInteger()
+    private val readingInputs = ConcurrentHashMap.newKeySet<FakeInput>()
+
+    @Before
+    fun setUp() {
+        GDownload.LOGGING_ENABLED = false
+        file = File.createTempFile("workers", ".bin")
+        randomAccessFile = RandomAccessFile(file, "rw")
+        manager.init(true, RandomAccessOutputResourceWrapper(randomAccessFile))
+        manager.setReconnectListener { reconnectsReported.incrementAndGet() }
+    }
+
+    @After
+    fun tearDown() {
+        endOfInput.set(true)
+        manager.release()
+        workerThreads.forEach { it.join(2_000) }
+        randomAccessFile.close()
+        file.delete()
+    }
+
+    @Test
+    fun batchOperationsReportOnce() {
+        startWorkers(4)
+        val results = mutableListOf<Pair<Boolean, String>>()
+        val paused = CountDownLatch(1)
+        manager.pauseAllWorkers { success, message ->
+            synchronized(results) { results.add(Pair(success, message)) }
+            paused.countDown()
+        }
+        assertTrue(paused.await(2, TimeUnit.SECONDS))
+        manager.pauseAllWorkers { success, message ->
+            synchronized(results) { results.add(Pair(success, message)) }
+        }
+        manager.resumeAllWorkers { success, message ->
+            synchronized(results) { results.add(Pair(success, message)) }
+        }
+        val stopped = CountDownLatch(1)
+        manager.stopAllWorkers { success, message ->
+            synchronized(results) { results.add(Pair(success, message)) }
+            stopped.countDown()
+        }
+        assertTrue(stopped.await(2, TimeUnit.SECONDS))
+        synchronized(results) {
+            assertEquals(
+                listOf(
+                    Pair(true, "paused"),
+                    Pair(false, "no running workers to pause"),
+                    Pair(true, "resumed"),
+                    Pair(true, "stopped")
+                ), results
+            )
+        }
+    }
+
+    @Test
+    fun softPauseKeepsConnectionsWithinGraceWindow() {
+        startWorkers(4)
+        val connectionsAtStart = connectionsMade.get()
+        assertTrue(measure { callback -> manager.pauseAllWorkers(500, callback) } > 0)
+        Thread.sleep(50)
+        measure { callback -> manager.resumeAllWorkers(callback) }
+        Thread.sleep(20)
+        assertEquals(connectionsAtStart, connectionsMade.get())
+
+        measure { callback -> manager.pauseAllWorkers(30, callback) }
+        Thread.sleep(100)
+        measure { callback -> manager.resumeAllWorkers(callback) }
+        Thread.sleep(20)
+        assertEquals(connectionsAtStart + 4, connectionsMade.get())
+
+        // hard pause always reconnects.
+        measure { callback -> manager.pauseAllWorkers(callback) }
+        measure { callback -> manager.resumeAllWorkers(callback) }
+        Thread.sleep(20)
+        assertEquals(connectionsAtStart + 8, connectionsMade.get())
+        assertEquals(8, reconnectsReported.get())
+    }
+
+    @Test
+    fun pausedWorkersGiveTheirThreadsBack() {
+        val topology = ExecutorTopology(2, 1, 1, "test")
+        val ioExecutor = topology.newIoExecutor()
+        val other = DataReadWriteWorkersManagerImpl()
+        try {
+            manager.setResumeExecutor(ioExecutor)
+            val finished = CountDownLatch(2)
+            startWorkers(2) { connectionData ->
+                ioExecutor.execute {
+                    manager.addWorker(connectionData) { error ->
+                        if (error == null) {
+                            finished.countDown()
+                        }
+                    }
+                }
+            }
+            // every thread of the pool is taken by the paused download.
+            measure { callback -> manager.pauseAllWorkers(callback) }
+
+            other.init(true, RandomAccessOutputResourceWrapper(randomAccessFile))
+            other.setResumeExecutor(ioExecutor)
+            startWorkers(1) { connectionData -> ioExecutor.execute { other.addWorker(connectionData) {} } }
+
+            // resumed workers wait for the one free thread and finish on it.
+            measure { callback -> manager.resumeAllWorkers(callback) }
+            endOfInput.set(true)
+            assertTrue(finished.await(2, TimeUnit.SECONDS))
+        } finally {
+            other.release()
+            topology.shutDown()
+        }
+    }
+
+    /**
+     * Benchmark - pause and resume latency of a 32 connections download.
+     */
+    @Test
+    fun pauseAndResumeOf32Workers() {
+        val quiescenceLatencies = LinkedBlockingQueue<Long>()
+        manager.setPauseQuiescenceListener { nanos -> quiescenceLatencies.add(nanos) }
+        startWorkers(32)
+        val pauseLatencies = LongArray(ROUNDS)
+        val resumeLatencies = LongArray(ROUNDS)
+        val quiescentLatencies = LongArray(ROUNDS)
+        for (round in 0 until ROUNDS) {
+            Thread.sleep(5)
+            pauseLatencies[round] = measure { callback -> manager.pauseAllWorkers(callback) }
+            quiescentLatencies[round] = quiescenceLatencies.poll(2, TimeUnit.SECONDS)!!
+            resumeLatencies[round] = measure { callback -> manager.resumeAllWorkers(callback) }
+        }
+        pauseLatencies.sort()
+        resumeLatencies.sort()
+        quiescentLatencies.sort()
+        val report = "p50 pause ${pauseLatencies[ROUNDS / 2]} ns, " +
+                "quiescent ${quiescentLatencies[ROUNDS / 2]} ns, resume ${resumeLatencies[ROUNDS / 2]} ns"
+        // acknowledged once the state of every worker changed, quiescent once every worker
+        // finished it's read - bounds are generous, the numbers are in the report.
+        assertTrue(report, pauseLatencies[ROUNDS / 2] < TimeUnit.MILLISECONDS.toNanos(50))
+        assertTrue(report, resumeLatencies[ROUNDS / 2] < TimeUnit.MILLISECONDS.toNanos(50))
+        assertTrue(report, quiescentLatencies[ROUNDS / 2] < TimeUnit.MILLISECONDS.toNanos(500))
+    }
+
+    private fun measure(operation: (BiConsumer<Boolean, String>) -> Unit): Long {
+        val done = CountDownLatch(1)
+        var result = false
+        var latency = 0L
+        val start = System.nanoTime()
+        operation(BiConsumer { success, _ ->
+            latency = System.nanoTime() - start
+            result = success
+            done.countDown()
+        })
+        assertTrue(done.await(2, TimeUnit.SECONDS))
+        assertTrue(result)
+        return latency
+    }
+
+    private fun startWorkers(
+        count: Int,
+        start: (ConnectionManager.ConnectionData) -> Unit = { connectionData ->
+            workerThreads.add(Thread {
+                manager.addWorker(connectionData)
+            }.apply { start() })
+        }
+    ) {
+        val reading = readingInputs.size + count
+        for (index in 0 until count) {
+            val connectionHandler = FakeConnectionHandler()
+            val connectionData = ConnectionManager.ConnectionData(
+                connectionHandler.makeConnection("http://localhost/$index"),
+                connectionHandler,
+                Slice(index, index * SLICE_SIZE, (index + 1) * SLICE_SIZE - 1, 0L, false)
+            )
+            start(connectionData)
+        }
+        // workers are running once each of them has read.
+        val deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(2)
+        while (readingInputs.size < reading && System.nanoTime() < deadline) {
+            Thread.sleep(1)
+        }
+        assertEquals(reading, readingInputs.size)
+    }
+
+    /**
+     * Simulates network - each read waits a bit and an interrupt breaks the read.
+     */
+    private inner class FakeInput : InputResourceWrapper {
+        override fun read(buffer: ByteArray, offset: Int, len: Int): Int {
+            if (endOfInput.get()) {
+                return -1
+            }
+            readingInputs.add(this)
+            LockSupport.parkNanos(READ_NANOS)
+            if (Thread.interrupted()) {
+                throw InterruptedIOException()
+            }
+            return minOf(len, 16)
+        }
+    }
+
+    private inner class FakeConnectionHandler : URLConnectionHandler() {
+        override fun makeConnection(url: String): RemoteConnection {
+            connectionsMade.incrementAndGet()
+            return RemoteConnection(object : Connection {
+                override fun disconnect() {}
+            }, FakeInput())
+        }
+
+        override fun makeConnection(
+            url: String,
+            retriesCount: Int,
+            startRange: Long,
+            endRange: Long,
+            downloaded: Long
+        ): Pair<Exception?, RemoteConnection?> {
+            return Pair(null, makeConnection(url))
+        }
+    }
+
+    companion object {
+        private const val ROUNDS = 10
+        private const val SLICE_SIZE = 1024 * 1024L
+        private const val READ_NANOS = 200_000L
+    }
+}
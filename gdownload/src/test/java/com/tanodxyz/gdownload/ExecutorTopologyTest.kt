@@ -0,0 +1,107 @@
+package com.tanodxyz.gdownload
+
+import com.tanodxyz.gdownload.executors.ExecutorTopology
+import org.junit.After
+import org.junit.Assert.*
+import org.junit.Test
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+
+class ExecutorTopologyTest {
+    private val topology = ExecutorTopology(2, 1, 1, "test")
+
+    @After
+    fun tearDown() {
+        topology.shutDown()
+    }
+
+    @Test
+    fun ioPoolIsBoundedAndQueued() {
+        val release = CountDownLatch(1)
+        val started = CountDownLatch(2)
+        val first = topology.newIoExecutor()
+        val second = topology.newIoExecutor()
+        repeat(3) {
+            (if (it == 0) first else second).execute {
+                started.countDown()
+                release.await()
+            }
+        }
+        assertTrue(started.await(2, TimeUnit.SECONDS))
+        val stats = topology.getIoPoolStats()
+        assertEquals(2, stats.threadsCount)
+        assertEquals(2, stats.activeThreadsCount)
+        assertEquals(2, stats.maxThreadsCount)
+        assertEquals(1, stats.queueDepth)
+        release.countDown()
+    }
+
+    @Test
+    fun shuttingDownViewKeepsPoolAlive() {
+        val blocked = CountDownLatch(1)
+        val interrupted = CountDownLatch(1)
+        val first = topology.newControlExecutor()
+        first.execute {
+            blocked.countDown()
+            try {
+                Thread.sleep(10_000)
+            } catch (ex: InterruptedException) {
+                interrupted.countDown()
+            }
+        }
+        assertTrue(blocked.await(2, TimeUnit.SECONDS))
+        first.shutDown()
+        assertTrue(interrupted.await(2, TimeUnit.SECONDS))
+        assertTrue(first.isTerminated())
+
+        val ran = CountDownLatch(1)
+        val second = topology.newControlExecutor()
+        second.execute { ran.countDown() }
+        assertTrue(ran.await(2, TimeUnit.SECONDS))
+        assertFalse(second.isTerminated())
+        val notRun = AtomicBoolean(true)
+        first.execute { notRun.set(false) }
+        Thread.sleep(50)
+        assertTrue(notRun.get())
+    }
+
+    @Test
+    fun periodicCallbacksRunOnControlPool() {
+        val ticks = CountDownLatch(3)
+        val threadNames = mutableSetOf<String>()
+        val executor = topology.newIoExecutor()
+        val callback = executor.executeAtFixRateAfter({
+            synchronized(threadNames) { threadNames.add(Thread.currentThread().name) }
+            ticks.countDown()
+        }, 20, TimeUnit.MILLISECONDS)
+        assertTrue(ticks.await(2, TimeUnit.SECONDS))
+        executor.shutDown()
+        assertTrue(threadNames.all { it.startsWith("test-Control") })
+        callback.cancel()
+    }
+
+    @Test
+    fun blockingWorkDoesNotWaitForIoThreads() {
+        val release = CountDownLatch(1)
+        val started = CountDownLatch(2)
+        val io = topology.newIoExecutor()
+        repeat(2) {
+            io.execute {
+                started.countDown()
+                release.await()
+            }
+        }
+        assertTrue(started.await(2, TimeUnit.SECONDS))
+        val ran = CountDownLatch(1)
+        var threadName = ""
+        topology.newBlockingExecutor().execute {
+            threadName = Thread.currentThread().name
+            ran.countDown()
+        }
+        assertTrue(ran.await(2, TimeUnit.SECONDS))
+        assertTrue(threadName.startsWith("test-Blocking"))
+        assertEquals(4, topology.stats().count())
+        release.countDown()
+    }
+}
@@ -0,0 +1,127 @@
+package com.tanodxyz.gdownload
+
+import com.tanodxyz.gdownload.GroupImpl.GroupDownloadStates
+import com.tanodxyz.gdownload.database.JournalDownloadDatabaseManager
+import org.junit.After
+import org.junit.Assert.*
+import org.junit.Before
+import org.junit.Test
+import java.io.File
+import java.nio.file.Files
+import java.util.concurrent.TimeUnit
+
+class GroupDownloadsOverflowTest {
+    private lateinit var directory: File
+    private lateinit var journal: JournalDownloadDatabaseManager
+
+    @Before
+    fun setUp() {
+        directory = Files.createTempDirectory("overflow").toFile()
+        journal = JournalDownloadDatabaseManager(directory)
+    }
+
+    @After
+    fun tearDown() {
+        journal.release()
+        directory.deleteRecursively()
+    }
+
+    @Test
+    fun spilledDownloadsArePagedInInOrder() {
+        val overflow = GroupDownloadsOverflow(journal)
+        val aggregator = GroupStateAggregator()
+        val downloads = (1L..10L).map { groupDownload(it, contentLength = 100) }
+        overflow.persist(downloads.map { it.download })
+        overflow.spill(downloads).forEach { aggregator.addDetached(it.contribution) }
+        overflow.setDesiredState(GroupDownloadStates.START)
+
+        val state = aggregator.newState(1, "group")
+        assertEquals(10, state.downloadsCount)
+        assertEquals(10, state.queuedCount)
+        assertEquals(1000L, state.totalBytes)
+
+        val paged = overflow.takeFirst(3)
+        assertEquals(listOf(1L, 2L, 3L), paged.map { it.second!!.download.id })
+        assertEquals(GroupDownloadStates.START, paged[0].second!!.desiredState)
+        assertEquals(3, paged[2].second!!.priority)
+        paged.forEach { (entry, groupDownload) ->
+            aggregator.removeDetached(entry.contribution)
+            aggregator.add(groupDownload!!.download)
+        }
+        assertEquals(10, aggregator.newState(1, "group").downloadsCount)
+
+        assertEquals(7L, overflow.take(7)!!.second!!.download.id)
+        assertNull(overflow.take(7))
+        assertFalse(7L in overflow)
+        assertEquals(listOf(4L, 5L, 6L, 8L, 9L, 10L), overflow.takeFirst(100).map { it.first.id })
+        assertEquals(0, overflow.count())
+    }
+
+    @Test
+    fun purgedAndDeletedDownloadsAreDropped() {
+        val overflow = GroupDownloadsOverflow(journal)
+        val enqueued = groupDownload(1)
+        val stopped = groupDownload(2).apply { currentState = GroupDownloadStates.STOPPED }
+        val deleted = groupDownload(3)
+        overflow.persist(listOf(enqueued.download, stopped.download, deleted.download))
+        overflow.spill(listOf(enqueued, stopped, deleted))
+        assertEquals(listOf(2L), overflow.removeAll(GroupDownloadStates.STOPPED).map { it.id })
+        journal.deleteByIds(listOf(3L))
+        val paged = overflow.takeFirst(2)
+        assertNotNull(paged[0].second)
+        assertNull(paged[1].second)
+    }
+
+    @Test
+    fun rowsAreKeyedByIdAndDroppedOncePagedIn() {
+        val overflow = GroupDownloadsOverflow(journal)
+        // same name, path is resolved only when a downloader runs it.
+        val downloads = (1L..2L).map { id ->
+            GroupImpl.GroupDownload(Download(id, "http://localhost/$id", "file.bin"))
+        }
+        overflow.persist(downloads.map { it.download })
+        overflow.spill(downloads)
+        assertEquals(2, journal.getAll().count())
+
+        val paged = overflow.takeFirst(2)
+        assertEquals(listOf(1L, 2L), paged.map { it.second!!.download.id })
+        assertEquals(0, journal.getAll().count())
+        val download = paged[0].second!!.download
+        download.set(filePath = File(directory, "file.bin").absolutePath)
+        journal.insertOrUpdateDownload(download)
+        assertEquals(listOf(download.getFilePath()), journal.getAll().map { it.getFilePath() })
+
+        val queuedInMemory = groupDownload(3)
+        overflow.persist(listOf(queuedInMemory.download))
+        overflow.forget(listOf(queuedInMemory.download))
+        assertEquals(1, journal.getAll().count())
+    }
+
+    /**
+     * Benchmark - spilling a large batch costs one transaction and a small entry per download.
+     */
+    @Test
+    fun spillsLargeBatch() {
+        val overflow = GroupDownloadsOverflow(journal)
+        val downloads = (1L..BATCH).map { groupDownload(it) }
+        val start = System.nanoTime()
+        overflow.persist(downloads.map { it.download })
+        overflow.spill(downloads)
+        val millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)
+        // generous bound for noisy machines.
+        assertTrue("spilled $BATCH downloads in $millis ms", millis < TimeUnit.SECONDS.toMillis(30))
+        assertEquals(BATCH.toInt(), overflow.count())
+        var streamed = 0
+        overflow.forEachDownload { ++streamed }
+        assertEquals(BATCH.toInt(), streamed)
+    }
+
+    private fun groupDownload(id: Long, contentLength: Long = 0) = GroupImpl.GroupDownload(
+        Download(id, "http://localhost/$id", "file-$id", contentLengthBytes = contentLength),
+        priority = id.toInt()
+    )
+
+    companion object {
+        private const val BATCH = 100_000L
+    }
+}
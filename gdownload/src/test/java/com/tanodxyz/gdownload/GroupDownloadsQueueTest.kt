@@ -0,0 +1,89 @@
+package com.tanodxyz.gdownload
+
+import com.tanodxyz.gdownload.GroupImpl.GroupDownloadStates
+import org.junit.Assert.*
+import org.junit.Test
+import java.util.concurrent.TimeUnit
+
+class GroupDownloadsQueueTest {
+
+    @Test
+    fun lookupsAndStateIndexFollowChanges() {
+        val queue = GroupDownloadsQueue()
+        val downloads = (1L..5L).map { groupDownload(it) }
+        queue.addAll(downloads)
+        assertEquals(5, queue.count())
+        assertSame(downloads[2], queue[3])
+        assertNull(queue[42])
+
+        queue.setCurrentState(downloads[0], GroupDownloadStates.SUCCESS)
+        queue.setCurrentState(downloads[1], GroupDownloadStates.SUCCESS)
+        queue.setCurrentState(downloads[2], GroupDownloadStates.FAILURE)
+        assertEquals(2, queue.count(GroupDownloadStates.SUCCESS))
+        assertEquals(2, queue.count(GroupDownloadStates.ENQUEUED))
+
+        val removed = queue.removeAll(GroupDownloadStates.SUCCESS)
+        assertEquals(setOf(1L, 2L), removed.map { it.download.id }.toSet())
+        assertEquals(listOf(3L, 4L, 5L), queue.map { it.download.id })
+        assertEquals(0, queue.count(GroupDownloadStates.SUCCESS))
+
+        assertSame(downloads[2], queue.remove(3))
+        assertEquals(0, queue.count(GroupDownloadStates.FAILURE))
+
+        val replacement = groupDownload(4)
+        queue.add(replacement)
+        assertSame(replacement, queue[4])
+        assertEquals(2, queue.count(GroupDownloadStates.ENQUEUED))
+    }
+
+    /**
+     * Benchmark - per id commands and purge must not slow down with the size of the queue.
+     */
+    @Test
+    fun commandsThroughputDoesNotDependOnQueueSize() {
+        val reports = mutableListOf<String>()
+        val nanosPerCommand = SIZES.map { size ->
+            val queue = GroupDownloadsQueue()
+            queue.addAll((1L..size).map { groupDownload(it) })
+            // warm up.
+            runCommands(queue, size)
+            val start = System.nanoTime()
+            runCommands(queue, size)
+            val nanos = (System.nanoTime() - start) / COMMANDS
+            val purgeStart = System.nanoTime()
+            val purged = queue.removeAll(GroupDownloadStates.SUCCESS).count()
+            val purgeMicros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - purgeStart)
+            reports.add(
+                "group queue of $size: ${TimeUnit.SECONDS.toNanos(1) / maxOf(1, nanos)} commands/sec," +
+                        " purge of $purged took $purgeMicros us"
+            )
+            nanos
+        }
+        // constant time commands - generous bound for noisy machines.
+        assertTrue(
+            reports.joinToString(),
+            nanosPerCommand.last() < maxOf(nanosPerCommand.first(), 200) * 20
+        )
+    }
+
+    private fun runCommands(queue: GroupDownloadsQueue, size: Long) {
+        var id = 1L
+        for (command in 0 until COMMANDS) {
+            val groupDownload = queue[id]!!
+            queue.setCurrentState(
+                groupDownload,
+                if (command % 2 == 0) GroupDownloadStates.RUNNING else GroupDownloadStates.SUCCESS
+            )
+            id = (id * 7919 + 1) % size + 1
+        }
+    }
+
+    private fun groupDownload(id: Long) = GroupImpl.GroupDownload(
+        Download(id, "http://localhost/$id", "file-$id")
+    )
+
+    companion object {
+        private const val COMMANDS = 20_000
+        private val SIZES = listOf(1_000L, 10_000L, 100_000L)
+    }
+}
@@ -0,0 +1,153 @@
+package com.tanodxyz.gdownload
+
+import org.junit.Assert.*
+import org.junit.Test
+
+class GroupSchedulerTest {
+
+    @Test
+    fun freeDownloadersGoToHighestPriorityFirst() {
+        val scheduler = GroupScheduler(2, listOf("d1", "d2").iterator()::next)
+        val low = groupDownload(1, priority = 1)
+        val high = groupDownload(2, priority = 5)
+        val sameAsHigh = groupDownload(3, priority = 5)
+        assertTrue(scheduler.enqueue(low))
+        assertTrue(scheduler.enqueue(high))
+        assertTrue(scheduler.enqueue(sameAsHigh))
+        assertFalse(scheduler.enqueue(high))
+
+        val first = scheduler.assignNext { true }!!
+        val second = scheduler.assignNext { true }!!
+        assertSame(high, first.second)
+        assertSame(sameAsHigh, second.second)
+        assertNull(scheduler.assignNext { true })
+        assertTrue(scheduler.isWaiting(low))
+
+        assertSame(high, scheduler.release(first.first)!!.groupDownload)
+        assertNull(scheduler.release(first.first))
+        val third = scheduler.assignNext { true }!!
+        assertSame(low, third.second)
+        assertSame(first.first, third.first)
+        assertEquals(0, scheduler.waitingCount())
+    }
+
+    @Test
+    fun removedAndUnwantedDownloadsAreSkipped() {
+        val scheduler = GroupScheduler(1, listOf("d1").iterator()::next)
+        val removed = groupDownload(1, priority = 3)
+        val stopped = groupDownload(2, priority = 2)
+        val wanted = groupDownload(3, priority = 1)
+        listOf(removed, stopped, wanted).forEach { scheduler.enqueue(it) }
+        scheduler.remove(removed)
+        val assigned = scheduler.assignNext { it !== stopped }!!
+        assertSame(wanted, assigned.second)
+        assertSame(wanted, scheduler.downloadOf("d1"))
+        assertEquals(0, scheduler.freeDownloadersCount())
+        assertEquals(0, scheduler.waitingCount())
+    }
+
+    @Test
+    fun agingLetsLongWaitingDownloadsOvertake() {
+        var now = 0L
+        val scheduler = GroupScheduler(1, listOf("d1").iterator()::next, agingNanos = 10, nanoTime = { now })
+        val old = groupDownload(1, priority = 1)
+        scheduler.enqueue(old)
+        now = 50
+        val fresh = groupDownload(2, priority = 3)
+        scheduler.enqueue(fresh)
+        assertEquals(-6.0, scheduler.peekRank { true }!!, 0.0)
+        val assigned = scheduler.assignNext { true }!!
+        assertSame(old, assigned.second)
+        assertEquals(-6.0, scheduler.highestRankAssigned { _, _ -> true }!!.second.rank, 0.0)
+        assertNull(scheduler.highestRankAssigned { _, _ -> false })
+
+        // preempted download keeps the time it waited but not the time it was running.
+        now = 100
+        val assignment = scheduler.release("d1")!!
+        scheduler.requeue(assignment)
+        assertEquals(-8.0, scheduler.peekRank { true }!!, 0.0)
+        assertSame(fresh, scheduler.peekNext { true })
+        scheduler.remove(fresh)
+        assertEquals(-6.0, scheduler.peekRank { true }!!, 0.0)
+    }
+
+    @Test
+    fun agingPreemptionDoesNotThrash() {
+        var now = 0L
+        val minRun = 100L
+        val scheduler = GroupScheduler(
+            1,
+            listOf("d1").iterator()::next,
+            agingNanos = 10,
+            minRunNanos = minRun,
+            nanoTime = { now }
+        )
+        val high = groupDownload(1, priority = 2)
+        val low = groupDownload(2, priority = 1)
+        scheduler.enqueue(high)
+        scheduler.enqueue(low)
+        assertSame(high, scheduler.assignNext { true }!!.second)
+        val runs = mutableListOf<Pair<GroupImpl.GroupDownload, Long>>()
+        var startedAt = 0L
+        // same check the group loop does on every event.
+        while (now < 1_000) {
+            ++now
+            val waitingRank = scheduler.peekRank { true }!!
+            val (downloader, assignment) = scheduler.highestRankAssigned { _, _ -> true } ?: continue
+            if (assignment.rank > waitingRank) {
+                scheduler.release(downloader)
+                scheduler.requeue(assignment)
+                runs.add(Pair(assignment.groupDownload, now - startedAt))
+                startedAt = now
+                scheduler.assignNext { true }
+            }
+        }
+        assertTrue("${runs.size} preemptions", runs.size <= (1_000 / minRun).toInt())
+        assertTrue(runs.all { it.second >= minRun })
+        assertTrue(runs.any { it.first === low })
+    }
+
+    @Test
+    fun downloadersAreCreatedOnDemandAndEvictedWhenIdle() {
+        var now = 0L
+        var created = 0
+        val scheduler = GroupScheduler(3, { "d${++created}" }, nanoTime = { now })
+        assertEquals(0, created)
+        assertTrue(scheduler.hasFreeSlot())
+        (1L..4L).forEach { scheduler.enqueue(groupDownload(it, priority = 1)) }
+        val first = scheduler.assignNext { true }!!
+        val second = scheduler.assignNext { true }!!
+        assertEquals(2, created)
+
+        // released downloader is reused before a new one is created.
+        now = 10
+        scheduler.release(first.first)
+        assertSame(first.first, scheduler.assignNext { true }!!.first)
+        assertEquals(2, created)
+        scheduler.assignNext { true }
+        assertEquals(3, created)
+        assertFalse(scheduler.hasFreeSlot())
+        assertNull(scheduler.assignNext { true })
+
+        now = 20
+        scheduler.release(second.first)
+        now = 30
+        scheduler.release(first.first)
+        now = 40
+        val evicted = mutableListOf<String>()
+        scheduler.evictIdle(15) { evicted.add(it) }
+        assertEquals(listOf(second.first), evicted)
+        assertEquals(1, scheduler.freeDownloadersCount())
+        assertEquals(2, scheduler.createdDownloadersCount())
+        now = 100
+        scheduler.evictIdle(15) { evicted.add(it) }
+        assertEquals(listOf(second.first, first.first), evicted)
+        assertEquals(1, scheduler.createdDownloadersCount())
+        assertTrue(scheduler.hasFreeSlot())
+    }
+
+    private fun groupDownload(id: Long, priority: Int) = GroupImpl.GroupDownload(
+        Download(id, "http://localhost/$id", "file-$id"),
+        priority = priority
+    )
+}
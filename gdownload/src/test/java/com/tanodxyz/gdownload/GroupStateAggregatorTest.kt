@@ -0,0 +1,89 @@
+package com.tanodxyz.gdownload
+
+import org.junit.Assert.*
+import org.junit.Test
+
+class GroupStateAggregatorTest {
+
+    @Test
+    fun aggregatesFollowDownloadChanges() {
+        val aggregator = GroupStateAggregator()
+        val first = newDownload(Download.ENQUEUED, contentLengthBytes = 1000)
+        val second = newDownload(Download.ENQUEUED, contentLengthBytes = 3000)
+        aggregator.add(first)
+        aggregator.add(second)
+        var state = aggregator.newState(1, "group")
+        assertEquals(2, state.downloadsCount)
+        assertEquals(2, state.queuedCount)
+        assertEquals(4000, state.totalBytes)
+        assertEquals(0.0, state.groupDownloadProgress, 0.0)
+
+        first.set(status = Download.DOWNLOADING, contentLengthDownloaded = 500, progress = 50.0)
+        aggregator.refresh(first)
+        second.set(status = Download.DOWNLOADED, contentLengthDownloaded = 3000, progress = 100.0)
+        aggregator.refresh(second)
+        state = aggregator.newState(1, "group")
+        assertEquals(0, state.queuedCount)
+        assertEquals(1, state.runningCount)
+        assertEquals(1, state.completedCount)
+        assertEquals(3500, state.downloadedBytes)
+        assertEquals(75.0, state.groupDownloadProgress, 0.0001)
+
+        aggregator.remove(second)
+        aggregator.refresh(second)
+        state = aggregator.newState(1, "group")
+        assertEquals(1, state.downloadsCount)
+        assertEquals(0, state.completedCount)
+        assertEquals(1000, state.totalBytes)
+        assertEquals(500, state.downloadedBytes)
+    }
+
+    @Test
+    fun unknownContentLengthMakesProgressIndeterminate() {
+        val aggregator = GroupStateAggregator()
+        val unknown = newDownload(Download.DOWNLOADING, contentLengthBytes = -1)
+        aggregator.add(newDownload(Download.DOWNLOADING, contentLengthBytes = 100))
+        aggregator.add(unknown)
+        assertEquals(
+            GroupImpl.INTERMEDIATE_PROGRESS,
+            aggregator.newState(1, "group").groupDownloadProgress,
+            0.0
+        )
+        unknown.set(contentLengthBytes = 100)
+        aggregator.refresh(unknown)
+        val state = aggregator.newState(1, "group")
+        assertTrue(state.groupDownloadProgress >= 0)
+        assertEquals(200, state.totalBytes)
+    }
+
+    @Test
+    fun listedDownloadsAgreeWithCounts() {
+        val aggregator = GroupStateAggregator()
+        val download = newDownload(Download.PAUSED, contentLengthBytes = 10)
+        aggregator.add(download)
+        download.set(status = Download.DOWNLOADING, contentLengthDownloaded = 5)
+        val untracked = newDownload(Download.FAILED, contentLengthBytes = 10)
+        val state = aggregator.newState(1, "group", downloads = listOf(download, untracked))
+        assertEquals(listOf(download.id), state.downloads.map { it.id })
+        assertEquals(1, state.runningDownloads.count())
+        assertEquals(1, state.runningCount)
+        assertEquals(0, state.pausedCount)
+        assertEquals(0, state.failedDownloads.count())
+        assertEquals(5, state.downloadedBytes)
+        assertEquals(state, state.copy())
+
+        download.set(status = Download.DOWNLOADED)
+        assertEquals(Download.DOWNLOADING, state.runningDownloads[0].status)
+        assertTrue(aggregator.newState(1, "group").downloads.isEmpty())
+    }
+
+    private var nextId = 1L
+
+    private fun newDownload(status: String, contentLengthBytes: Long) = Download(
+        id = nextId++,
+        url = "http://localhost/$nextId",
+        filePath = "$nextId",
+        contentLengthBytes = contentLengthBytes,
+        status = status
+    )
+}
@@ -0,0 +1,124 @@
+package com.tanodxyz.gdownload
+
+import com.tanodxyz.gdownload.executors.HashedTimerWheel
+import com.tanodxyz.gdownload.executors.ScheduledBackgroundExecutor
+import org.junit.After
+import org.junit.Assert.*
+import org.junit.Test
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+class HashedTimerWheelTest {
+    private val wheel = HashedTimerWheel(tickMilliSecs = 5, wheelSize = 64, threadName = "test-wheel")
+
+    @After
+    fun tearDown() {
+        wheel.shutDown()
+    }
+
+    @Test
+    fun tasksRunAtTheirInterval() {
+        val latch = CountDownLatch(5)
+        val startNanos = System.nanoTime()
+        val task = wheel.schedule({ latch.countDown() }, 20, TimeUnit.MILLISECONDS, 20)
+        assertTrue(latch.await(2, TimeUnit.SECONDS))
+        val elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos)
+        assertTrue("ran too early: $elapsedMillis ms", elapsedMillis >= 100)
+        task.cancel()
+        assertEquals(ScheduledBackgroundExecutor.CallbackState.State.STOPPED, task.getState())
+        assertEquals(0, wheel.scheduledTasksCount())
+    }
+
+    @Test
+    fun pausedTaskDoesNotRunUntilResumed() {
+        val runs = AtomicInteger()
+        val task = wheel.schedule({ runs.incrementAndGet() }, 10, TimeUnit.MILLISECONDS, 500)
+        task.pause()
+        assertEquals(ScheduledBackgroundExecutor.CallbackState.State.PAUSED, task.getState())
+        assertEquals(0, wheel.scheduledTasksCount())
+        Thread.sleep(50)
+        assertEquals(0, runs.get())
+        task.resume()
+        Thread.sleep(100)
+        assertTrue(runs.get() > 0)
+        task.stop()
+        val runsAfterStop = runs.get()
+        Thread.sleep(50)
+        assertEquals(runsAfterStop, runs.get())
+    }
+
+    @Test
+    fun boundedTaskStopsItself() {
+        val runs = AtomicInteger()
+        val task = wheel.schedule(
+            { runs.incrementAndGet() },
+            10,
+            TimeUnit.MILLISECONDS,
+            bound = 50
+        )
+        Thread.sleep(200)
+        assertEquals(ScheduledBackgroundExecutor.CallbackState.State.STOPPED, task.getState())
+        val runsAfterBound = runs.get()
+        assertTrue(runsAfterBound in 1..7)
+        task.restart()
+        Thread.sleep(200)
+        assertTrue(runs.get() > runsAfterBound)
+    }
+
+    @Test
+    fun concurrentRestartsKeepTaskScheduledOnce() {
+        val task = wheel.schedule({}, 1, TimeUnit.SECONDS, 1)
+        val threads = (0 until 4).map {
+            Thread { repeat(10_000) { task.restart() } }
+        }
+        threads.forEach { it.start() }
+        threads.forEach { it.join() }
+        assertEquals(1, wheel.scheduledTasksCount())
+        task.cancel()
+        assertEquals(0, wheel.scheduledTasksCount())
+    }
+
+    @Test
+    fun failingTaskKeepsRunning() {
+        val latch = CountDownLatch(3)
+        val task = wheel.schedule({
+            latch.countDown()
+            throw IllegalStateException("expected")
+        }, 10, TimeUnit.MILLISECONDS)
+        assertTrue(latch.await(2, TimeUnit.SECONDS))
+        task.cancel()
+    }
+
+    /**
+     * Benchmark - 10k tasks with the same interval must be served with about one wakeup per
+     * interval instead of one per task.
+     */
+    @Test
+    fun manyTasksShareWakeUps() {
+        val benchmarkWheel = HashedTimerWheel(threadName = "benchmark-wheel")
+        try {
+            val runs = AtomicInteger()
+            val intervalMillis = 100L
+            val tasks = (0 until TASKS).map {
+                benchmarkWheel.schedule({ runs.incrementAndGet() }, intervalMillis, TimeUnit.MILLISECONDS, intervalMillis)
+            }
+            val durationMillis = 1_000L
+            Thread.sleep(durationMillis)
+            tasks.forEach { it.cancel() }
+            val (wakeUps, fired) = benchmarkWheel.stats()
+            val report = "timer wheel: $TASKS tasks, $fired runs in $wakeUps wakeups over $durationMillis ms"
+            assertEquals(report, fired, runs.get().toLong())
+            assertTrue(report, fired >= TASKS * 5L)
+            // tasks are scheduled over a few ticks, each interval needs at most that many wakeups.
+            assertTrue(report, wakeUps <= (durationMillis / intervalMillis + 1) * 20)
+            assertEquals(0, benchmarkWheel.scheduledTasksCount())
+        } finally {
+            benchmarkWheel.shutDown()
+        }
+    }
+
+    companion object {
+        private const val TASKS = 10_000
+    }
+}
@@ -0,0 +1,159 @@
+package com.tanodxyz.gdownload
+
+import com.tanodxyz.gdownload.database.DownloadsPage
+import com.tanodxyz.gdownload.database.JournalDownloadDatabaseManager
+import org.junit.After
+import org.junit.Assert.*
+import org.junit.Before
+import org.junit.Test
+import java.io.File
+import java.io.RandomAccessFile
+import java.nio.file.Files
+
+class JournalDownloadDatabaseManagerTest {
+    private lateinit var directory: File
+
+    @Before
+    fun setUp() {
+        directory = Files.createTempDirectory("journal").toFile()
+    }
+
+    @After
+    fun tearDown() {
+        directory.deleteRecursively()
+    }
+
+    @Test
+    fun downloadsSurviveReopen() {
+        val journal = JournalDownloadDatabaseManager(directory)
+        val download = newDownload("a", Download.DOWNLOADING)
+        journal.insertOrUpdateDownload(download)
+        download.set(contentLengthDownloaded = 512, status = Download.PAUSED)
+        download.getSliceData()!![0].downloaded.set(512)
+        journal.insertOrUpdateDownload(download)
+        journal.insertOrUpdateDownload(newDownload("b", Download.DOWNLOADED))
+        journal.release()
+
+        val reopened = JournalDownloadDatabaseManager(directory)
+        val recovered = reopened.findDownloadByFilePath("a")!!
+        assertEquals(Download.PAUSED, recovered.getStatus())
+        assertEquals(512, recovered.getContentLengthDownloaded())
+        assertEquals(512, recovered.getSliceData()!![0].downloaded.get())
+        assertEquals(2, reopened.getAll().count())
+        assertEquals(listOf("a"), reopened.findAllInCompleteDownloads().map { it.getFilePath() })
+    }
+
+    @Test
+    fun deletesAreReplayed() {
+        val journal = JournalDownloadDatabaseManager(directory)
+        journal.insertOrUpdateDownload(newDownload("a", Download.DOWNLOADED))
+        journal.insertOrUpdateDownload(newDownload("b", Download.FAILED))
+        journal.insertOrUpdateDownload(newDownload("c", Download.FAILED))
+        assertEquals(1, journal.deleteDownloadByFilePath("a"))
+        assertEquals(2, journal.deleteDownloads(Download.FAILED))
+        journal.insertOrUpdateDownload(newDownload("d", Download.STOPPED))
+        journal.release()
+        assertEquals(
+            listOf("d"),
+            JournalDownloadDatabaseManager(directory).getAll().map { it.getFilePath() })
+    }
+
+    @Test
+    fun compactionFoldsJournalIntoSnapshot() {
+        val journal = JournalDownloadDatabaseManager(directory, compactionThreshold = 10)
+        val download = newDownload("a", Download.DOWNLOADING)
+        repeat(25) { progress ->
+            download.set(contentLengthDownloaded = progress.toLong())
+            journal.insertOrUpdateDownload(download)
+        }
+        assertEquals(5, journal.getJournalRecordsCount())
+        assertTrue(File(directory, JournalDownloadDatabaseManager.SNAPSHOT_FILE_NAME).exists())
+        journal.release()
+        val reopened = JournalDownloadDatabaseManager(directory, compactionThreshold = 10)
+        assertEquals(24, reopened.findDownloadByFilePath("a")!!.getContentLengthDownloaded())
+        assertEquals(5, reopened.getJournalRecordsCount())
+    }
+
+    @Test
+    fun tornTailIsDiscarded() {
+        val journal = JournalDownloadDatabaseManager(directory)
+        val download = newDownload("a", Download.DOWNLOADING)
+        journal.insertOrUpdateDownload(download)
+        download.set(contentLengthDownloaded = 100)
+        journal.insertOrUpdateDownload(download)
+        journal.release()
+        val journalFile = File(directory, JournalDownloadDatabaseManager.JOURNAL_FILE_NAME)
+        RandomAccessFile(journalFile, "rw").use { it.setLength(it.length() - 3) }
+
+        val reopened = JournalDownloadDatabaseManager(directory)
+        assertEquals(0, reopened.findDownloadByFilePath("a")!!.getContentLengthDownloaded())
+        assertEquals(1, reopened.getJournalRecordsCount())
+        download.set(contentLengthDownloaded = 200)
+        reopened.insertOrUpdateDownload(download)
+        reopened.release()
+        assertEquals(
+            200,
+            JournalDownloadDatabaseManager(directory).findDownloadByFilePath("a")!!
+                .getContentLengthDownloaded()
+        )
+    }
+
+    @Test
+    fun largeBatchIsSplitInRecords() {
+        val journal = JournalDownloadDatabaseManager(directory)
+        journal.maxBatchRecordBytes = 4 * 1024
+        journal.insertAll((1..500).map { newDownload("$it", Download.ENQUEUED) })
+        journal.release()
+        assertEquals(500, JournalDownloadDatabaseManager(directory).getAll().count())
+
+        // torn tail takes only the last record with it.
+        val journalFile = File(directory, JournalDownloadDatabaseManager.JOURNAL_FILE_NAME)
+        RandomAccessFile(journalFile, "rw").use { it.setLength(it.length() - 3) }
+        val survived = JournalDownloadDatabaseManager(directory).getAll().count()
+        assertTrue(survived in 450 until 500)
+    }
+
+    @Test
+    fun corruptRecordEndsReplay() {
+        val journal = JournalDownloadDatabaseManager(directory)
+        journal.insertOrUpdateDownload(newDownload("a", Download.DOWNLOADING))
+        journal.insertOrUpdateDownload(newDownload("b", Download.DOWNLOADING))
+        journal.release()
+        val journalFile = File(directory, JournalDownloadDatabaseManager.JOURNAL_FILE_NAME)
+        RandomAccessFile(journalFile, "rw").use {
+            it.seek(it.length() - 1)
+            val lastByte = it.read()
+            it.seek(it.length() - 1)
+            it.write(lastByte.inv())
+        }
+        val reopened = JournalDownloadDatabaseManager(directory)
+        assertEquals(listOf("a"), reopened.getAll().map { it.getFilePath() })
+    }
+
+    @Test
+    fun downloadsArePagedByKey() {
+        val journal = JournalDownloadDatabaseManager(directory)
+        repeat(5) { index ->
+            journal.insertOrUpdateDownload(newDownload("file$index", Download.PAUSED))
+        }
+        journal.deleteDownloadByFilePath("file1")
+        val firstPage = journal.getDownloadsPage(DownloadsPage.FIRST_PAGE_KEY, 2)
+        assertEquals(listOf("file0", "file2"), firstPage.downloads.map { it.getFilePath() })
+        assertNull(firstPage.downloads[0].getSliceData())
+        val secondPage = journal.getDownloadsPage(firstPage.nextPageKey, 2, null, true)
+        assertEquals(listOf("file3", "file4"), secondPage.downloads.map { it.getFilePath() })
+        assertNotNull(secondPage.downloads[0].getSliceData())
+        assertFalse(secondPage.hasNextPage())
+    }
+
+    private var nextId = 1L
+
+    private fun newDownload(filePath: String, status: String) = Download(
+        id = nextId++,
+        url = "http://localhost/$filePath",
+        filePath = filePath,
+        contentLengthBytes = 1024,
+        status = status,
+        sliceData = listOf(Slice(0, 0, 1023, 0L, false))
+    )
+}
@@ -0,0 +1,98 @@
+package com.tanodxyz.gdownload
+
+import com.tanodxyz.gdownload.executors.ExecutorTopology
+import org.junit.After
+import org.junit.Assert.*
+import org.junit.Test
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.TimeUnit
+
+class ProgressBatchDispatcherTest {
+    private val dispatcher = ProgressBatchDispatcher(mainThread = false, intervalMilliSecs = 50)
+
+    @After
+    fun tearDown() {
+        dispatcher.clean()
+    }
+
+    @Test
+    fun latestProgressOfEachDownloadIsDeliveredInOneBatch() {
+        val batches = LinkedBlockingQueue<List<DownloadInfo>>()
+        dispatcher.addListener { batch -> batches.add(batch) }
+        val delivered = mutableListOf<Long>()
+        repeat(100) { progress ->
+            dispatcher.submit(progressOf(1, progress.toLong())) {
+                synchronized(delivered) { delivered.add(1) }
+            }
+            dispatcher.submit(progressOf(2, progress.toLong()))
+        }
+        val batch = batches.poll(5, TimeUnit.SECONDS)!!
+        assertEquals(listOf(1L, 2L), batch.map { it.id })
+        assertEquals(listOf(99L, 99L), batch.map { it.downloadedContentLengthBytes })
+        assertEquals(listOf(1L), synchronized(delivered) { delivered.toList() })
+        assertNull(batches.poll(200, TimeUnit.MILLISECONDS))
+        assertEquals(0, dispatcher.pendingCount())
+    }
+
+    @Test
+    fun takenProgressIsNotDelivered() {
+        val batches = LinkedBlockingQueue<List<DownloadInfo>>()
+        dispatcher.addListener { batch -> batches.add(batch) }
+        val deliver = Runnable {}
+        dispatcher.submit(progressOf(1, 10), deliver)
+        dispatcher.submit(progressOf(2, 10))
+        assertSame(deliver, dispatcher.takePending(1))
+        assertNull(dispatcher.takePending(1))
+        assertEquals(listOf(2L), batches.poll(5, TimeUnit.SECONDS)!!.map { it.id })
+    }
+
+    @Test
+    fun nothingIsDeliveredAfterClean() {
+        val delivered = CountDownLatch(1)
+        dispatcher.addListener { delivered.countDown() }
+        dispatcher.submit(progressOf(1, 10))
+        dispatcher.clean()
+        dispatcher.submit(progressOf(1, 20))
+        assertFalse(delivered.await(200, TimeUnit.MILLISECONDS))
+        assertEquals(0, dispatcher.pendingCount())
+    }
+
+    @Test
+    fun backgroundFramesAreDeliveredOnCallbackPool() {
+        val topology = ExecutorTopology(name = "test")
+        val topologyDispatcher = ProgressBatchDispatcher(
+            mainThread = false,
+            intervalMilliSecs = 20,
+            executorTopology = topology
+        )
+        try {
+            val threads = LinkedBlockingQueue<String>()
+            topologyDispatcher.addListener { threads.add(Thread.currentThread().name) }
+            topologyDispatcher.submit(progressOf(1, 10))
+            assertTrue(threads.poll(5, TimeUnit.SECONDS)!!.startsWith("test-Callback"))
+            topologyDispatcher.submit(progressOf(1, 20))
+            assertTrue(threads.poll(5, TimeUnit.SECONDS)!!.startsWith("test-Callback"))
+        } finally {
+            topologyDispatcher.clean()
+            topology.shutDown()
+        }
+    }
+
+    @Test(expected = IllegalArgumentException::class)
+    fun negativeIntervalIsRejected() {
+        ProgressBatchDispatcher(mainThread = false, intervalMilliSecs = -1)
+    }
+
+    private fun progressOf(id: Long, downloaded: Long): DownloadInfo {
+        val download = Download(
+            id = id,
+            url = "http://localhost/$id",
+            filePath = "$id",
+            contentLengthBytes = 1024,
+            status = Download.DOWNLOADING
+        )
+        download.set(contentLengthDownloaded = downloaded)
+        return DownloadInfo.newInstance(download)
+    }
+}
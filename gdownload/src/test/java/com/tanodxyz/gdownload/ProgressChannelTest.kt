@@ -0,0 +1,305 @@
+package com.tanodxyz.gdownload
+
+import android.content.Context
+import android.content.ContextWrapper
+import androidx.core.util.Pair
+import com.tanodxyz.gdownload.connection.ConnectionManager
+import com.tanodxyz.gdownload.database.JournalDownloadDatabaseManager
+import com.tanodxyz.gdownload.executors.BackgroundExecutor
+import com.tanodxyz.gdownload.executors.ScheduledBackgroundExecutor
+import com.tanodxyz.gdownload.executors.ScheduledBackgroundExecutorImpl
+import com.tanodxyz.gdownload.io.DefaultFileStorageHelper
+import com.tanodxyz.gdownload.worker.DataReadWriteWorkersManagerImpl
+import org.junit.Assert.*
+import org.junit.Assume.assumeTrue
+import org.junit.Test
+import java.io.File
+import java.lang.management.ManagementFactory
+import java.nio.file.Files
+import java.util.concurrent.TimeUnit
+
+class ProgressChannelTest {
+
+    @Test
+    fun snapshotIsUpdatedInPlace() {
+        val channel = ProgressChannel()
+        val download = newDownload()
+        download.getSliceData()!![1].downloaded.set(300)
+        download.setProgress(300, 25.0)
+        download.bytesPerSecond = 1000
+        channel.publish(download)
+        val snapshot = channel.snapshot
+        assertEquals(1, snapshot.version)
+        assertEquals(300, snapshot.downloadedBytes)
+        assertEquals(1200, snapshot.totalBytes)
+        assertEquals(1000, snapshot.bytesPerSecond)
+        assertEquals(25.0, snapshot.progress, 0.0)
+        assertEquals(3, snapshot.slicesCount)
+        assertEquals(0, snapshot.getSliceDownloadedBytes(0))
+        assertEquals(300, snapshot.getSliceDownloadedBytes(1))
+        channel.publish(download)
+        assertSame(snapshot, channel.snapshot)
+        assertEquals(2, snapshot.version)
+
+        val copy = ProgressSnapshot()
+        assertEquals(2, snapshot.copyTo(copy))
+        assertEquals(300, copy.getSliceDownloadedBytes(1))
+        assertEquals(snapshot.id, copy.id)
+    }
+
+    @Test
+    fun listenersReceivePrimitiveCounters() {
+        val channel = ProgressChannel()
+        val received = mutableListOf<Long>()
+        val listener = ProgressCounterListener { id, downloadedBytes, totalBytes, bytesPerSecond ->
+            received.addAll(listOf(id, downloadedBytes, totalBytes, bytesPerSecond))
+        }
+        channel.addListener(listener)
+        channel.addListener(listener)
+        val download = newDownload()
+        download.setProgress(600, 50.0)
+        download.bytesPerSecond = 20
+        channel.publish(download)
+        assertEquals(listOf(download.id, 600L, 1200L, 20L), received)
+        channel.removeListener(listener)
+        assertFalse(channel.hasListeners())
+        channel.publish(download)
+        assertEquals(4, received.count())
+    }
+
+    @Test
+    fun slicesAreSampledOnlyWithListeners() {
+        val channel = ProgressChannel()
+        val download = newDownload()
+        val samples = mutableListOf<List<SliceProgress>>()
+        channel.sampleSlices(download, 1_000_000_000L)
+        val listener = SliceProgressListener { downloadId, slices ->
+            assertEquals(download.id, downloadId)
+            samples.add(slices.map { it.copy() })
+        }
+        channel.addSliceListener(listener)
+        channel.onSliceConnected(0)
+        channel.onSliceConnected(1)
+        channel.onSliceConnected(1)
+        channel.sampleSlices(download, 1_000_000_000L)
+        assertEquals(
+            listOf(
+                SliceProgress.State.DOWNLOADING,
+                SliceProgress.State.DOWNLOADING,
+                SliceProgress.State.WAITING
+            ),
+            samples[0].map { it.state })
+        assertEquals(listOf(0, 1, 0), samples[0].map { it.reconnects })
+
+        val slices = download.getSliceData()!!
+        slices[0].downloaded.set(200)
+        slices[2].downloadComplete.set(true)
+        channel.sampleSlices(download, 1_500_000_000L)
+        val sample = samples[1]
+        assertEquals(200, sample[0].downloadedBytes)
+        assertEquals(400, sample[0].bytesPerSecond)
+        assertEquals(SliceProgress.State.DOWNLOADING, sample[0].state)
+        assertEquals(SliceProgress.State.STALLED, sample[1].state)
+        assertEquals(0, sample[1].bytesPerSecond)
+        assertEquals(SliceProgress.State.COMPLETED, sample[2].state)
+
+        channel.resetSlices()
+        channel.sampleSlices(download, 2_000_000_000L)
+        assertTrue(samples[2].all { it.reconnects == 0 })
+        channel.removeSliceListener(listener)
+        channel.sampleSlices(download, 3_000_000_000L)
+        assertEquals(3, samples.count())
+    }
+
+    /**
+     * Allocation benchmark - steady state progress ticks with a listener and a reader must not
+     * allocate at all.
+     */
+    @Test
+    fun steadyStateTicksDoNotAllocate() {
+        val channel = ProgressChannel()
+        val counters = LongArray(1)
+        channel.addListener { _, downloadedBytes, _, _ -> counters[0] = downloadedBytes }
+        val readerSnapshot = ProgressSnapshot()
+        val download = newDownload()
+        val slices = download.getSliceData()!!
+        val bytesPerTick = allocatedBytesPerTick { tick ->
+            val slice = slices[tick % slices.size]
+            slice.downloaded.set(tick.toLong())
+            download.setProgress(tick.toLong(), tick / 100.0)
+            download.bytesPerSecond = tick.toLong()
+            channel.publish(download)
+            channel.snapshot.copyTo(readerSnapshot)
+        }
+        assertEquals(0.0, bytesPerTick, 0.0)
+        assertEquals((MEASURED_TICKS - 1).toLong(), counters[0])
+        assertEquals(channel.snapshot.version, readerSnapshot.version)
+    }
+
+    /**
+     * Allocation benchmark of the progress task of [DownloadManager] - nothing is allocated per
+     * tick while nobody consumes [DownloadInfo], also when a group's dispatcher without batch
+     * listeners is set. Download is started as usual and the tick it schedules is run by hand.
+     */
+    @Test
+    fun downloadManagerTicksDoNotAllocateWithoutProgressConsumers() {
+        val loggingEnabled = GDownload.LOGGING_ENABLED
+        // android.util.Log is only a stub in unit tests.
+        GDownload.LOGGING_ENABLED = false
+        val directory = Files.createTempDirectory("tick").toFile()
+        val database = JournalDownloadDatabaseManager(File(directory, "db"))
+        val executor = TickCapturingExecutor()
+        val callbacksHandler = object : DownloadCallbacksHandler() {
+            // no looper in unit tests, callbacks run in place.
+            override fun isCallingThreadMain(): Boolean = false
+        }
+        try {
+            val context = object : ContextWrapper(null) {
+                override fun getApplicationContext(): Context = this
+
+                override fun getSystemService(name: String): Any? = null
+
+                override fun getFilesDir(): File = directory
+            }
+            val downloadManager = object : DownloadManager(
+                executor,
+                DefaultFileStorageHelper(context),
+                callbacksHandler,
+                EstablishingConnectionManager(),
+                database,
+                NetworkInfoProvider(context),
+                DataReadWriteWorkersManagerImpl(),
+                CheckpointPolicy(0, 0, onSliceCompletion = false, onPauseOrStop = false),
+                DirectExecutor()
+            ) {
+                override fun checkIfNetworkIsAvailableAndCanStartDownloadOn(download: Download) =
+                    Pair(true, "")
+            }
+            val download = newDownload()
+            downloadManager.download(download, null)
+            assertEquals(Downloader.STATE.DOWNLOADING, downloadManager.getState())
+            val progressTask = executor.tick!!
+            val slices = download.getSliceData()!!
+            val tick = Tick { index ->
+                slices[index % slices.size].downloaded.incrementAndGet()
+                progressTask.run()
+            }
+            assertEquals(0.0, allocatedBytesPerTick(tick), 0.0)
+
+            callbacksHandler.progressBatchDispatcher = ProgressBatchDispatcher(mainThread = false)
+            assertEquals(0.0, allocatedBytesPerTick(tick), 0.0)
+            assertTrue(download.getContentLengthDownloaded() > 0)
+            downloadManager.shutDown(null)
+        } finally {
+            callbacksHandler.progressBatchDispatcher?.clean()
+            executor.shutDown()
+            database.release()
+            directory.deleteRecursively()
+            GDownload.LOGGING_ENABLED = loggingEnabled
+        }
+    }
+
+    /**
+     * Warms [tick] up and measures bytes allocated by the calling thread per call.
+     */
+    private fun allocatedBytesPerTick(tick: Tick): Double {
+        val threadMXBean = ManagementFactory.getThreadMXBean()
+        assumeTrue(
+            threadMXBean is com.sun.management.ThreadMXBean &&
+                    threadMXBean.isThreadAllocatedMemorySupported
+        )
+        val allocationCounter = threadMXBean as com.sun.management.ThreadMXBean
+        allocationCounter.isThreadAllocatedMemoryEnabled = true
+        val threadId = Thread.currentThread().id
+        repeat(WARM_UP_TICKS) { tick.run(it) }
+        // measuring itself may allocate a few bytes, so the same call is made for the baseline.
+        val baselineStart = allocationCounter.getThreadAllocatedBytes(threadId)
+        val baseline = allocationCounter.getThreadAllocatedBytes(threadId) - baselineStart
+        val start = allocationCounter.getThreadAllocatedBytes(threadId)
+        for (index in 0 until MEASURED_TICKS) {
+            tick.run(index)
+        }
+        val allocated = allocationCounter.getThreadAllocatedBytes(threadId) - start - baseline
+        return allocated.toDouble() / MEASURED_TICKS
+    }
+
+    /**
+     * Runs tasks in place and keeps the progress task instead of scheduling it.
+     */
+    private class TickCapturingExecutor(
+        private val executor: ScheduledBackgroundExecutorImpl = ScheduledBackgroundExecutorImpl(1)
+    ) : ScheduledBackgroundExecutor by executor {
+        var tick: Runnable? = null
+
+        override fun execute(runnable: Runnable): BackgroundExecutor.Cancelable {
+            return DirectExecutor().execute(runnable)
+        }
+
+        override fun executeAtFixRateAfter(
+            runnable: Runnable,
+            interval: Long,
+            timeUnit: TimeUnit
+        ): ScheduledBackgroundExecutor.CallbackState {
+            tick = runnable
+            return executor.executeAtFixRateAfter({}, 1, TimeUnit.DAYS)
+        }
+    }
+
+    /**
+     * Establishes connection at once without touching network and never makes a downloadable
+     * one - download stays [Downloader.STATE.DOWNLOADING].
+     */
+    private class EstablishingConnectionManager : ConnectionManager {
+        override fun createConnections(
+            url: String,
+            numSlices: Int,
+            retriesPerConnection: Int,
+            slices: List<Slice>?,
+            callback: ConnectionManager.ConnectionManagerCallback?
+        ) {
+            callback?.onConnectionEstablished(true, 1200, slices!!.count(), slices)
+        }
+
+        override fun shutDownNow() = Unit
+    }
+
+    private class DirectExecutor : BackgroundExecutor {
+        override fun execute(runnable: Runnable): BackgroundExecutor.Cancelable {
+            runnable.run()
+            return object : BackgroundExecutor.Cancelable {
+                override fun cancel() = Unit
+            }
+        }
+
+        override fun shutDown() = Unit
+
+        override fun cleanUp() = Unit
+
+        override fun isTerminated(): Boolean = false
+    }
+
+    /**
+     * Not a kotlin function type which would box the index.
+     */
+    private fun interface Tick {
+        fun run(index: Int)
+    }
+
+    private fun newDownload() = Download(
+        id = 7,
+        url = "http://localhost/file",
+        filePath = "file",
+        contentLengthBytes = 1200,
+        status = Download.DOWNLOADING,
+        sliceData = listOf(
+            Slice(0, 0, 399, 0L, false),
+            Slice(1, 400, 799, 0L, false),
+            Slice(2, 800, 1199, 0L, false)
+        )
+    )
+
+    companion object {
+        private const val WARM_UP_TICKS = 200_000
+        private const val MEASURED_TICKS = 1_000_000
+    }
+}
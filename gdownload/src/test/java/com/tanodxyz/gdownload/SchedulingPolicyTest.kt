@@ -0,0 +1,119 @@
+package com.tanodxyz.gdownload
+
+import org.junit.Assert.*
+import org.junit.Test
+import java.util.Random
+
+class SchedulingPolicyTest {
+    private var nextId = 1L
+
+    @Test
+    fun weightedFairSharesStartsByWeight() {
+        val policy = SchedulingPolicy.WeightedFair(weightOf = { groupDownload ->
+            if (groupDownload.download.getUrl().contains("://a/")) 3.0 else 1.0
+        })
+        val scheduler = GroupScheduler(1, listOf("d1").iterator()::next, policy)
+        repeat(20) {
+            scheduler.enqueue(groupDownload("a", 1000))
+            scheduler.enqueue(groupDownload("b", 1000))
+        }
+        val firstStarts = (0 until 8).map {
+            val (downloader, groupDownload) = scheduler.assignNext { true }!!
+            scheduler.release(downloader)
+            groupDownload.download.getUrl()
+        }
+        assertEquals(6, firstStarts.count { it.contains("://a/") })
+    }
+
+    @Test
+    fun unknownLengthsGoLastWithShortestRemainingFirst() {
+        val scheduler = GroupScheduler(1, listOf("d1").iterator()::next, SchedulingPolicy.ShortestRemainingFirst())
+        val unknown = groupDownload("a", -1)
+        val large = groupDownload("a", 5000)
+        val small = groupDownload("a", 10)
+        listOf(unknown, large, small).forEach { scheduler.enqueue(it) }
+        val order = (0 until 3).map {
+            val (downloader, groupDownload) = scheduler.assignNext { true }!!
+            scheduler.release(downloader)
+            groupDownload
+        }
+        assertEquals(listOf(small, large, unknown), order)
+    }
+
+    /**
+     * Benchmark - simulated batch of mixed size downloads on a group of 4 downloaders, reports
+     * mean and p95 completion time per policy.
+     */
+    @Test
+    fun completionTimesPerPolicy() {
+        val policies = linkedMapOf<String, () -> SchedulingPolicy>(
+            "fifo" to { SchedulingPolicy.Fifo() },
+            "priority" to { SchedulingPolicy.Priority() },
+            "shortest-remaining-first" to { SchedulingPolicy.ShortestRemainingFirst() },
+            "weighted-fair" to { SchedulingPolicy.WeightedFair() }
+        )
+        val reports = mutableListOf<String>()
+        val means = policies.mapValues { (name, policy) ->
+            val completionTimes = simulate(policy()).sorted()
+            val mean = completionTimes.average()
+            val p95 = completionTimes[(completionTimes.size * 95) / 100]
+            reports.add("$name: mean completion ${mean.toLong()} ms, p95 $p95 ms")
+            mean
+        }
+        val report = reports.joinToString()
+        assertTrue(report, means["shortest-remaining-first"]!! < means["fifo"]!!)
+        assertTrue(report, means["shortest-remaining-first"]!! < means["priority"]!!)
+    }
+
+    /**
+     * Every downloader moves [BYTES_PER_MILLI]. all downloads are added at time zero.
+     * @return completion time of each download in milliseconds.
+     */
+    private fun simulate(policy: SchedulingPolicy): List<Long> {
+        var now = 0L
+        val random = Random(7)
+        val downloaders = (0 until 4).toList()
+        val scheduler = GroupScheduler(downloaders.size, downloaders.iterator()::next, policy, nanoTime = { now })
+        repeat(DOWNLOADS) { index ->
+            val size = if (random.nextInt(10) < 8) {
+                10_000L + random.nextInt(90_000)
+            } else {
+                5_000_000L + random.nextInt(45_000_000)
+            }
+            scheduler.enqueue(groupDownload(if (index % 2 == 0) "a" else "b", size, index))
+        }
+        val finishTimes = HashMap<Int, Long>()
+        val completionTimes = mutableListOf<Long>()
+        while (completionTimes.size < DOWNLOADS) {
+            while (true) {
+                val (downloader, groupDownload) = scheduler.assignNext { true } ?: break
+                finishTimes[downloader] =
+                    now + groupDownload.download.getContentLengthBytes() / BYTES_PER_MILLI
+            }
+            val (downloader, finishTime) = finishTimes.minByOrNull { it.value }!!
+            now = finishTime
+            finishTimes.remove(downloader)
+            scheduler.release(downloader)
+            completionTimes.add(now)
+        }
+        return completionTimes
+    }
+
+    private fun groupDownload(host: String, contentLength: Long, priority: Int = 0): GroupImpl.GroupDownload {
+        val id = nextId++
+        return GroupImpl.GroupDownload(
+            Download(
+                id = id,
+                url = "http://$host/$id",
+                filePath = "$id",
+                contentLengthBytes = contentLength
+            ),
+            priority = priority
+        )
+    }
+
+    companion object {
+        private const val DOWNLOADS = 200
+        private const val BYTES_PER_MILLI = 1000L
+    }
+}
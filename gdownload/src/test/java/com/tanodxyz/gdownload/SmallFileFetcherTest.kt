@@ -0,0 +1,247 @@
+package com.tanodxyz.gdownload
+
+import com.tanodxyz.gdownload.connection.Connection
+import com.tanodxyz.gdownload.connection.RemoteConnection
+import com.tanodxyz.gdownload.connection.URLConnectionHandler
+import com.tanodxyz.gdownload.database.DownloadDatabaseManager
+import com.tanodxyz.gdownload.database.JournalDownloadDatabaseManager
+import com.tanodxyz.gdownload.executors.BackgroundExecutor
+import com.tanodxyz.gdownload.io.StreamInputResourceWrapper
+import org.junit.After
+import org.junit.Assert.*
+import org.junit.Before
+import org.junit.Test
+import java.io.ByteArrayInputStream
+import java.io.File
+import java.io.IOException
+import java.nio.file.Files
+
+class SmallFileFetcherTest {
+    private lateinit var directory: File
+    private lateinit var journal: JournalDownloadDatabaseManager
+    private val executor = ManualExecutor()
+    private val handlersMade = mutableListOf<FakeConnectionHandler>()
+    private var disconnects = 0
+    private var batchWrites = 0
+    private val finished = mutableMapOf<Long, String?>()
+    private var handlerCreated: (FakeConnectionHandler) -> Unit = {}
+    private var admissionController = AdmissionController()
+
+    @Before
+    fun setUp() {
+        directory = Files.createTempDirectory("small").toFile()
+        journal = JournalDownloadDatabaseManager(File(directory, "db"))
+    }
+
+    @After
+    fun tearDown() {
+        journal.release()
+        directory.deleteRecursively()
+    }
+
+    @Test
+    fun batchIsFetchedAndSavedPerHost() {
+        val fetcher = newFetcher()
+        val downloads = listOf(
+            download(1, "http://a/1"),
+            download(2, "http://b/2"),
+            download(3, "http://a/3"),
+            download(4, "http://a/missing")
+        )
+        downloads.forEach { fetcher.enqueue(it) }
+        executor.runAll()
+
+        assertEquals(2, handlersMade.count())
+        assertEquals(listOf("http://a/1", "http://a/3", "http://a/missing"), handlersMade[0].requestedUrls)
+        assertEquals(0, disconnects)
+        assertEquals(2, batchWrites)
+
+        assertEquals("body of http://a/3", File(downloads[2].getFilePath()).readText())
+        assertEquals(Download.DOWNLOADED, downloads[2].getStatus())
+        assertEquals(18L, downloads[2].getContentLengthDownloaded())
+        assertEquals(100.0, downloads[2].getProgress(), 0.0)
+        assertEquals(Download.FAILED, downloads[3].getStatus())
+        assertNull(finished[1])
+        assertNotNull(finished[4])
+        assertEquals(Download.DOWNLOADED, journal.findDownloadsByIds(listOf(3L))[0].getStatus())
+    }
+
+    @Test
+    fun largeBatchIsSavedAndReportedInChunks() {
+        val fetcher = newFetcher()
+        val count = SmallFileFetcher.CHUNK_SIZE * 2 + 1
+        val finishedBeforeFetch = mutableListOf<Int>()
+        handlerCreated = { handler -> handler.onRequest = { finishedBeforeFetch.add(finished.size) } }
+        (1..count).forEach { fetcher.enqueue(download(it.toLong(), "http://a/$it")) }
+        executor.runAll()
+        assertEquals(3, batchWrites)
+        assertEquals(count, finished.size)
+        // first chunk is reported before the second one is fetched.
+        assertEquals(SmallFileFetcher.CHUNK_SIZE, finishedBeforeFetch[SmallFileFetcher.CHUNK_SIZE])
+    }
+
+    @Test
+    fun bodyLargerThenLimitFails() {
+        val fetcher = newFetcher()
+        val declared = download(1, "http://a/large")
+        val undeclared = download(2, "http://a/large-unknown-length")
+        fetcher.enqueue(declared)
+        fetcher.enqueue(undeclared)
+        executor.runAll()
+        assertEquals(Download.FAILED, declared.getStatus())
+        assertEquals(Download.FAILED, undeclared.getStatus())
+        assertNotNull(finished[1])
+        assertNotNull(finished[2])
+    }
+
+    @Test
+    fun fetcherWaitsForAdmission() {
+        admissionController = AdmissionController(maxRunningDownloads = 1)
+        val running = admissionController.tryAcquire(OtherClient(), 1)!!
+        val fetcher = newFetcher()
+        fetcher.enqueue(download(1, "http://a/1"))
+        executor.runAll()
+        assertTrue(finished.isEmpty())
+        assertEquals(1, admissionController.waitingClientsCount())
+
+        running.release()
+        executor.runAll()
+        assertEquals(setOf(1L), finished.keys)
+        // permit is held only while draining.
+        assertEquals(0, admissionController.runningDownloadsCount())
+        assertEquals(0, admissionController.waitingClientsCount())
+    }
+
+    @Test
+    fun cancelledDownloadIsNotFetched() {
+        val fetcher = newFetcher()
+        val cancelled = download(1, "http://a/1")
+        fetcher.enqueue(cancelled)
+        fetcher.enqueue(download(2, "http://a/2"))
+        assertTrue(fetcher.cancel(cancelled))
+        executor.runAll()
+        assertFalse(fetcher.cancel(cancelled))
+        assertEquals(setOf(2L), finished.keys)
+        assertEquals(Download.ENQUEUED, cancelled.getStatus())
+    }
+
+    @Test
+    fun downloadBeingFetchedIsStopped() {
+        val fetcher = newFetcher()
+        val stopped = download(1, "http://a/1")
+        handlerCreated = { handler ->
+            handler.onRequest = { assertFalse(fetcher.cancel(stopped)) }
+        }
+        fetcher.enqueue(stopped)
+        fetcher.enqueue(download(2, "http://a/2"))
+        executor.runAll()
+        assertEquals(Download.STOPPED, stopped.getStatus())
+        assertFalse(File(directory, stopped.getFilePath()).exists())
+        assertNull(finished[1])
+        assertEquals(setOf(1L, 2L), finished.keys)
+        assertEquals(Download.STOPPED, journal.findDownloadsByIds(listOf(1L))[0].getStatus())
+    }
+
+    private fun newFetcher(): SmallFileFetcher {
+        val countingDatabase = object : DownloadDatabaseManager by journal {
+            override fun updateAll(downloads: List<Download>) {
+                ++batchWrites
+                journal.updateAll(downloads)
+            }
+        }
+        return SmallFileFetcher(
+            Factory {
+                FakeConnectionHandler().also {
+                    handlersMade.add(it)
+                    handlerCreated(it)
+                }
+            },
+            countingDatabase,
+            executor,
+            admissionController,
+            0,
+            MAX_BODY_BYTES,
+            { download -> File(directory, download.getFilePath()) },
+            { download, error -> finished[download.id] = error }
+        )
+    }
+
+    private fun download(id: Long, url: String) =
+        Download(id, url, "file-$id", contentLengthBytes = 64)
+
+    private class ManualExecutor : BackgroundExecutor {
+        private val tasks = mutableListOf<Runnable>()
+
+        fun runAll() {
+            while (tasks.isNotEmpty()) {
+                tasks.removeAt(0).run()
+            }
+        }
+
+        override fun execute(runnable: Runnable): BackgroundExecutor.Cancelable {
+            tasks.add(runnable)
+            return object : BackgroundExecutor.Cancelable {
+                override fun cancel() {
+                    tasks.remove(runnable)
+                }
+            }
+        }
+
+        override fun shutDown() = tasks.clear()
+
+        override fun cleanUp() = tasks.clear()
+
+        override fun isTerminated(): Boolean = false
+    }
+
+    private class OtherClient : AdmissionController.Client {
+        override val admissionPriority: Int = 0
+
+        override fun onAdmissionAvailable() {}
+    }
+
+    private inner class FakeConnectionHandler : URLConnectionHandler() {
+        val requestedUrls = mutableListOf<String>()
+        var onRequest: () -> Unit = {}
+
+        override fun makeConnection(url: String): RemoteConnection {
+            requestedUrls.add(url)
+            onRequest()
+            if (url.endsWith("missing")) {
+                throw IOException("404")
+            }
+            val body = if (url.contains("large")) {
+                ByteArray(MAX_BODY_BYTES.toInt() * 4)
+            } else {
+                "body of $url".toByteArray()
+            }
+            return RemoteConnection(
+                object : Connection {
+                    override fun disconnect() {
+                        ++disconnects
+                    }
+                },
+                StreamInputResourceWrapper(ByteArrayInputStream(body)),
+                contentLength = if (url.endsWith("unknown-length")) -1 else body.size.toLong()
+            )
+        }
+
+        override fun makeConnection(
+            url: String,
+            retriesCount: Int,
+            startRange: Long,
+            endRange: Long,
+            downloaded: Long
+        ): Pair<Exception?, RemoteConnection?> {
+            return try {
+                Pair(null, makeConnection(url))
+            } catch (ex: Exception) {
+                Pair(ex, null)
+            }
+        }
+    }
+
+    companion object {
+        private const val MAX_BODY_BYTES = 16 * 1024L
+    }
+}